@@ -0,0 +1,219 @@
+package prom.android.zeroconf.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Generator for synthetic multicast DNS responses
+ *
+ * Produces response packets announcing services with
+ * PTR, SRV, TXT, A and AAAA records, using name compression
+ * the way real responders do.
+ *
+ * @author prom
+ */
+public class SyntheticPackets {
+
+	/** Number of distinct service types to spread services over */
+	public static final int TYPE_COUNT = SyntheticServices.TYPE_COUNT;
+
+	private static final int TYPE_A = 1;
+	private static final int TYPE_PTR = 12;
+	private static final int TYPE_TXT = 16;
+	private static final int TYPE_AAAA = 28;
+	private static final int TYPE_SRV = 33;
+
+	private static final int CLASS_IN = 1;
+	private static final int CLASS_IN_FLUSH = 0x8001;
+
+	/**
+	 * Create a response announcing as many services as fit
+	 *
+	 * @param first index of the first service
+	 * @param maxSize maximum packet size
+	 * @param propertyCount number of TXT properties per service
+	 * @param ttl time to live of all records, 0 for goodbyes
+	 * @return the packet
+	 */
+	public static byte[] response(int first, int maxSize, int propertyCount, int ttl) {
+		return response(first, Integer.MAX_VALUE, maxSize, propertyCount, ttl);
+	}
+
+	/**
+	 * Create a response announcing services
+	 *
+	 * Services get added until the count is reached or
+	 * the next one would exceed the size limit.
+	 *
+	 * @param first index of the first service
+	 * @param count maximum number of services
+	 * @param maxSize maximum packet size
+	 * @param propertyCount number of TXT properties per service
+	 * @param ttl time to live of all records, 0 for goodbyes
+	 * @return the packet
+	 */
+	public static byte[] response(int first, int count, int maxSize, int propertyCount, int ttl) {
+		return response(first, count, maxSize, propertyCount, ttl, true);
+	}
+
+	/**
+	 * Create a response with the details of a service only
+	 *
+	 * This is what a responder sends when asked for the
+	 * SRV and TXT records of an instance: no pointer.
+	 *
+	 * @param index index of the service
+	 * @param propertyCount number of TXT properties
+	 * @param ttl time to live of all records
+	 * @return the packet
+	 */
+	public static byte[] details(int index, int propertyCount, int ttl) {
+		return response(index, 1, 1472, propertyCount, ttl, false);
+	}
+
+	private static byte[] response(int first, int count, int maxSize, int propertyCount, int ttl,
+			boolean pointers) {
+		ByteBuffer out = ByteBuffer.allocate(maxSize);
+		HashMap<String, Integer> names = new HashMap<String, Integer>();
+
+		out.position(12);
+		int records = 0;
+		for(int index = first; index - first < count; index++) {
+			int start = out.position();
+			HashMap<String, Integer> before = new HashMap<String, Integer>(names);
+			try {
+				String type = "_bench" + (index % TYPE_COUNT) + "._tcp.local";
+				String instance = "Device " + index + "." + type;
+
+				int length;
+				if(pointers) {
+					writeName(out, names, type);
+					writeHeader(out, TYPE_PTR, CLASS_IN, ttl);
+					length = out.position();
+					out.putShort((short)0);
+					writeName(out, names, instance);
+					out.putShort(length, (short)(out.position() - length - 2));
+				}
+
+				writeName(out, names, instance);
+				writeHeader(out, TYPE_SRV, CLASS_IN_FLUSH, ttl);
+				length = out.position();
+				out.putShort((short)0);
+				out.putShort((short)0);
+				out.putShort((short)0);
+				out.putShort((short)(1024 + (index % 4096)));
+				writeName(out, names, "dev-" + index + ".local");
+				out.putShort(length, (short)(out.position() - length - 2));
+
+				writeName(out, names, instance);
+				writeHeader(out, TYPE_TXT, CLASS_IN_FLUSH, ttl);
+				length = out.position();
+				out.putShort((short)0);
+				writeString(out, "txtvers=1");
+				writeString(out, "status=idle");
+				for(int i = 2; i < propertyCount; i++) {
+					writeString(out, "key" + i + "=value-" + index + "-" + i);
+				}
+				out.putShort(length, (short)(out.position() - length - 2));
+
+				writeName(out, names, "dev-" + index + ".local");
+				writeHeader(out, TYPE_A, CLASS_IN_FLUSH, ttl);
+				out.putShort((short)4);
+				out.put((byte)10);
+				out.put((byte)0);
+				out.put((byte)(index >> 8));
+				out.put((byte)index);
+
+				writeName(out, names, "dev-" + index + ".local");
+				writeHeader(out, TYPE_AAAA, CLASS_IN_FLUSH, ttl);
+				out.putShort((short)16);
+				out.putShort((short)0xfe80);
+				for(int i = 0; i < 6; i++) {
+					out.putShort((short)0);
+				}
+				out.putShort((short)index);
+
+				records += pointers ? 5 : 4;
+			} catch (RuntimeException e) {
+				// does not fit anymore
+				out.position(start);
+				names = before;
+				break;
+			}
+		}
+
+		out.putShort(0, (short)0);
+		out.putShort(2, (short)0x8400);
+		out.putShort(4, (short)0);
+		out.putShort(6, (short)records);
+		out.putShort(8, (short)0);
+		out.putShort(10, (short)0);
+
+		byte[] packet = new byte[out.position()];
+		out.flip();
+		out.get(packet);
+		return packet;
+	}
+
+	/**
+	 * Name of a service type in wire format
+	 *
+	 * @param index index of a service of the type
+	 */
+	public static byte[] typeName(int index) {
+		ByteBuffer out = ByteBuffer.allocate(256);
+		writeName(out, new HashMap<String, Integer>(), "_bench" + (index % TYPE_COUNT) + "._tcp.local");
+		byte[] name = new byte[out.position()];
+		out.flip();
+		out.get(name);
+		return name;
+	}
+
+	/**
+	 * Name of a service instance in wire format
+	 *
+	 * @param index index of the service
+	 */
+	public static byte[] instanceName(int index) {
+		ByteBuffer out = ByteBuffer.allocate(256);
+		writeName(out, new HashMap<String, Integer>(),
+				"Device " + index + "._bench" + (index % TYPE_COUNT) + "._tcp.local");
+		byte[] name = new byte[out.position()];
+		out.flip();
+		out.get(name);
+		return name;
+	}
+
+	private static void writeHeader(ByteBuffer out, int type, int clazz, int ttl) {
+		out.putShort((short)type);
+		out.putShort((short)clazz);
+		out.putInt(ttl);
+	}
+
+	/** Write a name, compressing suffixes written before */
+	private static void writeName(ByteBuffer out, HashMap<String, Integer> names, String name) {
+		String rest = name;
+		while(rest.length() > 0) {
+			Integer offset = names.get(rest.toLowerCase());
+			if(offset != null) {
+				out.putShort((short)(0xc000 | offset));
+				return;
+			}
+			if(out.position() < 0x4000) {
+				names.put(rest.toLowerCase(), out.position());
+			}
+			int dot = rest.startsWith("Device ") ? rest.indexOf("._") : rest.indexOf('.');
+			String label = (dot < 0) ? rest : rest.substring(0, dot);
+			writeString(out, label);
+			rest = (dot < 0) ? "" : rest.substring(dot + 1);
+		}
+		out.put((byte)0);
+	}
+
+	private static void writeString(ByteBuffer out, String s) {
+		byte[] b = s.getBytes();
+		out.put((byte)b.length);
+		out.put(b);
+	}
+
+}
@@ -0,0 +1,116 @@
+package prom.android.zeroconf.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Generator for synthetic JmDNS services
+ * 
+ * Produces events resembling what JmDNS delivers for
+ * resolved services, without any network involved.
+ * 
+ * @author prom
+ */
+public class SyntheticServices {
+
+	/** Number of distinct service types to spread services over */
+	public static final int TYPE_COUNT = 16;
+
+	/**
+	 * Create a resolved service event
+	 * 
+	 * @param index unique index of the service
+	 * @param propertyCount number of TXT properties
+	 * @return an event carrying a fully populated ServiceInfo
+	 */
+	public static ServiceEvent event(int index, int propertyCount) {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("status", "idle");
+		properties.put("txtvers", "1");
+		for(int i = 2; i < propertyCount; i++) {
+			properties.put("key" + i, "value-" + index + "-" + i);
+		}
+
+		ServiceInfo info = ServiceInfo.create(typeOf(index), nameOf(index), portOf(index), 0, 0, properties);
+
+		return event(info);
+	}
+
+	/**
+	 * Create a resolved record
+	 * 
+	 * @param index unique index of the service
+	 * @param propertyCount number of TXT properties
+	 * @return a record like the JmDNS backend makes of the event
+	 */
+	public static ZeroConfRecord record(int index, int propertyCount) {
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = typeOf(index);
+		r.name = nameOf(index);
+		r.key = (r.name + "." + r.type).toLowerCase();
+		r.domain = "local";
+		r.protocol = "tcp";
+		r.application = "bench" + (index % TYPE_COUNT);
+		r.instance = r.name;
+		r.port = portOf(index);
+		r.internStrings();
+
+		r.setPropertyString("status", "idle");
+		r.setPropertyString("txtvers", "1");
+		for(int i = 2; i < propertyCount; i++) {
+			r.setPropertyString("key" + i, "value-" + index + "-" + i);
+		}
+		return r;
+	}
+
+	private static String typeOf(int index) {
+		return "_bench" + (index % TYPE_COUNT) + "._tcp.local.";
+	}
+
+	private static String nameOf(int index) {
+		return "Device " + index;
+	}
+
+	private static int portOf(int index) {
+		return 1024 + (index % 4096);
+	}
+
+	/**
+	 * Wrap a ServiceInfo into an event
+	 * 
+	 * @param info
+	 * @return an event as delivered by JmDNS listeners
+	 */
+	public static ServiceEvent event(final ServiceInfo info) {
+		return new ServiceEvent(SyntheticServices.class) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public JmDNS getDNS() {
+				return null;
+			}
+
+			@Override
+			public String getType() {
+				return info.getType();
+			}
+
+			@Override
+			public String getName() {
+				return info.getName();
+			}
+
+			@Override
+			public ServiceInfo getInfo() {
+				return info;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,130 @@
+package prom.android.zeroconf.benchmark;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a small packet capture of synthetic traffic
+ *
+ * The capture behind "benchmark/traces/synthetic.pcap",
+ * in classic pcap format with ethernet framing:
+ *
+ *   0.0 s  IPv4 response announcing services 0 to 3
+ *   0.5 s  IPv6 response announcing service 4, VLAN tagged
+ *   1.0 s  unicast DNS response announcing service 9, port 53
+ *  30.0 s  IPv4 response announcing services 0 to 3 again
+ *  31.0 s  IPv4 goodbye of service 3
+ *
+ * Replaying it leaves services 0, 1, 2 and 4.
+ *
+ * Usage: SyntheticTrace out.pcap
+ *
+ * @author prom
+ */
+public class SyntheticTrace {
+
+	private final static int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+
+	private final static int LINKTYPE_ETHERNET = 1;
+
+	private final static int MDNS_PORT = 5353;
+
+	private final static int DNS_PORT = 53;
+
+	/** Start of the capture, in seconds since the epoch */
+	private final static long START_SECONDS = 1500000000;
+
+	private final static int TTL = 120;
+
+	private final static int MAX_SIZE = 1400;
+
+	private final static int PROPERTY_COUNT = 4;
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: SyntheticTrace out.pcap");
+			System.exit(1);
+		}
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(args[0]));
+		try {
+			out.writeInt(PCAP_MAGIC_MICROS);
+			out.writeShort(2);
+			out.writeShort(4);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(65535);
+			out.writeInt(LINKTYPE_ETHERNET);
+
+			byte[] announcement = SyntheticPackets.response(0, 4, MAX_SIZE, PROPERTY_COUNT, TTL);
+			write(out, 0, ipv4(MDNS_PORT, announcement));
+			write(out, 500, ipv6(SyntheticPackets.response(4, 1, MAX_SIZE, PROPERTY_COUNT, TTL)));
+			write(out, 1000, ipv4(DNS_PORT, SyntheticPackets.response(9, 1, MAX_SIZE, PROPERTY_COUNT, TTL)));
+			write(out, 30000, ipv4(MDNS_PORT, announcement));
+			write(out, 31000, ipv4(MDNS_PORT, SyntheticPackets.response(3, 1, MAX_SIZE, PROPERTY_COUNT, 0)));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, long offsetMillis, byte[] frame) throws IOException {
+		out.writeInt((int)(START_SECONDS + offsetMillis / 1000));
+		out.writeInt((int)(offsetMillis % 1000 * 1000));
+		out.writeInt(frame.length);
+		out.writeInt(frame.length);
+		out.write(frame);
+	}
+
+	/** Ethernet frame with an IPv4 UDP datagram */
+	private static byte[] ipv4(int port, byte[] payload) {
+		ByteBuffer f = ByteBuffer.allocate(14 + 20 + 8 + payload.length);
+		ethernet(f, 0x0800);
+		f.put((byte)0x45);
+		f.put((byte)0);
+		f.putShort((short)(20 + 8 + payload.length));
+		f.putInt(0);
+		f.put((byte)255);
+		f.put((byte)17);
+		f.putShort((short)0);
+		f.put(new byte[] { 10, 0, 0, 1 });
+		f.put(new byte[] { (byte)224, 0, 0, (byte)251 });
+		udp(f, port, payload);
+		return f.array();
+	}
+
+	/** Ethernet frame with a VLAN tag and an IPv6 UDP datagram */
+	private static byte[] ipv6(byte[] payload) {
+		ByteBuffer f = ByteBuffer.allocate(14 + 4 + 40 + 8 + payload.length);
+		ethernet(f, 0x8100);
+		f.putShort((short)42);
+		f.putShort((short)0x86dd);
+		f.putInt(0x60000000);
+		f.putShort((short)(8 + payload.length));
+		f.put((byte)17);
+		f.put((byte)255);
+		f.putShort((short)0xfe80);
+		f.put(new byte[13]);
+		f.put((byte)1);
+		f.putShort((short)0xff02);
+		f.put(new byte[13]);
+		f.put((byte)0xfb);
+		udp(f, MDNS_PORT, payload);
+		return f.array();
+	}
+
+	private static void ethernet(ByteBuffer f, int ethertype) {
+		f.put(new byte[] { 0x01, 0x00, 0x5e, 0x00, 0x00, (byte)0xfb });
+		f.put(new byte[] { 0x02, 0x00, 0x00, 0x00, 0x00, 0x01 });
+		f.putShort((short)ethertype);
+	}
+
+	private static void udp(ByteBuffer f, int port, byte[] payload) {
+		f.putShort((short)port);
+		f.putShort((short)port);
+		f.putShort((short)(8 + payload.length));
+		f.putShort((short)0);
+		f.put(payload);
+	}
+
+}
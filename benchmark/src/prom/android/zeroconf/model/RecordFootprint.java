@@ -0,0 +1,171 @@
+package prom.android.zeroconf.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Heap footprint check for records
+ *
+ * Creates a number of records the way clients and the
+ * service do, by reading them from the parcel layout, and
+ * the same records in the layout used before strings were
+ * pooled and TXT data packed: a copy of every string and a
+ * hash map of property values. Reports the retained heap
+ * per record for both and fails unless the pooled layout
+ * saves at least the required share. Run with a fixed heap
+ * size (e.g. -Xms512m -Xmx512m) for stable numbers.
+ *
+ * Usage: RecordFootprint [records] [properties] [required saving in percent]
+ *
+ * @author prom
+ */
+public class RecordFootprint {
+
+	private final static int TYPE_COUNT = 16;
+
+	/** Record as laid out before pooling and packing */
+	private static class BaselineRecord {
+		String key;
+		String name;
+		String type;
+		String domain;
+		String protocol;
+		String application;
+		String instance;
+		String subtype;
+		String server;
+		int port;
+		int priority;
+		int weight;
+		String[] urls;
+		String[] addresses;
+		int version;
+		boolean stale;
+		String[] interfaces;
+		int families;
+		HashMap<String, byte[]> properties = new HashMap<String, byte[]>();
+
+		BaselineRecord(ZeroConfRecord r) {
+			key = copy(r.key);
+			name = copy(r.name);
+			type = copy(r.type);
+			domain = copy(r.domain);
+			protocol = copy(r.protocol);
+			application = copy(r.application);
+			instance = copy(r.instance);
+			subtype = copy(r.subtype);
+			server = copy(r.server);
+			port = r.port;
+			priority = r.priority;
+			weight = r.weight;
+			urls = copy(r.urls);
+			addresses = copy(r.addresses);
+			version = r.version;
+			stale = r.stale;
+			interfaces = copy(r.interfaces);
+			families = r.families;
+			for(String propertyName : r.getPropertyNames()) {
+				properties.put(copy(propertyName), r.getPropertyBytes(propertyName));
+			}
+		}
+
+		private static String copy(String s) {
+			return (s != null) ? new String(s.toCharArray()) : null;
+		}
+
+		private static String[] copy(String[] a) {
+			String[] c = new String[a.length];
+			for(int i = 0; i < a.length; i++) {
+				c[i] = copy(a[i]);
+			}
+			return c;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int propertyCount = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		int requiredSaving = (args.length > 2) ? Integer.parseInt(args[2]) : 40;
+
+		// records as they arrive in a parcel, one by one
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for(int i = 0; i < count; i++) {
+			record(i, propertyCount).writeToStream(out);
+		}
+		out.close();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		bytes = null;
+		long before = usedHeap();
+		ZeroConfRecord[] records = new ZeroConfRecord[count];
+		for(int i = 0; i < count; i++) {
+			records[i] = ZeroConfRecord.readFromStream(in);
+		}
+		long pooled = (usedHeap() - before) / count;
+
+		before = usedHeap();
+		BaselineRecord[] baseline = new BaselineRecord[count];
+		for(int i = 0; i < count; i++) {
+			baseline[i] = new BaselineRecord(records[i]);
+		}
+		long unpooled = (usedHeap() - before) / count;
+
+		long saving = 100 - pooled * 100 / unpooled;
+		System.out.println(count + " records with " + propertyCount + " properties: "
+				+ pooled + " bytes per record, " + unpooled + " before pooling, "
+				+ saving + "% saved");
+
+		// keep the records reachable until after measurement
+		if(!records[count - 1].key.equals(baseline[count - 1].key)) {
+			throw new AssertionError("Records differ");
+		}
+		if(saving < requiredSaving) {
+			throw new AssertionError("Pooled records save " + saving + "%, at least "
+					+ requiredSaving + "% required");
+		}
+	}
+
+	/** A resolved record, like the backends deliver */
+	private static ZeroConfRecord record(int index, int propertyCount) {
+		int t = index % TYPE_COUNT;
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = "_bench" + t + "._tcp.local.";
+		r.name = "Device " + index;
+		r.key = (r.name + "." + r.type).toLowerCase();
+		r.domain = "local";
+		r.protocol = "tcp";
+		r.application = "bench" + t;
+		r.instance = r.name;
+		r.subtype = "";
+		r.server = "device-" + index + ".local.";
+		r.port = 1024 + (index % 4096);
+		r.addresses = new String[] { "192.168." + (index / 256 % 256) + "." + (index % 256) };
+		r.interfaces = new String[] { "wlan0" };
+		r.families = ZeroConfRecord.FAMILY_IPV4;
+		r.setPropertyString("status", "idle");
+		r.setPropertyString("txtvers", "1");
+		for(int i = 2; i < propertyCount; i++) {
+			r.setPropertyString("key" + i, "value-" + index + "-" + i);
+		}
+		return r;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// ignored
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
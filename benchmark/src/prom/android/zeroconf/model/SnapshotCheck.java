@@ -0,0 +1,168 @@
+package prom.android.zeroconf.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Round trip and reconciliation check for snapshots
+ *
+ * Writes records the way the service does into a file,
+ * maps it and verifies that every record reads back equal
+ * and that garbage gets rejected, likewise for the stream
+ * layout. Key-only properties must stay apart from empty
+ * values in both. Then compares a client catching up from
+ * the mapped snapshot, decoding only the changed records,
+ * with decoding every record from the stream layout, which
+ * holds what parcels hold.
+ *
+ * Usage: SnapshotCheck [records] [changed per mille]
+ *
+ * @author prom
+ */
+public class SnapshotCheck {
+
+	private final static int TYPE_COUNT = 16;
+
+	private final static int PROPERTY_COUNT = 8;
+
+	private final static int ROUNDS = 20;
+
+	public static void main(String[] args) throws IOException {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int changedPerMille = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+		ArrayList<ZeroConfRecord> records = new ArrayList<ZeroConfRecord>();
+		for(int i = 0; i < count; i++) {
+			records.add(record(i));
+		}
+
+		ZeroConfSnapshot.Writer writer = new ZeroConfSnapshot.Writer(42, 4711, records);
+		File file = File.createTempFile("check", ".snapshot");
+		file.deleteOnExit();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.setLength(writer.size());
+		writer.writeTo(out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, writer.size()));
+		out.close();
+
+		FileInputStream in = new FileInputStream(file);
+		ZeroConfSnapshot snapshot = ZeroConfSnapshot.map(in.getFD());
+		in.close();
+
+		if(snapshot.getEpoch() != 42 || snapshot.getSequence() != 4711 || snapshot.size() != count) {
+			throw new AssertionError("Header does not read back");
+		}
+		for(int i = 0; i < count; i++) {
+			ZeroConfRecord r = snapshot.getRecord(i);
+			if(!r.contentEquals(records.get(i)) || r.version != records.get(i).version
+					|| !r.key.equals(snapshot.getKey(i)) || r.version != snapshot.getVersion(i)) {
+				throw new AssertionError("Record " + i + " does not read back");
+			}
+		}
+		try {
+			ByteBuffer garbage = ByteBuffer.allocate(writer.size());
+			writer.writeTo(garbage);
+			garbage.putInt(36, writer.size() + 1);
+			new ZeroConfSnapshot(garbage);
+			throw new AssertionError("Truncated snapshot accepted");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// what the client holds, with some records outdated
+		HashMap<String, ZeroConfRecord> held = new HashMap<String, ZeroConfRecord>();
+		for(int i = 0; i < count; i++) {
+			ZeroConfRecord r = new ZeroConfRecord(records.get(i));
+			if(i * 1000L / count % 1000 < changedPerMille) {
+				r.version--;
+			}
+			held.put(r.key, r);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(bytes);
+		for(ZeroConfRecord r : records) {
+			r.writeToStream(stream);
+		}
+		stream.close();
+		byte[] parcels = bytes.toByteArray();
+		DataInputStream readBack = new DataInputStream(new ByteArrayInputStream(parcels));
+		for(int i = 0; i < count; i++) {
+			ZeroConfRecord r = ZeroConfRecord.readFromStream(readBack);
+			if(!r.contentEquals(records.get(i)) || r.version != records.get(i).version
+					|| !r.hasPropertyFlag("flag") || r.hasPropertyFlag("empty")) {
+				throw new AssertionError("Record " + i + " does not read back from the stream");
+			}
+		}
+
+		long snapshotNanos = Long.MAX_VALUE;
+		long parcelNanos = Long.MAX_VALUE;
+		int decoded = 0;
+		for(int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			decoded = 0;
+			for(int i = 0; i < snapshot.size(); i++) {
+				ZeroConfRecord h = held.get(snapshot.getKey(i));
+				if(h == null || h.version != snapshot.getVersion(i)) {
+					snapshot.getRecord(i);
+					decoded++;
+				}
+			}
+			snapshotNanos = Math.min(snapshotNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(parcels));
+			for(int i = 0; i < count; i++) {
+				ZeroConfRecord r = ZeroConfRecord.readFromStream(data);
+				held.get(r.key);
+			}
+			parcelNanos = Math.min(parcelNanos, System.nanoTime() - start);
+		}
+
+		System.out.println(count + " records, snapshot " + (writer.size() / 1024) + " KiB, as parcels "
+				+ (parcels.length / 1024) + " KiB");
+		System.out.println("catching up from the snapshot: " + (snapshotNanos / 1000) + " us, "
+				+ decoded + " records decoded");
+		System.out.println("decoding all records: " + (parcelNanos / 1000) + " us");
+	}
+
+	private static ZeroConfRecord record(int index) {
+		int t = index % TYPE_COUNT;
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = "_bench" + t + "._tcp.local.";
+		r.name = "Device " + index;
+		r.key = (r.name + "." + r.type).toLowerCase();
+		r.domain = "local";
+		r.protocol = "tcp";
+		r.application = "bench" + t;
+		r.instance = r.name;
+		r.subtype = (index % 3 == 0) ? null : "";
+		r.server = "device-" + index + ".local.";
+		r.port = 1024 + (index % 4096);
+		r.priority = index % 7;
+		r.weight = index % 5;
+		r.urls = new String[] { "http://device-" + index + ".local.:" + r.port + "/" };
+		r.addresses = new String[] { "fe80::" + Integer.toHexString(index), "10.0." + (index / 256 % 256) + "." + (index % 256) };
+		r.interfaces = new String[] { "wlan0" };
+		r.families = ZeroConfRecord.FAMILY_IPV4 | ZeroConfRecord.FAMILY_IPV6;
+		r.version = 1 + index % 3;
+		r.stale = index % 11 == 0;
+		r.setPropertyString("txtvers", "1");
+		r.setPropertyBytes("flag", null);
+		r.setPropertyBytes("empty", new byte[0]);
+		for(int i = 2; i < PROPERTY_COUNT; i++) {
+			r.setPropertyString("key" + i, "value-" + index + "-" + i);
+		}
+		return r;
+	}
+
+}
@@ -0,0 +1,65 @@
+package prom.android.zeroconf.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import prom.android.zeroconf.benchmark.SyntheticServices;
+
+/**
+ * Benchmarks for the record model
+ * 
+ * Run with "-prof gc" to see allocation rates.
+ * 
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ZeroConfRecordBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int propertyCount;
+
+	private ZeroConfRecord record;
+
+	private ByteArrayOutputStream buffer;
+
+	@Setup
+	public void setup() {
+		record = SyntheticServices.record(42, propertyCount);
+		buffer = new ByteArrayOutputStream(4096);
+	}
+
+	@Benchmark
+	public String getPropertyString() {
+		return record.getPropertyString("status");
+	}
+
+	@Benchmark
+	public int getPropertyInt() {
+		return record.getPropertyInt("txtvers", 0);
+	}
+
+	/** Equivalent of a parcel write followed by a parcel read */
+	@Benchmark
+	public ZeroConfRecord serializeRoundTrip() throws IOException {
+		buffer.reset();
+		record.writeToStream(new DataOutputStream(buffer));
+		ByteArrayInputStream in = new ByteArrayInputStream(buffer.toByteArray());
+		return ZeroConfRecord.readFromStream(new DataInputStream(in));
+	}
+
+}
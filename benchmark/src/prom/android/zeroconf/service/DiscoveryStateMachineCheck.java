@@ -0,0 +1,186 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+
+/**
+ * Debounce check for the discovery state machine using a fake clock
+ * 
+ * Drives the machine with a fake link state and runs its
+ * timers on a fake scheduler. Verifies that discovery starts
+ * once links have been up for the debounce time, that a flapping
+ * network neither stops nor restarts it, that it stops once
+ * links stay down, and that a failed start gets retried with
+ * growing delays until it succeeds.
+ * 
+ * @author prom
+ */
+public class DiscoveryStateMachineCheck {
+
+	private static long now = 0;
+
+	private static boolean links = false;
+
+	private static int starts = 0;
+
+	private static int stops = 0;
+
+	/** Starts to fail before one succeeds */
+	private static int failures = 0;
+
+	/** Time of the latest start attempt */
+	private static long attemptedAt = -1;
+
+	/** Scheduled tasks and their due times */
+	private static final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+	private static final ArrayList<Long> due = new ArrayList<Long>();
+
+	public static void main(String[] args) {
+		DiscoveryStateMachine machine = new DiscoveryStateMachine(
+				new DiscoveryStateMachine.LinkState() {
+					@Override
+					public boolean hasLinks() {
+						return links;
+					}
+				},
+				new DiscoveryStateMachine.Clock() {
+					@Override
+					public long now() {
+						return now;
+					}
+				},
+				new DiscoveryStateMachine.Scheduler() {
+					@Override
+					public void schedule(Runnable task, long delayMillis) {
+						tasks.add(task);
+						due.add(now + delayMillis);
+					}
+					@Override
+					public void cancel(Runnable task) {
+						int i;
+						while((i = tasks.indexOf(task)) >= 0) {
+							tasks.remove(i);
+							due.remove(i);
+						}
+					}
+				},
+				new DiscoveryStateMachine.Actions() {
+					@Override
+					public boolean startDiscovery() {
+						attemptedAt = now;
+						if(failures > 0) {
+							failures--;
+							return false;
+						}
+						starts++;
+						return true;
+					}
+					@Override
+					public void stopDiscovery() {
+						stops++;
+					}
+				});
+
+		// links come up, discovery starts after the debounce
+		setLinks(machine, true);
+		advance(DiscoveryStateMachine.START_DEBOUNCE_MILLIS - 1);
+		check(starts == 0, "started before the debounce ended");
+		advance(1);
+		check(starts == 1 && machine.getState() == DiscoveryStateMachine.State.RUNNING,
+				"not running after the debounce");
+		machine.onRecordDelivered();
+		check(machine.getFirstRecordLatency() == DiscoveryStateMachine.START_DEBOUNCE_MILLIS,
+				"start latency " + machine.getFirstRecordLatency());
+
+		// flapping never stops discovery
+		for(int i = 0; i < 20; i++) {
+			setLinks(machine, false);
+			advance(DiscoveryStateMachine.STOP_DEBOUNCE_MILLIS / 2);
+			setLinks(machine, true);
+			advance(100);
+		}
+		advance(DiscoveryStateMachine.STOP_DEBOUNCE_MILLIS * 2);
+		check(starts == 1 && stops == 0 && machine.getState() == DiscoveryStateMachine.State.RUNNING,
+				"flapping restarted discovery, " + starts + " starts, " + stops + " stops");
+
+		// staying down stops it
+		setLinks(machine, false);
+		advance(DiscoveryStateMachine.STOP_DEBOUNCE_MILLIS);
+		check(stops == 1 && machine.getState() == DiscoveryStateMachine.State.STOPPED,
+				"not stopped after links stayed down");
+
+		// flapping while coming up never starts it
+		for(int i = 0; i < 20; i++) {
+			setLinks(machine, true);
+			advance(DiscoveryStateMachine.START_DEBOUNCE_MILLIS / 2);
+			setLinks(machine, false);
+			advance(100);
+		}
+		advance(DiscoveryStateMachine.START_DEBOUNCE_MILLIS * 2);
+		check(starts == 1 && machine.getState() == DiscoveryStateMachine.State.STOPPED,
+				"started while flapping");
+
+		// failed starts get retried with growing delays
+		failures = 4;
+		setLinks(machine, true);
+		advance(DiscoveryStateMachine.START_DEBOUNCE_MILLIS);
+		long expected = DiscoveryStateMachine.RETRY_MIN_MILLIS;
+		for(int i = 0; i < 4; i++) {
+			long failedAt = attemptedAt;
+			check(machine.getState() == DiscoveryStateMachine.State.PENDING_START,
+					"gave up after a failed start");
+			advance(expected);
+			check(attemptedAt == failedAt + expected,
+					"retry " + i + " at " + (attemptedAt - failedAt) + " ms instead of " + expected);
+			expected *= 2;
+		}
+		check(starts == 2 && machine.getFailedStarts() == 4
+				&& machine.getState() == DiscoveryStateMachine.State.RUNNING,
+				"not running after retries");
+
+		// retries stop once links go away
+		setLinks(machine, false);
+		advance(DiscoveryStateMachine.STOP_DEBOUNCE_MILLIS);
+		failures = Integer.MAX_VALUE;
+		setLinks(machine, true);
+		advance(DiscoveryStateMachine.START_DEBOUNCE_MILLIS);
+		setLinks(machine, false);
+		advance(DiscoveryStateMachine.RETRY_MAX_MILLIS * 4);
+		check(tasks.isEmpty() && machine.getState() == DiscoveryStateMachine.State.STOPPED,
+				"still retrying without links");
+
+		machine.shutdown();
+		System.out.println("Debounce, flapping, start latency and retries behave, "
+				+ (now / 1000) + " simulated seconds");
+	}
+
+	private static void setLinks(DiscoveryStateMachine machine, boolean up) {
+		links = up;
+		machine.onConnectivityChanged();
+	}
+
+	/** Let time pass, running the tasks that come due */
+	private static void advance(long millis) {
+		long until = now + millis;
+		while(true) {
+			int next = -1;
+			for(int i = 0; i < tasks.size(); i++) {
+				if(due.get(i) <= until && (next < 0 || due.get(i) < due.get(next))) {
+					next = i;
+				}
+			}
+			if(next < 0) {
+				break;
+			}
+			now = due.remove(next);
+			tasks.remove(next).run();
+		}
+		now = until;
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
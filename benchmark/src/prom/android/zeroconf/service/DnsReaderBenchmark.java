@@ -0,0 +1,101 @@
+package prom.android.zeroconf.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import prom.android.zeroconf.benchmark.SyntheticPackets;
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Benchmarks for the multicast DNS receive path
+ *
+ * Parses full-size responses as they come off the network,
+ * once with the bare reader and once through the engine in
+ * steady state, where every record is already known. Run
+ * with "-prof gc" to see the allocation rate, which should
+ * be zero for both.
+ *
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DnsReaderBenchmark {
+
+	@Param({"1472", "9000"})
+	public int packetSize;
+
+	private ByteBuffer packet;
+
+	private DnsReader reader;
+
+	private MdnsEngine engine;
+
+	/** Listener ignoring everything */
+	private static final DiscoveryBackend.Listener IGNORE
+	= new DiscoveryBackend.Listener() {
+		@Override
+		public void typeAdded(String type) {
+		}
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+		}
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+		}
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+		}
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+		}
+	};
+
+	@Setup
+	public void setup() {
+		byte[] data = SyntheticPackets.response(0, packetSize, 4, 120);
+		packet = ByteBuffer.allocateDirect(data.length);
+		packet.put(data);
+		packet.flip();
+
+		reader = new DnsReader();
+
+		engine = new MdnsEngine(IGNORE, new DiscoveryStateMachine.Clock() {
+			@Override
+			public long now() {
+				return 0;
+			}
+		});
+		engine.handlePacket(packet.duplicate());
+	}
+
+	/** Walk all records, hashing every name */
+	@Benchmark
+	public int read() throws Exception {
+		packet.rewind();
+		reader.reset(packet);
+		int h = 0;
+		while(reader.nextRecord()) {
+			h += reader.nameHash(reader.nameOffset);
+		}
+		return h;
+	}
+
+	/** A repeated announcement of known services */
+	@Benchmark
+	public long handleKnown() {
+		packet.rewind();
+		engine.handlePacket(packet);
+		return engine.getPacketCount();
+	}
+
+}
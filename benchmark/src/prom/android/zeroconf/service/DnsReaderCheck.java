@@ -0,0 +1,222 @@
+package prom.android.zeroconf.service;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import prom.android.zeroconf.benchmark.SyntheticPackets;
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Robustness and allocation check of the multicast DNS receive path
+ *
+ * Fuzzes the engine with mutations of a packet corpus. Any
+ * exception escaping the engine is a failure, malformed
+ * packets must be rejected cleanly. Afterwards verifies that
+ * handling known announcements allocates nothing.
+ *
+ * The corpus consists of the files in the given directory,
+ * plus synthetic packets. "-write" stores the synthetic
+ * packets into the directory as a starting corpus.
+ *
+ * Usage: DnsReaderCheck [corpus-dir] [iterations] [-write]
+ *
+ * @author prom
+ */
+public class DnsReaderCheck {
+
+	/** Listener counting events */
+	private static class Counter implements DiscoveryBackend.Listener {
+		long events = 0;
+		@Override
+		public void typeAdded(String type) {
+			events++;
+		}
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+			events++;
+		}
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+			events++;
+		}
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+			events++;
+		}
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+			events++;
+		}
+	}
+
+	private static class FakeClock implements DiscoveryStateMachine.Clock {
+		long now = 0;
+		@Override
+		public long now() {
+			return now;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = (args.length > 0) ? new File(args[0]) : null;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		boolean write = args.length > 2 && args[2].equals("-write");
+
+		ArrayList<byte[]> corpus = seeds();
+		if(dir != null && write) {
+			dir.mkdirs();
+			for(int i = 0; i < corpus.size(); i++) {
+				FileOutputStream out = new FileOutputStream(new File(dir, "seed-" + i + ".bin"));
+				try {
+					out.write(corpus.get(i));
+				} finally {
+					out.close();
+				}
+			}
+		} else if(dir != null) {
+			File[] files = dir.listFiles();
+			if(files != null) {
+				for(File f : files) {
+					corpus.add(read(f));
+				}
+			}
+		}
+
+		fuzz(corpus, iterations);
+		checkAllocation();
+	}
+
+	private static ArrayList<byte[]> seeds() {
+		ArrayList<byte[]> seeds = new ArrayList<byte[]>();
+		seeds.add(SyntheticPackets.response(0, 512, 2, 120));
+		seeds.add(SyntheticPackets.response(100, 1472, 4, 4500));
+		seeds.add(SyntheticPackets.response(0, 9000, 8, 120));
+		seeds.add(SyntheticPackets.response(0, 512, 2, 0));
+		return seeds;
+	}
+
+	private static byte[] read(File f) throws IOException {
+		byte[] data = new byte[(int)f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void fuzz(ArrayList<byte[]> corpus, int iterations) {
+		Random random = new Random(1);
+		FakeClock clock = new FakeClock();
+		Counter counter = new Counter();
+		MdnsEngine engine = new MdnsEngine(counter, clock);
+		ByteBuffer out = ByteBuffer.allocate(MdnsEngine.MAX_QUERY_SIZE);
+		MdnsEngine.Sender sender = new MdnsEngine.Sender() {
+			@Override
+			public void send(ByteBuffer packet) {
+			}
+		};
+
+		for(int n = 0; n < iterations; n++) {
+			byte[] seed = corpus.get(random.nextInt(corpus.size()));
+			byte[] packet = mutate(seed, random);
+			clock.now += 10;
+			try {
+				engine.handlePacket(ByteBuffer.wrap(packet));
+				engine.sendQueries(out, sender);
+			} catch (Throwable t) {
+				System.err.println("Iteration " + n + ": " + t);
+				dump(packet);
+				throw new AssertionError(t);
+			}
+		}
+		System.out.println(iterations + " mutations: " + engine.getMalformedCount() + " rejected, "
+				+ counter.events + " events, " + engine.getInstanceCount() + " instances");
+	}
+
+	private static byte[] mutate(byte[] seed, Random random) {
+		byte[] p = seed.clone();
+		int kind = random.nextInt(5);
+		int count = 1 + random.nextInt(8);
+		for(int i = 0; i < count && p.length > 0; i++) {
+			int at = random.nextInt(p.length);
+			switch(kind) {
+			case 0:
+				p[at] ^= 1 << random.nextInt(8);
+				break;
+			case 1:
+				p[at] = (byte)random.nextInt(256);
+				break;
+			case 2:
+				// compression pointer to a random place
+				if(at + 1 < p.length) {
+					p[at] = (byte)(0xc0 | random.nextInt(0x40));
+					p[at + 1] = (byte)random.nextInt(256);
+				}
+				break;
+			case 3:
+				// interesting counts and lengths
+				p[at] = (byte)((random.nextBoolean()) ? 0xff : 0);
+				break;
+			default:
+				break;
+			}
+		}
+		if(kind == 4 || random.nextInt(10) == 0) {
+			byte[] cut = new byte[random.nextInt(p.length + 1)];
+			System.arraycopy(p, 0, cut, 0, cut.length);
+			p = cut;
+		}
+		return p;
+	}
+
+	private static void dump(byte[] packet) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < packet.length; i++) {
+			sb.append(String.format("%02x", packet[i] & 0xff));
+		}
+		System.err.println(sb);
+	}
+
+	private static void checkAllocation() {
+		com.sun.management.ThreadMXBean threads
+			= (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		FakeClock clock = new FakeClock();
+		Counter counter = new Counter();
+		MdnsEngine engine = new MdnsEngine(counter, clock);
+		byte[] data = SyntheticPackets.response(0, 9000, 4, 120);
+		ByteBuffer packet = ByteBuffer.allocateDirect(data.length);
+		packet.put(data);
+
+		// first sight of everything allocates, then warm up
+		for(int n = 0; n < 20000; n++) {
+			packet.clear();
+			engine.handlePacket(packet);
+		}
+
+		int rounds = 10000;
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int n = 0; n < rounds; n++) {
+			packet.clear();
+			engine.handlePacket(packet);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.println(data.length + " byte packet with " + engine.getInstanceCount()
+				+ " services: " + allocated + " bytes allocated in " + rounds + " rounds");
+		if(allocated / rounds > 0) {
+			throw new AssertionError("Steady state allocates " + (allocated / rounds) + " bytes per packet");
+		}
+	}
+
+}
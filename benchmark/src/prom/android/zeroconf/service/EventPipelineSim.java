@@ -0,0 +1,371 @@
+package prom.android.zeroconf.service;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Discovery events on a shared and on a dedicated thread
+ *
+ * Simulated backends, one per link, deliver bursts of
+ * churn while lifecycle work, standing in for binds and
+ * broadcasts, arrives on the main thread at a steady rate.
+ * Runs once with events posted as a message each into the
+ * queue of the main thread, as the service used to, and
+ * once with events going through the inbox to a thread of
+ * their own. Prints event throughput and latency, and how
+ * long the lifecycle work had to wait.
+ *
+ * The message queue of the main thread is modelled by
+ * a blocking queue, both take a lock for each message.
+ *
+ * Usage: EventPipelineSim [links] [bursts] [burst size]
+ *
+ * @author prom
+ */
+public class EventPipelineSim {
+
+	/** Interval of lifecycle work */
+	private final static long LIFECYCLE_INTERVAL_MILLIS = 16;
+
+	/** Time each piece of lifecycle work takes */
+	private final static long LIFECYCLE_WORK_NANOS = 500 * 1000L;
+
+	/** Pause between the bursts of a link */
+	private final static long BURST_PAUSE_MILLIS = 5;
+
+	private final static int SERVICES_PER_LINK = 2000;
+
+	private final static int MAX_EVENTS_PER_WAKEUP = 256;
+
+	private final static int EVENT_TYPE_ADDED = 1;
+	private final static int EVENT_SERVICE_ADDED = 2;
+	private final static int EVENT_SERVICE_REMOVED = 3;
+	private final static int EVENT_SERVICE_RESOLVED = 4;
+	private final static int EVENT_SERVICE_REFRESHED = 5;
+	private final static int EVENT_END = 6;
+
+	/** Where the links post their events */
+	private interface Pipeline {
+		void post(int what, Object obj, int arg, long now);
+	}
+
+	/** Growing list of latencies */
+	private static class Latencies {
+		long[] values = new long[1024];
+		int count = 0;
+
+		void add(long nanos) {
+			if(count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = nanos;
+		}
+
+		long percentile(int percent) {
+			if(count == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			int index = (int)(((long)count * percent + 99) / 100) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+	}
+
+	/** Outcome of a run */
+	private static class Result {
+		long elapsedNanos;
+		final Latencies events = new Latencies();
+		final Latencies lifecycle = new Latencies();
+	}
+
+	/** A message on the main thread, without object for lifecycle work */
+	private static class Message {
+		final int what;
+		final Object obj;
+		final int arg;
+		final long posted;
+
+		Message(int what, Object obj, int arg, long posted) {
+			this.what = what;
+			this.obj = obj;
+			this.arg = arg;
+			this.posted = posted;
+		}
+	}
+
+	/** Link running a simulated backend */
+	private static class Link extends Thread implements DiscoveryBackend.Listener {
+		final SimulatedBackend backend;
+		final Pipeline pipeline;
+		final int bursts;
+		final int burstSize;
+		final CountDownLatch start;
+
+		Link(int index, Pipeline pipeline, int bursts, int burstSize, CountDownLatch start) {
+			this.backend = new SimulatedBackend(index, 16, SERVICES_PER_LINK, 4);
+			this.pipeline = pipeline;
+			this.bursts = bursts;
+			this.burstSize = burstSize;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+				backend.start(this);
+				for(int i = 0; i < bursts; i++) {
+					Thread.sleep(BURST_PAUSE_MILLIS);
+					backend.churn(burstSize);
+				}
+			} catch (InterruptedException e) {
+				// done
+			}
+			backend.stop();
+		}
+
+		@Override
+		public void typeAdded(String type) {
+			pipeline.post(EVENT_TYPE_ADDED, type, 0, System.nanoTime());
+		}
+
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+			pipeline.post(EVENT_SERVICE_ADDED, r, 0, System.nanoTime());
+		}
+
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+			pipeline.post(EVENT_SERVICE_REMOVED, r, 0, System.nanoTime());
+		}
+
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+			pipeline.post(EVENT_SERVICE_RESOLVED, r, ttlSeconds, System.nanoTime());
+		}
+
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+			pipeline.post(EVENT_SERVICE_REFRESHED, key, ttlSeconds, System.nanoTime());
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int links = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		int bursts = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		int burstSize = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+
+		System.out.println(links + " links, " + bursts + " bursts of " + burstSize + " changes each");
+		for(int round = 0; round < 2; round++) {
+			// the first round warms up
+			Result shared = runShared(links, bursts, burstSize);
+			Result dedicated = runDedicated(links, bursts, burstSize);
+			if(round > 0) {
+				report("main thread", shared);
+				report("event thread", dedicated);
+			}
+		}
+	}
+
+	/** Events and lifecycle work share one queue */
+	private static Result runShared(int links, int bursts, int burstSize)
+			throws InterruptedException {
+		final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+		final Result result = new Result();
+
+		Thread main = new Thread() {
+			@Override
+			public void run() {
+				SimulatedIngest ingest = new SimulatedIngest();
+				try {
+					while(true) {
+						Message m = queue.take();
+						if(m.what == EVENT_END) {
+							break;
+						}
+						if(m.obj == null) {
+							lifecycleWork(result, m.posted);
+						} else {
+							apply(ingest, m.what, m.obj, m.arg);
+							result.events.add(System.nanoTime() - m.posted);
+						}
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		Pipeline pipeline = new Pipeline() {
+			@Override
+			public void post(int what, Object obj, int arg, long now) {
+				queue.add(new Message(what, obj, arg, now));
+			}
+		};
+		Thread ticker = lifecycleTicker(new Runnable() {
+			@Override
+			public void run() {
+				queue.add(new Message(0, null, 0, System.nanoTime()));
+			}
+		});
+		return run(result, main, pipeline, ticker, links, bursts, burstSize);
+	}
+
+	/** Events go through the inbox to a thread of their own */
+	private static Result runDedicated(int links, int bursts, int burstSize)
+			throws InterruptedException {
+		final EventInbox inbox = new EventInbox();
+		final Semaphore wakeup = new Semaphore(0);
+		final LinkedBlockingQueue<Long> lifecycleQueue = new LinkedBlockingQueue<Long>();
+		final Result result = new Result();
+
+		final Thread main = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						lifecycleWork(result, lifecycleQueue.take());
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		Thread events = new Thread() {
+			boolean ended = false;
+
+			@Override
+			public void run() {
+				final SimulatedIngest ingest = new SimulatedIngest();
+				EventInbox.Consumer consumer = new EventInbox.Consumer() {
+					@Override
+					public void event(EventInbox.Event e) {
+						if(e.what == EVENT_END) {
+							ended = true;
+							return;
+						}
+						apply(ingest, e.what, e.obj, e.arg);
+						result.events.add(System.nanoTime() - e.when);
+					}
+				};
+				try {
+					while(!ended) {
+						wakeup.acquire();
+						while(inbox.drain(consumer, MAX_EVENTS_PER_WAKEUP)) {
+							// other messages would get their turn here
+						}
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		Pipeline pipeline = new Pipeline() {
+			@Override
+			public void post(int what, Object obj, int arg, long now) {
+				if(inbox.post(what, obj, arg, now)) {
+					wakeup.release();
+				}
+			}
+		};
+		Thread ticker = lifecycleTicker(new Runnable() {
+			@Override
+			public void run() {
+				lifecycleQueue.add(System.nanoTime());
+			}
+		});
+		main.start();
+		Result r = run(result, events, pipeline, ticker, links, bursts, burstSize);
+		main.interrupt();
+		main.join();
+		return r;
+	}
+
+	private static void apply(SimulatedIngest ingest, int what, Object obj, int arg) {
+		switch(what) {
+		case EVENT_TYPE_ADDED:
+			ingest.typeAdded((String)obj);
+			break;
+		case EVENT_SERVICE_ADDED:
+			ingest.serviceAdded((ZeroConfRecord)obj);
+			break;
+		case EVENT_SERVICE_REMOVED:
+			ingest.serviceRemoved((ZeroConfRecord)obj);
+			break;
+		case EVENT_SERVICE_RESOLVED:
+			ingest.serviceResolved((ZeroConfRecord)obj, arg);
+			break;
+		case EVENT_SERVICE_REFRESHED:
+			ingest.serviceRefreshed((String)obj, arg);
+			break;
+		}
+	}
+
+	/** Do a piece of lifecycle work, noting how long it waited */
+	private static void lifecycleWork(Result result, long posted) {
+		long now = System.nanoTime();
+		result.lifecycle.add(now - posted);
+		long until = now + LIFECYCLE_WORK_NANOS;
+		while(System.nanoTime() < until) {
+			// busy, like inflating a view
+		}
+	}
+
+	private static Thread lifecycleTicker(final Runnable post) {
+		Thread ticker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						post.run();
+						Thread.sleep(LIFECYCLE_INTERVAL_MILLIS);
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		ticker.setDaemon(true);
+		return ticker;
+	}
+
+	private static Result run(Result result, Thread consumer, Pipeline pipeline, Thread ticker,
+			int links, int bursts, int burstSize) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		Link[] producers = new Link[links];
+		for(int l = 0; l < links; l++) {
+			producers[l] = new Link(l, pipeline, bursts, burstSize, start);
+			producers[l].start();
+		}
+		consumer.start();
+		ticker.start();
+		long begin = System.nanoTime();
+		start.countDown();
+		for(Link l : producers) {
+			l.join();
+		}
+		pipeline.post(EVENT_END, null, 0, System.nanoTime());
+		consumer.join();
+		result.elapsedNanos = System.nanoTime() - begin;
+		ticker.interrupt();
+		ticker.join();
+		return result;
+	}
+
+	private static void report(String name, Result r) {
+		System.out.println(name + ": " + (r.events.count * 1000L / Math.max(1, r.elapsedNanos / 1000000))
+				+ " events/s, event latency p50 " + micros(r.events.percentile(50))
+				+ " p99 " + micros(r.events.percentile(99))
+				+ ", lifecycle wait p99 " + micros(r.lifecycle.percentile(99))
+				+ " max " + micros(r.lifecycle.percentile(100)));
+	}
+
+	private static String micros(long nanos) {
+		return (nanos / 1000) + " us";
+	}
+
+}
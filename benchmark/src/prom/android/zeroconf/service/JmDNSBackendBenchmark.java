@@ -0,0 +1,48 @@
+package prom.android.zeroconf.service;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import prom.android.zeroconf.benchmark.SyntheticServices;
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Benchmarks for the JmDNS backend
+ * 
+ * Converts resolved JmDNS events to records, as done for
+ * every resolution. Run with "-prof gc" to see allocation
+ * rates.
+ * 
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JmDNSBackendBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int propertyCount;
+
+	private ServiceEvent event;
+
+	@Setup
+	public void setup() {
+		event = SyntheticServices.event(42, propertyCount);
+	}
+
+	@Benchmark
+	public ZeroConfRecord recordOf() {
+		return JmDNSBackend.recordOf(event);
+	}
+
+}
@@ -0,0 +1,106 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import prom.android.zeroconf.benchmark.SyntheticPackets;
+
+/**
+ * Check resolving services the engine has no pointer for
+ *
+ * The service asks for services it knows from its cache
+ * before any pointer to them has been seen. Drives the
+ * multicast DNS engine with a fake clock: requests one
+ * service, verifies the SRV and TXT questions go out and
+ * that an answer without a pointer adds and resolves it.
+ * A second request goes unanswered and lapses, after
+ * which its details are ignored like any unrequested
+ * ones.
+ *
+ * Usage: MdnsResolveCheck
+ *
+ * @author prom
+ */
+public class MdnsResolveCheck {
+
+	private final static String TYPE = "_bench0._tcp.local.";
+
+	private final static int TTL = 120;
+
+	private final static int PROPERTY_COUNT = 4;
+
+	/** Clock moved by hand */
+	private static class FakeClock implements DiscoveryStateMachine.Clock {
+		long now = 1000;
+		@Override
+		public long now() {
+			return now;
+		}
+	}
+
+	/** Sender counting questions about one name */
+	private static class QuestionSender implements MdnsEngine.Sender {
+		final byte[] name;
+		int questions = 0;
+		QuestionSender(String name) {
+			this.name = DnsMessage.encodeName(name);
+		}
+		@Override
+		public void send(ByteBuffer packet) {
+			byte[] bytes = new byte[packet.remaining()];
+			packet.get(bytes);
+			for(int at = 12; at + name.length <= bytes.length; at++) {
+				if(matches(bytes, at)) {
+					questions++;
+				}
+			}
+		}
+		private boolean matches(byte[] bytes, int at) {
+			for(int i = 0; i < name.length; i++) {
+				if(Character.toLowerCase(bytes[at + i]) != Character.toLowerCase(name[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		FakeClock clock = new FakeClock();
+		TraceReplay.PrintingIngest ingest = new TraceReplay.PrintingIngest(false);
+		MdnsEngine engine = new MdnsEngine(ingest, clock);
+		ByteBuffer out = ByteBuffer.allocate(MdnsEngine.MAX_QUERY_SIZE);
+
+		engine.resolve(TYPE, "Device 0");
+		clock.now += 1000;
+		QuestionSender sender = new QuestionSender("Device 0." + TYPE);
+		engine.sendQueries(out, sender);
+		check(sender.questions == 2, sender.questions + " questions about the service instead of 2");
+
+		engine.handlePacket(ByteBuffer.wrap(SyntheticPackets.details(0, PROPERTY_COUNT, TTL)));
+		check(ingest.added == 1, ingest.added + " services added instead of 1");
+		check(ingest.resolved == 1, ingest.resolved + " services resolved instead of 1");
+		Srv s = ingest.registry.getSrv("device 0." + TYPE);
+		check(s != null && s.resolved && s.getRecord().port == 1024
+				&& "dev-0.local.".equals(s.getRecord().server), "requested service resolved wrong");
+		check(engine.getInstanceCount() == 1, engine.getInstanceCount() + " instances instead of 1");
+
+		engine.resolve("_bench1._tcp.local.", "Device 1");
+		clock.now += MdnsEngine.REQUEST_TIMEOUT_MILLIS + 1000;
+		engine.sendQueries(out, new QuestionSender("Device 1._bench1._tcp.local."));
+		engine.handlePacket(ByteBuffer.wrap(SyntheticPackets.details(1, PROPERTY_COUNT, TTL)));
+		engine.handlePacket(ByteBuffer.wrap(SyntheticPackets.details(2, PROPERTY_COUNT, TTL)));
+		check(ingest.added == 1, "details of a lapsed or unrequested service got through");
+		check(engine.getInstanceCount() == 1, engine.getInstanceCount() + " instances instead of 1");
+
+		System.out.println("requested service added and resolved without a pointer after "
+				+ sender.questions + " questions, lapsed and unrequested details ignored");
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
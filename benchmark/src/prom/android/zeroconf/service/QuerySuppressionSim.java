@@ -0,0 +1,255 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import prom.android.zeroconf.benchmark.SyntheticPackets;
+
+/**
+ * Query traffic on a simulated network
+ *
+ * A number of devices running the engine browse a link
+ * with hundreds of simple responders, once with known-answer
+ * and duplicate-question suppression and once without.
+ * Prints query and answer traffic per minute for both.
+ *
+ * Responders answer the service type enumeration and
+ * pointer questions for their type unless listed as known
+ * answer with more than half of the TTL left, and detail
+ * questions for their instance. Every
+ * packet reaches every other node one tick after it was
+ * sent. Browsers join the link a little apart.
+ *
+ * Usage: QuerySuppressionSim [responders] [browsers] [minutes]
+ *
+ * @author prom
+ */
+public class QuerySuppressionSim {
+
+	private final static long TICK_MILLIS = 10;
+
+	/** Time between browsers joining the link */
+	private final static long JOIN_SPACING_MILLIS = 400;
+
+	private final static int TTL_SECONDS = 4500;
+
+	private final static byte[] SERVICES_NAME = DnsMessage.encodeName(MdnsEngine.SERVICES_NAME);
+
+	/** A packet on the link */
+	private static class Packet {
+		final Object sender;
+		final byte[] data;
+		final boolean query;
+
+		Packet(Object sender, byte[] data, boolean query) {
+			this.sender = sender;
+			this.data = data;
+			this.query = query;
+		}
+	}
+
+	/** A device announcing one service */
+	private static class Responder {
+		final byte[] typeName;
+		final byte[] instanceName;
+		final byte[] response;
+		final byte[] typeResponse;
+
+		Responder(int index) {
+			typeName = SyntheticPackets.typeName(index);
+			instanceName = SyntheticPackets.instanceName(index);
+			response = SyntheticPackets.response(index, 1, 1472, 4, TTL_SECONDS);
+
+			ByteBuffer b = ByteBuffer.allocate(DnsMessage.HEADER_SIZE + SERVICES_NAME.length + 10
+					+ typeName.length);
+			b.putShort(2, (short)0x8400);
+			b.putShort(6, (short)1);
+			b.position(DnsMessage.HEADER_SIZE);
+			b.put(SERVICES_NAME);
+			b.putShort((short)DnsMessage.TYPE_PTR);
+			b.putShort((short)DnsMessage.CLASS_IN);
+			b.putInt(TTL_SECONDS);
+			b.putShort((short)typeName.length);
+			b.put(typeName);
+			typeResponse = b.array();
+		}
+
+		/** Decide whether to answer the service type enumeration */
+		boolean answersTypes(DnsReader reader) {
+			boolean asked = false;
+			reader.rewindQuestions();
+			while(reader.nextQuestion()) {
+				if(reader.type == DnsMessage.TYPE_PTR && reader.nameEquals(reader.nameOffset, SERVICES_NAME)) {
+					asked = true;
+				}
+			}
+			if(!asked) {
+				return false;
+			}
+			reader.rewindRecords();
+			while(reader.nextRecord()) {
+				if(reader.type == DnsMessage.TYPE_PTR
+						&& reader.nameEquals(reader.pointerTarget(), typeName)
+						&& reader.ttl * 2 > TTL_SECONDS) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Decide whether to announce the service in response to a query */
+		boolean answers(DnsReader reader) {
+			boolean asked = false;
+			reader.rewindQuestions();
+			while(reader.nextQuestion()) {
+				if(reader.type == DnsMessage.TYPE_PTR && reader.nameEquals(reader.nameOffset, typeName)) {
+					asked = true;
+				} else if((reader.type == DnsMessage.TYPE_SRV || reader.type == DnsMessage.TYPE_TXT)
+						&& reader.nameEquals(reader.nameOffset, instanceName)) {
+					return true;
+				}
+			}
+			if(!asked) {
+				return false;
+			}
+			reader.rewindRecords();
+			while(reader.nextRecord()) {
+				if(reader.type == DnsMessage.TYPE_PTR
+						&& reader.nameEquals(reader.pointerTarget(), instanceName)
+						&& reader.ttl * 2 > TTL_SECONDS) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** A device browsing */
+	private static class Browser {
+		final long joins;
+		final SimulatedIngest ingest = new SimulatedIngest();
+		final ManualClock clock = new ManualClock();
+		final MdnsEngine engine;
+
+		Browser(long joins, boolean suppression) {
+			this.joins = joins;
+			clock.now = joins;
+			engine = new MdnsEngine(ingest, clock);
+			engine.setSuppression(suppression);
+		}
+	}
+
+	private static class ManualClock implements DiscoveryStateMachine.Clock {
+		long now;
+		@Override
+		public long now() {
+			return now;
+		}
+	}
+
+	/** Traffic counters */
+	private static class Traffic {
+		long queries;
+		long queryBytes;
+		long answers;
+		long answerBytes;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int responders = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		int browsers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		int minutes = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+		System.out.println(responders + " responders, " + browsers + " browsers, "
+				+ minutes + " minutes");
+		for(boolean suppression : new boolean[] { false, true }) {
+			Traffic t = run(responders, browsers, minutes, suppression);
+			System.out.println((suppression ? "with" : "without") + " suppression: "
+					+ (t.queries / minutes) + " queries (" + (t.queryBytes / minutes) + " bytes), "
+					+ (t.answers / minutes) + " answers (" + (t.answerBytes / minutes) + " bytes) per minute");
+		}
+	}
+
+	private static Traffic run(int responderCount, int browserCount, int minutes, boolean suppression)
+			throws IOException {
+		Traffic traffic = new Traffic();
+		DnsReader reader = new DnsReader();
+		Random random = new Random(1);
+
+		ArrayList<Responder> responders = new ArrayList<Responder>();
+		for(int i = 0; i < responderCount; i++) {
+			responders.add(new Responder(i));
+		}
+		ArrayList<Browser> browsers = new ArrayList<Browser>();
+		for(int i = 0; i < browserCount; i++) {
+			browsers.add(new Browser(i * JOIN_SPACING_MILLIS + random.nextInt(100), suppression));
+		}
+
+		final ArrayList<Packet> link = new ArrayList<Packet>();
+		ByteBuffer out = ByteBuffer.allocate(MdnsEngine.MAX_QUERY_SIZE);
+
+		long end = minutes * 60 * 1000L;
+		for(long now = 0; now < end; now += TICK_MILLIS) {
+			ArrayList<Packet> arriving = new ArrayList<Packet>(link);
+			link.clear();
+
+			for(Packet p : arriving) {
+				for(Browser b : browsers) {
+					if(b != p.sender && b.joins <= now) {
+						b.clock.now = now;
+						b.engine.handlePacket(ByteBuffer.wrap(p.data));
+					}
+				}
+				if(!p.query) {
+					continue;
+				}
+				try {
+					reader.reset(ByteBuffer.wrap(p.data));
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+				for(Responder r : responders) {
+					if(r.answersTypes(reader)) {
+						link.add(new Packet(r, r.typeResponse, false));
+						traffic.answers++;
+						traffic.answerBytes += r.typeResponse.length;
+					}
+					if(r.answers(reader)) {
+						link.add(new Packet(r, r.response, false));
+						traffic.answers++;
+						traffic.answerBytes += r.response.length;
+					}
+				}
+			}
+
+			for(final Browser b : browsers) {
+				if(b.joins > now) {
+					continue;
+				}
+				b.clock.now = now;
+				final Traffic t = traffic;
+				b.engine.sendQueries(out, new MdnsEngine.Sender() {
+					@Override
+					public void send(ByteBuffer packet) {
+						byte[] data = new byte[packet.remaining()];
+						packet.get(data);
+						link.add(new Packet(b, data, true));
+						t.queries++;
+						t.queryBytes += data.length;
+					}
+				});
+			}
+		}
+
+		for(Browser b : browsers) {
+			if(b.ingest.registry.size() != responderCount) {
+				throw new AssertionError("Browser found " + b.ingest.registry.size()
+						+ " of " + responderCount + " services");
+			}
+		}
+		return traffic;
+	}
+
+}
@@ -0,0 +1,119 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import prom.android.zeroconf.benchmark.SyntheticPackets;
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Ordering check for the resolve queue using a fake clock
+ *
+ * Discovers 2000 services at once, a few of them requested
+ * by a client and one type subscribed, and lets a fake
+ * network answer a share of the resolutions. Verifies that
+ * the concurrency limit holds, that requested services
+ * finish before subscribed ones, and that services nobody
+ * asked for never get resolved.
+ *
+ * @author prom
+ */
+public class ResolveQueueCheck {
+
+	private final static int SERVICES = 2000;
+
+	private final static int MAX_IN_FLIGHT = 4;
+
+	private final static long TIMEOUT_MILLIS = 3000;
+
+	public static void main(String[] args) {
+		final ResolveQueue queue = new ResolveQueue(MAX_IN_FLIGHT, TIMEOUT_MILLIS);
+		final ArrayList<Srv> started = new ArrayList<Srv>();
+		ResolveQueue.Resolver resolver = new ResolveQueue.Resolver() {
+			@Override
+			public void resolve(Srv s) {
+				started.add(s);
+			}
+		};
+
+		Srv[] services = new Srv[SERVICES];
+		int[] priorities = new int[SERVICES];
+		for(int i = 0; i < SERVICES; i++) {
+			ZeroConfRecord r = new ZeroConfRecord();
+			r.type = "_bench" + (i % SyntheticPackets.TYPE_COUNT) + "._tcp.local.";
+			r.name = "Device " + i;
+			r.key = (r.name + "." + r.type).toLowerCase();
+			services[i] = new Srv(r);
+			if(i % 97 == 5) {
+				priorities[i] = ResolveQueue.PRIORITY_REQUESTED;
+			} else if(i % SyntheticPackets.TYPE_COUNT == 0) {
+				priorities[i] = ResolveQueue.PRIORITY_SUBSCRIBED;
+			} else {
+				// nobody watches, stays unresolved
+				priorities[i] = -1;
+				continue;
+			}
+			queue.add(services[i], ResolveQueue.PRIORITY_CONFIRM);
+			queue.add(services[i], priorities[i]);
+		}
+		int wanted = queue.size();
+
+		Random random = new Random(7);
+		long now = 0;
+		long[] resolvedAt = new long[SERVICES];
+		int resolved = 0;
+		int attempts = 0;
+		int timeouts = 0;
+		queue.dispatch(now, resolver);
+		while(queue.size() > 0 || queue.inFlight() > 0) {
+			if(queue.inFlight() > MAX_IN_FLIGHT) {
+				throw new AssertionError(queue.inFlight() + " resolutions in flight");
+			}
+			now += 50;
+			for(Srv s : started) {
+				attempts++;
+				// one in ten queries goes unanswered
+				if(random.nextInt(10) == 0) {
+					continue;
+				}
+				int i = indexOf(s);
+				if(resolvedAt[i] == 0) {
+					resolvedAt[i] = now;
+					resolved++;
+				}
+				queue.completed(s.key, now);
+			}
+			started.clear();
+			timeouts += queue.expire(now);
+			queue.dispatch(now, resolver);
+		}
+
+		long lastRequested = 0;
+		long firstSubscribed = Long.MAX_VALUE;
+		for(int i = 0; i < SERVICES; i++) {
+			if(priorities[i] < 0 && resolvedAt[i] != 0) {
+				throw new AssertionError("Unwatched service " + i + " got resolved");
+			}
+			if(priorities[i] == ResolveQueue.PRIORITY_REQUESTED && resolvedAt[i] != 0) {
+				lastRequested = Math.max(lastRequested, resolvedAt[i]);
+			} else if(priorities[i] == ResolveQueue.PRIORITY_SUBSCRIBED && resolvedAt[i] != 0) {
+				firstSubscribed = Math.min(firstSubscribed, resolvedAt[i]);
+			}
+		}
+		if(lastRequested > firstSubscribed + TIMEOUT_MILLIS * ResolveQueue.MAX_ATTEMPTS) {
+			throw new AssertionError("Requested services finished at " + lastRequested
+					+ ", subscribed ones started at " + firstSubscribed);
+		}
+
+		System.out.println(wanted + " of " + SERVICES + " services wanted, " + resolved + " resolved with "
+				+ attempts + " queries and " + timeouts + " timeouts in " + (now / 1000)
+				+ " simulated seconds");
+	}
+
+	private static int indexOf(Srv s) {
+		// names of synthetic services end in their index
+		String name = s.name;
+		return Integer.parseInt(name.substring(name.lastIndexOf(' ') + 1));
+	}
+
+}
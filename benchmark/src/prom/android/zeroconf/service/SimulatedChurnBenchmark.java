@@ -0,0 +1,44 @@
+package prom.android.zeroconf.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Registry ingest under simulated churn
+ * 
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatedChurnBenchmark {
+
+	/** Changes per benchmark invocation */
+	private final static int EVENTS_PER_ROUND = 100;
+
+	@Param({"1000", "10000"})
+	public int serviceCount;
+
+	private SimulatedBackend backend;
+
+	@Setup
+	public void setup() {
+		backend = new SimulatedBackend(serviceCount, 32, serviceCount, 4);
+		backend.start(new SimulatedIngest());
+	}
+
+	@Benchmark
+	public long churn() {
+		backend.churn(EVENTS_PER_ROUND);
+		return backend.getEventCount();
+	}
+
+}
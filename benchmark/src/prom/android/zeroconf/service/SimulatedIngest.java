@@ -0,0 +1,55 @@
+package prom.android.zeroconf.service;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Applies backend events to a registry
+ * 
+ * Mirrors what the service does with events on its
+ * event thread, minus the delivery to clients.
+ * 
+ * @author prom
+ */
+class SimulatedIngest implements DiscoveryBackend.Listener {
+
+	final SrvRegistry registry = new SrvRegistry();
+
+	long updates = 0;
+
+	long refreshes = 0;
+
+	@Override
+	public void typeAdded(String type) {
+		registry.ensureType(type);
+	}
+
+	@Override
+	public void serviceAdded(ZeroConfRecord r) {
+		if(registry.getSrv(r.key) == null) {
+			registry.addSrv(new Srv(r));
+		}
+	}
+
+	@Override
+	public void serviceRemoved(ZeroConfRecord r) {
+		registry.removeSrv(r.key);
+	}
+
+	@Override
+	public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+		Srv s = registry.getSrv(r.key);
+		if(s == null) {
+			s = new Srv(r);
+			s.resolved = true;
+			registry.addSrv(s);
+		} else if(s.resolved(r)) {
+			updates++;
+		}
+	}
+
+	@Override
+	public void serviceRefreshed(String key, int ttlSeconds) {
+		refreshes++;
+	}
+
+}
@@ -0,0 +1,55 @@
+package prom.android.zeroconf.service;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Soak test of the registry against the simulated backend
+ * 
+ * Runs many rounds of churn and verifies after each
+ * round that the registry holds exactly the services
+ * present on the simulated network, with their
+ * current details.
+ * 
+ * Usage: SimulatedSoak [services] [rounds]
+ * 
+ * @author prom
+ */
+public class SimulatedSoak {
+
+	public static void main(String[] args) {
+		int services = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+		SimulatedBackend backend = new SimulatedBackend(1, 32, services, 4);
+		SimulatedIngest ingest = new SimulatedIngest();
+
+		long start = System.nanoTime();
+		backend.start(ingest);
+		for(int i = 0; i < rounds; i++) {
+			backend.churn(services / 10);
+			verify(i, ingest.registry, backend);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(backend.getEventCount() + " events, " + ingest.updates + " updates in "
+				+ (elapsed / 1000000) + " ms, " + ingest.registry.size() + " services remain");
+	}
+
+	/** Check that the registry holds the services of the network, as they are */
+	private static void verify(int round, SrvRegistry registry, SimulatedBackend backend) {
+		if(registry.size() != backend.getLiveCount()) {
+			throw new AssertionError("Round " + round + ": registry has " + registry.size()
+					+ " services, network has " + backend.getLiveCount());
+		}
+		for(ZeroConfRecord r : backend.getLive()) {
+			Srv s = registry.getSrv(r.key);
+			if(s == null) {
+				throw new AssertionError("Round " + round + ": " + r.key + " missing from the registry");
+			}
+			if(!s.resolved || !s.getRecord().contentEquals(r)) {
+				throw new AssertionError("Round " + round + ": " + r.key + " differs from the network");
+			}
+		}
+	}
+
+}
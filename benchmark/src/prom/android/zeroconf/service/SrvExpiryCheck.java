@@ -0,0 +1,112 @@
+package prom.android.zeroconf.service;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Lifetime check for resolved services using a fake clock
+ *
+ * Runs the expiry of the service for ten TTLs with four
+ * services: one resolved by JmDNS and never reported again,
+ * one of the multicast DNS engine whose refresh queries go
+ * unanswered, one whose refresh queries get answered and
+ * one that moves from the engine to JmDNS. Verifies that
+ * only the unanswered one expires, after its refreshes and
+ * in the tick its TTL ends, and that the JmDNS services
+ * never see a refresh query.
+ *
+ * @author prom
+ */
+public class SrvExpiryCheck {
+
+	private final static long TICK_MILLIS = 1000;
+
+	private final static int TTL_SECONDS = 120;
+
+	private final static long RUN_MILLIS = 10 * TTL_SECONDS * 1000L;
+
+	public static void main(String[] args) {
+		long now = 0;
+		final SrvExpiry expiry = new SrvExpiry(TICK_MILLIS, 128, now, new Random(42));
+		final long[] clock = new long[] { now };
+
+		Srv jmdns = srv("jmdns");
+		Srv silent = srv("silent");
+		final Srv answered = srv("answered");
+		Srv moved = srv("moved");
+		expiry.touch(jmdns, JmDNSBackend.TTL_SECONDS, now);
+		expiry.touch(silent, TTL_SECONDS, now);
+		expiry.touch(answered, TTL_SECONDS, now);
+		expiry.touch(moved, TTL_SECONDS, now);
+		expiry.touch(moved, JmDNSBackend.TTL_SECONDS, now);
+		check(expiry.size() == 2, expiry.size() + " services on the wheel instead of 2");
+
+		final HashMap<String, Integer> refreshes = new HashMap<String, Integer>();
+		final HashMap<String, Long> expired = new HashMap<String, Long>();
+		SrvExpiry.Callback callback = new SrvExpiry.Callback() {
+			@Override
+			public void refresh(Srv s) {
+				Integer n = refreshes.get(s.key);
+				refreshes.put(s.key, (n == null) ? 1 : n + 1);
+				if(s == answered) {
+					// the answer comes right away, with the same TTL
+					expiry.touch(s, TTL_SECONDS, clock[0]);
+				}
+			}
+			@Override
+			public void expired(Srv s) {
+				if(expired.put(s.key, clock[0]) != null) {
+					throw new AssertionError(s.key + " expired twice");
+				}
+				s.removed = true;
+			}
+		};
+
+		while(now < RUN_MILLIS) {
+			now += TICK_MILLIS;
+			clock[0] = now;
+			// the service sees JmDNS services again on its own announcements
+			if(now % (TTL_SECONDS * 1000L / 2) == 0) {
+				expiry.touch(jmdns, 0, now);
+			}
+			expiry.advance(now, callback);
+		}
+
+		check(!expired.containsKey(jmdns.key) && !refreshes.containsKey(jmdns.key),
+				"unchanged JmDNS service did not survive its TTL");
+		check(!expired.containsKey(moved.key) && !refreshes.containsKey(moved.key),
+				"service moved to JmDNS did not survive its TTL");
+		check(!expired.containsKey(answered.key), "answered service expired");
+		check(refreshes.get(answered.key) >= RUN_MILLIS / (TTL_SECONDS * 1000L),
+				"answered service got " + refreshes.get(answered.key) + " refresh queries");
+		Long silentExpired = expired.get(silent.key);
+		check(silentExpired != null, "unanswered service did not expire");
+		check(refreshes.get(silent.key) == 4,
+				"unanswered service got " + refreshes.get(silent.key) + " refresh queries instead of 4");
+		check(silentExpired >= TTL_SECONDS * 1000L && silentExpired < TTL_SECONDS * 1000L + TICK_MILLIS,
+				"unanswered service expired at " + silentExpired + " ms");
+		check(expiry.size() == 1, expiry.size() + " services left on the wheel instead of 1");
+
+		System.out.println(RUN_MILLIS / 1000 + " s: JmDNS services kept without refreshes, answered service kept after "
+				+ refreshes.get(answered.key) + " refreshes, unanswered service expired at " + silentExpired + " ms");
+	}
+
+	private static Srv srv(String name) {
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = "_check._tcp.local.";
+		r.name = name;
+		r.key = (name + "." + r.type).toLowerCase();
+		Srv s = new Srv(r);
+		s.resolved = true;
+		return s;
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package prom.android.zeroconf.service;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import prom.android.zeroconf.benchmark.SyntheticServices;
+
+/**
+ * Benchmarks for the service registry
+ * 
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SrvRegistryBenchmark {
+
+	@Param({"10", "1000", "50000"})
+	public int serviceCount;
+
+	private SrvRegistry registry;
+
+	private Srv[] services;
+
+	/** Random access order, to defeat caching of neighbouring keys */
+	private int[] order;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		registry = new SrvRegistry();
+		services = new Srv[serviceCount];
+		for(int i = 0; i < serviceCount; i++) {
+			services[i] = new Srv(SyntheticServices.record(i, 4));
+			registry.addSrv(services[i]);
+		}
+
+		Random random = new Random(serviceCount);
+		order = new int[serviceCount];
+		for(int i = 0; i < serviceCount; i++) {
+			order[i] = i;
+		}
+		for(int i = serviceCount - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+	}
+
+	private Srv nextSrv() {
+		next = (next + 1) % serviceCount;
+		return services[order[next]];
+	}
+
+	@Benchmark
+	public Srv lookup() {
+		return registry.getSrv(nextSrv().key);
+	}
+
+	/** One removal followed by one addition of the same service */
+	@Benchmark
+	public SrvType removeAndAdd() {
+		Srv s = nextSrv();
+		registry.removeSrv(s.key);
+		s.removed = false;
+		return registry.addSrv(s);
+	}
+
+	@Benchmark
+	public SrvType ensureExistingType() {
+		return registry.ensureType(nextSrv().type);
+	}
+
+}
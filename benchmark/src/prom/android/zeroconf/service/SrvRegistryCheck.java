@@ -0,0 +1,340 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import prom.android.zeroconf.client.IZeroConfClient;
+import prom.android.zeroconf.model.ZeroConfRecord;
+import prom.android.zeroconf.model.ZeroConfRecordDelta;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * Concurrency check for the service registry
+ *
+ * Drives the service the way discovery and its clients
+ * do: an event thread adds and removes services and
+ * notifies the subscribers of their types, while client
+ * threads keep subscribing to and unsubscribing from types
+ * over their connections, like binder threads. Changes
+ * reach the clients through the dispatcher of the service.
+ * Clients resynchronize with every subscription, dropping
+ * what they still hold from earlier ones.
+ * Verifies that every type exists exactly once, that the
+ * registry ends up with exactly the services that were
+ * not removed, that the subscriber sets of the types match
+ * the subscriptions of the connections, and that every
+ * client holds exactly the services of the types it ended
+ * up subscribed to, so no update got lost on the way.
+ *
+ * Usage: SrvRegistryCheck [clients] [rounds]
+ *
+ * @author prom
+ */
+public class SrvRegistryCheck {
+
+	private final static int TYPES = 8;
+
+	/** Fewer than a client queue holds, so no client falls behind into quarantine */
+	private final static int SERVICES = 1000;
+	/** A client, holding the services delivered to it by type */
+	private static class Client extends IZeroConfClient.Stub {
+		final HashSet<String> subscribed = new HashSet<String>();
+		final HashMap<String, HashSet<String>> held = new HashMap<String, HashSet<String>>();
+		int resyncs = 0;
+
+		synchronized boolean isSubscribed(String type) {
+			return subscribed.contains(type);
+		}
+
+		synchronized void subscribed(String type) {
+			subscribed.add(type);
+			held.put(type, new HashSet<String>());
+		}
+
+		synchronized void unsubscribed(String type) {
+			subscribed.remove(type);
+			held.remove(type);
+		}
+
+		@Override
+		public synchronized void serviceUpdated(ZeroConfRecord r) {
+			// changes queued before unsubscribing may still arrive
+			if(subscribed.contains(r.type)) {
+				held.get(r.type).add(r.key);
+			}
+		}
+
+		@Override
+		public synchronized void serviceRemoved(ZeroConfRecord r) {
+			if(subscribed.contains(r.type)) {
+				held.get(r.type).remove(r.key);
+			}
+		}
+
+		@Override
+		public void serviceDelta(ZeroConfRecordDelta d) {
+			throw new AssertionError("delta sent without asking for deltas");
+		}
+
+		@Override
+		public synchronized void servicesChanged(List<ZeroConfRecord> updated,
+				List<ZeroConfRecordDelta> deltas, List<String> removedKeys) {
+			for(ZeroConfRecord r : updated) {
+				serviceUpdated(r);
+			}
+			for(HashSet<String> inType : held.values()) {
+				inType.removeAll(removedKeys);
+			}
+		}
+
+		@Override
+		public synchronized void servicesResync(List<String> keys) {
+			// the services follow in full, in batches
+			resyncs++;
+			for(HashSet<String> inType : held.values()) {
+				inType.retainAll(keys);
+			}
+		}
+
+		@Override
+		public void servicesSnapshot(long epoch, long sequence, ParcelFileDescriptor snapshot) {
+			throw new AssertionError("snapshot sent without asking for snapshots");
+		}
+
+		@Override
+		public void syncPoint(long epoch, long sequence) {
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException, RemoteException {
+		int clientCount = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+		final ZeroConfService service = new ZeroConfService();
+		service.dispatcher = Executors.newScheduledThreadPool(2);
+		// takes the resolutions subscribing asks for, of which there are none
+		HandlerThread events = new HandlerThread("events");
+		events.start();
+		service.updateNotify = new Handler(events.getLooper());
+		final SrvRegistry registry = service.registry;
+
+		final ConcurrentHashMap<String, SrvType> typesSeen = new ConcurrentHashMap<String, SrvType>();
+		final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch discovered = new CountDownLatch(1);
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		// the single writer of the registry, like the event thread
+		threads.add(new Thread() {
+			@Override
+			public void run() {
+				Random random = new Random(42);
+				try {
+					start.await();
+					for(int round = 0; round < rounds; round++) {
+						for(int i = 0; i < SERVICES; i++) {
+							if(registry.getSrv(keyOf(i)) == null) {
+								add(service, typesSeen, i);
+							} else if(random.nextInt(3) == 0) {
+								remove(service, keyOf(i));
+							}
+						}
+					}
+					// leave half of the services in place
+					for(int i = 0; i < SERVICES; i++) {
+						if(!survives(i)) {
+							remove(service, keyOf(i));
+						} else if(registry.getSrv(keyOf(i)) == null) {
+							add(service, typesSeen, i);
+						}
+					}
+				} catch (Throwable e) {
+					synchronized(failures) {
+						failures.add(e);
+					}
+				}
+				discovered.countDown();
+			}
+		});
+
+		final Client[] clients = new Client[clientCount];
+		final ZeroConfService.Connection[] connections = new ZeroConfService.Connection[clientCount];
+		for(int c = 0; c < clientCount; c++) {
+			final Client client = new Client();
+			final ZeroConfService.Connection connection
+			= (ZeroConfService.Connection)service.onBind(new Intent());
+			connection.registerCallbacks(client);
+			final int seed = c;
+			clients[c] = client;
+			connections[c] = connection;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(1000 + seed);
+					try {
+						start.await();
+						// keep going for as long as discovery does
+						while(discovered.getCount() > 0) {
+							String type = typeName(random.nextInt(TYPES));
+							if(client.isSubscribed(type)) {
+								connection.unsubscribeType(type);
+								client.unsubscribed(type);
+							} else {
+								client.subscribed(type);
+								// drops what earlier subscriptions left behind
+								connection.resyncOnSubscribe();
+								connection.subscribeType(type);
+								sameType(typesSeen, registry.getType(type));
+							}
+						}
+					} catch (Throwable e) {
+						synchronized(failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+
+		long begin = System.nanoTime();
+		for(Thread t : threads) {
+			t.start();
+		}
+		start.countDown();
+		for(Thread t : threads) {
+			t.join();
+		}
+		// let the dispatcher deliver what is queued
+		service.dispatcher.shutdown();
+		check(service.dispatcher.awaitTermination(60, TimeUnit.SECONDS), "dispatcher did not finish");
+		long elapsed = System.nanoTime() - begin;
+		if(!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+
+		// registry holds exactly the surviving services, consistently
+		int expected = 0;
+		HashMap<String, HashSet<String>> byType = new HashMap<String, HashSet<String>>();
+		for(int t = 0; t < TYPES; t++) {
+			byType.put(typeName(t), new HashSet<String>());
+		}
+		for(int i = 0; i < SERVICES; i++) {
+			if(survives(i)) {
+				expected++;
+				byType.get(typeName(i % TYPES)).add(keyOf(i));
+			}
+		}
+		SrvRegistry.Snapshot snapshot = registry.snapshot();
+		check(registry.size() == expected && snapshot.services.size() == expected,
+				registry.size() + " services in the registry instead of " + expected);
+		for(int i = 0; i < SERVICES; i++) {
+			Srv s = registry.getSrv(keyOf(i));
+			check((s != null) == survives(i), "service " + i + " present: " + (s != null));
+			check(s == null || !s.removed, "service " + i + " marked removed");
+		}
+		check(registry.getTypes().size() == TYPES, registry.getTypes().size() + " types");
+		for(SrvType t : registry.getTypes()) {
+			HashSet<String> inType = new HashSet<String>();
+			for(Srv s : t.getServices()) {
+				inType.add(s.key);
+			}
+			check(inType.equals(byType.get(t.typeName)), "services of " + t.typeName + " differ");
+			check(snapshot.ofType(t.typeName).size() == inType.size(),
+					"snapshot of " + t.typeName + " differs");
+		}
+
+		// clients hold exactly the services of their types
+		int subscriptions = 0;
+		int resyncs = 0;
+		for(int c = 0; c < clientCount; c++) {
+			Client client = clients[c];
+			ZeroConfService.Connection connection = connections[c];
+			resyncs += client.resyncs;
+			for(SrvType t : registry.getTypes()) {
+				boolean subscribed = client.subscribed.contains(t.typeName);
+				check(t.subscribedClients.contains(connection) == subscribed,
+						"subscriber set of " + t.typeName + " differs from the subscriptions");
+				check(connection.connectionTypes.contains(t) == subscribed,
+						"connection types differ from the subscriptions");
+				if(!subscribed) {
+					continue;
+				}
+				subscriptions++;
+				HashSet<String> want = byType.get(t.typeName);
+				HashSet<String> held = client.held.get(t.typeName);
+				check(held.equals(want), "client of " + t.typeName + " holds "
+						+ held.size() + " services instead of " + want.size());
+			}
+		}
+
+		System.out.println("1 event and " + clientCount + " client threads, " + rounds
+				+ " rounds: no lost updates, " + expected + " services, " + subscriptions
+				+ " subscriptions, " + resyncs + " resyncs, " + (elapsed / 1000000) + " ms");
+	}
+
+	private static void add(ZeroConfService service, ConcurrentHashMap<String, SrvType> typesSeen,
+			int index) {
+		Srv s = new Srv(record(index));
+		// resolved, nothing for the resolve queue
+		s.resolved = true;
+		SrvType t = service.registry.addSrv(s);
+		if(t != null) {
+			sameType(typesSeen, t);
+			service.notifyUpdate(t, s);
+		}
+	}
+
+	private static void remove(ZeroConfService service, String key) {
+		Srv s = service.registry.removeSrv(key);
+		if(s != null) {
+			service.notifyRemove(service.registry.ensureType(s.type), s);
+		}
+	}
+
+	/** Check that a type name always maps to the same type */
+	private static void sameType(ConcurrentHashMap<String, SrvType> typesSeen, SrvType t) {
+		SrvType seen = typesSeen.putIfAbsent(t.typeName, t);
+		if(seen != null && seen != t) {
+			throw new AssertionError("Type " + t.typeName + " created twice");
+		}
+	}
+
+	/** Services left in place at the end, half of each type */
+	private static boolean survives(int index) {
+		return (index / TYPES) % 2 == 0;
+	}
+
+	private static String typeName(int t) {
+		return "_check" + t + "._tcp.local.";
+	}
+
+	private static String keyOf(int index) {
+		return ("device " + index + "." + typeName(index % TYPES)).toLowerCase();
+	}
+
+	private static ZeroConfRecord record(int index) {
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = typeName(index % TYPES);
+		r.name = "Device " + index;
+		r.key = keyOf(index);
+		return r;
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package prom.android.zeroconf.service;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the expiry timer wheel
+ * 
+ * Time is simulated, every tick advances a fake clock
+ * by one wheel tick while each expired record gets
+ * refreshed for another TTL.
+ * 
+ * @author prom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerWheelBenchmark {
+
+	private final static long TICK_MILLIS = 1000;
+
+	private final static long TTL_MILLIS = Srv.DEFAULT_TTL_MILLIS;
+
+	@Param({"1000", "50000"})
+	public int recordCount;
+
+	private long now;
+
+	private TimerWheel<Integer> wheel;
+
+	private TimerWheel.Timeout<Integer>[] timeouts;
+
+	private int next;
+
+	private final TimerWheel.Callback<Integer> refresh
+	= new TimerWheel.Callback<Integer>() {
+		@Override
+		public void expired(Integer item, long now) {
+			wheel.reschedule(timeouts[item], now + TTL_MILLIS);
+		}
+	};
+
+	@Setup
+	public void setup() {
+		now = 0;
+		wheel = new TimerWheel<Integer>(TICK_MILLIS, 128, now);
+		timeouts = newTimeouts(recordCount);
+		Random random = new Random(recordCount);
+		for(int i = 0; i < recordCount; i++) {
+			timeouts[i] = wheel.schedule(i, (long)(random.nextDouble() * TTL_MILLIS));
+		}
+	}
+
+	/** One tick of simulated time, refreshing what expires */
+	@Benchmark
+	public int tick() {
+		now += TICK_MILLIS;
+		return wheel.advance(now, refresh);
+	}
+
+	/** A record being seen again */
+	@Benchmark
+	public int touch() {
+		next = (next + 1) % recordCount;
+		wheel.reschedule(timeouts[next], now + TTL_MILLIS);
+		return wheel.size();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> TimerWheel.Timeout<T>[] newTimeouts(int n) {
+		return new TimerWheel.Timeout[n];
+	}
+
+}
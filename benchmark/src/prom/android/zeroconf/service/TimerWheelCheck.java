@@ -0,0 +1,87 @@
+package prom.android.zeroconf.service;
+
+import java.util.Random;
+
+/**
+ * Expiry check for the timer wheel using a fake clock
+ * 
+ * Schedules 50000 records with random TTLs, cancels some,
+ * refreshes others and verifies that every remaining record
+ * expires exactly once, in the tick its TTL ends.
+ * 
+ * @author prom
+ */
+public class TimerWheelCheck {
+
+	private final static int RECORDS = 50000;
+
+	private final static long TICK_MILLIS = 1000;
+
+	public static void main(String[] args) {
+		final long[] deadlines = new long[RECORDS];
+		final long[] expiredAt = new long[RECORDS];
+		final boolean[] cancelled = new boolean[RECORDS];
+
+		long now = 0;
+		final TimerWheel<Integer> wheel = new TimerWheel<Integer>(TICK_MILLIS, 128, now);
+		TimerWheel.Timeout<Integer>[] timeouts = newTimeouts(RECORDS);
+
+		Random random = new Random(42);
+		for(int i = 0; i < RECORDS; i++) {
+			// up to the PTR TTL, far beyond one wheel revolution
+			deadlines[i] = 1 + (long)(random.nextDouble() * 4500 * 1000);
+			timeouts[i] = wheel.schedule(i, deadlines[i]);
+			expiredAt[i] = -1;
+		}
+		for(int i = 0; i < RECORDS; i += 7) {
+			wheel.cancel(timeouts[i]);
+			cancelled[i] = true;
+		}
+		for(int i = 3; i < RECORDS; i += 11) {
+			if(cancelled[i]) {
+				continue;
+			}
+			deadlines[i] += 60 * 1000;
+			wheel.reschedule(timeouts[i], deadlines[i]);
+		}
+
+		TimerWheel.Callback<Integer> callback = new TimerWheel.Callback<Integer>() {
+			@Override
+			public void expired(Integer item, long now) {
+				if(expiredAt[item] >= 0) {
+					throw new AssertionError("Record " + item + " expired twice");
+				}
+				expiredAt[item] = now;
+			}
+		};
+
+		long start = System.nanoTime();
+		while(wheel.size() > 0) {
+			// advance in irregular steps, like a busy handler would
+			now += TICK_MILLIS * (1 + random.nextInt(3));
+			wheel.advance(now, callback);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for(int i = 0; i < RECORDS; i++) {
+			if(cancelled[i]) {
+				if(expiredAt[i] >= 0) {
+					throw new AssertionError("Cancelled record " + i + " expired");
+				}
+			} else if(expiredAt[i] < deadlines[i]
+					|| expiredAt[i] >= deadlines[i] + 4 * TICK_MILLIS) {
+				throw new AssertionError("Record " + i + " due at " + deadlines[i]
+						+ " expired at " + expiredAt[i]);
+			}
+		}
+
+		System.out.println("All " + RECORDS + " records expired correctly, "
+				+ (elapsed / 1000000) + " ms for " + (now / 1000) + " simulated seconds");
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> TimerWheel.Timeout<T>[] newTimeouts(int n) {
+		return new TimerWheel.Timeout[n];
+	}
+
+}
@@ -0,0 +1,264 @@
+package prom.android.zeroconf.service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Replays a packet capture through the multicast DNS engine
+ *
+ * Reads a classic pcap file, picks out UDP packets on port
+ * 5353 and feeds them to the engine with its clock following
+ * the capture timestamps. Events go into a registry like
+ * in the service. Queries the engine would send are counted
+ * but go nowhere.
+ *
+ * Understands ethernet, VLAN tags, IPv4 and IPv6 without
+ * extension headers. Capture with something like
+ * "tcpdump -w trace.pcap udp port 5353".
+ *
+ * Usage: TraceReplay trace.pcap [-v]
+ *
+ * @author prom
+ */
+public class TraceReplay {
+
+	private final static int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+	private final static int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+
+	private final static int LINKTYPE_ETHERNET = 1;
+
+	private final static int ETHERTYPE_IPV4 = 0x0800;
+	private final static int ETHERTYPE_IPV6 = 0x86dd;
+	private final static int ETHERTYPE_VLAN = 0x8100;
+
+	private final static int PROTOCOL_UDP = 17;
+
+	/** Clock following the capture */
+	private static class TraceClock implements DiscoveryStateMachine.Clock {
+		long now;
+		@Override
+		public long now() {
+			return now;
+		}
+	}
+
+	/** Registry ingest printing and counting events */
+	static class PrintingIngest extends SimulatedIngest {
+		final boolean verbose;
+		long events = 0;
+		long typesAdded = 0;
+		long added = 0;
+		long removed = 0;
+		long resolved = 0;
+		long refreshed = 0;
+
+		PrintingIngest(boolean verbose) {
+			this.verbose = verbose;
+		}
+
+		@Override
+		public void typeAdded(String type) {
+			typesAdded++;
+			print("type     " + type);
+			super.typeAdded(type);
+		}
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+			added++;
+			print("added    " + r.key);
+			super.serviceAdded(r);
+		}
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+			removed++;
+			print("removed  " + r.key);
+			super.serviceRemoved(r);
+		}
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+			resolved++;
+			print("resolved " + r.key + " " + r.server + ":" + r.port
+					+ " ttl " + ttlSeconds + " " + r.getPropertyNames());
+			super.serviceResolved(r, ttlSeconds);
+		}
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+			refreshed++;
+			if(verbose) {
+				print("refreshed " + key + " ttl " + ttlSeconds);
+			} else {
+				events++;
+			}
+			super.serviceRefreshed(key, ttlSeconds);
+		}
+
+		private void print(String event) {
+			events++;
+			if(verbose) {
+				System.out.println(event);
+			}
+		}
+	}
+
+	/** Outcome of a replay */
+	static class Result {
+		final PrintingIngest ingest;
+		/** Engine fed with the capture, null if it had no packets */
+		MdnsEngine engine;
+		long queries = 0;
+		long elapsedNanos;
+
+		Result(PrintingIngest ingest) {
+			this.ingest = ingest;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: TraceReplay trace.pcap [-v]");
+			System.exit(1);
+		}
+		boolean verbose = args.length > 1 && args[1].equals("-v");
+
+		Result result = replay(args[0], verbose);
+		MdnsEngine engine = result.engine;
+		if(engine == null) {
+			System.out.println("No packets");
+			return;
+		}
+		System.out.println(engine.getPacketCount() + " packets (" + engine.getMalformedCount()
+				+ " malformed), " + result.ingest.events + " events, " + result.queries + " queries in "
+				+ (result.elapsedNanos / 1000000) + " ms");
+		System.out.println(result.ingest.registry.size() + " services in registry, "
+				+ engine.getInstanceCount() + " instances in engine");
+	}
+
+	/**
+	 * Replay a capture
+	 *
+	 * @param path pcap file
+	 * @param verbose print every event
+	 * @return the outcome
+	 * @throws IOException
+	 */
+	static Result replay(String path, boolean verbose) throws IOException {
+		TraceClock clock = new TraceClock();
+		final Result result = new Result(new PrintingIngest(verbose));
+		MdnsEngine engine = null;
+
+		MdnsEngine.Sender sender = new MdnsEngine.Sender() {
+			@Override
+			public void send(ByteBuffer packet) {
+				result.queries++;
+			}
+		};
+		ByteBuffer out = ByteBuffer.allocate(MdnsEngine.MAX_QUERY_SIZE);
+
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		long start = System.nanoTime();
+		try {
+			byte[] header = new byte[24];
+			in.readFully(header);
+			ByteBuffer h = ByteBuffer.wrap(header);
+			int magic = h.getInt();
+			if(magic != PCAP_MAGIC_MICROS && magic != PCAP_MAGIC_NANOS) {
+				h.order(ByteOrder.LITTLE_ENDIAN);
+				magic = h.getInt(0);
+			}
+			if(magic != PCAP_MAGIC_MICROS && magic != PCAP_MAGIC_NANOS) {
+				throw new IOException("Not a pcap file");
+			}
+			boolean nanos = magic == PCAP_MAGIC_NANOS;
+			if(h.getInt(20) != LINKTYPE_ETHERNET) {
+				throw new IOException("Unsupported link type " + h.getInt(20));
+			}
+
+			byte[] recordHeader = new byte[16];
+			ByteBuffer r = ByteBuffer.wrap(recordHeader).order(h.order());
+			byte[] frame = new byte[65536];
+			while(true) {
+				try {
+					in.readFully(recordHeader);
+				} catch (EOFException e) {
+					break;
+				}
+				long seconds = r.getInt(0) & 0xffffffffL;
+				long fraction = r.getInt(4) & 0xffffffffL;
+				int length = r.getInt(8);
+				if(length < 0 || length > frame.length) {
+					throw new IOException("Bad record length " + length);
+				}
+				in.readFully(frame, 0, length);
+
+				clock.now = seconds * 1000 + (nanos ? fraction / 1000000 : fraction / 1000);
+				if(engine == null) {
+					engine = new MdnsEngine(result.ingest, clock);
+				}
+
+				ByteBuffer payload = mdnsPayload(ByteBuffer.wrap(frame, 0, length));
+				if(payload != null) {
+					engine.handlePacket(payload);
+				}
+				engine.sendQueries(out, sender);
+			}
+		} finally {
+			in.close();
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		result.engine = engine;
+		return result;
+	}
+
+	/**
+	 * Find the multicast DNS payload of an ethernet frame
+	 *
+	 * @return buffer positioned at the payload or null
+	 */
+	private static ByteBuffer mdnsPayload(ByteBuffer f) {
+		if(f.remaining() < 14) {
+			return null;
+		}
+		int pos = f.position() + 12;
+		int ethertype = f.getShort(pos) & 0xffff;
+		pos += 2;
+		while(ethertype == ETHERTYPE_VLAN && pos + 4 <= f.limit()) {
+			ethertype = f.getShort(pos + 2) & 0xffff;
+			pos += 4;
+		}
+
+		int protocol;
+		if(ethertype == ETHERTYPE_IPV4 && pos + 20 <= f.limit()) {
+			protocol = f.get(pos + 9) & 0xff;
+			pos += (f.get(pos) & 0x0f) * 4;
+		} else if(ethertype == ETHERTYPE_IPV6 && pos + 40 <= f.limit()) {
+			protocol = f.get(pos + 6) & 0xff;
+			pos += 40;
+		} else {
+			return null;
+		}
+
+		if(protocol != PROTOCOL_UDP || pos + 8 > f.limit()) {
+			return null;
+		}
+		int srcPort = f.getShort(pos) & 0xffff;
+		int dstPort = f.getShort(pos + 2) & 0xffff;
+		int udpLength = f.getShort(pos + 4) & 0xffff;
+		if(srcPort != NativeBackend.MDNS_PORT && dstPort != NativeBackend.MDNS_PORT) {
+			return null;
+		}
+		int end = Math.min(pos + udpLength, f.limit());
+		if(end < pos + 8) {
+			return null;
+		}
+		f.limit(end);
+		f.position(pos + 8);
+		return f.slice();
+	}
+
+}
@@ -0,0 +1,66 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+
+/**
+ * Regression check replaying the committed capture
+ *
+ * Replays "benchmark/traces/synthetic.pcap", written by
+ * SyntheticTrace, through the multicast DNS engine and
+ * verifies the events it produced and the services left
+ * in the registry: announcements over IPv4 and over IPv6
+ * with a VLAN tag get through, a repeated announcement
+ * only refreshes, a goodbye removes and unicast DNS
+ * traffic is ignored.
+ *
+ * Usage: TraceReplayCheck [trace.pcap]
+ *
+ * @author prom
+ */
+public class TraceReplayCheck {
+
+	/** Services left after the replay */
+	private final static int[] REMAINING = { 0, 1, 2, 4 };
+
+	public static void main(String[] args) throws IOException {
+		String path = (args.length > 0) ? args[0] : "benchmark/traces/synthetic.pcap";
+		TraceReplay.Result result = TraceReplay.replay(path, false);
+		TraceReplay.PrintingIngest ingest = result.ingest;
+
+		check(result.engine != null, "no packets in " + path);
+		check(result.engine.getPacketCount() == 4, result.engine.getPacketCount() + " packets instead of 4");
+		check(result.engine.getMalformedCount() == 0, result.engine.getMalformedCount() + " malformed packets");
+		check(ingest.typesAdded == 5, ingest.typesAdded + " types added instead of 5");
+		check(ingest.added == 5, ingest.added + " services added instead of 5");
+		check(ingest.resolved == 5, ingest.resolved + " services resolved instead of 5");
+		check(ingest.refreshed == 4, ingest.refreshed + " services refreshed instead of 4");
+		check(ingest.removed == 1, ingest.removed + " services removed instead of 1");
+
+		check(ingest.registry.size() == REMAINING.length,
+				ingest.registry.size() + " services in the registry instead of " + REMAINING.length);
+		for(int index : REMAINING) {
+			Srv s = ingest.registry.getSrv(key(index));
+			check(s != null, "service " + index + " missing");
+			check(s.resolved && s.getRecord().port == 1024 + index
+					&& ("dev-" + index + ".local.").equals(s.getRecord().server),
+					"service " + index + " resolved wrong");
+		}
+		check(ingest.registry.getSrv(key(3)) == null, "service 3 survived its goodbye");
+		check(ingest.registry.getSrv(key(9)) == null, "unicast DNS got through");
+
+		System.out.println(result.engine.getPacketCount() + " packets: " + ingest.added + " added, "
+				+ ingest.resolved + " resolved, " + ingest.refreshed + " refreshed, " + ingest.removed
+				+ " removed, " + ingest.registry.size() + " services left as expected");
+	}
+
+	private static String key(int index) {
+		return "device " + index + "._bench" + index + "._tcp.local.";
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -1,18 +1,30 @@
 package prom.android.zeroconf.client;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
 
+import prom.android.zeroconf.model.ZeroConfFilter;
 import prom.android.zeroconf.model.ZeroConfRecord;
+import prom.android.zeroconf.model.ZeroConfRecordDelta;
+import prom.android.zeroconf.model.ZeroConfSnapshot;
+import prom.android.zeroconf.model.ZeroConfStats;
 import prom.android.zeroconf.service.IZeroConfService;
 import prom.android.zeroconf.service.ZeroConfService;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -24,6 +36,17 @@ public class ZeroConfClient {
 	/* Notification message types */
 	private static final int NOTIFY_UPDATED = 1;
 	private static final int NOTIFY_REMOVED = 2;
+	private static final int NOTIFY_REMOVED_KEY = 3;
+	private static final int NOTIFY_DELTA = 4;
+	private static final int NOTIFY_RESYNC = 5;
+	private static final int NOTIFY_SYNC_POINT = 6;
+	private static final int NOTIFY_SNAPSHOT = 7;
+
+	/** Source of client serials, unique within the process */
+	private static int clientSerialCounter = 0;
+
+	/** Serial of this client, making its binding unique */
+	private final int clientSerial;
 	
 	/** Context of this client, used for service binding */
 	private Context clientContext;
@@ -34,6 +57,28 @@ public class ZeroConfClient {
 	/** Vector of all our listeners */
 	private Vector<Listener> listeners = new Vector<Listener>();
 
+	/** Filter for our subscription, null to receive everything */
+	private ZeroConfFilter filter;
+
+	/** Records we publish, registered again whenever we connect */
+	private Vector<ZeroConfRecord> published = new Vector<ZeroConfRecord>();
+
+	/** Discovery backend to request, null for the default */
+	private String backend;
+
+	/** Records currently known to this client, owned by the UI thread */
+	private Hashtable<String, ZeroConfRecord> recordsByKey
+	= new Hashtable<String, ZeroConfRecord>();
+
+	/** Epoch of the change log of the service, 0 if unknown, owned by the UI thread */
+	private long syncEpoch = 0;
+
+	/** Position in the change log up to which our records are current */
+	private long syncSequence = 0;
+
+	/** Epoch of the service our records come from, 0 if unknown, owned by the UI thread */
+	private long serviceEpoch = 0;
+
 	/**
 	 * Public constructor
 	 * 
@@ -44,6 +89,9 @@ public class ZeroConfClient {
 	 */
 	public ZeroConfClient(Context context) {
 		this.clientContext = context;
+		synchronized(ZeroConfClient.class) {
+			this.clientSerial = clientSerialCounter++;
+		}
 	}
 	
 	/**
@@ -61,8 +109,10 @@ public class ZeroConfClient {
 	public void connectToService() {
 		debugClient("Connecting to service");
 
-		// create intent using the service
+		// create intent using the service, unique so that
+		// we get a connection of our own instead of sharing one
 		Intent serviceIntent = new Intent(clientContext, ZeroConfService.class);
+		serviceIntent.setData(Uri.parse("zeroconf://client/" + Process.myPid() + "/" + clientSerial));
 
 		// perform the bind
 		boolean result = clientContext.bindService(
@@ -82,11 +132,198 @@ public class ZeroConfClient {
 	 */
 	public void disconnectFromService() {
 		debugClient("Disconnecting from service");
+
+		// drop our subscriptions right away
+		IZeroConfService s = service;
+		service = null;
+		if(s != null) {
+			try {
+				s.close();
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while closing: " + e.toString());
+			}
+		}
 		
 		// unbind from service
 		clientContext.unbindService(serviceConnection);
 	}
 
+	/**
+	 * Restrict the records delivered to this client
+	 * 
+	 * The filter gets evaluated by the service, so
+	 * records that do not match never reach us. The
+	 * filter gets copied, changing it afterwards has
+	 * no effect unless it is set again.
+	 * 
+	 * Must be called on the UI thread.
+	 * 
+	 * @param newFilter filter to use or null for all records
+	 */
+	public void setFilter(ZeroConfFilter newFilter) {
+		ZeroConfFilter oldFilter = filter;
+		if((newFilter == null) ? (oldFilter == null) : newFilter.equals(oldFilter)) {
+			return;
+		}
+		if(newFilter != null) {
+			newFilter = new ZeroConfFilter(newFilter);
+		}
+		filter = newFilter;
+
+		// we may be missing records that only match the new filter
+		syncEpoch = 0;
+
+		// drop records we would no longer receive
+		if(newFilter != null) {
+			for(ZeroConfRecord r : new Vector<ZeroConfRecord>(recordsByKey.values())) {
+				if(!newFilter.matches(r)) {
+					dispatchRemoved(r);
+				}
+			}
+		}
+
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				unsubscribe(s, oldFilter);
+				// drop whatever got removed while we were not subscribed
+				s.resyncOnSubscribe();
+				subscribe(s, newFilter);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while changing filter: " + e.toString());
+			}
+		}
+	}
+
+	private void subscribe(IZeroConfService s, ZeroConfFilter f) throws RemoteException {
+		if(f != null) {
+			s.subscribeFilter(f);
+		} else {
+			s.subscribeAll();
+		}
+	}
+
+	private void unsubscribe(IZeroConfService s, ZeroConfFilter f) throws RemoteException {
+		if(f != null) {
+			s.unsubscribeFilter(f);
+		} else {
+			s.unsubscribeAll();
+		}
+	}
+
+	/**
+	 * Publish services
+	 * 
+	 * All records get registered in one batch. Publishing
+	 * a record again with only its properties changed
+	 * updates the TXT record of the registered service.
+	 * 
+	 * Records must have type, instance and port set.
+	 * 
+	 * @param records
+	 */
+	public void registerServices(List<ZeroConfRecord> records) {
+		for(ZeroConfRecord r : records) {
+			removePublished(r);
+			published.add(r);
+		}
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				s.registerServices(records);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while registering: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Withdraw published services
+	 * 
+	 * @param records
+	 */
+	public void unregisterServices(List<ZeroConfRecord> records) {
+		for(ZeroConfRecord r : records) {
+			removePublished(r);
+		}
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				s.unregisterServices(records);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while unregistering: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Select the discovery backend of the service
+	 * 
+	 * The backend is shared by all clients, discovery
+	 * restarts when it changes.
+	 * 
+	 * @param name one of the ZeroConfService.BACKEND_* constants
+	 */
+	public void setDiscoveryBackend(String name) {
+		backend = name;
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				s.setDiscoveryBackend(name);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while selecting backend: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Ask for the details of a service
+	 * 
+	 * Services are resolved on demand only, those of
+	 * subscribed types first. This moves a service to the
+	 * front of the queue, or refreshes it if resolved.
+	 * 
+	 * @param key key of the service
+	 */
+	public void resolve(String key) {
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				s.resolve(key);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while resolving: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Get the metrics of the service
+	 * 
+	 * @return a snapshot, or null if not connected
+	 */
+	public ZeroConfStats getStats() {
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				return s.getStats();
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while getting stats: " + e.toString());
+			}
+		}
+		return null;
+	}
+
+	private void removePublished(ZeroConfRecord r) {
+		Enumeration<ZeroConfRecord> e = published.elements();
+		while(e.hasMoreElements()) {
+			ZeroConfRecord p = e.nextElement();
+			if(p.type.equalsIgnoreCase(r.type) && p.instance.equalsIgnoreCase(r.instance)) {
+				published.remove(p);
+				break;
+			}
+		}
+	}
+
 	/**
 	 * Convenient listener interface
 	 * 
@@ -124,27 +361,162 @@ public class ZeroConfClient {
 	private final Handler updateNotify = new Handler() {
 		@Override
 		public void handleMessage(Message msg) {
-			ZeroConfRecord r = (ZeroConfRecord)msg.obj;
-			Enumeration<Listener> e = listeners.elements();
 			switch(msg.what) {
 			case NOTIFY_UPDATED:
-				debugClient("Dispatching serviceUpdated(" + r.key + ")");
-				while(e.hasMoreElements()) {
-					Listener l = e.nextElement();
-					l.serviceUpdated(r);
-				}
+				dispatchUpdated((ZeroConfRecord)msg.obj);
 				break;
 			case NOTIFY_REMOVED:
-				debugClient("Dispatching serviceRemoved(" + r.key + ")");
-				while(e.hasMoreElements()) {
-					Listener l = e.nextElement();
-					l.serviceRemoved(r);
+				dispatchRemoved((ZeroConfRecord)msg.obj);
+				break;
+			case NOTIFY_REMOVED_KEY:
+				ZeroConfRecord r = recordsByKey.get((String)msg.obj);
+				if(r != null) {
+					dispatchRemoved(r);
+				}
+				break;
+			case NOTIFY_DELTA:
+				applyDelta((ZeroConfRecordDelta)msg.obj);
+				break;
+			case NOTIFY_RESYNC:
+				@SuppressWarnings("unchecked")
+				HashSet<String> keys = (HashSet<String>)msg.obj;
+				resync(keys);
+				break;
+			case NOTIFY_SYNC_POINT:
+				long[] point = (long[])msg.obj;
+				syncEpoch = point[0];
+				syncSequence = point[1];
+				serviceEpoch = point[0];
+				break;
+			case NOTIFY_SNAPSHOT:
+				if(msg.obj != null) {
+					applySnapshot((ZeroConfSnapshot)msg.obj);
+				} else {
+					resubscribeWithoutSnapshots();
 				}
 				break;
 			}
 		}
 	};
 	
+	private void dispatchUpdated(ZeroConfRecord r) {
+		debugClient("Dispatching serviceUpdated(" + r.key + ")");
+		recordsByKey.put(r.key, r);
+		Enumeration<Listener> e = listeners.elements();
+		while(e.hasMoreElements()) {
+			Listener l = e.nextElement();
+			l.serviceUpdated(r);
+		}
+	}
+
+	/**
+	 * Apply a delta to our local copy of a record
+	 * 
+	 * If we do not hold the version the delta is based
+	 * on then we ask the service for the full record.
+	 * 
+	 * @param d
+	 */
+	private void applyDelta(ZeroConfRecordDelta d) {
+		ZeroConfRecord base = recordsByKey.get(d.key);
+		if(d.appliesTo(base)) {
+			dispatchUpdated(d.applyTo(base));
+		} else {
+			debugClient("Delta for " + d.key + " does not apply, requesting record");
+			IZeroConfService s = service;
+			if(s != null) {
+				try {
+					s.resendRecord(d.key);
+				} catch (RemoteException e) {
+					Log.d(TAG, "Exception while requesting record: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop all records the service no longer has for us
+	 * 
+	 * The service resynchronizes us after dropping changes
+	 * it could not deliver. The records themselves follow.
+	 * 
+	 * @param keys keys of the services we should have
+	 */
+	private void resync(HashSet<String> keys) {
+		debugClient("Resynchronizing with " + keys.size() + " services");
+		for(ZeroConfRecord r : new ArrayList<ZeroConfRecord>(recordsByKey.values())) {
+			if(!keys.contains(r.key)) {
+				dispatchRemoved(r);
+			}
+		}
+	}
+
+	/**
+	 * Take over the records of a snapshot
+	 * 
+	 * Records we hold in the same version are left alone
+	 * without decoding them, only new and changed ones
+	 * get decoded. Versions only compare within the same
+	 * instance of the service, records from another one
+	 * get compared by content. Records not in the snapshot
+	 * or not matching our filter get dropped.
+	 * 
+	 * @param snapshot
+	 */
+	private void applySnapshot(ZeroConfSnapshot snapshot) {
+		debugClient("Applying snapshot with " + snapshot.size() + " services");
+		boolean sameService = snapshot.getEpoch() == serviceEpoch;
+		serviceEpoch = snapshot.getEpoch();
+		HashSet<String> keys = new HashSet<String>();
+		for(int i = 0; i < snapshot.size(); i++) {
+			String key = snapshot.getKey(i);
+			ZeroConfRecord held = recordsByKey.get(key);
+			if(held != null && sameService && held.version == snapshot.getVersion(i)) {
+				keys.add(key);
+				continue;
+			}
+			ZeroConfRecord r = snapshot.getRecord(i);
+			if(filter != null && !filter.matches(r)) {
+				continue;
+			}
+			keys.add(key);
+			if(held != null && held.contentEquals(r)) {
+				// only the version differs, keep deltas applying
+				recordsByKey.put(key, r);
+			} else {
+				dispatchUpdated(r);
+			}
+		}
+		resync(keys);
+	}
+
+	/**
+	 * Get all records anew after failing to map a snapshot
+	 */
+	private void resubscribeWithoutSnapshots() {
+		IZeroConfService s = service;
+		if(s != null) {
+			try {
+				s.setSnapshotDelivery(false);
+				s.resyncOnSubscribe();
+				unsubscribe(s, filter);
+				subscribe(s, filter);
+			} catch (RemoteException e) {
+				Log.d(TAG, "Exception while resubscribing: " + e.toString());
+			}
+		}
+	}
+
+	private void dispatchRemoved(ZeroConfRecord r) {
+		debugClient("Dispatching serviceRemoved(" + r.key + ")");
+		recordsByKey.remove(r.key);
+		Enumeration<Listener> e = listeners.elements();
+		while(e.hasMoreElements()) {
+			Listener l = e.nextElement();
+			l.serviceRemoved(r);
+		}
+	}
+
 	/**
 	 * Internal callback structure
 	 * 
@@ -166,6 +538,58 @@ public class ZeroConfClient {
 			Message msg = Message.obtain(updateNotify, NOTIFY_REMOVED, r);
 			updateNotify.sendMessage(msg);
 		}
+		@Override
+		public void serviceDelta(ZeroConfRecordDelta d) throws RemoteException {
+			Message msg = Message.obtain(updateNotify, NOTIFY_DELTA, d);
+			updateNotify.sendMessage(msg);
+		}
+		@Override
+		public void servicesChanged(List<ZeroConfRecord> updated,
+				List<ZeroConfRecordDelta> deltas, List<String> removedKeys)
+						throws RemoteException {
+			for(String key : removedKeys) {
+				Message msg = Message.obtain(updateNotify, NOTIFY_REMOVED_KEY, key);
+				updateNotify.sendMessage(msg);
+			}
+			for(ZeroConfRecordDelta d : deltas) {
+				Message msg = Message.obtain(updateNotify, NOTIFY_DELTA, d);
+				updateNotify.sendMessage(msg);
+			}
+			for(ZeroConfRecord r : updated) {
+				Message msg = Message.obtain(updateNotify, NOTIFY_UPDATED, r);
+				updateNotify.sendMessage(msg);
+			}
+		}
+		@Override
+		public void servicesResync(List<String> keys) throws RemoteException {
+			Message msg = Message.obtain(updateNotify, NOTIFY_RESYNC, new HashSet<String>(keys));
+			updateNotify.sendMessage(msg);
+		}
+		@Override
+		public void servicesSnapshot(long epoch, long sequence, ParcelFileDescriptor snapshot)
+				throws RemoteException {
+			// map right away, the mapping outlives the descriptor
+			ZeroConfSnapshot mapped = null;
+			try {
+				mapped = ZeroConfSnapshot.map(snapshot.getFileDescriptor());
+			} catch (IOException e) {
+				Log.d(TAG, "Exception while mapping snapshot: " + e.toString());
+			} finally {
+				try {
+					snapshot.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+			Message msg = Message.obtain(updateNotify, NOTIFY_SNAPSHOT, mapped);
+			updateNotify.sendMessage(msg);
+		}
+		@Override
+		public void syncPoint(long epoch, long sequence) throws RemoteException {
+			// queued behind the changes it covers
+			Message msg = Message.obtain(updateNotify, NOTIFY_SYNC_POINT, new long[] { epoch, sequence });
+			updateNotify.sendMessage(msg);
+		}
 	};
 
 	/**
@@ -182,7 +606,20 @@ public class ZeroConfClient {
 			try {
 				debugClient("Registering callbacks");
 				service.registerCallbacks(callbacks);
-				service.subscribeAll();
+				service.setBatchedDelivery(true);
+				service.setDeltaDelivery(true);
+				service.setSnapshotDelivery(true);
+				if(backend != null) {
+					service.setDiscoveryBackend(backend);
+				}
+				// catch up on what we missed while disconnected
+				if(service.syncSince(syncEpoch, syncSequence)) {
+					debugClient("Catching up from change " + syncSequence);
+				}
+				subscribe(service, filter);
+				if(!published.isEmpty()) {
+					service.registerServices(new Vector<ZeroConfRecord>(published));
+				}
 			} catch (RemoteException e) {
 				Log.d(TAG, "Exception while subscribing: " + e.toString());
 			}
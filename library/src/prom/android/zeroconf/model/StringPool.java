@@ -0,0 +1,45 @@
+package prom.android.zeroconf.model;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of canonical strings
+ * 
+ * Domains, protocols, types, servers and TXT keys repeat
+ * across many records. Interning them here lets all records
+ * share one instance while still allowing unused strings to
+ * be collected, which String.intern() does not guarantee.
+ * 
+ * @author prom
+ */
+final class StringPool {
+
+	private static final WeakHashMap<String, WeakReference<String>> pool
+	= new WeakHashMap<String, WeakReference<String>>();
+
+	private StringPool() {
+	}
+
+	/**
+	 * Get the canonical instance of a string
+	 * 
+	 * @param s string to intern, may be null
+	 * @return an equal string shared by all callers
+	 */
+	static String intern(String s) {
+		if(s == null) {
+			return null;
+		}
+		synchronized(pool) {
+			WeakReference<String> ref = pool.get(s);
+			String canonical = (ref != null) ? ref.get() : null;
+			if(canonical == null) {
+				pool.put(s, new WeakReference<String>(s));
+				canonical = s;
+			}
+			return canonical;
+		}
+	}
+
+}
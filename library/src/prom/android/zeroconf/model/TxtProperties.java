@@ -0,0 +1,228 @@
+package prom.android.zeroconf.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * Packed, immutable TXT properties
+ * 
+ * All values live in one byte array, indexed by an offset
+ * table, instead of one array per value plus a hash map.
+ * Names are interned and kept sorted for binary search.
+ * 
+ * Because instances are immutable they can be shared between
+ * copies of a record.
+ * 
+ * A property without a value, a boolean attribute in terms
+ * of RFC 6763 section 6.4, is kept apart from one with an
+ * empty value.
+ * 
+ * @author prom
+ */
+final class TxtProperties {
+
+	static final TxtProperties EMPTY
+	= new TxtProperties(new String[0], new int[] { 0 }, new byte[0], null);
+
+	/** Length serialized for a property without a value */
+	static final int NO_VALUE = -1;
+
+	/** Sorted, interned property names */
+	private final String[] names;
+
+	/** Start of each value in data, plus the end of the last one */
+	private final int[] offsets;
+
+	/** Concatenated property values */
+	private final byte[] data;
+
+	/** True for each property without a value, null if all have one */
+	private final boolean[] valueless;
+
+	private TxtProperties(String[] names, int[] offsets, byte[] data, boolean[] valueless) {
+		this.names = names;
+		this.offsets = offsets;
+		this.data = data;
+		this.valueless = valueless;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	String getName(int index) {
+		return names[index];
+	}
+
+	List<String> getNames() {
+		return new Vector<String>(Arrays.asList(names));
+	}
+
+	/**
+	 * Find a property
+	 * 
+	 * @param name
+	 * @return the index of the property or -1
+	 */
+	int indexOf(String name) {
+		int index = Arrays.binarySearch(names, name);
+		return (index >= 0) ? index : -1;
+	}
+
+	/** Backing array, must not be modified */
+	byte[] getData() {
+		return data;
+	}
+
+	int getValueOffset(int index) {
+		return offsets[index];
+	}
+
+	int getValueLength(int index) {
+		return offsets[index + 1] - offsets[index];
+	}
+
+	/**
+	 * Check whether a property has a value
+	 * 
+	 * @param index
+	 * @return false for a key-only property
+	 */
+	boolean hasValue(int index) {
+		return valueless == null || !valueless[index];
+	}
+
+	/**
+	 * Get a copy of a property value
+	 * 
+	 * @param index
+	 * @return a new array holding the value, null if there is none
+	 */
+	byte[] getValue(int index) {
+		if(!hasValue(index)) {
+			return null;
+		}
+		return Arrays.copyOfRange(data, offsets[index], offsets[index + 1]);
+	}
+
+	/**
+	 * Compare a value with one from another instance
+	 * 
+	 * @param index index of our value
+	 * @param other
+	 * @param otherIndex index of the other value
+	 * @return true if both values are equal
+	 */
+	boolean valueEquals(int index, TxtProperties other, int otherIndex) {
+		int length = getValueLength(index);
+		if(length != other.getValueLength(otherIndex)
+				|| hasValue(index) != other.hasValue(otherIndex)) {
+			return false;
+		}
+		int a = offsets[index];
+		int b = other.offsets[otherIndex];
+		for(int i = 0; i < length; i++) {
+			if(data[a + i] != other.data[b + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o == this) {
+			return true;
+		}
+		if(!(o instanceof TxtProperties)) {
+			return false;
+		}
+		TxtProperties other = (TxtProperties)o;
+		return Arrays.equals(names, other.names)
+				&& Arrays.equals(offsets, other.offsets)
+				&& Arrays.equals(data, other.data)
+				&& Arrays.equals(valueless, other.valueless);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(names) * 31 + Arrays.hashCode(data);
+	}
+
+	/**
+	 * Builder for packed properties
+	 * 
+	 * A null value makes a property without a value.
+	 */
+	static final class Builder {
+
+		private final TreeMap<String, byte[]> entries
+		= new TreeMap<String, byte[]>();
+
+		Builder() {
+		}
+
+		Builder(TxtProperties base) {
+			for(int i = 0; i < base.size(); i++) {
+				entries.put(base.names[i], base.getValue(i));
+			}
+		}
+
+		Builder put(String name, byte[] value) {
+			entries.put(name, value);
+			return this;
+		}
+
+		Builder remove(String name) {
+			entries.remove(name);
+			return this;
+		}
+
+		boolean contains(String name) {
+			return entries.containsKey(name);
+		}
+
+		TxtProperties build() {
+			if(entries.isEmpty()) {
+				return EMPTY;
+			}
+
+			int total = 0;
+			for(byte[] value : entries.values()) {
+				if(value != null) {
+					total += value.length;
+				}
+			}
+
+			String[] names = new String[entries.size()];
+			int[] offsets = new int[entries.size() + 1];
+			byte[] data = new byte[total];
+			boolean[] valueless = null;
+
+			int index = 0;
+			int offset = 0;
+			for(Map.Entry<String, byte[]> e : entries.entrySet()) {
+				byte[] value = e.getValue();
+				names[index] = StringPool.intern(e.getKey());
+				offsets[index] = offset;
+				if(value != null) {
+					System.arraycopy(value, 0, data, offset, value.length);
+					offset += value.length;
+				} else {
+					if(valueless == null) {
+						valueless = new boolean[names.length];
+					}
+					valueless[index] = true;
+				}
+				index++;
+			}
+			offsets[index] = offset;
+
+			return new TxtProperties(names, offsets, data, valueless);
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package prom.android.zeroconf.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Subscription filter for records
+ * 
+ * Filters get evaluated inside the service, so clients
+ * only receive records they are actually interested in.
+ * All criteria that are set must match.
+ * 
+ * @author prom
+ */
+public class ZeroConfFilter implements Parcelable {
+
+	/** Glob on the type without domain, like "_ipp._tcp" or "_*._udp" */
+	private String typeGlob;
+
+	/** Prefix of the instance name */
+	private String namePrefix;
+
+	/** Domain, like "local" */
+	private String domain;
+
+	/** Required TXT properties, a null value only requires presence */
+	private HashMap<String, String> properties
+	= new HashMap<String, String>();
+
+	public ZeroConfFilter() {
+	}
+
+	/**
+	 * Copy constructor
+	 * 
+	 * @param other
+	 */
+	public ZeroConfFilter(ZeroConfFilter other) {
+		typeGlob = other.typeGlob;
+		namePrefix = other.namePrefix;
+		domain = other.domain;
+		properties.putAll(other.properties);
+	}
+
+	public ZeroConfFilter setTypeGlob(String typeGlob) {
+		this.typeGlob = typeGlob;
+		return this;
+	}
+
+	public ZeroConfFilter setNamePrefix(String namePrefix) {
+		this.namePrefix = namePrefix;
+		return this;
+	}
+
+	public ZeroConfFilter setDomain(String domain) {
+		this.domain = domain;
+		return this;
+	}
+
+	/**
+	 * Require a TXT property with the given value
+	 * 
+	 * @param propertyName
+	 * @param value required value or null to only require presence
+	 * @return this filter
+	 */
+	public ZeroConfFilter requireProperty(String propertyName, String value) {
+		this.properties.put(propertyName, value);
+		return this;
+	}
+
+	/**
+	 * Check a record against this filter
+	 * 
+	 * @param r
+	 * @return true if the record satisfies all criteria
+	 */
+	public boolean matches(ZeroConfRecord r) {
+		if(typeGlob != null) {
+			String type = "_" + r.application + "._" + r.protocol;
+			if(!globMatches(typeGlob, 0, type, 0)) {
+				return false;
+			}
+		}
+		if(namePrefix != null) {
+			if(r.instance == null
+					|| !r.instance.regionMatches(true, 0, namePrefix, 0, namePrefix.length())) {
+				return false;
+			}
+		}
+		if(domain != null) {
+			if(r.domain == null || !trimDot(domain).equalsIgnoreCase(trimDot(r.domain))) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, String> e : properties.entrySet()) {
+			if(!r.hasProperty(e.getKey())) {
+				return false;
+			}
+			if(e.getValue() != null && !e.getValue().equals(r.getPropertyString(e.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Case-insensitive glob matching supporting '*' and '?'
+	 */
+	private static boolean globMatches(String glob, int g, String s, int i) {
+		while(g < glob.length()) {
+			char c = glob.charAt(g);
+			if(c == '*') {
+				// try every possible length for the wildcard
+				for(int j = i; j <= s.length(); j++) {
+					if(globMatches(glob, g + 1, s, j)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if(i >= s.length()) {
+				return false;
+			}
+			if(c != '?' && Character.toLowerCase(c) != Character.toLowerCase(s.charAt(i))) {
+				return false;
+			}
+			g++;
+			i++;
+		}
+		return i == s.length();
+	}
+
+	private static String trimDot(String s) {
+		return s.endsWith(".") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof ZeroConfFilter)) {
+			return false;
+		}
+		ZeroConfFilter other = (ZeroConfFilter)o;
+		return same(typeGlob, other.typeGlob)
+				&& same(namePrefix, other.namePrefix)
+				&& same(domain, other.domain)
+				&& properties.equals(other.properties);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = properties.hashCode();
+		h = h * 31 + ((typeGlob != null) ? typeGlob.hashCode() : 0);
+		h = h * 31 + ((namePrefix != null) ? namePrefix.hashCode() : 0);
+		h = h * 31 + ((domain != null) ? domain.hashCode() : 0);
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "type=" + typeGlob + " name=" + namePrefix
+				+ " domain=" + domain + " properties=" + properties;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	private ZeroConfFilter(Parcel in) {
+		typeGlob = in.readString();
+		namePrefix = in.readString();
+		domain = in.readString();
+
+		ArrayList<String> propertyNames = in.createStringArrayList();
+		ArrayList<String> propertyValues = in.createStringArrayList();
+		for(int i = 0; i < propertyNames.size(); i++) {
+			properties.put(propertyNames.get(i), propertyValues.get(i));
+		}
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeString(typeGlob);
+		dest.writeString(namePrefix);
+		dest.writeString(domain);
+
+		ArrayList<String> propertyNames = new ArrayList<String>(properties.keySet());
+		ArrayList<String> propertyValues = new ArrayList<String>();
+		for(String propertyName : propertyNames) {
+			propertyValues.add(properties.get(propertyName));
+		}
+		dest.writeStringList(propertyNames);
+		dest.writeStringList(propertyValues);
+	}
+
+	public static final Parcelable.Creator<ZeroConfFilter> CREATOR
+	= new Parcelable.Creator<ZeroConfFilter>() {
+		public ZeroConfFilter createFromParcel(Parcel in) {
+			return new ZeroConfFilter(in);
+		}
+
+		public ZeroConfFilter[] newArray(int size) {
+			return new ZeroConfFilter[size];
+		}
+	};
+
+}
@@ -1,24 +1,36 @@
 package prom.android.zeroconf.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
 
-import javax.jmdns.ServiceEvent;
-import javax.jmdns.ServiceInfo;
-
 import android.os.Parcel;
 import android.os.Parcelable;
 
 public class ZeroConfRecord implements Parcelable {
 
+	/** Address family bit for IPv4 */
+	public final static int FAMILY_IPV4 = 1;
+	/** Address family bit for IPv6 */
+	public final static int FAMILY_IPV6 = 2;
+
+	/** Limit for the number of entries of a list read from a stream */
+	private final static int MAX_STREAM_ENTRIES = 4096;
+
+	/** Limit for the length of a property value read from a stream, that of TXT data */
+	private final static int MAX_STREAM_VALUE = 65535;
+
 	/** System-wide unique key. */
 	public String key = "";
 
@@ -40,73 +52,400 @@ public class ZeroConfRecord implements Parcelable {
 	public int weight = 0;
 
 	public String[] urls;
+
+	/**
+	 * Addresses of the server, most promising first
+	 * 
+	 * Ordered by measured reachability where known,
+	 * otherwise alternating between IPv6 and IPv4 as
+	 * RFC 8305 suggests for connection attempts.
+	 */
+	public String[] addresses;
+
+	/** Version of this record, incremented on each change */
+	public int version = 0;
+
+	/** True if this record comes from the cache and has not been seen live yet */
+	public boolean stale = false;
+
+	/** Names of the network interfaces the service has been seen on */
+	public String[] interfaces;
+
+	/** Address families the service has been seen with, FAMILY_* bits */
+	public int families = 0;
 	
-	private HashMap<String, byte[]> properties;
+	/** TXT properties, immutable and shared between copies */
+	TxtProperties properties;
+
+	/** Lazily decoded property values by index, dropped when properties change */
+	private DecodedProperty[] decodedProperties;
+
+	/** Reusable UTF-8 decoder, one per thread */
+	private static final ThreadLocal<CharsetDecoder> utf8Decoder
+	= new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return Charset.forName("UTF8")
+					.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+		}
+	};
+
+	/**
+	 * Decoded views of a property value
+	 * 
+	 * Each view is computed at most once.
+	 */
+	private static class DecodedProperty {
+		final TxtProperties properties;
+		final int index;
+
+		DecodedProperty(TxtProperties properties, int index) {
+			this.properties = properties;
+			this.index = index;
+		}
+
+		boolean stringDecoded;
+		String stringValue;
+
+		boolean intParsed;
+		Integer intValue;
+
+		boolean booleanParsed;
+		Boolean booleanValue;
+	}
 
 	public ZeroConfRecord() {
 		this.urls = new String[0];
-		this.properties = new HashMap<String, byte[]>();
+		this.addresses = new String[0];
+		this.interfaces = new String[0];
+		this.properties = TxtProperties.EMPTY;
+	}
+
+	/**
+	 * Copy constructor
+	 * 
+	 * Properties are shared, they are never modified in place.
+	 * 
+	 * @param other
+	 */
+	public ZeroConfRecord(ZeroConfRecord other) {
+		key = other.key;
+
+		name = other.name;
+		type = other.type;
+
+		domain = other.domain;
+		protocol = other.protocol;
+		application = other.application;
+		instance = other.instance;
+		subtype = other.subtype;
+		server = other.server;
+
+		port = other.port;
+
+		priority = other.priority;
+		weight = other.weight;
+
+		urls = other.urls.clone();
+
+		addresses = other.addresses.clone();
+
+		version = other.version;
+
+		stale = other.stale;
+
+		interfaces = other.interfaces.clone();
+		families = other.families;
+
+		properties = other.properties;
 	}
 	
 	public List<String> getPropertyNames() {
-		return new Vector<String>(this.properties.keySet());
+		return this.properties.getNames();
 	}
 	
+	public boolean hasProperty(String propertyName) {
+		return this.properties.indexOf(propertyName) >= 0;
+	}
+
+	/**
+	 * Check for a key-only property
+	 * 
+	 * DNS-SD allows attributes without a value, which
+	 * act as boolean flags when present. An attribute
+	 * with an empty value, "key=", is not a flag.
+	 * 
+	 * @param propertyName
+	 * @return true if the property is present without a value
+	 */
+	public boolean hasPropertyFlag(String propertyName) {
+		int index = this.properties.indexOf(propertyName);
+		return index >= 0 && !this.properties.hasValue(index);
+	}
+
 	public String getPropertyString(String propertyName) {
-		String string = null;
-		CharsetDecoder utf8Decoder =
-			      Charset.forName("UTF8")
-			      .newDecoder()
-			      .onMalformedInput(CodingErrorAction.REPORT);
-		if(this.properties.containsKey(propertyName)) {
-			byte[] propertyValue = this.properties.get(propertyName);
-			ByteBuffer bb = ByteBuffer.wrap(propertyValue);
-			try {
-				CharBuffer cb = utf8Decoder.decode(bb);
-				string = cb.toString();
-			} catch (CharacterCodingException e) {
-				// ignore and return null
+		DecodedProperty d = getDecodedProperty(propertyName);
+		if(d == null) {
+			return null;
+		}
+		synchronized(d) {
+			if(!d.stringDecoded) {
+				d.stringValue = decodeUTF8(d.properties, d.index);
+				d.stringDecoded = true;
+			}
+			return d.stringValue;
+		}
+	}
+
+	/**
+	 * Get a property as a decimal integer
+	 * 
+	 * @param propertyName
+	 * @param defaultValue returned if absent or not a number
+	 * @return the parsed value
+	 */
+	public int getPropertyInt(String propertyName, int defaultValue) {
+		DecodedProperty d = getDecodedProperty(propertyName);
+		if(d == null) {
+			return defaultValue;
+		}
+		String string = getPropertyString(propertyName);
+		synchronized(d) {
+			if(!d.intParsed) {
+				if(string != null) {
+					try {
+						d.intValue = Integer.valueOf(string.trim());
+					} catch (NumberFormatException e) {
+						// leave unset
+					}
+				}
+				d.intParsed = true;
+			}
+			return (d.intValue != null) ? d.intValue.intValue() : defaultValue;
+		}
+	}
+
+	/**
+	 * Get a property as a boolean
+	 * 
+	 * Accepts the usual spellings used in TXT records,
+	 * such as T/F, true/false, yes/no, on/off and 1/0.
+	 * A key-only property counts as true.
+	 * 
+	 * @param propertyName
+	 * @param defaultValue returned if absent or not a boolean
+	 * @return the parsed value
+	 */
+	public boolean getPropertyBoolean(String propertyName, boolean defaultValue) {
+		DecodedProperty d = getDecodedProperty(propertyName);
+		if(d == null) {
+			return defaultValue;
+		}
+		boolean flag = hasPropertyFlag(propertyName);
+		String string = getPropertyString(propertyName);
+		synchronized(d) {
+			if(!d.booleanParsed) {
+				if(flag) {
+					d.booleanValue = Boolean.TRUE;
+				} else if(string != null) {
+					d.booleanValue = parseBoolean(string.trim());
+				}
+				d.booleanParsed = true;
 			}
+			return (d.booleanValue != null) ? d.booleanValue.booleanValue() : defaultValue;
+		}
+	}
+
+	private static Boolean parseBoolean(String s) {
+		if(s.equalsIgnoreCase("t") || s.equalsIgnoreCase("true")
+				|| s.equalsIgnoreCase("y") || s.equalsIgnoreCase("yes")
+				|| s.equalsIgnoreCase("on") || s.equals("1")) {
+			return Boolean.TRUE;
+		}
+		if(s.equalsIgnoreCase("f") || s.equalsIgnoreCase("false")
+				|| s.equalsIgnoreCase("n") || s.equalsIgnoreCase("no")
+				|| s.equalsIgnoreCase("off") || s.equals("0")) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the decoding cache entry for a property
+	 * 
+	 * @param propertyName
+	 * @return the entry or null if the property does not exist
+	 */
+	private synchronized DecodedProperty getDecodedProperty(String propertyName) {
+		int index = this.properties.indexOf(propertyName);
+		if(index < 0) {
+			return null;
+		}
+		if(decodedProperties == null) {
+			decodedProperties = new DecodedProperty[this.properties.size()];
+		}
+		DecodedProperty d = decodedProperties[index];
+		if(d == null) {
+			d = new DecodedProperty(this.properties, index);
+			decodedProperties[index] = d;
+		}
+		return d;
+	}
+
+	private static String decodeUTF8(TxtProperties properties, int index) {
+		ByteBuffer bb = ByteBuffer.wrap(properties.getData(),
+				properties.getValueOffset(index),
+				properties.getValueLength(index));
+		try {
+			CharBuffer cb = utf8Decoder.get().decode(bb);
+			return cb.toString();
+		} catch (CharacterCodingException e) {
+			// ignore and return null
+			return null;
 		}
-		return string;
 	}
 	
 	public byte[] getPropertyBytes(String propertyName) {
 		byte[] data = null;
-		if(this.properties.containsKey(propertyName)) {
-			data = this.properties.get(propertyName).clone();
+		int index = this.properties.indexOf(propertyName);
+		if(index >= 0) {
+			data = this.properties.getValue(index);
 		}
 		return data;
 	}
 
-	public void updateFromServiceEvent(ServiceEvent event) {
-		ServiceInfo info = event.getInfo();
+	/**
+	 * Set a property, used when building records for publishing
+	 * 
+	 * @param propertyName
+	 * @param value new value, null for a key-only property
+	 */
+	public void setPropertyBytes(String propertyName, byte[] value) {
+		TxtProperties.Builder builder = new TxtProperties.Builder(this.properties);
+		builder.put(propertyName, value);
+		synchronized(this) {
+			this.properties = builder.build();
+			this.decodedProperties = null;
+		}
+	}
 
-		this.key = info.getKey();
+	/**
+	 * Replace all properties with those of raw TXT record data
+	 * 
+	 * The data consists of length-prefixed strings of the
+	 * form key=value or key, as described in RFC 6763.
+	 * Only the first occurrence of a key counts.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void setTextRecord(byte[] data, int offset, int length) {
+		TxtProperties.Builder builder = new TxtProperties.Builder();
+		int end = offset + length;
+		int pos = offset;
+		while(pos < end) {
+			int len = data[pos++] & 0xff;
+			if(pos + len > end) {
+				break;
+			}
+			int nameEnd = pos;
+			while(nameEnd < pos + len && data[nameEnd] != '=') {
+				nameEnd++;
+			}
+			char[] name = new char[nameEnd - pos];
+			for(int i = 0; i < name.length; i++) {
+				name[i] = (char)(data[pos + i] & 0xff);
+			}
+			String propertyName = new String(name);
+			if(propertyName.length() > 0 && !builder.contains(propertyName)) {
+				byte[] value = null;
+				if(nameEnd < pos + len) {
+					value = new byte[pos + len - nameEnd - 1];
+					System.arraycopy(data, nameEnd + 1, value, 0, value.length);
+				}
+				builder.put(propertyName, value);
+			}
+			pos += len;
+		}
+		synchronized(this) {
+			this.properties = builder.build();
+			this.decodedProperties = null;
+		}
+	}
 
-		this.name = event.getName();
-		this.type = event.getType();
-		
-		this.domain = info.getDomain();
-		this.protocol = info.getProtocol();
-		this.application = info.getApplication();
-		this.instance = info.getName();
-		this.subtype = info.getSubtype();
-		this.server = info.getServer();
+	public void setPropertyString(String propertyName, String value) {
+		byte[] data = null;
+		if(value != null) {
+			try {
+				data = value.getBytes("UTF8");
+			} catch (UnsupportedEncodingException e) {
+				// can not happen, UTF8 is always supported
+			}
+		}
+		setPropertyBytes(propertyName, data);
+	}
 
-		this.port = info.getPort();
+	public void removeProperty(String propertyName) {
+		TxtProperties.Builder builder = new TxtProperties.Builder(this.properties);
+		builder.remove(propertyName);
+		synchronized(this) {
+			this.properties = builder.build();
+			this.decodedProperties = null;
+		}
+	}
 
-		this.priority = info.getPriority();
-		this.weight = info.getWeight();
+	/**
+	 * Share the strings many records repeat
+	 * 
+	 * For backends creating records by the thousand:
+	 * type, domain, protocol, application, subtype
+	 * and server get replaced by pooled instances.
+	 */
+	public void internStrings() {
+		this.type = StringPool.intern(type);
+		this.domain = StringPool.intern(domain);
+		this.protocol = StringPool.intern(protocol);
+		this.application = StringPool.intern(application);
+		this.subtype = StringPool.intern(subtype);
+		this.server = StringPool.intern(server);
+	}
 
-		this.urls = info.getURLs().clone();
-		
-		this.properties.clear();
-		Enumeration<String> propertyNames = info.getPropertyNames();
-		while(propertyNames.hasMoreElements()) {
-			String propertyName = propertyNames.nextElement();
-			this.properties.put(propertyName, info.getPropertyBytes(propertyName));
+	/**
+	 * Compare the contents of two records
+	 * 
+	 * The version is not taken into account.
+	 * 
+	 * @param other
+	 * @return true if all fields and properties are equal
+	 */
+	public boolean contentEquals(ZeroConfRecord other) {
+		if(!(same(key, other.key)
+				&& same(name, other.name)
+				&& same(type, other.type)
+				&& same(domain, other.domain)
+				&& same(protocol, other.protocol)
+				&& same(application, other.application)
+				&& same(instance, other.instance)
+				&& same(subtype, other.subtype)
+				&& same(server, other.server)
+				&& port == other.port
+				&& priority == other.priority
+				&& weight == other.weight
+				&& Arrays.equals(urls, other.urls)
+				&& Arrays.equals(addresses, other.addresses)
+				&& stale == other.stale
+				&& Arrays.equals(interfaces, other.interfaces)
+				&& families == other.families)) {
+			return false;
 		}
+		return properties.equals(other.properties);
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
 	}
 
 	@Override
@@ -118,14 +457,14 @@ public class ZeroConfRecord implements Parcelable {
 		key = in.readString();
 
 		name = in.readString();
-		type = in.readString();
+		type = StringPool.intern(in.readString());
 		
-		domain = in.readString();
-		protocol = in.readString();
-		application = in.readString();
+		domain = StringPool.intern(in.readString());
+		protocol = StringPool.intern(in.readString());
+		application = StringPool.intern(in.readString());
 		instance = in.readString();
-		subtype = in.readString();
-		server = in.readString();
+		subtype = StringPool.intern(in.readString());
+		server = StringPool.intern(in.readString());
 
 		port = in.readInt();
 
@@ -133,16 +472,26 @@ public class ZeroConfRecord implements Parcelable {
 		weight = in.readInt();
 
 		urls = in.createStringArray();
+
+		addresses = in.createStringArray();
+
+		version = in.readInt();
+
+		stale = in.readInt() != 0;
+
+		interfaces = in.createStringArray();
+		families = in.readInt();
 		
 		Vector<String> propertyNames = new Vector<String>();
 		in.readStringList(propertyNames);
 		
-		this.properties = new HashMap<String, byte[]>();
+		TxtProperties.Builder builder = new TxtProperties.Builder();
 		Enumeration<String> props = propertyNames.elements();
 		while(props.hasMoreElements()) {
 			String propertyName = props.nextElement();
-			this.properties.put(propertyName, in.createByteArray());
+			builder.put(propertyName, in.createByteArray());
 		}
+		this.properties = builder.build();
 	}
 
 	@Override
@@ -165,16 +514,186 @@ public class ZeroConfRecord implements Parcelable {
 		dest.writeInt(weight);
 
 		dest.writeStringArray(urls);
+
+		dest.writeStringArray(addresses);
+
+		dest.writeInt(version);
+
+		dest.writeInt(stale ? 1 : 0);
+
+		dest.writeStringArray(interfaces);
+		dest.writeInt(families);
 		
-		Vector<String> propertyNames = new Vector<String>(this.properties.keySet());
-		dest.writeStringList(propertyNames);
+		dest.writeStringList(this.properties.getNames());
 		
-		Enumeration<String> props = propertyNames.elements();
-		while(props.hasMoreElements()) {
-			String propertyName = props.nextElement();
-			byte[] propertyValue = this.properties.get(propertyName);
-			dest.writeByteArray(propertyValue);
+		for(int i = 0; i < this.properties.size(); i++) {
+			if(!this.properties.hasValue(i)) {
+				dest.writeByteArray(null);
+				continue;
+			}
+			dest.writeByteArray(this.properties.getData(),
+					this.properties.getValueOffset(i),
+					this.properties.getValueLength(i));
+		}
+	}
+
+	/**
+	 * Write this record to a stream
+	 * 
+	 * For where no Parcel is available. Holds the same
+	 * fields as the parcel representation, in the same
+	 * order, but with a layout of its own: strings and
+	 * lists carry their own markers and lengths, and each
+	 * property is written as its name followed by its
+	 * value, with a length of -1 if it has none.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeToStream(DataOutput out) throws IOException {
+		writeString(out, key);
+
+		writeString(out, name);
+		writeString(out, type);
+
+		writeString(out, domain);
+		writeString(out, protocol);
+		writeString(out, application);
+		writeString(out, instance);
+		writeString(out, subtype);
+		writeString(out, server);
+
+		out.writeInt(port);
+
+		out.writeInt(priority);
+		out.writeInt(weight);
+
+		out.writeInt(urls.length);
+		for(String url : urls) {
+			writeString(out, url);
+		}
+
+		out.writeInt(addresses.length);
+		for(String address : addresses) {
+			writeString(out, address);
+		}
+
+		out.writeInt(version);
+
+		out.writeBoolean(stale);
+
+		out.writeInt(interfaces.length);
+		for(String i : interfaces) {
+			writeString(out, i);
+		}
+		out.writeInt(families);
+
+		out.writeInt(properties.size());
+		for(int i = 0; i < properties.size(); i++) {
+			writeString(out, properties.getName(i));
+			if(!properties.hasValue(i)) {
+				out.writeInt(TxtProperties.NO_VALUE);
+				continue;
+			}
+			out.writeInt(properties.getValueLength(i));
+			out.write(properties.getData(),
+					properties.getValueOffset(i),
+					properties.getValueLength(i));
+		}
+	}
+
+	/**
+	 * Read a record from a stream
+	 * 
+	 * @param in stream positioned at a record written by writeToStream()
+	 * @return the record
+	 * @throws IOException
+	 */
+	public static ZeroConfRecord readFromStream(DataInput in) throws IOException {
+		ZeroConfRecord r = new ZeroConfRecord();
+
+		r.key = readString(in);
+
+		r.name = readString(in);
+		r.type = StringPool.intern(readString(in));
+
+		r.domain = StringPool.intern(readString(in));
+		r.protocol = StringPool.intern(readString(in));
+		r.application = StringPool.intern(readString(in));
+		r.instance = readString(in);
+		r.subtype = StringPool.intern(readString(in));
+		r.server = StringPool.intern(readString(in));
+
+		r.port = in.readInt();
+
+		r.priority = in.readInt();
+		r.weight = in.readInt();
+
+		r.urls = new String[readLength(in, MAX_STREAM_ENTRIES)];
+		for(int i = 0; i < r.urls.length; i++) {
+			r.urls[i] = readString(in);
+		}
+
+		r.addresses = new String[readLength(in, MAX_STREAM_ENTRIES)];
+		for(int i = 0; i < r.addresses.length; i++) {
+			r.addresses[i] = readString(in);
+		}
+
+		r.version = in.readInt();
+
+		r.stale = in.readBoolean();
+
+		r.interfaces = new String[readLength(in, MAX_STREAM_ENTRIES)];
+		for(int i = 0; i < r.interfaces.length; i++) {
+			r.interfaces[i] = StringPool.intern(readString(in));
+		}
+		r.families = in.readInt();
+
+		TxtProperties.Builder builder = new TxtProperties.Builder();
+		int propertyCount = readLength(in, MAX_STREAM_ENTRIES);
+		for(int i = 0; i < propertyCount; i++) {
+			String propertyName = readString(in);
+			int length = in.readInt();
+			byte[] value = null;
+			if(length != TxtProperties.NO_VALUE) {
+				value = new byte[checkLength(length, MAX_STREAM_VALUE)];
+				in.readFully(value);
+			}
+			builder.put(propertyName, value);
+		}
+		r.properties = builder.build();
+
+		return r;
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if(s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Read the length of a list or value, rejecting garbage
+	 * 
+	 * @param in
+	 * @param max largest length accepted
+	 * @return the length
+	 * @throws IOException if the length is out of range
+	 */
+	private static int readLength(DataInput in, int max) throws IOException {
+		return checkLength(in.readInt(), max);
+	}
+
+	private static int checkLength(int length, int max) throws IOException {
+		if(length < 0 || length > max) {
+			throw new IOException("Bad length " + length);
 		}
+		return length;
 	}
 
 	public static final Parcelable.Creator<ZeroConfRecord> CREATOR
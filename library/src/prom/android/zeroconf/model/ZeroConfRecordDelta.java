@@ -0,0 +1,415 @@
+package prom.android.zeroconf.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Difference between two versions of a record
+ *
+ * Only fields and properties that differ get transferred,
+ * which saves a lot of parcel space for services whose
+ * TXT records change frequently.
+ *
+ * @author prom
+ */
+public class ZeroConfRecordDelta implements Parcelable {
+
+	private static final int FIELD_NAME        = 1 << 0;
+	private static final int FIELD_TYPE        = 1 << 1;
+	private static final int FIELD_DOMAIN      = 1 << 2;
+	private static final int FIELD_PROTOCOL    = 1 << 3;
+	private static final int FIELD_APPLICATION = 1 << 4;
+	private static final int FIELD_INSTANCE    = 1 << 5;
+	private static final int FIELD_SUBTYPE     = 1 << 6;
+	private static final int FIELD_SERVER      = 1 << 7;
+	private static final int FIELD_PORT        = 1 << 8;
+	private static final int FIELD_PRIORITY    = 1 << 9;
+	private static final int FIELD_WEIGHT      = 1 << 10;
+	private static final int FIELD_URLS        = 1 << 11;
+	private static final int FIELD_STALE       = 1 << 12;
+	private static final int FIELD_INTERFACES  = 1 << 13;
+	private static final int FIELD_FAMILIES    = 1 << 14;
+	private static final int FIELD_ADDRESSES   = 1 << 15;
+
+	/** Key of the record this applies to */
+	public String key;
+
+	/** Version this delta must be applied to */
+	public int baseVersion;
+	/** Version resulting from application */
+	public int version;
+
+	private int fields;
+
+	private String name;
+	private String type;
+	private String domain;
+	private String protocol;
+	private String application;
+	private String instance;
+	private String subtype;
+	private String server;
+	private int port;
+	private int priority;
+	private int weight;
+	private String[] urls;
+	private String[] addresses;
+	private boolean stale;
+	private String[] interfaces;
+	private int families;
+
+	private HashMap<String, byte[]> changedProperties
+	= new HashMap<String, byte[]>();
+	private Vector<String> removedProperties
+	= new Vector<String>();
+
+	private ZeroConfRecordDelta() {
+	}
+
+	/**
+	 * Compute the delta between two versions of a record
+	 *
+	 * @param from version held by the receiver
+	 * @param to current version
+	 * @return a delta transforming from into to
+	 */
+	public static ZeroConfRecordDelta between(ZeroConfRecord from, ZeroConfRecord to) {
+		ZeroConfRecordDelta d = new ZeroConfRecordDelta();
+
+		d.key = to.key;
+		d.baseVersion = from.version;
+		d.version = to.version;
+
+		if(!same(from.name, to.name)) {
+			d.fields |= FIELD_NAME;
+			d.name = to.name;
+		}
+		if(!same(from.type, to.type)) {
+			d.fields |= FIELD_TYPE;
+			d.type = to.type;
+		}
+		if(!same(from.domain, to.domain)) {
+			d.fields |= FIELD_DOMAIN;
+			d.domain = to.domain;
+		}
+		if(!same(from.protocol, to.protocol)) {
+			d.fields |= FIELD_PROTOCOL;
+			d.protocol = to.protocol;
+		}
+		if(!same(from.application, to.application)) {
+			d.fields |= FIELD_APPLICATION;
+			d.application = to.application;
+		}
+		if(!same(from.instance, to.instance)) {
+			d.fields |= FIELD_INSTANCE;
+			d.instance = to.instance;
+		}
+		if(!same(from.subtype, to.subtype)) {
+			d.fields |= FIELD_SUBTYPE;
+			d.subtype = to.subtype;
+		}
+		if(!same(from.server, to.server)) {
+			d.fields |= FIELD_SERVER;
+			d.server = to.server;
+		}
+		if(from.port != to.port) {
+			d.fields |= FIELD_PORT;
+			d.port = to.port;
+		}
+		if(from.priority != to.priority) {
+			d.fields |= FIELD_PRIORITY;
+			d.priority = to.priority;
+		}
+		if(from.weight != to.weight) {
+			d.fields |= FIELD_WEIGHT;
+			d.weight = to.weight;
+		}
+		if(!Arrays.equals(from.urls, to.urls)) {
+			d.fields |= FIELD_URLS;
+			d.urls = to.urls;
+		}
+		if(!Arrays.equals(from.addresses, to.addresses)) {
+			d.fields |= FIELD_ADDRESSES;
+			d.addresses = to.addresses;
+		}
+		if(from.stale != to.stale) {
+			d.fields |= FIELD_STALE;
+			d.stale = to.stale;
+		}
+		if(!Arrays.equals(from.interfaces, to.interfaces)) {
+			d.fields |= FIELD_INTERFACES;
+			d.interfaces = to.interfaces;
+		}
+		if(from.families != to.families) {
+			d.fields |= FIELD_FAMILIES;
+			d.families = to.families;
+		}
+
+		TxtProperties fromProperties = from.properties;
+		TxtProperties toProperties = to.properties;
+		if(fromProperties != toProperties) {
+			for(int i = 0; i < toProperties.size(); i++) {
+				String propertyName = toProperties.getName(i);
+				int j = fromProperties.indexOf(propertyName);
+				if(j < 0 || !toProperties.valueEquals(i, fromProperties, j)) {
+					d.changedProperties.put(propertyName, toProperties.getValue(i));
+				}
+			}
+			for(int j = 0; j < fromProperties.size(); j++) {
+				String propertyName = fromProperties.getName(j);
+				if(toProperties.indexOf(propertyName) < 0) {
+					d.removedProperties.add(propertyName);
+				}
+			}
+		}
+
+		return d;
+	}
+
+	/**
+	 * Check if this delta can be applied to the given record
+	 *
+	 * @param base
+	 * @return true if base is the version this delta was computed from
+	 */
+	public boolean appliesTo(ZeroConfRecord base) {
+		return base != null
+				&& base.key.equals(key)
+				&& base.version == baseVersion;
+	}
+
+	/**
+	 * Apply this delta
+	 *
+	 * The base record is left unmodified.
+	 *
+	 * @param base record to apply to, must satisfy appliesTo()
+	 * @return a new record with the changes applied
+	 */
+	public ZeroConfRecord applyTo(ZeroConfRecord base) {
+		ZeroConfRecord r = new ZeroConfRecord(base);
+
+		r.version = version;
+
+		if((fields & FIELD_NAME) != 0) {
+			r.name = name;
+		}
+		if((fields & FIELD_TYPE) != 0) {
+			r.type = type;
+		}
+		if((fields & FIELD_DOMAIN) != 0) {
+			r.domain = domain;
+		}
+		if((fields & FIELD_PROTOCOL) != 0) {
+			r.protocol = protocol;
+		}
+		if((fields & FIELD_APPLICATION) != 0) {
+			r.application = application;
+		}
+		if((fields & FIELD_INSTANCE) != 0) {
+			r.instance = instance;
+		}
+		if((fields & FIELD_SUBTYPE) != 0) {
+			r.subtype = subtype;
+		}
+		if((fields & FIELD_SERVER) != 0) {
+			r.server = server;
+		}
+		if((fields & FIELD_PORT) != 0) {
+			r.port = port;
+		}
+		if((fields & FIELD_PRIORITY) != 0) {
+			r.priority = priority;
+		}
+		if((fields & FIELD_WEIGHT) != 0) {
+			r.weight = weight;
+		}
+		if((fields & FIELD_URLS) != 0) {
+			r.urls = urls.clone();
+		}
+		if((fields & FIELD_ADDRESSES) != 0) {
+			r.addresses = addresses.clone();
+		}
+		if((fields & FIELD_STALE) != 0) {
+			r.stale = stale;
+		}
+		if((fields & FIELD_INTERFACES) != 0) {
+			r.interfaces = interfaces.clone();
+		}
+		if((fields & FIELD_FAMILIES) != 0) {
+			r.families = families;
+		}
+
+		if(!changedProperties.isEmpty() || !removedProperties.isEmpty()) {
+			TxtProperties.Builder builder = new TxtProperties.Builder(base.properties);
+			for(Map.Entry<String, byte[]> e : changedProperties.entrySet()) {
+				builder.put(e.getKey(), e.getValue());
+			}
+			for(String propertyName : removedProperties) {
+				builder.remove(propertyName);
+			}
+			r.properties = builder.build();
+		}
+
+		return r;
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	private ZeroConfRecordDelta(Parcel in) {
+		key = in.readString();
+
+		baseVersion = in.readInt();
+		version = in.readInt();
+
+		fields = in.readInt();
+
+		if((fields & FIELD_NAME) != 0) {
+			name = in.readString();
+		}
+		if((fields & FIELD_TYPE) != 0) {
+			type = in.readString();
+		}
+		if((fields & FIELD_DOMAIN) != 0) {
+			domain = in.readString();
+		}
+		if((fields & FIELD_PROTOCOL) != 0) {
+			protocol = in.readString();
+		}
+		if((fields & FIELD_APPLICATION) != 0) {
+			application = in.readString();
+		}
+		if((fields & FIELD_INSTANCE) != 0) {
+			instance = in.readString();
+		}
+		if((fields & FIELD_SUBTYPE) != 0) {
+			subtype = in.readString();
+		}
+		if((fields & FIELD_SERVER) != 0) {
+			server = in.readString();
+		}
+		if((fields & FIELD_PORT) != 0) {
+			port = in.readInt();
+		}
+		if((fields & FIELD_PRIORITY) != 0) {
+			priority = in.readInt();
+		}
+		if((fields & FIELD_WEIGHT) != 0) {
+			weight = in.readInt();
+		}
+		if((fields & FIELD_URLS) != 0) {
+			urls = in.createStringArray();
+		}
+		if((fields & FIELD_ADDRESSES) != 0) {
+			addresses = in.createStringArray();
+		}
+		if((fields & FIELD_STALE) != 0) {
+			stale = in.readInt() != 0;
+		}
+		if((fields & FIELD_INTERFACES) != 0) {
+			interfaces = in.createStringArray();
+		}
+		if((fields & FIELD_FAMILIES) != 0) {
+			families = in.readInt();
+		}
+
+		Vector<String> propertyNames = new Vector<String>();
+		in.readStringList(propertyNames);
+		for(String propertyName : propertyNames) {
+			changedProperties.put(propertyName, in.createByteArray());
+		}
+
+		in.readStringList(removedProperties);
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeString(key);
+
+		dest.writeInt(baseVersion);
+		dest.writeInt(version);
+
+		dest.writeInt(fields);
+
+		if((fields & FIELD_NAME) != 0) {
+			dest.writeString(name);
+		}
+		if((fields & FIELD_TYPE) != 0) {
+			dest.writeString(type);
+		}
+		if((fields & FIELD_DOMAIN) != 0) {
+			dest.writeString(domain);
+		}
+		if((fields & FIELD_PROTOCOL) != 0) {
+			dest.writeString(protocol);
+		}
+		if((fields & FIELD_APPLICATION) != 0) {
+			dest.writeString(application);
+		}
+		if((fields & FIELD_INSTANCE) != 0) {
+			dest.writeString(instance);
+		}
+		if((fields & FIELD_SUBTYPE) != 0) {
+			dest.writeString(subtype);
+		}
+		if((fields & FIELD_SERVER) != 0) {
+			dest.writeString(server);
+		}
+		if((fields & FIELD_PORT) != 0) {
+			dest.writeInt(port);
+		}
+		if((fields & FIELD_PRIORITY) != 0) {
+			dest.writeInt(priority);
+		}
+		if((fields & FIELD_WEIGHT) != 0) {
+			dest.writeInt(weight);
+		}
+		if((fields & FIELD_URLS) != 0) {
+			dest.writeStringArray(urls);
+		}
+		if((fields & FIELD_ADDRESSES) != 0) {
+			dest.writeStringArray(addresses);
+		}
+		if((fields & FIELD_STALE) != 0) {
+			dest.writeInt(stale ? 1 : 0);
+		}
+		if((fields & FIELD_INTERFACES) != 0) {
+			dest.writeStringArray(interfaces);
+		}
+		if((fields & FIELD_FAMILIES) != 0) {
+			dest.writeInt(families);
+		}
+
+		Vector<String> propertyNames = new Vector<String>(changedProperties.keySet());
+		dest.writeStringList(propertyNames);
+		for(String propertyName : propertyNames) {
+			dest.writeByteArray(changedProperties.get(propertyName));
+		}
+
+		dest.writeStringList(removedProperties);
+	}
+
+	public static final Parcelable.Creator<ZeroConfRecordDelta> CREATOR
+	= new Parcelable.Creator<ZeroConfRecordDelta>() {
+		public ZeroConfRecordDelta createFromParcel(Parcel in) {
+			return new ZeroConfRecordDelta(in);
+		}
+
+		public ZeroConfRecordDelta[] newArray(int size) {
+			return new ZeroConfRecordDelta[size];
+		}
+	};
+
+}
@@ -0,0 +1,467 @@
+package prom.android.zeroconf.model;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Read-only snapshot of many records in shared memory
+ *
+ * The service writes all its records into a file once and
+ * hands clients a descriptor of it. Clients map the file
+ * and read straight from the mapping, so no record has to
+ * cross binder. The layout is columnar: keys and versions
+ * of all records sit in arrays of their own, and a client
+ * comparing them against what it holds only decodes the
+ * records that actually changed.
+ *
+ * Layout, all integers big-endian:
+ *
+ *   header     magic, format, epoch, sequence, count,
+ *              offsets of strings and data, total size
+ *   columns    one int per record for each column, string
+ *              columns holding offsets of strings, -1 for null
+ *   strings    length-prefixed UTF-8, each distinct string once
+ *   data       per record the URLs, addresses, interfaces
+ *              and properties, found through the data column
+ *
+ * @author prom
+ */
+public final class ZeroConfSnapshot {
+
+	/** File magic, "ZCSN" */
+	private final static int MAGIC = 0x5a43534e;
+
+	/** Format version, bump when the layout changes */
+	private final static int FORMAT_VERSION = 2;
+
+	private final static int HEADER_SIZE = 40;
+
+	private final static int COLUMN_KEY = 0;
+	private final static int COLUMN_NAME = 1;
+	private final static int COLUMN_TYPE = 2;
+	private final static int COLUMN_DOMAIN = 3;
+	private final static int COLUMN_PROTOCOL = 4;
+	private final static int COLUMN_APPLICATION = 5;
+	private final static int COLUMN_INSTANCE = 6;
+	private final static int COLUMN_SUBTYPE = 7;
+	private final static int COLUMN_SERVER = 8;
+	private final static int COLUMN_PORT = 9;
+	private final static int COLUMN_PRIORITY = 10;
+	private final static int COLUMN_WEIGHT = 11;
+	private final static int COLUMN_VERSION = 12;
+	private final static int COLUMN_FAMILIES = 13;
+	private final static int COLUMN_FLAGS = 14;
+	private final static int COLUMN_DATA = 15;
+	private final static int COLUMNS = 16;
+
+	/** Flag for stale records */
+	private final static int FLAG_STALE = 1;
+
+	private final ByteBuffer buffer;
+
+	private final long epoch;
+
+	private final long sequence;
+
+	private final int count;
+
+	/** Strings shared between records, decoded once, by offset */
+	private final HashMap<Integer, String> pooled
+	= new HashMap<Integer, String>();
+
+	/**
+	 * Open a snapshot in a buffer
+	 *
+	 * @param buffer buffer holding a snapshot, not modified
+	 * @throws IOException if the buffer holds no valid snapshot
+	 */
+	public ZeroConfSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if(buffer.limit() < HEADER_SIZE
+				|| buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Not a snapshot");
+		}
+		epoch = buffer.getLong(8);
+		sequence = buffer.getLong(16);
+		count = buffer.getInt(24);
+		int strings = buffer.getInt(28);
+		int data = buffer.getInt(32);
+		int size = buffer.getInt(36);
+		if(count < 0 || size > buffer.limit()
+				|| strings != HEADER_SIZE + COLUMNS * 4L * count
+				|| data < strings || size < data) {
+			throw new IOException("Corrupt snapshot");
+		}
+	}
+
+	/**
+	 * Map a snapshot written to a file
+	 *
+	 * The mapping stays valid after the descriptor
+	 * gets closed.
+	 *
+	 * @param fd descriptor of the file
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	public static ZeroConfSnapshot map(FileDescriptor fd) throws IOException {
+		FileInputStream in = new FileInputStream(fd);
+		FileChannel channel = in.getChannel();
+		return new ZeroConfSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	}
+
+	/** Get the epoch of the change log of the service */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/** Get the position in the change log the snapshot is current to */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/** Get the number of records */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Get the key of a record without decoding the rest
+	 *
+	 * @param index
+	 * @return the key
+	 */
+	public String getKey(int index) {
+		return readString(column(COLUMN_KEY, index));
+	}
+
+	/**
+	 * Get the version of a record without decoding it
+	 *
+	 * @param index
+	 * @return the version
+	 */
+	public int getVersion(int index) {
+		return column(COLUMN_VERSION, index);
+	}
+
+	/**
+	 * Decode a record
+	 *
+	 * @param index
+	 * @return a new record
+	 */
+	public ZeroConfRecord getRecord(int index) {
+		ZeroConfRecord r = new ZeroConfRecord();
+
+		r.key = readString(column(COLUMN_KEY, index));
+
+		r.name = readString(column(COLUMN_NAME, index));
+		r.type = pooledString(column(COLUMN_TYPE, index));
+
+		r.domain = pooledString(column(COLUMN_DOMAIN, index));
+		r.protocol = pooledString(column(COLUMN_PROTOCOL, index));
+		r.application = pooledString(column(COLUMN_APPLICATION, index));
+		r.instance = readString(column(COLUMN_INSTANCE, index));
+		r.subtype = pooledString(column(COLUMN_SUBTYPE, index));
+		r.server = pooledString(column(COLUMN_SERVER, index));
+
+		r.port = column(COLUMN_PORT, index);
+
+		r.priority = column(COLUMN_PRIORITY, index);
+		r.weight = column(COLUMN_WEIGHT, index);
+
+		r.version = column(COLUMN_VERSION, index);
+
+		r.stale = (column(COLUMN_FLAGS, index) & FLAG_STALE) != 0;
+
+		r.families = column(COLUMN_FAMILIES, index);
+
+		int pos = column(COLUMN_DATA, index);
+		r.urls = new String[buffer.getInt(pos)];
+		pos += 4;
+		for(int i = 0; i < r.urls.length; i++, pos += 4) {
+			r.urls[i] = readString(buffer.getInt(pos));
+		}
+		r.addresses = new String[buffer.getInt(pos)];
+		pos += 4;
+		for(int i = 0; i < r.addresses.length; i++, pos += 4) {
+			r.addresses[i] = readString(buffer.getInt(pos));
+		}
+		r.interfaces = new String[buffer.getInt(pos)];
+		pos += 4;
+		for(int i = 0; i < r.interfaces.length; i++, pos += 4) {
+			r.interfaces[i] = pooledString(buffer.getInt(pos));
+		}
+
+		TxtProperties.Builder builder = new TxtProperties.Builder();
+		int propertyCount = buffer.getInt(pos);
+		pos += 4;
+		for(int i = 0; i < propertyCount; i++) {
+			String propertyName = pooledString(buffer.getInt(pos));
+			byte[] value = null;
+			if(buffer.getInt(pos + 4) != TxtProperties.NO_VALUE) {
+				value = readBytes(pos + 4);
+			}
+			builder.put(propertyName, value);
+			pos += 8 + ((value != null) ? value.length : 0);
+		}
+		r.properties = builder.build();
+
+		return r;
+	}
+
+	private int column(int column, int index) {
+		return buffer.getInt(HEADER_SIZE + (column * count + index) * 4);
+	}
+
+	/** Read length-prefixed bytes */
+	private byte[] readBytes(int offset) {
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset + 4);
+		b.get(bytes);
+		return bytes;
+	}
+
+	private String readString(int offset) {
+		if(offset < 0) {
+			return null;
+		}
+		try {
+			return new String(readBytes(offset), "UTF8");
+		} catch (UnsupportedEncodingException e) {
+			// can not happen, UTF8 is always supported
+			return null;
+		}
+	}
+
+	/** Read a string repeating across records, interned */
+	private String pooledString(int offset) {
+		if(offset < 0) {
+			return null;
+		}
+		synchronized(pooled) {
+			String s = pooled.get(offset);
+			if(s == null) {
+				s = StringPool.intern(readString(offset));
+				pooled.put(offset, s);
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Writer of snapshots
+	 *
+	 * Lays out the records on creation, so that the
+	 * size is known before anything gets written.
+	 */
+	public static final class Writer {
+
+		private final long epoch;
+
+		private final long sequence;
+
+		private final List<ZeroConfRecord> records;
+
+		/** Offsets of strings, by string */
+		private final HashMap<String, Integer> stringOffsets
+		= new HashMap<String, Integer>();
+
+		/** Encoded strings in order of their offsets */
+		private final ArrayList<byte[]> strings = new ArrayList<byte[]>();
+
+		/** Offset of the data of each record */
+		private final int[] dataOffsets;
+
+		private final int stringsOffset;
+
+		private int dataOffset;
+
+		private int size;
+
+		/**
+		 * Lay out a snapshot
+		 *
+		 * @param epoch epoch of the change log
+		 * @param sequence position in the change log the records are current to
+		 * @param records records to write, not modified
+		 */
+		public Writer(long epoch, long sequence, List<ZeroConfRecord> records) {
+			this.epoch = epoch;
+			this.sequence = sequence;
+			this.records = records;
+			this.dataOffsets = new int[records.size()];
+
+			stringsOffset = HEADER_SIZE + COLUMNS * 4 * records.size();
+			size = stringsOffset;
+			for(ZeroConfRecord r : records) {
+				addString(r.key);
+				addString(r.name);
+				addString(r.type);
+				addString(r.domain);
+				addString(r.protocol);
+				addString(r.application);
+				addString(r.instance);
+				addString(r.subtype);
+				addString(r.server);
+				for(String url : r.urls) {
+					addString(url);
+				}
+				for(String address : r.addresses) {
+					addString(address);
+				}
+				for(String i : r.interfaces) {
+					addString(i);
+				}
+				for(int i = 0; i < r.properties.size(); i++) {
+					addString(r.properties.getName(i));
+				}
+			}
+
+			dataOffset = size;
+			for(int i = 0; i < dataOffsets.length; i++) {
+				ZeroConfRecord r = records.get(i);
+				dataOffsets[i] = size;
+				size += 4 * (4 + r.urls.length + r.addresses.length + r.interfaces.length);
+				for(int p = 0; p < r.properties.size(); p++) {
+					size += 8 + r.properties.getValueLength(p);
+				}
+			}
+		}
+
+		private void addString(String s) {
+			if(s == null || stringOffsets.containsKey(s)) {
+				return;
+			}
+			byte[] bytes;
+			try {
+				bytes = s.getBytes("UTF8");
+			} catch (UnsupportedEncodingException e) {
+				// can not happen, UTF8 is always supported
+				bytes = new byte[0];
+			}
+			stringOffsets.put(s, size);
+			strings.add(bytes);
+			size += 4 + bytes.length;
+		}
+
+		private int stringOffset(String s) {
+			return (s != null) ? stringOffsets.get(s) : -1;
+		}
+
+		/** Get the number of bytes the snapshot takes */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Write the snapshot
+		 *
+		 * @param out buffer with at least size() bytes remaining,
+		 *            written from its position on
+		 */
+		public void writeTo(ByteBuffer out) {
+			ByteBuffer b = out.slice();
+			int count = records.size();
+
+			b.putInt(MAGIC);
+			b.putInt(FORMAT_VERSION);
+			b.putLong(epoch);
+			b.putLong(sequence);
+			b.putInt(count);
+			b.putInt(stringsOffset);
+			b.putInt(dataOffset);
+			b.putInt(size);
+
+			for(int column = 0; column < COLUMNS; column++) {
+				for(int i = 0; i < count; i++) {
+					b.putInt(columnValue(column, i));
+				}
+			}
+
+			for(byte[] s : strings) {
+				b.putInt(s.length);
+				b.put(s);
+			}
+
+			for(ZeroConfRecord r : records) {
+				b.putInt(r.urls.length);
+				for(String url : r.urls) {
+					b.putInt(stringOffset(url));
+				}
+				b.putInt(r.addresses.length);
+				for(String address : r.addresses) {
+					b.putInt(stringOffset(address));
+				}
+				b.putInt(r.interfaces.length);
+				for(String i : r.interfaces) {
+					b.putInt(stringOffset(i));
+				}
+				TxtProperties properties = r.properties;
+				b.putInt(properties.size());
+				for(int i = 0; i < properties.size(); i++) {
+					b.putInt(stringOffset(properties.getName(i)));
+					if(!properties.hasValue(i)) {
+						b.putInt(TxtProperties.NO_VALUE);
+						continue;
+					}
+					b.putInt(properties.getValueLength(i));
+					b.put(properties.getData(),
+							properties.getValueOffset(i),
+							properties.getValueLength(i));
+				}
+			}
+
+			out.position(out.position() + size);
+		}
+
+		private int columnValue(int column, int index) {
+			ZeroConfRecord r = records.get(index);
+			switch(column) {
+			case COLUMN_KEY:
+				return stringOffset(r.key);
+			case COLUMN_NAME:
+				return stringOffset(r.name);
+			case COLUMN_TYPE:
+				return stringOffset(r.type);
+			case COLUMN_DOMAIN:
+				return stringOffset(r.domain);
+			case COLUMN_PROTOCOL:
+				return stringOffset(r.protocol);
+			case COLUMN_APPLICATION:
+				return stringOffset(r.application);
+			case COLUMN_INSTANCE:
+				return stringOffset(r.instance);
+			case COLUMN_SUBTYPE:
+				return stringOffset(r.subtype);
+			case COLUMN_SERVER:
+				return stringOffset(r.server);
+			case COLUMN_PORT:
+				return r.port;
+			case COLUMN_PRIORITY:
+				return r.priority;
+			case COLUMN_WEIGHT:
+				return r.weight;
+			case COLUMN_VERSION:
+				return r.version;
+			case COLUMN_FAMILIES:
+				return r.families;
+			case COLUMN_FLAGS:
+				return r.stale ? FLAG_STALE : 0;
+			default:
+				return dataOffsets[index];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package prom.android.zeroconf.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Snapshot of the metrics of the discovery service
+ *
+ * Counters run from the start of the service. Latencies
+ * are kept as histograms with power-of-two buckets:
+ * bucket n counts latencies below 2^n milliseconds, the
+ * last one everything longer.
+ *
+ * @author prom
+ */
+public class ZeroConfStats implements Parcelable {
+
+	public static final int EVENT_TYPE_ADDED        = 0;
+	public static final int EVENT_SERVICE_ADDED     = 1;
+	public static final int EVENT_SERVICE_REMOVED   = 2;
+	public static final int EVENT_SERVICE_RESOLVED  = 3;
+	public static final int EVENT_SERVICE_REFRESHED = 4;
+
+	/** Number of EVENT_* kinds */
+	public static final int EVENT_KINDS = 5;
+
+	/** Number of buckets in latency histograms */
+	public static final int HISTOGRAM_BUCKETS = 16;
+
+	/** Time of the snapshot, in elapsed realtime milliseconds */
+	public long collectedAt;
+
+	/** Discovery events received from the backend, by EVENT_* kind */
+	public long[] events = new long[EVENT_KINDS];
+
+	/** Discovery events waiting to be processed */
+	public int queueDepth;
+	/** Largest number of discovery events ever waiting */
+	public int maxQueueDepth;
+
+	/** Serial numbers of the client connections */
+	public int[] connections = new int[0];
+	/** Callbacks sent to each connection */
+	public long[] callbacksSent = new long[0];
+	/** Callbacks that failed, for each connection */
+	public long[] callbacksFailed = new long[0];
+	/** Changes dropped because the queue overflowed, for each connection */
+	public long[] connectionDropped = new long[0];
+	/** Changes waiting to be sent, for each connection */
+	public int[] connectionQueued = new int[0];
+	/** Delivery latency histograms of all connections, one after the other */
+	public long[] connectionLatency = new long[0];
+
+	/** Time from discovery of a change until a client got it */
+	public long[] deliveryLatency = new long[HISTOGRAM_BUCKETS];
+	/** Time from asking for details of a service until they arrived */
+	public long[] resolveLatency = new long[HISTOGRAM_BUCKETS];
+
+	/** Known service types */
+	public String[] types = new String[0];
+	/** Number of services of each type */
+	public int[] typeCounts = new int[0];
+
+	public ZeroConfStats() {
+	}
+
+	/**
+	 * Get the histogram bucket of a latency
+	 *
+	 * @param millis
+	 * @return a bucket index
+	 */
+	public static int bucketOf(long millis) {
+		int bucket = 0;
+		while(bucket < HISTOGRAM_BUCKETS - 1 && millis >= (1L << bucket)) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Get the delivery latency histogram of a connection
+	 *
+	 * @param index index of the connection in connections
+	 * @return a histogram
+	 */
+	public long[] connectionLatency(int index) {
+		long[] histogram = new long[HISTOGRAM_BUCKETS];
+		System.arraycopy(connectionLatency, index * HISTOGRAM_BUCKETS, histogram, 0, HISTOGRAM_BUCKETS);
+		return histogram;
+	}
+
+	/**
+	 * Estimate a percentile of a histogram
+	 *
+	 * @param histogram
+	 * @param percent
+	 * @return the upper limit of the bucket the percentile falls into,
+	 *         Long.MAX_VALUE for the last bucket, 0 if the histogram is empty
+	 */
+	public static long percentile(long[] histogram, int percent) {
+		long total = 0;
+		for(long n : histogram) {
+			total += n;
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long wanted = (total * percent + 99) / 100;
+		long seen = 0;
+		for(int bucket = 0; bucket < histogram.length; bucket++) {
+			seen += histogram[bucket];
+			if(seen >= wanted) {
+				return (bucket < HISTOGRAM_BUCKETS - 1) ? (1L << bucket) : Long.MAX_VALUE;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		long sent = 0;
+		long failed = 0;
+		long dropped = 0;
+		for(int i = 0; i < connections.length; i++) {
+			sent += callbacksSent[i];
+			failed += callbacksFailed[i];
+			dropped += connectionDropped[i];
+		}
+		return "events added=" + events[EVENT_SERVICE_ADDED]
+				+ " removed=" + events[EVENT_SERVICE_REMOVED]
+				+ " resolved=" + events[EVENT_SERVICE_RESOLVED]
+				+ " refreshed=" + events[EVENT_SERVICE_REFRESHED]
+				+ " types=" + events[EVENT_TYPE_ADDED]
+				+ ", queue " + queueDepth + " (max " + maxQueueDepth + ")"
+				+ ", " + connections.length + " connections, callbacks " + sent + " (" + failed + " failed, " + dropped + " dropped)"
+				+ ", delivery p50<" + percentile(deliveryLatency, 50)
+				+ " p99<" + percentile(deliveryLatency, 99) + " ms"
+				+ ", resolve p50<" + percentile(resolveLatency, 50)
+				+ " p99<" + percentile(resolveLatency, 99) + " ms"
+				+ ", " + types.length + " types";
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	private ZeroConfStats(Parcel in) {
+		collectedAt = in.readLong();
+
+		events = in.createLongArray();
+
+		queueDepth = in.readInt();
+		maxQueueDepth = in.readInt();
+
+		connections = in.createIntArray();
+		callbacksSent = in.createLongArray();
+		callbacksFailed = in.createLongArray();
+		connectionDropped = in.createLongArray();
+		connectionQueued = in.createIntArray();
+		connectionLatency = in.createLongArray();
+
+		deliveryLatency = in.createLongArray();
+		resolveLatency = in.createLongArray();
+
+		types = in.createStringArray();
+		typeCounts = in.createIntArray();
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(collectedAt);
+
+		dest.writeLongArray(events);
+
+		dest.writeInt(queueDepth);
+		dest.writeInt(maxQueueDepth);
+
+		dest.writeIntArray(connections);
+		dest.writeLongArray(callbacksSent);
+		dest.writeLongArray(callbacksFailed);
+		dest.writeLongArray(connectionDropped);
+		dest.writeIntArray(connectionQueued);
+		dest.writeLongArray(connectionLatency);
+
+		dest.writeLongArray(deliveryLatency);
+		dest.writeLongArray(resolveLatency);
+
+		dest.writeStringArray(types);
+		dest.writeIntArray(typeCounts);
+	}
+
+	public static final Parcelable.Creator<ZeroConfStats> CREATOR
+	= new Parcelable.Creator<ZeroConfStats>() {
+		public ZeroConfStats createFromParcel(Parcel in) {
+			return new ZeroConfStats(in);
+		}
+
+		public ZeroConfStats[] newArray(int size) {
+			return new ZeroConfStats[size];
+		}
+	};
+
+}
@@ -0,0 +1,260 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders server addresses by how well they can be reached
+ *
+ * Addresses get measured by racing TCP connections to the
+ * service port, all addresses of a service at once, and
+ * closing them again right away. Measurements are kept by
+ * address for a while, so services sharing a host share
+ * them, and nothing gets measured twice in a row.
+ *
+ * Reachable addresses come first, fastest first. Addresses
+ * not measured yet follow, alternating between IPv6 and
+ * IPv4 like RFC 8305 does for connection attempts, and
+ * unreachable addresses come last.
+ *
+ * Ordering may happen on any thread, probing blocks and
+ * belongs on a thread of its own.
+ *
+ * @author prom
+ */
+class AddressRanker {
+
+	/** Time a connection attempt gets before the address counts as unreachable */
+	final static long PROBE_TIMEOUT_MILLIS = 2000;
+
+	/** Time measurements stay valid */
+	final static long MEASUREMENT_MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+	/** Connect time of unreachable addresses */
+	private final static long UNREACHABLE = Long.MAX_VALUE;
+
+	private static final class Measurement {
+		/** Connect time in microseconds, or UNREACHABLE */
+		final long connectMicros;
+		final long measuredAt;
+
+		Measurement(long connectMicros, long measuredAt) {
+			this.connectMicros = connectMicros;
+			this.measuredAt = measuredAt;
+		}
+	}
+
+	/** An address with the measurement it is ordered by */
+	private static final class Ranked {
+		final String address;
+		final long connectMicros;
+
+		Ranked(String address, long connectMicros) {
+			this.address = address;
+			this.connectMicros = connectMicros;
+		}
+	}
+
+	private final static Comparator<Ranked> FASTEST_FIRST
+	= new Comparator<Ranked>() {
+		@Override
+		public int compare(Ranked a, Ranked b) {
+			return (a.connectMicros < b.connectMicros) ? -1
+					: ((a.connectMicros == b.connectMicros) ? 0 : 1);
+		}
+	};
+
+	private final DiscoveryStateMachine.Clock clock;
+
+	/** Measurements by address */
+	private final ConcurrentHashMap<String, Measurement> measurements
+	= new ConcurrentHashMap<String, Measurement>();
+
+	AddressRanker(DiscoveryStateMachine.Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Order addresses by what is known about them
+	 *
+	 * @param addresses
+	 * @return the addresses in a new array, most promising first
+	 */
+	String[] order(String[] addresses) {
+		long now = clock.now();
+		ArrayList<Ranked> measured = new ArrayList<Ranked>();
+		ArrayList<String> v6 = new ArrayList<String>();
+		ArrayList<String> v4 = new ArrayList<String>();
+		ArrayList<String> unreachable = new ArrayList<String>();
+		for(String a : addresses) {
+			Measurement m = fresh(a, now);
+			if(m == null) {
+				if(isIPv6(a)) {
+					v6.add(a);
+				} else {
+					v4.add(a);
+				}
+			} else if(m.connectMicros == UNREACHABLE) {
+				unreachable.add(a);
+			} else {
+				measured.add(new Ranked(a, m.connectMicros));
+			}
+		}
+		Collections.sort(measured, FASTEST_FIRST);
+
+		String[] ordered = new String[addresses.length];
+		int n = 0;
+		for(Ranked r : measured) {
+			ordered[n++] = r.address;
+		}
+		for(int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			if(i < v6.size()) {
+				ordered[n++] = v6.get(i);
+			}
+			if(i < v4.size()) {
+				ordered[n++] = v4.get(i);
+			}
+		}
+		for(String a : unreachable) {
+			ordered[n++] = a;
+		}
+		return ordered;
+	}
+
+	/**
+	 * Check whether measuring would tell anything new
+	 *
+	 * @param addresses
+	 * @return true if some address has no valid measurement
+	 */
+	boolean needsProbe(String[] addresses) {
+		long now = clock.now();
+		for(String a : addresses) {
+			if(fresh(a, now) == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Measure addresses, blocking until done
+	 *
+	 * @param addresses
+	 * @param port TCP port to connect to
+	 */
+	void probe(String[] addresses, int port) {
+		SocketChannel[] channels = new SocketChannel[addresses.length];
+		Selector selector = null;
+		try {
+			selector = Selector.open();
+			long start = System.nanoTime();
+			int pending = 0;
+			for(int i = 0; i < addresses.length; i++) {
+				try {
+					InetAddress address = InetAddress.getByName(addresses[i]);
+					channels[i] = SocketChannel.open();
+					channels[i].configureBlocking(false);
+					if(channels[i].connect(new InetSocketAddress(address, port))) {
+						measured(addresses[i], start);
+					} else {
+						channels[i].register(selector, SelectionKey.OP_CONNECT, Integer.valueOf(i));
+						pending++;
+					}
+				} catch (IOException e) {
+					failed(addresses[i]);
+				}
+			}
+
+			long deadline = start + PROBE_TIMEOUT_MILLIS * 1000000;
+			while(pending > 0) {
+				long remaining = (deadline - System.nanoTime()) / 1000000;
+				if(remaining <= 0) {
+					break;
+				}
+				selector.select(remaining);
+				for(SelectionKey key : selector.selectedKeys()) {
+					int i = (Integer)key.attachment();
+					try {
+						channels[i].finishConnect();
+						measured(addresses[i], start);
+					} catch (IOException e) {
+						failed(addresses[i]);
+					}
+					key.cancel();
+					pending--;
+				}
+				selector.selectedKeys().clear();
+			}
+			for(SelectionKey key : selector.keys()) {
+				if(key.isValid()) {
+					failed(addresses[(Integer)key.attachment()]);
+				}
+			}
+		} catch (IOException e) {
+			// no selector, nothing measured
+		} finally {
+			for(SocketChannel c : channels) {
+				close(c);
+			}
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/** Forget all measurements, for a new network */
+	void clear() {
+		measurements.clear();
+	}
+
+	/**
+	 * Record a successful connection attempt
+	 *
+	 * @param address
+	 * @param start nanoTime the attempt started
+	 */
+	private void measured(String address, long start) {
+		long micros = (System.nanoTime() - start) / 1000;
+		measurements.put(address, new Measurement(micros, clock.now()));
+	}
+
+	private void failed(String address) {
+		measurements.put(address, new Measurement(UNREACHABLE, clock.now()));
+	}
+
+	private Measurement fresh(String address, long now) {
+		Measurement m = measurements.get(address);
+		if(m == null || now - m.measuredAt > MEASUREMENT_MAX_AGE_MILLIS) {
+			return null;
+		}
+		return m;
+	}
+
+	private static boolean isIPv6(String address) {
+		return address.indexOf(':') >= 0;
+	}
+
+	private static void close(SocketChannel c) {
+		if(c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
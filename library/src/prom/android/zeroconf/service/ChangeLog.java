@@ -0,0 +1,89 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Log of the latest changes to the registry
+ *
+ * Every added, updated or removed service gets the next
+ * number of a sequence and a slot in a ring of limited
+ * size. A client that knows up to which number it has
+ * seen changes can get the services changed since then,
+ * as long as the log reaches back that far.
+ *
+ * Numbers only mean something together with the epoch
+ * of the log, which differs for each instance of the
+ * service.
+ *
+ * Appended to by the event thread, read by binder threads.
+ *
+ * @author prom
+ */
+class ChangeLog {
+
+	/** Time the log was started, telling logs of different instances apart */
+	final long epoch = System.currentTimeMillis();
+
+	/** Changed services, by sequence number modulo the size */
+	private final Srv[] changes;
+
+	/** Number of the latest change, 0 before the first one */
+	private long sequence = 0;
+
+	ChangeLog(int size) {
+		changes = new Srv[size];
+	}
+
+	/**
+	 * Log a change of a service
+	 *
+	 * @param s service after the change
+	 * @return the sequence number of the change
+	 */
+	synchronized long append(Srv s) {
+		sequence++;
+		changes[(int)(sequence % changes.length)] = s;
+		return sequence;
+	}
+
+	/** Get the number of the latest change */
+	synchronized long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * Check whether changes since some point are known
+	 *
+	 * @param since sequence number of the last change seen
+	 * @return true if all changes after it are in the log
+	 */
+	synchronized boolean covers(long since) {
+		return since <= sequence && since >= sequence - changes.length;
+	}
+
+	/**
+	 * Get the services changed since some point
+	 *
+	 * Services changed several times are listed once,
+	 * in the order of their latest change. Removed services
+	 * are listed as they were when removed.
+	 *
+	 * @param since sequence number of the last change seen
+	 * @return the changed services, null if the log does not reach back that far
+	 */
+	synchronized List<Srv> since(long since) {
+		if(!covers(since)) {
+			return null;
+		}
+		LinkedHashMap<String, Srv> changed = new LinkedHashMap<String, Srv>();
+		for(long n = since + 1; n <= sequence; n++) {
+			Srv s = changes[(int)(n % changes.length)];
+			changed.remove(s.key);
+			changed.put(s.key, s);
+		}
+		return new ArrayList<Srv>(changed.values());
+	}
+
+}
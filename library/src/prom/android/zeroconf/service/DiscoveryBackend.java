@@ -0,0 +1,116 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Source of discovery events and sink for publications
+ *
+ * The service only talks to the network through this,
+ * so that it can run on top of JmDNS as well as on top
+ * of an in-memory simulation.
+ *
+ * Backends do not resolve services on their own, the
+ * service decides what is worth resolving. Details that
+ * arrive unasked are reported all the same.
+ *
+ * Listener callbacks may come from any thread. Records
+ * handed to the listener belong to the receiver and must
+ * not be modified by the backend afterwards.
+ *
+ * @author prom
+ */
+interface DiscoveryBackend {
+
+	/**
+	 * TTL reported by backends that track the lifetime of
+	 * resolved services themselves and report their removal
+	 */
+	int TTL_TRACKED = -1;
+
+	/** Receiver of discovery events */
+	interface Listener {
+		/** A service type has been seen */
+		void typeAdded(String type);
+		/**
+		 * A service has been seen, the record may lack details
+		 *
+		 * Until it has been resolved, the backend reports
+		 * its removal when the pointer to it runs out.
+		 */
+		void serviceAdded(ZeroConfRecord r);
+		/** A service has gone away */
+		void serviceRemoved(ZeroConfRecord r);
+		/**
+		 * Details of a service are available
+		 * 
+		 * @param r
+		 * @param ttlSeconds time to live of the details, 0 if unchanged
+		 *        or TTL_TRACKED
+		 */
+		void serviceResolved(ZeroConfRecord r, int ttlSeconds);
+		/**
+		 * Details of a service have been announced again, unchanged
+		 * 
+		 * @param key key of the service
+		 * @param ttlSeconds time to live of the details, 0 if unchanged
+		 *        or TTL_TRACKED
+		 */
+		void serviceRefreshed(String key, int ttlSeconds);
+	}
+
+	/**
+	 * Start discovery
+	 *
+	 * @param listener to receive events until stopped
+	 * @return false on failure
+	 */
+	boolean start(Listener listener);
+
+	/**
+	 * Stop discovery, releasing all resources
+	 */
+	void stop();
+
+	/**
+	 * Query the details of a service
+	 *
+	 * Answers arrive as resolution events.
+	 *
+	 * @param type
+	 * @param name
+	 */
+	void resolve(String type, String name);
+
+	/**
+	 * Publish a service, may block while probing
+	 *
+	 * @param key identifies the publication
+	 * @param r record describing the service
+	 * @throws IOException
+	 */
+	void publish(String key, ZeroConfRecord r) throws IOException;
+
+	/**
+	 * Replace the properties of a published service
+	 *
+	 * @param key
+	 * @param r record with the new properties
+	 * @return false if the service has to be published again
+	 */
+	boolean updatePublished(String key, ZeroConfRecord r);
+
+	/**
+	 * Withdraw a published service
+	 *
+	 * @param key
+	 */
+	void unpublish(String key);
+
+	/**
+	 * Withdraw all published services
+	 */
+	void unpublishAll();
+
+}
@@ -0,0 +1,174 @@
+package prom.android.zeroconf.service;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * A network link to run discovery on
+ *
+ * One interface and one address family. Any interface
+ * that is up and supports multicast qualifies, be it
+ * wifi, ethernet, USB tethering or a hotspot, except for
+ * loopback and point-to-point links like mobile data.
+ * IPv6 links use the link-local address, which is what
+ * multicast DNS answers come from.
+ *
+ * @author prom
+ */
+final class DiscoveryLink {
+
+	final NetworkInterface networkInterface;
+
+	/** Name of the interface, like "wlan0" */
+	final String name;
+
+	/** Our address on the link */
+	final InetAddress address;
+
+	/** Prefix length of our address */
+	final int prefixLength;
+
+	/** ZeroConfRecord.FAMILY_* of the address */
+	final int family;
+
+	DiscoveryLink(NetworkInterface networkInterface, InetAddress address, int prefixLength) {
+		this.networkInterface = networkInterface;
+		this.name = networkInterface.getName();
+		this.address = address;
+		this.prefixLength = prefixLength;
+		this.family = (address instanceof Inet6Address)
+				? ZeroConfRecord.FAMILY_IPV6 : ZeroConfRecord.FAMILY_IPV4;
+	}
+
+	/**
+	 * Find all links eligible for discovery
+	 *
+	 * @return links, IPv4 before IPv6 on each interface
+	 */
+	static List<DiscoveryLink> findAll() {
+		ArrayList<DiscoveryLink> links = new ArrayList<DiscoveryLink>();
+		try {
+			List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+			for(NetworkInterface ni : interfaces) {
+				if(!ni.isUp() || ni.isLoopback() || ni.isPointToPoint() || !ni.supportsMulticast()) {
+					continue;
+				}
+				InterfaceAddress v4 = null;
+				InterfaceAddress v6 = null;
+				for(InterfaceAddress a : ni.getInterfaceAddresses()) {
+					InetAddress ia = a.getAddress();
+					if(ia instanceof Inet4Address && v4 == null) {
+						v4 = a;
+					} else if(ia instanceof Inet6Address
+							&& (v6 == null || ia.isLinkLocalAddress())) {
+						v6 = a;
+					}
+				}
+				if(v4 != null) {
+					links.add(new DiscoveryLink(ni, v4.getAddress(), v4.getNetworkPrefixLength()));
+				}
+				if(v6 != null) {
+					links.add(new DiscoveryLink(ni, v6.getAddress(), v6.getNetworkPrefixLength()));
+				}
+			}
+		} catch (SocketException e) {
+			// no interfaces to speak of
+		} catch (NullPointerException e) {
+			// getNetworkInterfaces() returns null without any interface
+		}
+		return links;
+	}
+
+	/**
+	 * Check whether a packet source is on this link
+	 *
+	 * Sockets bound to the multicast DNS port get the
+	 * traffic of all links, this tells them apart.
+	 *
+	 * @param source
+	 * @return true if the source is a neighbour on this link
+	 */
+	boolean contains(InetAddress source) {
+		if(family == ZeroConfRecord.FAMILY_IPV4) {
+			return source instanceof Inet4Address && samePrefix(source);
+		}
+		if(!(source instanceof Inet6Address)) {
+			return false;
+		}
+		if(source.isLinkLocalAddress()) {
+			int scope = ((Inet6Address)source).getScopeId();
+			return scope == 0 || scope == ((Inet6Address)address).getScopeId();
+		}
+		return samePrefix(source);
+	}
+
+	/**
+	 * Identify the network of the link
+	 *
+	 * Link-local addresses look the same on every network,
+	 * so links having only those are not identifiable.
+	 *
+	 * @return interface name and network prefix, or null
+	 */
+	String network() {
+		if(address.isLinkLocalAddress()) {
+			return null;
+		}
+		byte[] a = address.getAddress();
+		int bits = prefixLength;
+		for(int i = 0; i < a.length; i++, bits -= 8) {
+			int mask = (bits >= 8) ? 0xff : (bits > 0) ? (0xff << (8 - bits)) & 0xff : 0;
+			a[i] &= mask;
+		}
+		try {
+			return name + " " + InetAddress.getByAddress(a).getHostAddress() + "/" + prefixLength;
+		} catch (UnknownHostException e) {
+			// can not happen, the length is that of an address
+			return null;
+		}
+	}
+
+	private boolean samePrefix(InetAddress source) {
+		byte[] a = address.getAddress();
+		byte[] b = source.getAddress();
+		int bits = prefixLength;
+		for(int i = 0; i < a.length && bits > 0; i++, bits -= 8) {
+			int mask = (bits >= 8) ? 0xff : (0xff << (8 - bits)) & 0xff;
+			if((a[i] & mask) != (b[i] & mask)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof DiscoveryLink)) {
+			return false;
+		}
+		DiscoveryLink other = (DiscoveryLink)o;
+		return name.equals(other.name) && address.equals(other.address)
+				&& prefixLength == other.prefixLength;
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + address.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name + "/" + address.getHostAddress();
+	}
+
+}
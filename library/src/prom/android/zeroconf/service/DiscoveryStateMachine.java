@@ -0,0 +1,223 @@
+package prom.android.zeroconf.service;
+
+/**
+ * Start/stop state machine for discovery
+ *
+ * This replaces the old polling service thread. It is
+ * driven exclusively by connectivity change notifications
+ * and debounces them so that a flapping network does not
+ * cause discovery to be torn down and rebuilt repeatedly.
+ * A failed start gets retried with growing delays for as
+ * long as links stay up.
+ *
+ * All platform dependencies are behind small interfaces
+ * so that the machine can be driven on a plain JVM with
+ * a fake link state and a fake clock.
+ *
+ * @author prom
+ */
+class DiscoveryStateMachine {
+
+	/** Source of link state, usually backed by DiscoveryLink */
+	interface LinkState {
+		/** True if there is any link to run discovery on */
+		boolean hasLinks();
+	}
+
+	/** Source of monotonic time in milliseconds */
+	interface Clock {
+		long now();
+	}
+
+	/** Deferred execution, usually backed by a Handler */
+	interface Scheduler {
+		void schedule(Runnable task, long delayMillis);
+		void cancel(Runnable task);
+	}
+
+	/** Actions performed on state transitions */
+	interface Actions {
+		/** Start discovery, returning false on failure */
+		boolean startDiscovery();
+		/** Stop discovery and drop all discovered state */
+		void stopDiscovery();
+	}
+
+	enum State {
+		/** Discovery is not running */
+		STOPPED,
+		/** Links came up, waiting for them to settle or to retry starting */
+		PENDING_START,
+		/** Discovery is running */
+		RUNNING,
+		/** Links went down, waiting before tearing down */
+		PENDING_STOP,
+	}
+
+	/** Time links must stay up before we start */
+	final static long START_DEBOUNCE_MILLIS = 500;
+
+	/** Time links must stay down before we stop */
+	final static long STOP_DEBOUNCE_MILLIS = 3000;
+
+	/** Time before the first retry of a failed start */
+	final static long RETRY_MIN_MILLIS = 1000;
+
+	/** Limit for retry delays growing with each failed start */
+	final static long RETRY_MAX_MILLIS = 60 * 1000;
+
+	private final LinkState linkState;
+	private final Clock clock;
+	private final Scheduler scheduler;
+	private final Actions actions;
+
+	private State state = State.STOPPED;
+
+	/** Time at which links were last seen coming up, or -1 */
+	private long linksUpTime = -1;
+
+	/** Delay before the next retry if starting fails */
+	private long retryMillis = RETRY_MIN_MILLIS;
+
+	/** Failed starts since links came up */
+	private int failedStarts = 0;
+
+	/** True until the first record after a start has been delivered */
+	private boolean awaitingFirstRecord = false;
+
+	/** Latency from links up to first record delivered, or -1 */
+	private long firstRecordLatency = -1;
+
+	DiscoveryStateMachine(LinkState linkState, Clock clock,
+			Scheduler scheduler, Actions actions) {
+		this.linkState = linkState;
+		this.clock = clock;
+		this.scheduler = scheduler;
+		this.actions = actions;
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Get the latency of the last discovery start
+	 *
+	 * This is the time from links coming up to the first
+	 * record being delivered to clients.
+	 *
+	 * @return latency in milliseconds or -1 if not known yet
+	 */
+	synchronized long getFirstRecordLatency() {
+		return firstRecordLatency;
+	}
+
+	/** Get the number of failed starts since links came up */
+	synchronized int getFailedStarts() {
+		return failedStarts;
+	}
+
+	/**
+	 * Connectivity changed
+	 *
+	 * To be called for every connectivity broadcast.
+	 */
+	synchronized void onConnectivityChanged() {
+		boolean up = linkState.hasLinks();
+		switch(state) {
+		case STOPPED:
+			if(up) {
+				linksUpTime = clock.now();
+				retryMillis = RETRY_MIN_MILLIS;
+				failedStarts = 0;
+				state = State.PENDING_START;
+				scheduler.schedule(settled, START_DEBOUNCE_MILLIS);
+			}
+			break;
+		case PENDING_START:
+			if(!up) {
+				scheduler.cancel(settled);
+				state = State.STOPPED;
+			}
+			break;
+		case RUNNING:
+			if(!up) {
+				state = State.PENDING_STOP;
+				scheduler.schedule(settled, STOP_DEBOUNCE_MILLIS);
+			}
+			break;
+		case PENDING_STOP:
+			if(up) {
+				scheduler.cancel(settled);
+				state = State.RUNNING;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * A record has been delivered to clients
+	 *
+	 * Used to measure startup latency.
+	 *
+	 * @return the latency if this was the first record, -1 otherwise
+	 */
+	synchronized long onRecordDelivered() {
+		if(!awaitingFirstRecord) {
+			return -1;
+		}
+		awaitingFirstRecord = false;
+		firstRecordLatency = clock.now() - linksUpTime;
+		return firstRecordLatency;
+	}
+
+	/**
+	 * Shut down the machine, stopping discovery if needed
+	 */
+	synchronized void shutdown() {
+		scheduler.cancel(settled);
+		if(state == State.RUNNING || state == State.PENDING_STOP) {
+			actions.stopDiscovery();
+		}
+		state = State.STOPPED;
+	}
+
+	/** Debounce timer expiry */
+	private synchronized void onSettled() {
+		boolean up = linkState.hasLinks();
+		switch(state) {
+		case PENDING_START:
+			if(!up) {
+				state = State.STOPPED;
+			} else if(actions.startDiscovery()) {
+				awaitingFirstRecord = true;
+				state = State.RUNNING;
+			} else {
+				// try again while links stay up, backing off
+				failedStarts++;
+				scheduler.schedule(settled, retryMillis);
+				retryMillis = Math.min(retryMillis * 2, RETRY_MAX_MILLIS);
+			}
+			break;
+		case PENDING_STOP:
+			if(up) {
+				state = State.RUNNING;
+			} else {
+				actions.stopDiscovery();
+				awaitingFirstRecord = false;
+				state = State.STOPPED;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private final Runnable settled = new Runnable() {
+		@Override
+		public void run() {
+			onSettled();
+		}
+	};
+
+}
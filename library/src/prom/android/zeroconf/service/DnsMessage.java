@@ -0,0 +1,164 @@
+package prom.android.zeroconf.service;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * DNS message constants and encoding
+ *
+ * Reading is done by DnsReader. Names are handled in
+ * wire format where possible, strings use RFC 1035
+ * presentation format with dots and backslashes inside
+ * labels escaped.
+ *
+ * @author prom
+ */
+class DnsMessage {
+
+	final static int TYPE_A = 1;
+	final static int TYPE_PTR = 12;
+	final static int TYPE_TXT = 16;
+	final static int TYPE_AAAA = 28;
+	final static int TYPE_SRV = 33;
+	final static int TYPE_ANY = 255;
+
+	final static int CLASS_IN = 1;
+
+	/** Top bit of the class, cache-flush in records, unicast-response in questions */
+	final static int CLASS_FLAG = 0x8000;
+
+	/** Header flag of queries whose known answers continue in further packets */
+	final static int FLAG_TRUNCATED = 0x0200;
+
+	final static int HEADER_SIZE = 12;
+
+	/**
+	 * Write a query message
+	 *
+	 * @param buf buffer to write to, positioned at the message start
+	 * @param names names to ask for, in wire format
+	 * @param types types to ask for, one per name
+	 * @param count number of questions
+	 */
+	static void writeQuery(ByteBuffer buf, byte[][] names, int[] types, int count) {
+		buf.putShort((short)0);
+		buf.putShort((short)0);
+		buf.putShort((short)count);
+		buf.putShort((short)0);
+		buf.putShort((short)0);
+		buf.putShort((short)0);
+		for(int i = 0; i < count; i++) {
+			buf.put(names[i]);
+			buf.putShort((short)types[i]);
+			buf.putShort((short)CLASS_IN);
+		}
+	}
+
+	/**
+	 * Size of a question on the wire
+	 *
+	 * @param name name in wire format
+	 * @return bytes needed by writeQuery() for the question
+	 */
+	static int questionSize(byte[] name) {
+		return name.length + 4;
+	}
+
+	/**
+	 * Fill in the header of a query
+	 *
+	 * @param buf buffer holding the message at its start
+	 * @param flags header flags
+	 * @param questions number of questions
+	 * @param answers number of known answers
+	 */
+	static void writeQueryHeader(ByteBuffer buf, int flags, int questions, int answers) {
+		buf.putShort(0, (short)0);
+		buf.putShort(2, (short)flags);
+		buf.putShort(4, (short)questions);
+		buf.putShort(6, (short)answers);
+		buf.putShort(8, (short)0);
+		buf.putShort(10, (short)0);
+	}
+
+	/**
+	 * Convert a name to wire format
+	 *
+	 * @param name escaped name, with or without trailing dot
+	 * @return the name as a sequence of labels
+	 */
+	static byte[] encodeName(String name) {
+		byte[] utf8;
+		try {
+			utf8 = name.getBytes("UTF8");
+		} catch (UnsupportedEncodingException e) {
+			utf8 = name.getBytes();
+		}
+		byte[] out = new byte[utf8.length + 2];
+		int o = 0;
+		int lengthAt = o++;
+		int len = 0;
+		for(int i = 0; i < utf8.length; i++) {
+			byte b = utf8[i];
+			if(b == '\\' && i + 1 < utf8.length) {
+				b = utf8[++i];
+			} else if(b == '.') {
+				out[lengthAt] = (byte)len;
+				lengthAt = o++;
+				len = 0;
+				continue;
+			}
+			if(len < 63) {
+				out[o++] = b;
+				len++;
+			}
+		}
+		out[lengthAt] = (byte)len;
+		if(len > 0) {
+			out[o++] = 0;
+		}
+		byte[] exact = new byte[o];
+		System.arraycopy(out, 0, exact, 0, o);
+		return exact;
+	}
+
+	/**
+	 * Split off the first label of a name
+	 *
+	 * @param name escaped name
+	 * @return index of the dot ending the first label or -1
+	 */
+	static int firstLabelEnd(String name) {
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c == '\\') {
+				i++;
+			} else if(c == '.') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Escape a raw label
+	 *
+	 * @param label
+	 * @return the label with dots and backslashes escaped
+	 */
+	static String escape(String label) {
+		if(label.indexOf('.') < 0 && label.indexOf('\\') < 0) {
+			return label;
+		}
+		StringBuilder sb = new StringBuilder(label.length() + 4);
+		for(int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if(c == '.' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,532 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight reader for DNS messages
+ *
+ * Walks questions and records in place over the buffer
+ * holding the message. Names are never turned into strings
+ * unless asked to, they are hashed and compared where they
+ * lie, following compression pointers. Reading a message
+ * allocates nothing, so one reader can be reused for every
+ * packet received.
+ *
+ * The whole message gets validated on reset(), iterating
+ * and accessing records afterwards can not fail.
+ *
+ * Names outside the buffer are kept in wire format,
+ * uncompressed, see copyName().
+ *
+ * @author prom
+ */
+class DnsReader {
+
+	private final static int FLAG_RESPONSE = 0x8000;
+
+	/** Maximum number of compression pointers followed per name */
+	private final static int MAX_POINTERS = 32;
+
+	/** Maximum length of a name in wire format */
+	final static int MAX_NAME_LENGTH = 255;
+
+	private ByteBuffer buf;
+
+	/** Offset of the message in the buffer */
+	private int base;
+
+	/** End of the message in the buffer */
+	private int limit;
+
+	int id;
+	boolean response;
+	/** More known answers follow in further packets */
+	boolean truncated;
+	int questionCount;
+	int answerCount;
+
+	/** Records in all sections */
+	private int recordCount;
+
+	/** Offset of the first record */
+	private int recordsStart;
+
+	/** Position of the next question or record */
+	private int next;
+
+	/** Number of questions or records read so far */
+	private int index;
+
+	/** Current question or record */
+	int nameOffset;
+	int type;
+	int clazz;
+	/** Cache-flush bit of records, unicast-response bit of questions */
+	boolean classFlag;
+	/** Time to live in seconds, 0 for goodbyes */
+	long ttl;
+	int dataOffset;
+	int dataLength;
+
+	/** Scratch space for decoding labels */
+	private final byte[] scratch = new byte[MAX_NAME_LENGTH];
+
+	/**
+	 * Start reading a message
+	 *
+	 * The message gets validated completely.
+	 *
+	 * @param buf buffer positioned at the message, limited to its end
+	 * @throws IOException if the message is malformed
+	 */
+	void reset(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		this.base = buf.position();
+		this.limit = buf.limit();
+		if(limit - base < DnsMessage.HEADER_SIZE) {
+			throw new IOException("Truncated header");
+		}
+		id = u16(base);
+		response = (u16(base + 2) & FLAG_RESPONSE) != 0;
+		truncated = (u16(base + 2) & DnsMessage.FLAG_TRUNCATED) != 0;
+		questionCount = u16(base + 4);
+		answerCount = u16(base + 6);
+		recordCount = answerCount + u16(base + 8) + u16(base + 10);
+
+		int pos = base + DnsMessage.HEADER_SIZE;
+		for(int i = 0; i < questionCount; i++) {
+			pos = checkName(pos) + 4;
+			if(pos > limit) {
+				throw new IOException("Truncated question");
+			}
+		}
+		recordsStart = pos;
+		for(int i = 0; i < recordCount; i++) {
+			pos = checkName(pos);
+			if(pos + 10 > limit) {
+				throw new IOException("Truncated record");
+			}
+			int recordType = u16(pos);
+			int length = u16(pos + 8);
+			int data = pos + 10;
+			pos = data + length;
+			if(pos > limit) {
+				throw new IOException("Record exceeds message");
+			}
+			int nameEnd;
+			switch(recordType) {
+			case DnsMessage.TYPE_PTR:
+				nameEnd = checkName(data);
+				break;
+			case DnsMessage.TYPE_SRV:
+				if(length < 7) {
+					throw new IOException("Short SRV record");
+				}
+				nameEnd = checkName(data + 6);
+				break;
+			default:
+				nameEnd = data;
+				break;
+			}
+			if(nameEnd > pos) {
+				throw new IOException("Name exceeds record");
+			}
+		}
+
+		next = base + DnsMessage.HEADER_SIZE;
+		index = 0;
+	}
+
+	/**
+	 * Advance to the next question
+	 *
+	 * @return false when there are no more questions
+	 */
+	boolean nextQuestion() {
+		if(index >= questionCount) {
+			return false;
+		}
+		nameOffset = next;
+		int pos = skipName(next);
+		type = u16(pos);
+		int c = u16(pos + 2);
+		clazz = c & ~DnsMessage.CLASS_FLAG;
+		classFlag = (c & DnsMessage.CLASS_FLAG) != 0;
+		ttl = 0;
+		dataOffset = pos + 4;
+		dataLength = 0;
+		next = pos + 4;
+		index++;
+		return true;
+	}
+
+	/**
+	 * Advance to the next record, skipping any questions left
+	 *
+	 * @return false when there are no more records
+	 */
+	boolean nextRecord() {
+		if(index < questionCount) {
+			index = questionCount;
+			next = recordsStart;
+		}
+		if(index >= questionCount + recordCount) {
+			return false;
+		}
+		nameOffset = next;
+		int pos = skipName(next);
+		type = u16(pos);
+		int c = u16(pos + 2);
+		clazz = c & ~DnsMessage.CLASS_FLAG;
+		classFlag = (c & DnsMessage.CLASS_FLAG) != 0;
+		ttl = buf.getInt(pos + 4) & 0xffffffffL;
+		dataLength = u16(pos + 8);
+		dataOffset = pos + 10;
+		next = dataOffset + dataLength;
+		index++;
+		return true;
+	}
+
+	/** Go back to the first question */
+	void rewindQuestions() {
+		index = 0;
+		next = base + DnsMessage.HEADER_SIZE;
+	}
+
+	/** Go back to the first record */
+	void rewindRecords() {
+		index = questionCount;
+		next = recordsStart;
+	}
+
+	/** True if the current record is in the answer section */
+	boolean isAnswer() {
+		return index - questionCount <= answerCount;
+	}
+
+	/** Name pointed to by a PTR record */
+	int pointerTarget() {
+		return dataOffset;
+	}
+
+	int srvPriority() {
+		return u16(dataOffset);
+	}
+
+	int srvWeight() {
+		return u16(dataOffset + 2);
+	}
+
+	int srvPort() {
+		return u16(dataOffset + 4);
+	}
+
+	/** Target host of an SRV record */
+	int srvTarget() {
+		return dataOffset + 6;
+	}
+
+	/**
+	 * Compare the record data
+	 *
+	 * @param data
+	 * @return true if the data of the current record is the same
+	 */
+	boolean dataEquals(byte[] data) {
+		if(data == null || data.length != dataLength) {
+			return false;
+		}
+		for(int i = 0; i < dataLength; i++) {
+			if(buf.get(dataOffset + i) != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Copy out the record data */
+	byte[] copyData() {
+		byte[] data = new byte[dataLength];
+		for(int i = 0; i < dataLength; i++) {
+			data[i] = buf.get(dataOffset + i);
+		}
+		return data;
+	}
+
+	/**
+	 * Hash a name, ignoring ASCII case
+	 *
+	 * @param offset offset of the name
+	 * @return the same hash hash(byte[]) yields for the name
+	 */
+	int nameHash(int offset) {
+		int h = 0;
+		int pos = offset;
+		while(true) {
+			int len = buf.get(pos) & 0xff;
+			if((len & 0xc0) == 0xc0) {
+				pos = base + (((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff));
+				continue;
+			}
+			h = 31 * h + len;
+			if(len == 0) {
+				return h;
+			}
+			for(int i = 1; i <= len; i++) {
+				h = 31 * h + lower(buf.get(pos + i));
+			}
+			pos += 1 + len;
+		}
+	}
+
+	/**
+	 * Hash a name in wire format, ignoring ASCII case
+	 *
+	 * @param name uncompressed name
+	 * @return the hash
+	 */
+	static int hash(byte[] name) {
+		int h = 0;
+		int pos = 0;
+		while(true) {
+			int len = name[pos] & 0xff;
+			h = 31 * h + len;
+			if(len == 0) {
+				return h;
+			}
+			for(int i = 1; i <= len; i++) {
+				h = 31 * h + lower(name[pos + i]);
+			}
+			pos += 1 + len;
+		}
+	}
+
+	/**
+	 * Compare a name, ignoring ASCII case
+	 *
+	 * @param offset offset of the name
+	 * @param name uncompressed name in wire format
+	 * @return true if they are the same
+	 */
+	boolean nameEquals(int offset, byte[] name) {
+		int pos = offset;
+		int o = 0;
+		while(true) {
+			int len = buf.get(pos) & 0xff;
+			if((len & 0xc0) == 0xc0) {
+				pos = base + (((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff));
+				continue;
+			}
+			if(o >= name.length || name[o] != len) {
+				return false;
+			}
+			if(len == 0) {
+				return true;
+			}
+			if(o + len >= name.length) {
+				return false;
+			}
+			for(int i = 1; i <= len; i++) {
+				if(lower(buf.get(pos + i)) != lower(name[o + i])) {
+					return false;
+				}
+			}
+			pos += 1 + len;
+			o += 1 + len;
+		}
+	}
+
+	/**
+	 * Check for names of the form _app._tcp.domain
+	 *
+	 * @param offset offset of the name
+	 */
+	boolean isServiceType(int offset) {
+		int pos = follow(offset);
+		int len = buf.get(pos) & 0xff;
+		if(len < 2 || buf.get(pos + 1) != '_') {
+			return false;
+		}
+		pos = follow(pos + 1 + len);
+		if((buf.get(pos) & 0xff) != 4 || buf.get(pos + 1) != '_') {
+			return false;
+		}
+		int a = lower(buf.get(pos + 2));
+		int b = lower(buf.get(pos + 3));
+		int c = lower(buf.get(pos + 4));
+		return (a == 't' && b == 'c' && c == 'p') || (a == 'u' && b == 'd' && c == 'p');
+	}
+
+	/**
+	 * Copy out a name
+	 *
+	 * @param offset offset of the name
+	 * @return the name in wire format, uncompressed
+	 */
+	byte[] copyName(int offset) {
+		int n = 0;
+		int pos = offset;
+		while(true) {
+			int len = buf.get(pos) & 0xff;
+			if((len & 0xc0) == 0xc0) {
+				pos = base + (((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff));
+				continue;
+			}
+			for(int i = 0; i <= len; i++) {
+				scratch[n++] = buf.get(pos + i);
+			}
+			if(len == 0) {
+				break;
+			}
+			pos += 1 + len;
+		}
+		byte[] name = new byte[n];
+		System.arraycopy(scratch, 0, name, 0, n);
+		return name;
+	}
+
+	/**
+	 * Read a name as a string
+	 *
+	 * Dots and backslashes inside labels get escaped
+	 * with a backslash, as in RFC 1035 presentation format.
+	 *
+	 * @param offset offset of the name
+	 * @return the name in dotted form without trailing dot
+	 */
+	String readName(int offset) {
+		return nameString(copyName(offset));
+	}
+
+	/**
+	 * Read the first label of a name
+	 *
+	 * @param offset offset of the name
+	 * @return the raw label
+	 */
+	String readFirstLabel(int offset) {
+		int pos = follow(offset);
+		int len = buf.get(pos) & 0xff;
+		for(int i = 0; i < len; i++) {
+			scratch[i] = buf.get(pos + 1 + i);
+		}
+		return utf8(scratch, 0, len);
+	}
+
+	/**
+	 * Convert a name in wire format to a string
+	 *
+	 * @param name
+	 * @return the name in dotted form without trailing dot, escaped
+	 */
+	static String nameString(byte[] name) {
+		StringBuilder sb = new StringBuilder(name.length);
+		byte[] label = new byte[64];
+		int pos = 0;
+		while(true) {
+			int len = name[pos] & 0xff;
+			if(len == 0) {
+				break;
+			}
+			if(sb.length() > 0) {
+				sb.append('.');
+			}
+			System.arraycopy(name, pos + 1, label, 0, len);
+			sb.append(DnsMessage.escape(utf8(label, 0, len)));
+			pos += 1 + len;
+		}
+		return sb.toString();
+	}
+
+	/** Labels are UTF-8 in multicast DNS */
+	private static String utf8(byte[] data, int offset, int length) {
+		try {
+			return new String(data, offset, length, "UTF8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(data, offset, length);
+		}
+	}
+
+	/** Resolve compression pointers at a position */
+	private int follow(int pos) {
+		int len = buf.get(pos) & 0xff;
+		while((len & 0xc0) == 0xc0) {
+			pos = base + (((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff));
+			len = buf.get(pos) & 0xff;
+		}
+		return pos;
+	}
+
+	/** Position after a validated name */
+	private int skipName(int pos) {
+		while(true) {
+			int len = buf.get(pos) & 0xff;
+			if((len & 0xc0) == 0xc0) {
+				return pos + 2;
+			}
+			if(len == 0) {
+				return pos + 1;
+			}
+			pos += 1 + len;
+		}
+	}
+
+	/**
+	 * Validate a name
+	 *
+	 * Checks label types, bounds, pointer loops and length.
+	 *
+	 * @param pos offset of the name
+	 * @return position after the name
+	 */
+	private int checkName(int pos) throws IOException {
+		int end = -1;
+		int pointers = 0;
+		int length = 0;
+		while(true) {
+			if(pos >= limit) {
+				throw new IOException("Name exceeds message");
+			}
+			int len = buf.get(pos) & 0xff;
+			if((len & 0xc0) == 0xc0) {
+				if(pos + 1 >= limit) {
+					throw new IOException("Name exceeds message");
+				}
+				if(++pointers > MAX_POINTERS) {
+					throw new IOException("Compression loop");
+				}
+				if(end < 0) {
+					end = pos + 2;
+				}
+				pos = base + (((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff));
+				continue;
+			}
+			if((len & 0xc0) != 0) {
+				throw new IOException("Bad label type");
+			}
+			length += 1 + len;
+			if(length > MAX_NAME_LENGTH) {
+				throw new IOException("Name too long");
+			}
+			if(len == 0) {
+				return (end >= 0) ? end : pos + 1;
+			}
+			if(pos + 1 + len > limit) {
+				throw new IOException("Label exceeds message");
+			}
+			pos += 1 + len;
+		}
+	}
+
+	private int u16(int pos) {
+		return buf.getShort(pos) & 0xffff;
+	}
+
+	/** Lowercase ASCII only, as DNS does */
+	static int lower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+	}
+
+}
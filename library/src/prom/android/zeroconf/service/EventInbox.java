@@ -0,0 +1,108 @@
+package prom.android.zeroconf.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inbox of discovery events
+ *
+ * Backend threads post events, a single consumer takes
+ * them out in order of posting. Posting neither blocks nor
+ * takes a lock: a producer swaps its event in as the newest
+ * with one atomic exchange and links it to the previous
+ * one, the consumer follows the links from the oldest.
+ * This is the intrusive MPSC queue of Dmitry Vyukov.
+ *
+ * The consumer only needs waking up when the inbox goes
+ * from idle to non-empty, so a burst of events costs a
+ * single wakeup instead of a message each.
+ *
+ * @author prom
+ */
+class EventInbox {
+
+	/** An event, linked to the one posted after it */
+	static final class Event {
+		int what;
+		Object obj;
+		int arg;
+		/** Uptime at which the event was posted */
+		long when;
+
+		volatile Event next;
+	}
+
+	/** Processor of events */
+	interface Consumer {
+		void event(Event e);
+	}
+
+	/** Newest event, where producers append */
+	private final AtomicReference<Event> newest;
+
+	/** Last event taken out, owned by the consumer */
+	private Event oldest;
+
+	/** True while the consumer is awake or a wakeup is on its way */
+	private final AtomicBoolean awake = new AtomicBoolean(false);
+
+	EventInbox() {
+		Event stub = new Event();
+		newest = new AtomicReference<Event>(stub);
+		oldest = stub;
+	}
+
+	/**
+	 * Post an event, from any thread
+	 *
+	 * @param what kind of event
+	 * @param obj
+	 * @param arg
+	 * @param when uptime of the event
+	 * @return true if the consumer has to be woken up
+	 */
+	boolean post(int what, Object obj, int arg, long when) {
+		Event e = new Event();
+		e.what = what;
+		e.obj = obj;
+		e.arg = arg;
+		e.when = when;
+		Event previous = newest.getAndSet(e);
+		previous.next = e;
+		return awake.compareAndSet(false, true);
+	}
+
+	/**
+	 * Process waiting events, from the consumer only
+	 *
+	 * @param consumer
+	 * @param max maximum number of events to process
+	 * @return true if events are left, in which case the
+	 *         consumer has to wake itself up again
+	 */
+	boolean drain(Consumer consumer, int max) {
+		int handled = 0;
+		while(true) {
+			Event next = oldest.next;
+			if(next != null) {
+				// the previous event gets dropped, its successor takes its place
+				oldest.obj = null;
+				oldest = next;
+				consumer.event(next);
+				if(++handled == max) {
+					return true;
+				}
+				continue;
+			}
+			awake.set(false);
+			if(newest.get() == oldest) {
+				return false;
+			}
+			// a producer is posting, wait for it unless it wakes us up
+			if(!awake.compareAndSet(false, true)) {
+				return false;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+import android.util.Log;
+
+/**
+ * Discovery backend using JmDNS
+ *
+ * Resolution requests are collected for a moment and then
+ * issued together, grouped by type, from a thread of our
+ * own instead of the JmDNS listener thread. Nothing gets
+ * resolved unless the service asks for it. JmDNS adds
+ * known answers from its cache to the queries.
+ *
+ * @author prom
+ */
+class JmDNSBackend implements DiscoveryBackend {
+
+	public final static String TAG = JmDNSBackend.class.toString();
+
+	/**
+	 * TTL reported for resolved services
+	 *
+	 * JmDNS neither tells us the TTL nor reports unchanged
+	 * services again, but it reports their removal once
+	 * its own records expire.
+	 */
+	final static int TTL_SECONDS = DiscoveryBackend.TTL_TRACKED;
+
+	/** Time resolution requests are held back to collect more of them */
+	private final static long RESOLVE_DELAY_MILLIS = 100;
+
+	private final InetAddress address;
+
+	private volatile JmDNS mDNS;
+
+	private volatile Listener listener;
+
+	/** Registered services by publication key */
+	private final ConcurrentHashMap<String, ServiceInfo> published
+	= new ConcurrentHashMap<String, ServiceInfo>();
+
+	/** Instance names waiting for resolution by type, guarded by itself */
+	private final LinkedHashMap<String, LinkedHashSet<String>> pendingResolves
+	= new LinkedHashMap<String, LinkedHashSet<String>>();
+
+	/** Issues batched resolution requests */
+	private volatile ScheduledExecutorService resolver;
+
+	JmDNSBackend(InetAddress address) {
+		this.address = address;
+	}
+
+	@Override
+	public boolean start(Listener listener) {
+		this.listener = listener;
+		resolver = Executors.newSingleThreadScheduledExecutor();
+		try {
+			mDNS = JmDNS.create(address);
+			mDNS.addServiceTypeListener(new SrvTypeListener());
+		} catch (IOException e) {
+			Log.d(TAG, "Failed to start discovery: " + e.toString());
+			stop();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		JmDNS cur = mDNS;
+		mDNS = null;
+		listener = null;
+		published.clear();
+		synchronized(pendingResolves) {
+			pendingResolves.clear();
+		}
+		ScheduledExecutorService r = resolver;
+		resolver = null;
+		if(r != null) {
+			r.shutdownNow();
+		}
+		if(cur != null) {
+			try {
+				cur.close();
+			} catch (IOException e) {
+				// XXX do we care?
+			}
+		}
+	}
+
+	@Override
+	public void resolve(String type, String name) {
+		queueResolve(type, name);
+	}
+
+	/**
+	 * Queue a resolution request
+	 *
+	 * The first request of a batch schedules the flush.
+	 */
+	private void queueResolve(String type, String name) {
+		ScheduledExecutorService r = resolver;
+		if(r == null) {
+			return;
+		}
+		boolean first;
+		synchronized(pendingResolves) {
+			first = pendingResolves.isEmpty();
+			LinkedHashSet<String> names = pendingResolves.get(type);
+			if(names == null) {
+				names = new LinkedHashSet<String>();
+				pendingResolves.put(type, names);
+			}
+			names.add(name);
+		}
+		if(first) {
+			r.schedule(flushResolves, RESOLVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Issue all queued resolution requests */
+	private final Runnable flushResolves = new Runnable() {
+		@Override
+		public void run() {
+			LinkedHashMap<String, LinkedHashSet<String>> batch;
+			synchronized(pendingResolves) {
+				batch = new LinkedHashMap<String, LinkedHashSet<String>>(pendingResolves);
+				pendingResolves.clear();
+			}
+			JmDNS cur = mDNS;
+			if(cur == null) {
+				return;
+			}
+			for(String type : batch.keySet()) {
+				for(String name : batch.get(type)) {
+					// do not wait for the answer, it comes through the listener
+					cur.requestServiceInfo(type, name, true, 0);
+				}
+			}
+		}
+	};
+
+	@Override
+	public void publish(String key, ZeroConfRecord r) throws IOException {
+		JmDNS cur = mDNS;
+		if(cur == null) {
+			throw new IOException("Discovery not running");
+		}
+		ServiceInfo info = ServiceInfo.create(
+				r.type, r.instance, r.port, r.weight, r.priority,
+				propertiesOf(r));
+		cur.registerService(info);
+		published.put(key, info);
+	}
+
+	@Override
+	public boolean updatePublished(String key, ZeroConfRecord r) {
+		ServiceInfo info = published.get(key);
+		if(info == null) {
+			return false;
+		}
+		try {
+			info.setText(propertiesOf(r));
+		} catch (IllegalStateException e) {
+			Log.d(TAG, "Failed to update text: " + e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void unpublish(String key) {
+		JmDNS cur = mDNS;
+		ServiceInfo info = published.remove(key);
+		if(cur != null && info != null) {
+			cur.unregisterService(info);
+		}
+	}
+
+	@Override
+	public void unpublishAll() {
+		JmDNS cur = mDNS;
+		published.clear();
+		if(cur != null) {
+			cur.unregisterAllServices();
+		}
+	}
+
+	private static HashMap<String, byte[]> propertiesOf(ZeroConfRecord r) {
+		HashMap<String, byte[]> properties = new HashMap<String, byte[]>();
+		for(String propertyName : r.getPropertyNames()) {
+			byte[] value = r.getPropertyBytes(propertyName);
+			// JmDNS knows key-only properties by this very array
+			properties.put(propertyName, (value != null) ? value : ServiceInfo.NO_VALUE);
+		}
+		return properties;
+	}
+
+	/**
+	 * Convert what JmDNS reports to a record
+	 * 
+	 * @param event
+	 * @return a new record
+	 */
+	static ZeroConfRecord recordOf(ServiceEvent event) {
+		ServiceInfo info = event.getInfo();
+		ZeroConfRecord r = new ZeroConfRecord();
+
+		r.key = info.getKey();
+
+		r.name = event.getName();
+		r.type = event.getType();
+
+		r.domain = info.getDomain();
+		r.protocol = info.getProtocol();
+		r.application = info.getApplication();
+		r.instance = info.getName();
+		r.subtype = info.getSubtype();
+		r.server = info.getServer();
+		r.internStrings();
+
+		r.port = info.getPort();
+
+		r.priority = info.getPriority();
+		r.weight = info.getWeight();
+
+		r.urls = info.getURLs().clone();
+
+		InetAddress[] inetAddresses = info.getInetAddresses();
+		r.addresses = new String[inetAddresses.length];
+		for(int i = 0; i < inetAddresses.length; i++) {
+			r.addresses[i] = inetAddresses[i].getHostAddress();
+		}
+
+		byte[] text = info.getTextBytes();
+		if(text != null) {
+			r.setTextRecord(text, 0, text.length);
+		}
+		return r;
+	}
+
+	/**
+	 * Debug wrapper
+	 * 
+	 * @param message
+	 */
+	private final void debugListener(String message) {
+		//Log.d(TAG, "listener " + message);
+	}
+
+	/**
+	 * Internal listener for service type events.
+	 * 
+	 * This gets called by JmDNS when services are removed,
+	 * added or resolved. This class is responsible for forwarding
+	 * these events to our listener.
+	 */
+	private class SrvListener implements ServiceListener {
+
+		/** Service type for this listener */
+		private final String serviceType;
+
+		/** Simple constructor */
+		public SrvListener(String serviceType) {
+			this.serviceType = serviceType;
+		}
+
+		/** Callback method for adding services */
+		@Override
+		public void serviceAdded(ServiceEvent event) {
+			debugListener("serviceAdded(" + serviceType + " | " + event.getName() + ")");
+
+			Listener l = listener;
+			if(l != null) {
+				// details get resolved when the service asks for them
+				l.serviceAdded(recordOf(event));
+			}
+		}
+
+		/** Callback method for removing services */
+		@Override
+		public void serviceRemoved(ServiceEvent event) {
+			debugListener("serviceRemoved(" + serviceType + " | " + event.getName() + ")");
+
+			Listener l = listener;
+			if(l != null) {
+				l.serviceRemoved(recordOf(event));
+			}
+		}
+
+		/** Callback method for resolution results */
+		@Override
+		public void serviceResolved(ServiceEvent event) {
+			debugListener("serviceResolved(" + serviceType + " | "+ event.getName() + ")");
+
+			Listener l = listener;
+			if(l != null) {
+				l.serviceResolved(recordOf(event), TTL_SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Internal listener for service type events.
+	 * 
+	 * This gets called by JmDNS when new service types
+	 * get discovered. This class is responsible for forwarding
+	 * these events to our listener.
+	 */
+	private class SrvTypeListener implements ServiceTypeListener {
+
+		/** Set of all types seen during listener lifetime */
+		private final HashSet<String> seenTypes = new HashSet<String>();
+
+		/** Callback method for adding service types */
+		@Override
+		public void serviceTypeAdded(ServiceEvent event) {
+			debugListener("serviceTypeAdded(" + event.getType() + ")");
+			Listener l = listener;
+			JmDNS cur = mDNS;
+			if(l != null && cur != null) {
+				String type = event.getType();
+
+				// if we have never seen this type
+				if(!seenTypes.contains(type)) {
+					// notify the listener
+					l.typeAdded(type);
+					// add a service listener for the type
+					cur.addServiceListener(type, new SrvListener(type));
+					// remember the type
+					seenTypes.add(type);
+				}
+			}
+		}
+
+		/** Callback method for adding service subtypes */
+		@Override
+		public void subTypeForServiceTypeAdded(ServiceEvent event) {
+		}
+
+	}
+
+}
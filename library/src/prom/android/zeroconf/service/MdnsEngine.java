@@ -0,0 +1,963 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Multicast DNS querier logic
+ *
+ * Keeps track of service types and instances seen in
+ * responses, turns them into backend events and decides
+ * which queries to send when. Continuous querying follows
+ * RFC 6762, with intervals doubling from one second up to
+ * one hour per service type.
+ *
+ * Queries carry the pointers we already know as known
+ * answers, so responders holding those stay silent, and
+ * questions another host asked within the last second
+ * are not asked again, see RFC 6762 section 7. The known
+ * answers come from the instances table, which mirrors
+ * what the registry holds as confirmed. Cached records
+ * that are not confirmed yet are left out on purpose, a
+ * known answer would suppress their confirmation.
+ *
+ * Instances get resolved when the service asks for it.
+ * Detail queries are held back briefly so that the
+ * instances of a burst of requests get resolved in a
+ * single packet, asking only for what is missing. The
+ * service may also ask for instances no pointer has been
+ * seen for, like cached ones. Those become instances
+ * when their details arrive.
+ *
+ * Addresses of the hosts named in SRV records are kept
+ * as well, from A and AAAA records, honouring the cache
+ * flush bit. Instances of a host whose addresses change
+ * are reported again.
+ *
+ * Packets are read in place. Records matching what is
+ * already known only refresh their TTL, so the steady
+ * state of a busy network allocates nothing. Records get
+ * built for changes only.
+ *
+ * There is no I/O in here, packets are handed in and out,
+ * so the engine can be fed from a socket as well as from
+ * a recorded packet trace. Not thread-safe, it must be
+ * owned by a single thread.
+ *
+ * @author prom
+ */
+class MdnsEngine {
+
+	/** Receiver of outgoing packets */
+	interface Sender {
+		void send(ByteBuffer packet) throws IOException;
+	}
+
+	/** Name enumerating all service types, RFC 6763 section 9 */
+	final static String SERVICES_NAME = "_services._dns-sd._udp.local";
+
+	final static long QUERY_INTERVAL_MIN_MILLIS = 1000;
+	final static long QUERY_INTERVAL_MAX_MILLIS = 60 * 60 * 1000;
+
+	/** Largest query packet we send, fits an ethernet frame */
+	final static int MAX_QUERY_SIZE = 1472;
+
+	/** Maximum questions per query packet */
+	private final static int MAX_QUESTIONS = 64;
+
+	/** Time within which questions of other hosts count as ours */
+	final static long DUPLICATE_QUESTION_MILLIS = 1000;
+
+	/** Time detail queries are held back to collect more of them */
+	final static long RESOLVE_DELAY_MILLIS = 100;
+
+	/** Size of a known answer besides the target, with compressed owner */
+	private final static int KNOWN_ANSWER_SIZE = 2 + 10;
+
+	/** Age after which records go when a cache flush comes in, RFC 6762 section 10.2 */
+	private final static long CACHE_FLUSH_MILLIS = 1000;
+
+	/** Time the details of an unknown instance are waited for */
+	final static long REQUEST_TIMEOUT_MILLIS = 10000;
+
+	/** Target of pointer records, a service type or an instance */
+	private static class Pointed extends NameTable.Entry {
+		/** Time at which the pointer to this expires */
+		long expires;
+		/** Original TTL of the pointer in seconds */
+		long ptrTtl;
+		/** Neighbours among the targets of the same owner */
+		Pointed prevInBrowse;
+		Pointed nextInBrowse;
+
+		Pointed(byte[] wireName) {
+			super(wireName);
+		}
+	}
+
+	/** A service type being browsed */
+	private static class Browse extends Pointed {
+		/** Type in the form used in records, with trailing dot */
+		final String typeName;
+		long nextQuery;
+		long interval = QUERY_INTERVAL_MIN_MILLIS;
+		/** Time another host last asked for the type */
+		long askedByOther = Long.MIN_VALUE / 2;
+		/** Targets of pointers of the type, linked through nextInBrowse */
+		Pointed firstPointed;
+
+		Browse(byte[] wireName, long now) {
+			super(wireName);
+			this.typeName = DnsReader.nameString(wireName) + ".";
+			this.nextQuery = now;
+		}
+	}
+
+	/** An address of a host */
+	private static class Address {
+		/** A or AAAA record data */
+		final byte[] data;
+		long expires;
+		/** Time the record was last received */
+		long seen;
+
+		Address(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	/** A host named in SRV records */
+	private static class Host extends NameTable.Entry {
+		final ArrayList<Address> addresses = new ArrayList<Address>();
+		/** Instances on this host */
+		int users;
+		/** True if addresses changed in the packet being processed */
+		boolean changed;
+
+		Host(byte[] wireName) {
+			super(wireName);
+		}
+	}
+
+	/** An instance asked for before any pointer to it was seen */
+	private static class Requested extends NameTable.Entry {
+		/** Service type, with trailing dot */
+		final String type;
+		/** Raw instance label */
+		final String name;
+		/** Time after which the request lapses */
+		long until;
+
+		Requested(byte[] wireName, String type, String name) {
+			super(wireName);
+			this.type = type;
+			this.name = name;
+		}
+	}
+
+	/** A service instance */
+	private static class Instance extends Pointed {
+		final Browse browse;
+		/** Raw instance label */
+		final String name;
+		/** Registry key */
+		final String key;
+
+		boolean hasSrv;
+		byte[] serverWire;
+		/** Host named by the SRV record, null without one */
+		Host host;
+		String server;
+		int port;
+		int priority;
+		int weight;
+		long srvTtl;
+
+		boolean hasTxt;
+		byte[] txt;
+		long txtTtl;
+
+		/** True if seen in the packet being processed */
+		boolean touched;
+		/** True if details changed in the packet being processed */
+		boolean changed;
+		/** True while queued for an SRV and TXT query */
+		boolean resolvePending;
+		/** True if details have to be queried even when known */
+		boolean refresh;
+		/** True once the service has asked for details */
+		boolean wanted;
+		/** True once addresses have been asked for since the host changed */
+		boolean addressesAsked;
+		/** Time another host last asked for details */
+		long askedByOther = Long.MIN_VALUE / 2;
+
+		Instance(byte[] wireName, String name, Browse browse) {
+			super(wireName);
+			this.browse = browse;
+			this.name = name;
+			this.key = (name + "." + browse.typeName).toLowerCase();
+		}
+	}
+
+	private final DiscoveryBackend.Listener listener;
+
+	private final DiscoveryStateMachine.Clock clock;
+
+	private final DnsReader reader = new DnsReader();
+
+	/** Browse of the service type enumeration */
+	private final Browse servicesBrowse;
+
+	private final NameTable<Browse> browses
+	= new NameTable<Browse>();
+
+	private final NameTable<Instance> instances
+	= new NameTable<Instance>();
+
+	private final NameTable<Host> hosts
+	= new NameTable<Host>();
+
+	/** Hosts whose addresses changed in the current packet */
+	private final ArrayList<Host> changedHosts
+	= new ArrayList<Host>();
+
+	/** Instances to send SRV and TXT queries for */
+	private final ArrayList<Instance> pendingResolves
+	= new ArrayList<Instance>();
+
+	/** Names of unknown instances to send SRV and TXT queries for */
+	private final ArrayList<byte[]> pendingNames
+	= new ArrayList<byte[]>();
+
+	/** Unknown instances waiting for their details */
+	private final NameTable<Requested> requested
+	= new NameTable<Requested>();
+
+	/** Instances touched by the current packet */
+	private final ArrayList<Instance> touched
+	= new ArrayList<Instance>();
+
+	/** Questions of the query being assembled */
+	private final byte[][] questionNames = new byte[MAX_QUESTIONS][];
+	private final int[] questionTypes = new int[MAX_QUESTIONS];
+	private int questionCount = 0;
+	private int querySize = DnsMessage.HEADER_SIZE;
+
+	/** Time at which held back detail queries go out */
+	private long resolvesDue = Long.MAX_VALUE;
+
+	/** Known-answer and duplicate-question suppression, for comparisons */
+	private boolean suppression = true;
+
+	private long packetCount = 0;
+	private long malformedCount = 0;
+	private long queryCount = 0;
+	private long suppressedCount = 0;
+
+	MdnsEngine(DiscoveryBackend.Listener listener, DiscoveryStateMachine.Clock clock) {
+		this.listener = listener;
+		this.clock = clock;
+		servicesBrowse = new Browse(DnsMessage.encodeName(SERVICES_NAME), clock.now());
+		browses.add(servicesBrowse);
+	}
+
+	long getPacketCount() {
+		return packetCount;
+	}
+
+	long getMalformedCount() {
+		return malformedCount;
+	}
+
+	int getInstanceCount() {
+		return instances.size();
+	}
+
+	/** Number of query packets sent */
+	long getQueryCount() {
+		return queryCount;
+	}
+
+	/** Number of questions not asked because another host did */
+	long getSuppressedCount() {
+		return suppressedCount;
+	}
+
+	void setSuppression(boolean suppression) {
+		this.suppression = suppression;
+	}
+
+	/**
+	 * Request details of an instance
+	 *
+	 * @param type service type
+	 * @param name raw instance name
+	 */
+	void resolve(String type, String name) {
+		byte[] wire = DnsMessage.encodeName(DnsMessage.escape(name) + "." + type);
+		Instance i = instances.get(wire);
+		if(i != null) {
+			i.refresh = i.hasSrv && i.hasTxt;
+			i.wanted = true;
+			queueResolve(i);
+		} else {
+			Requested q = requested.get(wire);
+			if(q == null) {
+				q = new Requested(wire, type, name);
+				requested.add(q);
+			}
+			q.until = clock.now() + REQUEST_TIMEOUT_MILLIS;
+			pendingNames.add(wire);
+			resolvesDue = Math.min(resolvesDue, clock.now() + RESOLVE_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Process a received packet
+	 *
+	 * Malformed packets are counted and dropped.
+	 *
+	 * @param packet buffer positioned at the packet, limited to its end
+	 */
+	void handlePacket(ByteBuffer packet) {
+		packetCount++;
+		try {
+			reader.reset(packet);
+		} catch (IOException e) {
+			malformedCount++;
+			return;
+		}
+		long now = clock.now();
+		if(!reader.response) {
+			handleQuery(now);
+			return;
+		}
+
+		// pointers first, so that instances exist for their details
+		while(reader.nextRecord()) {
+			if(reader.type == DnsMessage.TYPE_PTR) {
+				handlePointer(now);
+			}
+		}
+		reader.rewindRecords();
+		while(reader.nextRecord()) {
+			if(reader.type == DnsMessage.TYPE_SRV || reader.type == DnsMessage.TYPE_TXT) {
+				handleDetails(now);
+			}
+		}
+		// addresses last, so that hosts exist for them
+		if(hosts.size() > 0) {
+			reader.rewindRecords();
+			while(reader.nextRecord()) {
+				if(reader.type == DnsMessage.TYPE_A || reader.type == DnsMessage.TYPE_AAAA) {
+					handleAddress(now);
+				}
+			}
+		}
+
+		reportTouched();
+	}
+
+	/** Report instances touched by a packet or by expiring addresses */
+	private void reportTouched() {
+		for(int n = 0; n < changedHosts.size(); n++) {
+			touchUsers(changedHosts.get(n));
+		}
+		changedHosts.clear();
+
+		for(int n = 0; n < touched.size(); n++) {
+			Instance i = touched.get(n);
+			boolean changed = i.changed;
+			i.touched = false;
+			i.changed = false;
+			if(i.expires == 0) {
+				// removed by this packet
+				continue;
+			}
+			if(!i.hasSrv || !i.hasTxt) {
+				// waits for the service to ask for details
+				continue;
+			}
+			if(i.wanted && i.host.addresses.isEmpty() && !i.addressesAsked) {
+				// responders usually add addresses, this one did not
+				i.addressesAsked = true;
+				queueResolve(i);
+			}
+			if(changed) {
+				listener.serviceResolved(recordOf(i), (int)Math.min(i.srvTtl, i.txtTtl));
+			} else {
+				listener.serviceRefreshed(i.key, (int)Math.min(i.srvTtl, i.txtTtl));
+			}
+		}
+		touched.clear();
+	}
+
+	/** Mark the instances on a host as changed */
+	private void touchUsers(Host h) {
+		h.changed = false;
+		for(int n = 0; n < instances.bucketCount(); n++) {
+			for(Instance i = instances.bucket(n); i != null; i = (Instance)i.nextInBucket) {
+				if(i.host == h) {
+					i.changed = true;
+					touch(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take note of questions asked by other hosts
+	 *
+	 * A question counts as asked for us too if its known
+	 * answers are all known to us, RFC 6762 section 7.3.
+	 */
+	private void handleQuery(long now) {
+		if(reader.truncated) {
+			// the rest of the known answers is still to come
+			return;
+		}
+		while(reader.nextRecord()) {
+			Instance i;
+			switch(reader.type) {
+			case DnsMessage.TYPE_PTR:
+				if(instances.get(reader, reader.pointerTarget()) == null
+						&& browses.get(reader, reader.pointerTarget()) == null) {
+					return;
+				}
+				break;
+			case DnsMessage.TYPE_SRV:
+			case DnsMessage.TYPE_TXT:
+				i = instances.get(reader, reader.nameOffset);
+				if(i == null || !i.hasSrv || !i.hasTxt) {
+					return;
+				}
+				break;
+			default:
+				return;
+			}
+		}
+
+		reader.rewindQuestions();
+		while(reader.nextQuestion()) {
+			if(reader.classFlag) {
+				// unicast answers do not reach us
+				continue;
+			}
+			if(reader.type == DnsMessage.TYPE_PTR) {
+				Browse b = browses.get(reader, reader.nameOffset);
+				if(b != null) {
+					b.askedByOther = now;
+				}
+			} else if(reader.type == DnsMessage.TYPE_SRV || reader.type == DnsMessage.TYPE_TXT) {
+				Instance i = instances.get(reader, reader.nameOffset);
+				if(i != null) {
+					i.askedByOther = now;
+				}
+			}
+		}
+	}
+
+	private void handlePointer(long now) {
+		int owner = reader.nameOffset;
+		int target = reader.pointerTarget();
+
+		Browse b = browses.get(reader, owner);
+		if(b == servicesBrowse) {
+			if(!reader.isServiceType(target)) {
+				return;
+			}
+			Browse t = browses.get(reader, target);
+			if(t == null && reader.ttl > 0) {
+				t = browse(reader.copyName(target), now);
+			}
+			if(t != null) {
+				// remembered for known answers only, types are never forgotten
+				t.expires = now + reader.ttl * 1000;
+				t.ptrTtl = reader.ttl;
+			}
+			return;
+		}
+		if(b == null) {
+			if(!reader.isServiceType(owner)) {
+				return;
+			}
+			// announcement of a type we have not enumerated yet
+			b = browse(reader.copyName(owner), now);
+		}
+
+		Instance i = instances.get(reader, target);
+		if(reader.ttl == 0) {
+			if(i != null) {
+				removeInstance(i);
+			}
+			return;
+		}
+		if(i == null) {
+			i = new Instance(reader.copyName(target), reader.readFirstLabel(target), b);
+			addInstance(i);
+			listener.serviceAdded(recordOf(i));
+		}
+		i.expires = now + reader.ttl * 1000;
+		i.ptrTtl = reader.ttl;
+		touch(i);
+	}
+
+	private void handleDetails(long now) {
+		Instance i = instances.get(reader, reader.nameOffset);
+		if(i == null && reader.ttl > 0 && requested.size() > 0) {
+			i = requestedInstance(now);
+		}
+		if(i == null || i.expires == 0) {
+			return;
+		}
+		if(reader.ttl == 0) {
+			removeInstance(i);
+			return;
+		}
+		if(reader.type == DnsMessage.TYPE_SRV) {
+			if(!i.hasSrv
+					|| i.port != reader.srvPort()
+					|| i.priority != reader.srvPriority()
+					|| i.weight != reader.srvWeight()
+					|| !reader.nameEquals(reader.srvTarget(), i.serverWire)) {
+				i.hasSrv = true;
+				if(i.serverWire == null || !reader.nameEquals(reader.srvTarget(), i.serverWire)) {
+					i.serverWire = reader.copyName(reader.srvTarget());
+					useHost(i, i.serverWire);
+				}
+				i.server = DnsReader.nameString(i.serverWire) + ".";
+				i.port = reader.srvPort();
+				i.priority = reader.srvPriority();
+				i.weight = reader.srvWeight();
+				i.changed = true;
+			}
+			i.srvTtl = reader.ttl;
+		} else {
+			if(!i.hasTxt || !reader.dataEquals(i.txt)) {
+				i.hasTxt = true;
+				i.txt = reader.copyData();
+				i.changed = true;
+			}
+			i.txtTtl = reader.ttl;
+		}
+		touch(i);
+	}
+
+	/**
+	 * Turn the details of a requested instance into an instance
+	 *
+	 * The instance lives as long as its details, until a
+	 * pointer to it shows up. Without a pointer it is
+	 * never listed as a known answer.
+	 *
+	 * @return the new instance or null if it was not requested
+	 */
+	private Instance requestedInstance(long now) {
+		Requested q = requested.get(reader, reader.nameOffset);
+		if(q == null) {
+			return null;
+		}
+		requested.remove(q);
+		Browse b = browses.get(DnsMessage.encodeName(q.type));
+		if(b == null) {
+			b = browse(DnsMessage.encodeName(q.type), now);
+		}
+		Instance i = new Instance(q.wireName, q.name, b);
+		i.expires = now + reader.ttl * 1000;
+		// no pointer seen, never a known answer
+		i.ptrTtl = Long.MAX_VALUE / 2;
+		i.wanted = true;
+		addInstance(i);
+		listener.serviceAdded(recordOf(i));
+		return i;
+	}
+
+	/**
+	 * Take an A or AAAA record for a host we know
+	 *
+	 * Zero TTL removes the address. With the cache flush
+	 * bit set, addresses of the same family not received
+	 * within the last second go away a second later.
+	 */
+	private void handleAddress(long now) {
+		Host h = hosts.get(reader, reader.nameOffset);
+		int length = (reader.type == DnsMessage.TYPE_A) ? 4 : 16;
+		if(h == null || reader.dataLength != length) {
+			return;
+		}
+		Address found = null;
+		for(int n = 0; n < h.addresses.size(); n++) {
+			Address a = h.addresses.get(n);
+			if(a.data.length != length) {
+				continue;
+			}
+			if(reader.dataEquals(a.data)) {
+				found = a;
+			} else if(reader.classFlag && now - a.seen > CACHE_FLUSH_MILLIS) {
+				a.expires = Math.min(a.expires, now + CACHE_FLUSH_MILLIS);
+			}
+		}
+		if(reader.ttl == 0) {
+			if(found != null) {
+				h.addresses.remove(found);
+				hostChanged(h);
+			}
+			return;
+		}
+		if(found == null) {
+			found = new Address(reader.copyData());
+			h.addresses.add(found);
+			hostChanged(h);
+		}
+		found.expires = now + reader.ttl * 1000;
+		found.seen = now;
+	}
+
+	private void hostChanged(Host h) {
+		if(!h.changed) {
+			h.changed = true;
+			changedHosts.add(h);
+		}
+	}
+
+	/** Point an instance at the host of the given name */
+	private void useHost(Instance i, byte[] serverWire) {
+		releaseHost(i);
+		Host h = hosts.get(serverWire);
+		if(h == null) {
+			h = new Host(serverWire);
+			hosts.add(h);
+		}
+		h.users++;
+		i.host = h;
+		i.addressesAsked = false;
+	}
+
+	private void releaseHost(Instance i) {
+		Host h = i.host;
+		if(h != null && --h.users == 0) {
+			hosts.remove(h);
+		}
+		i.host = null;
+	}
+
+	private void touch(Instance i) {
+		if(!i.touched) {
+			i.touched = true;
+			touched.add(i);
+		}
+	}
+
+	private void queueResolve(Instance i) {
+		if(!i.resolvePending) {
+			i.resolvePending = true;
+			pendingResolves.add(i);
+			resolvesDue = Math.min(resolvesDue, clock.now() + RESOLVE_DELAY_MILLIS);
+		}
+	}
+
+	private void addInstance(Instance i) {
+		instances.add(i);
+		link(i.browse, i);
+	}
+
+	/** Drop an instance without telling the listener */
+	private void forgetInstance(Instance i) {
+		instances.remove(i);
+		Browse b = i.browse;
+		if(i.prevInBrowse != null) {
+			i.prevInBrowse.nextInBrowse = i.nextInBrowse;
+		} else {
+			b.firstPointed = i.nextInBrowse;
+		}
+		if(i.nextInBrowse != null) {
+			i.nextInBrowse.prevInBrowse = i.prevInBrowse;
+		}
+		i.prevInBrowse = null;
+		i.nextInBrowse = null;
+		i.expires = 0;
+		i.resolvePending = false;
+		releaseHost(i);
+	}
+
+	private static void link(Browse b, Pointed p) {
+		p.nextInBrowse = b.firstPointed;
+		if(b.firstPointed != null) {
+			b.firstPointed.prevInBrowse = p;
+		}
+		b.firstPointed = p;
+	}
+
+	private void removeInstance(Instance i) {
+		forgetInstance(i);
+		listener.serviceRemoved(recordOf(i));
+	}
+
+	private Browse browse(byte[] wireName, long now) {
+		Browse b = new Browse(wireName, now);
+		browses.add(b);
+		link(servicesBrowse, b);
+		listener.typeAdded(b.typeName);
+		return b;
+	}
+
+	private static String trimDot(String s) {
+		return s.endsWith(".") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private ZeroConfRecord recordOf(Instance i) {
+		ZeroConfRecord r = new ZeroConfRecord();
+		String type = i.browse.typeName;
+
+		r.key = i.key;
+		r.name = i.name;
+		r.type = type;
+
+		// type is _application._protocol.domain.
+		int appEnd = DnsMessage.firstLabelEnd(type);
+		int protoEnd = type.indexOf('.', appEnd + 1);
+		r.application = type.substring(1, appEnd);
+		r.protocol = type.substring(appEnd + 2, protoEnd);
+		r.domain = trimDot(type.substring(protoEnd + 1));
+		r.instance = i.name;
+
+		if(i.hasSrv) {
+			r.server = i.server;
+			r.port = i.port;
+			r.priority = i.priority;
+			r.weight = i.weight;
+		}
+		if(i.hasTxt) {
+			r.setTextRecord(i.txt, 0, i.txt.length);
+		}
+		if(i.host != null) {
+			r.addresses = addressesOf(i.host);
+		}
+		return r;
+	}
+
+	private static String[] addressesOf(Host h) {
+		ArrayList<String> addresses = new ArrayList<String>();
+		for(int n = 0; n < h.addresses.size(); n++) {
+			try {
+				addresses.add(InetAddress.getByAddress(h.addresses.get(n).data).getHostAddress());
+			} catch (UnknownHostException e) {
+				// checked the length already
+			}
+		}
+		return addresses.toArray(new String[addresses.size()]);
+	}
+
+	/**
+	 * Send all queries that are due
+	 *
+	 * Types without known answers share packets, types with
+	 * known answers get a packet of their own, continued in
+	 * further packets if the answers do not fit.
+	 *
+	 * @param out buffer to assemble packets in
+	 * @param sender
+	 * @return time at which the next query is due
+	 * @throws IOException from the sender
+	 */
+	long sendQueries(ByteBuffer out, Sender sender) throws IOException {
+		long now = clock.now();
+		long next = now + QUERY_INTERVAL_MAX_MILLIS;
+
+		for(int n = 0; n < browses.bucketCount(); n++) {
+			for(Browse b = browses.bucket(n); b != null; b = (Browse)b.nextInBucket) {
+				if(b.nextQuery <= now) {
+					if(suppression && now - b.askedByOther < DUPLICATE_QUESTION_MILLIS) {
+						suppressedCount++;
+					} else if(suppression && hasKnownAnswers(b, now)) {
+						sendWithKnownAnswers(out, sender, b, now);
+					} else {
+						addQuestion(out, sender, b.wireName, DnsMessage.TYPE_PTR);
+					}
+					b.nextQuery = now + b.interval;
+					b.interval = Math.min(b.interval * 2, QUERY_INTERVAL_MAX_MILLIS);
+				}
+				next = Math.min(next, b.nextQuery);
+			}
+		}
+
+		if(resolvesDue <= now) {
+			for(int n = 0; n < pendingResolves.size(); n++) {
+				Instance i = pendingResolves.get(n);
+				if(!i.resolvePending) {
+					continue;
+				}
+				i.resolvePending = false;
+				if(suppression && now - i.askedByOther < DUPLICATE_QUESTION_MILLIS) {
+					suppressedCount++;
+				} else {
+					// ask only for what is missing unless refreshing
+					if(!i.hasSrv || i.refresh) {
+						addQuestion(out, sender, i.wireName, DnsMessage.TYPE_SRV);
+					}
+					if(!i.hasTxt || i.refresh) {
+						addQuestion(out, sender, i.wireName, DnsMessage.TYPE_TXT);
+					}
+					if(i.host != null && (i.host.addresses.isEmpty() || i.refresh)) {
+						addQuestion(out, sender, i.serverWire, DnsMessage.TYPE_A);
+						addQuestion(out, sender, i.serverWire, DnsMessage.TYPE_AAAA);
+					}
+				}
+				i.refresh = false;
+			}
+			pendingResolves.clear();
+			for(int n = 0; n < pendingNames.size(); n++) {
+				addQuestion(out, sender, pendingNames.get(n), DnsMessage.TYPE_SRV);
+				addQuestion(out, sender, pendingNames.get(n), DnsMessage.TYPE_TXT);
+			}
+			pendingNames.clear();
+			resolvesDue = Long.MAX_VALUE;
+		}
+
+		// give up on requests nobody answered
+		for(int n = 0; n < requested.bucketCount(); n++) {
+			Requested q = requested.bucket(n);
+			while(q != null) {
+				Requested following = (Requested)q.nextInBucket;
+				if(q.until <= now) {
+					requested.remove(q);
+				}
+				q = following;
+			}
+		}
+		next = Math.min(next, resolvesDue);
+		flushQuery(out, sender);
+
+		// forget instances whose pointers ran out, the service expires resolved ones itself
+		for(int n = 0; n < instances.bucketCount(); n++) {
+			Instance i = instances.bucket(n);
+			while(i != null) {
+				Instance following = (Instance)i.nextInBucket;
+				if(i.expires <= now && i.hasSrv && i.hasTxt) {
+					forgetInstance(i);
+				} else if(i.expires <= now) {
+					removeInstance(i);
+				}
+				i = following;
+			}
+		}
+
+		// drop expired addresses, reporting the instances on their hosts
+		for(int n = 0; n < hosts.bucketCount(); n++) {
+			for(Host h = hosts.bucket(n); h != null; h = (Host)h.nextInBucket) {
+				for(int a = h.addresses.size() - 1; a >= 0; a--) {
+					if(h.addresses.get(a).expires <= now) {
+						h.addresses.remove(a);
+						hostChanged(h);
+					}
+				}
+			}
+		}
+		if(!changedHosts.isEmpty()) {
+			reportTouched();
+		}
+
+		return next;
+	}
+
+	/**
+	 * Check whether a pointer is worth listing as known answer
+	 *
+	 * RFC 6762 section 7.1 asks for more than half of the
+	 * TTL to be left.
+	 */
+	private static boolean isKnownAnswer(Pointed p, long now) {
+		return (p.expires - now) / 500 > p.ptrTtl;
+	}
+
+	private static boolean hasKnownAnswers(Browse b, long now) {
+		for(Pointed p = b.firstPointed; p != null; p = p.nextInBrowse) {
+			if(isKnownAnswer(p, now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Send a pointer query listing the known targets */
+	private void sendWithKnownAnswers(ByteBuffer out, Sender sender, Browse b, long now)
+			throws IOException {
+		out.clear();
+		out.position(DnsMessage.HEADER_SIZE);
+		int questionOffset = out.position();
+		out.put(b.wireName);
+		out.putShort((short)DnsMessage.TYPE_PTR);
+		out.putShort((short)DnsMessage.CLASS_IN);
+		int questions = 1;
+		int answers = 0;
+
+		for(Pointed p = b.firstPointed; p != null; p = p.nextInBrowse) {
+			if(!isKnownAnswer(p, now)) {
+				continue;
+			}
+			int ownerSize = (questionOffset >= 0) ? 2 : b.wireName.length;
+			if(out.position() + ownerSize + KNOWN_ANSWER_SIZE + p.wireName.length > MAX_QUERY_SIZE) {
+				// continue in another packet, RFC 6762 section 7.2
+				DnsMessage.writeQueryHeader(out, DnsMessage.FLAG_TRUNCATED, questions, answers);
+				sendPacket(out, sender);
+				out.clear();
+				out.position(DnsMessage.HEADER_SIZE);
+				questionOffset = -1;
+				questions = 0;
+				answers = 0;
+			}
+			if(questionOffset >= 0) {
+				out.putShort((short)(0xc000 | questionOffset));
+			} else {
+				out.put(b.wireName);
+			}
+			out.putShort((short)DnsMessage.TYPE_PTR);
+			out.putShort((short)DnsMessage.CLASS_IN);
+			out.putInt((int)((p.expires - now) / 1000));
+			out.putShort((short)p.wireName.length);
+			out.put(p.wireName);
+			answers++;
+		}
+
+		DnsMessage.writeQueryHeader(out, 0, questions, answers);
+		sendPacket(out, sender);
+	}
+
+	private void addQuestion(ByteBuffer out, Sender sender, byte[] name, int type) throws IOException {
+		int size = DnsMessage.questionSize(name);
+		if(questionCount == MAX_QUESTIONS || querySize + size > MAX_QUERY_SIZE) {
+			flushQuery(out, sender);
+		}
+		questionNames[questionCount] = name;
+		questionTypes[questionCount] = type;
+		questionCount++;
+		querySize += size;
+	}
+
+	private void flushQuery(ByteBuffer out, Sender sender) throws IOException {
+		if(questionCount == 0) {
+			return;
+		}
+		out.clear();
+		DnsMessage.writeQuery(out, questionNames, questionTypes, questionCount);
+		for(int n = 0; n < questionCount; n++) {
+			questionNames[n] = null;
+		}
+		questionCount = 0;
+		querySize = DnsMessage.HEADER_SIZE;
+		sendPacket(out, sender);
+	}
+
+	private void sendPacket(ByteBuffer out, Sender sender) throws IOException {
+		out.flip();
+		queryCount++;
+		sender.send(out);
+	}
+
+}
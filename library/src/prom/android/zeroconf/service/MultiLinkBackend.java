@@ -0,0 +1,369 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+import android.util.Log;
+
+/**
+ * Discovery on several links at once
+ *
+ * Runs one backend per link and merges their events, so
+ * that a service seen on several links shows up once,
+ * tagged with all interfaces and address families it has
+ * been seen on. It goes away when the last link loses it.
+ * Its addresses are those of all links, with link-local
+ * IPv6 addresses scoped to the interface they belong to.
+ *
+ * The same service on another link costs no extra work:
+ * resolutions go to one link only, and details that
+ * only repeat what another link said become refreshes.
+ * Publications go out on every link.
+ *
+ * Events reach the listener while the merged state is
+ * locked, so that they arrive in the order they were
+ * decided in. The listener must not block.
+ *
+ * @author prom
+ */
+class MultiLinkBackend implements DiscoveryBackend {
+
+	public final static String TAG = MultiLinkBackend.class.toString();
+
+	/** Creator of the backend for a link */
+	interface Factory {
+		DiscoveryBackend create(DiscoveryLink link);
+	}
+
+	/** What is known about a service, across links */
+	private static final class Seen {
+		/** Links the service is on, by index */
+		long linkMask;
+		/** Link to resolve on */
+		int resolveLink;
+		/** Last details forwarded, tagged, null until resolved */
+		ZeroConfRecord record;
+		/** Addresses reported by each link, by link index */
+		String[][] addresses;
+	}
+
+	private final List<DiscoveryLink> links;
+
+	private final Factory factory;
+
+	/** Running backends, by link index, null where not running */
+	private DiscoveryBackend[] backends;
+
+	private Listener listener;
+
+	/** Services by key, guarded by this */
+	private final HashMap<String, Seen> services
+	= new HashMap<String, Seen>();
+
+	/** Types forwarded so far, guarded by this */
+	private final HashSet<String> types
+	= new HashSet<String>();
+
+	/**
+	 * Create for some links
+	 *
+	 * @param links at most 64
+	 * @param factory
+	 */
+	MultiLinkBackend(List<DiscoveryLink> links, Factory factory) {
+		this.links = new ArrayList<DiscoveryLink>(links.subList(0, Math.min(links.size(), 64)));
+		this.factory = factory;
+	}
+
+	List<DiscoveryLink> getLinks() {
+		return links;
+	}
+
+	@Override
+	public boolean start(Listener listener) {
+		synchronized(this) {
+			this.listener = listener;
+			backends = new DiscoveryBackend[links.size()];
+		}
+		boolean any = false;
+		for(int n = 0; n < links.size(); n++) {
+			DiscoveryLink link = links.get(n);
+			DiscoveryBackend b = factory.create(link);
+			if(b.start(new LinkListener(n))) {
+				Log.d(TAG, "Discovery running on " + link);
+				synchronized(this) {
+					backends[n] = b;
+				}
+				any = true;
+			} else {
+				Log.d(TAG, "Failed to start discovery on " + link);
+			}
+		}
+		if(!any) {
+			stop();
+		}
+		return any;
+	}
+
+	@Override
+	public void stop() {
+		DiscoveryBackend[] cur;
+		synchronized(this) {
+			cur = backends;
+			backends = null;
+			listener = null;
+			services.clear();
+			types.clear();
+		}
+		if(cur != null) {
+			for(DiscoveryBackend b : cur) {
+				if(b != null) {
+					b.stop();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void resolve(String type, String name) {
+		DiscoveryBackend b = null;
+		synchronized(this) {
+			if(backends == null) {
+				return;
+			}
+			Seen s = services.get(keyOf(type, name));
+			if(s != null) {
+				b = backends[s.resolveLink];
+			}
+		}
+		if(b != null) {
+			b.resolve(type, name);
+			return;
+		}
+		// not seen yet, ask everywhere
+		for(DiscoveryBackend each : running()) {
+			each.resolve(type, name);
+		}
+	}
+
+	@Override
+	public void publish(String key, ZeroConfRecord r) throws IOException {
+		IOException failure = null;
+		boolean any = false;
+		for(DiscoveryBackend b : running()) {
+			try {
+				b.publish(key, r);
+				any = true;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if(!any) {
+			throw (failure != null) ? failure : new IOException("Discovery not running");
+		}
+	}
+
+	@Override
+	public boolean updatePublished(String key, ZeroConfRecord r) {
+		boolean updated = true;
+		for(DiscoveryBackend b : running()) {
+			updated &= b.updatePublished(key, r);
+		}
+		return updated;
+	}
+
+	@Override
+	public void unpublish(String key) {
+		for(DiscoveryBackend b : running()) {
+			b.unpublish(key);
+		}
+	}
+
+	@Override
+	public void unpublishAll() {
+		for(DiscoveryBackend b : running()) {
+			b.unpublishAll();
+		}
+	}
+
+	private synchronized List<DiscoveryBackend> running() {
+		ArrayList<DiscoveryBackend> running = new ArrayList<DiscoveryBackend>();
+		if(backends != null) {
+			for(DiscoveryBackend b : backends) {
+				if(b != null) {
+					running.add(b);
+				}
+			}
+		}
+		return running;
+	}
+
+	private static String keyOf(String type, String name) {
+		return (name + "." + type).toLowerCase();
+	}
+
+	/** Merge the addresses all links of a service reported */
+	private static String[] mergeAddresses(Seen s) {
+		LinkedHashSet<String> merged = new LinkedHashSet<String>();
+		for(int n = 0; n < s.addresses.length; n++) {
+			if((s.linkMask & (1L << n)) != 0 && s.addresses[n] != null) {
+				for(String a : s.addresses[n]) {
+					merged.add(a);
+				}
+			}
+		}
+		return merged.toArray(new String[merged.size()]);
+	}
+
+	/** Scope link-local IPv6 addresses to the interface of a link */
+	private static String[] scoped(String[] addresses, DiscoveryLink link) {
+		String[] scoped = addresses.clone();
+		for(int i = 0; i < scoped.length; i++) {
+			String a = scoped[i].toLowerCase();
+			if(a.indexOf('%') < 0 && (a.startsWith("fe8") || a.startsWith("fe9")
+					|| a.startsWith("fea") || a.startsWith("feb"))) {
+				scoped[i] = scoped[i] + "%" + link.name;
+			}
+		}
+		return scoped;
+	}
+
+	/** Tag a record with the links of a service */
+	private void tag(ZeroConfRecord r, long linkMask) {
+		TreeSet<String> names = new TreeSet<String>();
+		int families = 0;
+		for(int n = 0; n < links.size(); n++) {
+			if((linkMask & (1L << n)) != 0) {
+				names.add(links.get(n).name);
+				families |= links.get(n).family;
+			}
+		}
+		r.interfaces = names.toArray(new String[names.size()]);
+		r.families = families;
+	}
+
+	/** Listener of the backend of one link */
+	private class LinkListener implements Listener {
+
+		private final int link;
+
+		private final long bit;
+
+		LinkListener(int link) {
+			this.link = link;
+			this.bit = 1L << link;
+		}
+
+		@Override
+		public void typeAdded(String type) {
+			synchronized(MultiLinkBackend.this) {
+				if(listener != null && types.add(type)) {
+					listener.typeAdded(type);
+				}
+			}
+		}
+
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+			synchronized(MultiLinkBackend.this) {
+				if(listener == null) {
+					return;
+				}
+				Seen s = services.get(r.key);
+				if(s == null) {
+					s = new Seen();
+					s.linkMask = bit;
+					s.resolveLink = link;
+					services.put(r.key, s);
+					tag(r, s.linkMask);
+					listener.serviceAdded(r);
+				} else if((s.linkMask & bit) == 0) {
+					s.linkMask |= bit;
+					if(s.record == null) {
+						return;
+					}
+					// known on another link, only the tags change
+					ZeroConfRecord retagged = new ZeroConfRecord(s.record);
+					tag(retagged, s.linkMask);
+					retagged.addresses = mergeAddresses(s);
+					s.record = retagged;
+					listener.serviceResolved(new ZeroConfRecord(retagged), 0);
+				}
+			}
+		}
+
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+			synchronized(MultiLinkBackend.this) {
+				Seen s = services.get(r.key);
+				if(listener == null || s == null || (s.linkMask & bit) == 0) {
+					return;
+				}
+				s.linkMask &= ~bit;
+				if(s.addresses != null) {
+					s.addresses[link] = null;
+				}
+				if(s.linkMask == 0) {
+					services.remove(r.key);
+					listener.serviceRemoved(r);
+					return;
+				}
+				s.resolveLink = Long.numberOfTrailingZeros(s.linkMask);
+				if(s.record == null) {
+					return;
+				}
+				// still on another link
+				ZeroConfRecord retagged = new ZeroConfRecord(s.record);
+				tag(retagged, s.linkMask);
+				retagged.addresses = mergeAddresses(s);
+				s.record = retagged;
+				listener.serviceResolved(new ZeroConfRecord(retagged), 0);
+			}
+		}
+
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+			synchronized(MultiLinkBackend.this) {
+				if(listener == null) {
+					return;
+				}
+				Seen s = services.get(r.key);
+				if(s == null) {
+					s = new Seen();
+					s.resolveLink = link;
+					services.put(r.key, s);
+				}
+				s.linkMask |= bit;
+				tag(r, s.linkMask);
+				if(s.addresses == null) {
+					s.addresses = new String[links.size()][];
+				}
+				s.addresses[link] = scoped(r.addresses, links.get(link));
+				r.addresses = mergeAddresses(s);
+				if(s.record != null && s.record.contentEquals(r)) {
+					listener.serviceRefreshed(r.key, ttlSeconds);
+				} else {
+					s.record = new ZeroConfRecord(r);
+					listener.serviceResolved(r, ttlSeconds);
+				}
+			}
+		}
+
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+			synchronized(MultiLinkBackend.this) {
+				if(listener != null) {
+					listener.serviceRefreshed(key, ttlSeconds);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,159 @@
+package prom.android.zeroconf.service;
+
+/**
+ * Hash table keyed by DNS names in wire format
+ *
+ * Lookups can take a name straight out of a received
+ * message, so finding a known entry costs no allocation.
+ * Names compare without regard to ASCII case. Entries are
+ * chained through themselves, the table only allocates
+ * when it grows.
+ *
+ * Not thread-safe.
+ *
+ * @author prom
+ */
+class NameTable<T extends NameTable.Entry> {
+
+	/** Base class of entries */
+	static class Entry {
+		/** Name in wire format */
+		final byte[] wireName;
+		final int hash;
+		Entry nextInBucket;
+
+		Entry(byte[] wireName) {
+			this.wireName = wireName;
+			this.hash = DnsReader.hash(wireName);
+		}
+	}
+
+	private Entry[] buckets = new Entry[16];
+
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Look up a name in a message
+	 *
+	 * @param reader reader of the message
+	 * @param offset offset of the name
+	 * @return the entry or null
+	 */
+	@SuppressWarnings("unchecked")
+	T get(DnsReader reader, int offset) {
+		int h = reader.nameHash(offset);
+		for(Entry e = buckets[h & (buckets.length - 1)]; e != null; e = e.nextInBucket) {
+			if(e.hash == h && reader.nameEquals(offset, e.wireName)) {
+				return (T)e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Look up a name
+	 *
+	 * @param wireName name in wire format
+	 * @return the entry or null
+	 */
+	@SuppressWarnings("unchecked")
+	T get(byte[] wireName) {
+		int h = DnsReader.hash(wireName);
+		for(Entry e = buckets[h & (buckets.length - 1)]; e != null; e = e.nextInBucket) {
+			if(e.hash == h && sameName(e.wireName, wireName)) {
+				return (T)e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add an entry whose name is not in the table yet
+	 *
+	 * @param e
+	 */
+	void add(T e) {
+		if(size >= buckets.length * 3 / 4) {
+			grow();
+		}
+		int b = e.hash & (buckets.length - 1);
+		e.nextInBucket = buckets[b];
+		buckets[b] = e;
+		size++;
+	}
+
+	/**
+	 * Remove an entry
+	 *
+	 * @param e
+	 * @return false if it was not in the table
+	 */
+	boolean remove(T e) {
+		int b = e.hash & (buckets.length - 1);
+		Entry prev = null;
+		for(Entry c = buckets[b]; c != null; c = c.nextInBucket) {
+			if(c == e) {
+				if(prev == null) {
+					buckets[b] = c.nextInBucket;
+				} else {
+					prev.nextInBucket = c.nextInBucket;
+				}
+				c.nextInBucket = null;
+				size--;
+				return true;
+			}
+			prev = c;
+		}
+		return false;
+	}
+
+	/** Number of buckets, for iteration with bucket() */
+	int bucketCount() {
+		return buckets.length;
+	}
+
+	/**
+	 * First entry of a bucket
+	 *
+	 * Further entries follow through nextInBucket. Removing
+	 * the current entry while iterating is allowed when its
+	 * successor has been fetched before.
+	 *
+	 * @param b
+	 */
+	@SuppressWarnings("unchecked")
+	T bucket(int b) {
+		return (T)buckets[b];
+	}
+
+	private void grow() {
+		Entry[] old = buckets;
+		buckets = new Entry[old.length * 2];
+		for(Entry e : old) {
+			while(e != null) {
+				Entry next = e.nextInBucket;
+				int b = e.hash & (buckets.length - 1);
+				e.nextInBucket = buckets[b];
+				buckets[b] = e;
+				e = next;
+			}
+		}
+	}
+
+	private static boolean sameName(byte[] a, byte[] b) {
+		if(a.length != b.length) {
+			return false;
+		}
+		for(int i = 0; i < a.length; i++) {
+			if(DnsReader.lower(a[i]) != DnsReader.lower(b[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,233 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+import android.util.Log;
+
+/**
+ * Lean multicast DNS backend
+ *
+ * A single thread runs a selector over a non-blocking
+ * datagram channel, parsing packets out of one reused
+ * direct buffer. All protocol logic is in MdnsEngine.
+ *
+ * The NIO channel can not join multicast groups before
+ * Java 7, so group membership is held by a separate
+ * MulticastSocket bound to the same port, which also
+ * sends our queries, as only it can pick the interface.
+ * Linux delivers group traffic to every socket bound to
+ * the port once any of them has joined, so packets from
+ * other links get dropped by their source address.
+ *
+ * Publishing is not supported, use the JmDNS backend.
+ *
+ * @author prom
+ */
+class NativeBackend implements DiscoveryBackend, Runnable {
+
+	public final static String TAG = NativeBackend.class.toString();
+
+	final static int MDNS_PORT = 5353;
+
+	final static String MDNS_GROUP = "224.0.0.251";
+
+	final static String MDNS_GROUP_IPV6 = "ff02::fb";
+
+	/** Largest packet we accept, RFC 6762 allows up to 9000 bytes */
+	private final static int MAX_PACKET_SIZE = 9000;
+
+	private final DiscoveryLink link;
+
+	private final DiscoveryStateMachine.Clock clock;
+
+	private DatagramChannel channel;
+	private MulticastSocket membership;
+	private Selector selector;
+	private InetSocketAddress group;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/** Engine, owned by our thread */
+	private MdnsEngine engine;
+
+	/** Resolve requests from other threads, as type and name */
+	private final ConcurrentLinkedQueue<String[]> resolveRequests
+	= new ConcurrentLinkedQueue<String[]>();
+
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(MdnsEngine.MAX_QUERY_SIZE);
+	private DatagramPacket sendPacket;
+
+	NativeBackend(DiscoveryLink link, DiscoveryStateMachine.Clock clock) {
+		this.link = link;
+		this.clock = clock;
+	}
+
+	@Override
+	public boolean start(Listener listener) {
+		try {
+			String groupName = (link.family == ZeroConfRecord.FAMILY_IPV6) ? MDNS_GROUP_IPV6 : MDNS_GROUP;
+			group = new InetSocketAddress(InetAddress.getByName(groupName), MDNS_PORT);
+
+			membership = new MulticastSocket(null);
+			membership.setReuseAddress(true);
+			membership.bind(new InetSocketAddress(MDNS_PORT));
+			membership.setNetworkInterface(link.networkInterface);
+			membership.setTimeToLive(255);
+			membership.joinGroup(group, link.networkInterface);
+			sendPacket = new DatagramPacket(sendBuffer.array(), 0, group);
+
+			channel = DatagramChannel.open();
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(MDNS_PORT));
+			channel.configureBlocking(false);
+
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			Log.d(TAG, "Failed to open sockets: " + e.toString());
+			close();
+			return false;
+		}
+
+		engine = new MdnsEngine(listener, clock);
+		running = true;
+		thread = new Thread(this, TAG);
+		thread.start();
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		if(selector != null) {
+			selector.wakeup();
+		}
+		if(thread != null) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		close();
+	}
+
+	private void close() {
+		try {
+			if(selector != null) {
+				selector.close();
+			}
+			if(channel != null) {
+				channel.close();
+			}
+			if(membership != null) {
+				membership.leaveGroup(group, link.networkInterface);
+			}
+		} catch (IOException e) {
+			// nothing to do
+		} finally {
+			if(membership != null) {
+				membership.close();
+			}
+			selector = null;
+			channel = null;
+			membership = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		MdnsEngine.Sender sender = new MdnsEngine.Sender() {
+			@Override
+			public void send(ByteBuffer packet) throws IOException {
+				sendPacket.setData(packet.array(), packet.position(), packet.remaining());
+				membership.send(sendPacket);
+			}
+		};
+		while(running) {
+			try {
+				String[] request;
+				while((request = resolveRequests.poll()) != null) {
+					engine.resolve(request[0], request[1]);
+				}
+
+				long next = engine.sendQueries(sendBuffer, sender);
+				long timeout = Math.max(1, next - clock.now());
+
+				selector.select(timeout);
+				selector.selectedKeys().clear();
+
+				while(true) {
+					receiveBuffer.clear();
+					SocketAddress from = channel.receive(receiveBuffer);
+					if(from == null) {
+						break;
+					}
+					if(isOwn(from) || !isOnLink(from)) {
+						// our own queries must not suppress themselves,
+						// and other links have backends of their own
+						continue;
+					}
+					receiveBuffer.flip();
+					engine.handlePacket(receiveBuffer);
+				}
+			} catch (IOException e) {
+				if(running) {
+					Log.d(TAG, "I/O error: " + e.toString());
+				}
+			}
+		}
+	}
+
+	private boolean isOwn(SocketAddress from) {
+		return (from instanceof InetSocketAddress)
+				&& link.address.equals(((InetSocketAddress)from).getAddress());
+	}
+
+	private boolean isOnLink(SocketAddress from) {
+		return (from instanceof InetSocketAddress)
+				&& link.contains(((InetSocketAddress)from).getAddress());
+	}
+
+	@Override
+	public void resolve(String type, String name) {
+		resolveRequests.add(new String[] { type, name });
+		Selector s = selector;
+		if(s != null) {
+			s.wakeup();
+		}
+	}
+
+	@Override
+	public void publish(String key, ZeroConfRecord r) throws IOException {
+		throw new IOException("Publishing is not supported by " + TAG);
+	}
+
+	@Override
+	public boolean updatePublished(String key, ZeroConfRecord r) {
+		return false;
+	}
+
+	@Override
+	public void unpublish(String key) {
+	}
+
+	@Override
+	public void unpublishAll() {
+	}
+
+}
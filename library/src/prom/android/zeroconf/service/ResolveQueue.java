@@ -0,0 +1,259 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Prioritized queue of services waiting for resolution
+ *
+ * Services get resolved on demand only, in order of
+ * priority and first come first served within a priority.
+ * At most a configurable number of resolutions are in
+ * flight at any time, so a network with hundreds of
+ * services does not turn into a burst of queries.
+ *
+ * A resolution is finished when its details arrive or
+ * when it times out, in which case it goes back into the
+ * queue until it runs out of attempts.
+ *
+ * Not thread-safe, it must be owned by a single thread.
+ *
+ * @author prom
+ */
+class ResolveQueue {
+
+	/** Requested explicitly by a client */
+	final static int PRIORITY_REQUESTED = 0;
+	/** Of a type a client has subscribed to */
+	final static int PRIORITY_SUBSCRIBED = 1;
+	/** Wanted by clients subscribed to everything or to filters */
+	final static int PRIORITY_WATCHED = 2;
+	/** Cached, seen again, details to be confirmed */
+	final static int PRIORITY_CONFIRM = 3;
+
+	private final static int PRIORITIES = 4;
+
+	/** Attempts before a service is given up on */
+	final static int MAX_ATTEMPTS = 3;
+
+	/** Receiver of resolutions to start */
+	interface Resolver {
+		void resolve(Srv s);
+	}
+
+	private static final class Entry {
+		final Srv srv;
+		int priority;
+		int attempts = 0;
+		long deadline;
+		/** Time of the first attempt */
+		long started;
+
+		Entry(Srv srv, int priority) {
+			this.srv = srv;
+			this.priority = priority;
+		}
+	}
+
+	/** Waiting services by key, one map per priority */
+	private final LinkedHashMap<String, Entry>[] waiting;
+
+	/** Services being resolved by key */
+	private final HashMap<String, Entry> inFlight
+	= new HashMap<String, Entry>();
+
+	private final long timeoutMillis;
+
+	private int maxInFlight;
+
+	private int size = 0;
+
+	/**
+	 * Create a queue
+	 *
+	 * @param maxInFlight maximum concurrent resolutions
+	 * @param timeoutMillis time after which a resolution counts as failed
+	 */
+	ResolveQueue(int maxInFlight, long timeoutMillis) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.timeoutMillis = timeoutMillis;
+		this.waiting = newWaiting();
+		for(int p = 0; p < PRIORITIES; p++) {
+			waiting[p] = new LinkedHashMap<String, Entry>();
+		}
+	}
+
+	/** Arrays of generic types can only be created raw, this one never escapes */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static LinkedHashMap<String, Entry>[] newWaiting() {
+		return new LinkedHashMap[PRIORITIES];
+	}
+
+	void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/** Number of waiting services */
+	int size() {
+		return size;
+	}
+
+	/** Number of resolutions in flight */
+	int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Queue a service for resolution
+	 *
+	 * A service already waiting moves up if the new
+	 * priority is higher. Services in flight stay there.
+	 *
+	 * @param s
+	 * @param priority one of the PRIORITY_* constants
+	 */
+	void add(Srv s, int priority) {
+		Entry in = inFlight.get(s.key);
+		if(in != null) {
+			in.priority = Math.min(in.priority, priority);
+			return;
+		}
+		for(int p = 0; p < PRIORITIES; p++) {
+			Entry e = waiting[p].get(s.key);
+			if(e == null) {
+				continue;
+			}
+			if(p <= priority) {
+				return;
+			}
+			waiting[p].remove(s.key);
+			e.priority = priority;
+			waiting[priority].put(s.key, e);
+			return;
+		}
+		waiting[priority].put(s.key, new Entry(s, priority));
+		size++;
+	}
+
+	/**
+	 * Take note that details of a service arrived
+	 *
+	 * Details may arrive without being asked for, the
+	 * service then does not need to wait any longer.
+	 *
+	 * @param key
+	 * @param now current time
+	 * @return time since the first attempt, -1 if none was in flight
+	 */
+	long completed(String key, long now) {
+		Entry e = inFlight.remove(key);
+		if(e == null) {
+			remove(key);
+			return -1;
+		}
+		return now - e.started;
+	}
+
+	/**
+	 * Forget a service
+	 *
+	 * @param key
+	 */
+	void remove(String key) {
+		if(inFlight.remove(key) != null) {
+			return;
+		}
+		for(int p = 0; p < PRIORITIES; p++) {
+			if(waiting[p].remove(key) != null) {
+				size--;
+				return;
+			}
+		}
+	}
+
+	/** Forget all services */
+	void clear() {
+		for(int p = 0; p < PRIORITIES; p++) {
+			waiting[p].clear();
+		}
+		inFlight.clear();
+		size = 0;
+	}
+
+	/**
+	 * Requeue resolutions that timed out
+	 *
+	 * @param now current time
+	 * @return number of resolutions that timed out
+	 */
+	int expire(long now) {
+		ArrayList<Entry> expired = null;
+		Iterator<Entry> it = inFlight.values().iterator();
+		while(it.hasNext()) {
+			Entry e = it.next();
+			if(e.deadline <= now) {
+				it.remove();
+				if(expired == null) {
+					expired = new ArrayList<Entry>();
+				}
+				expired.add(e);
+			}
+		}
+		if(expired == null) {
+			return 0;
+		}
+		for(Entry e : expired) {
+			if(e.attempts < MAX_ATTEMPTS && !e.srv.removed) {
+				waiting[e.priority].put(e.srv.key, e);
+				size++;
+			}
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Start as many resolutions as the limit allows
+	 *
+	 * @param now current time
+	 * @param resolver
+	 */
+	void dispatch(long now, Resolver resolver) {
+		for(int p = 0; p < PRIORITIES && inFlight.size() < maxInFlight; p++) {
+			Iterator<Entry> it = waiting[p].values().iterator();
+			while(it.hasNext() && inFlight.size() < maxInFlight) {
+				Entry e = it.next();
+				it.remove();
+				size--;
+				if(e.srv.removed) {
+					continue;
+				}
+				if(e.attempts++ == 0) {
+					e.started = now;
+				}
+				e.deadline = now + timeoutMillis;
+				inFlight.put(e.srv.key, e);
+				resolver.resolve(e.srv);
+			}
+		}
+	}
+
+	/**
+	 * Time the next resolution in flight times out
+	 *
+	 * @return a time, or Long.MAX_VALUE if nothing is in flight
+	 */
+	long nextDeadline() {
+		long next = Long.MAX_VALUE;
+		for(Entry e : inFlight.values()) {
+			next = Math.min(next, e.deadline);
+		}
+		return next;
+	}
+
+}
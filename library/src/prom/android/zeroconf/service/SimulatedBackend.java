@@ -0,0 +1,312 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Deterministic in-memory discovery backend
+ *
+ * Simulates a network with a configurable number of
+ * services spread over a number of types. Churn removes,
+ * adds and changes services at random, driven either
+ * explicitly through churn() or periodically by a
+ * scheduler. The same seed always yields the same
+ * sequence of events.
+ *
+ * Published services show up as discovered services,
+ * just like they would on a real network.
+ *
+ * Events are delivered on the thread calling into the
+ * simulator, which makes it usable without Android and
+ * without any network for benchmarks and soak tests.
+ *
+ * @author prom
+ */
+class SimulatedBackend implements DiscoveryBackend {
+
+	/** TTL announced for all simulated records */
+	private final static int TTL_SECONDS = 120;
+
+	/** Service types to spread services over */
+	private final int typeCount;
+
+	/** Services present after start */
+	private final int serviceCount;
+
+	/** Properties per service */
+	private final int propertyCount;
+
+	private final Random random;
+
+	private Listener listener;
+
+	/** Services currently on the simulated network */
+	private final ArrayList<ZeroConfRecord> live
+	= new ArrayList<ZeroConfRecord>();
+
+	/** Index of each live service in the live list, by key */
+	private final HashMap<String, Integer> liveIndex
+	= new HashMap<String, Integer>();
+
+	/** Published services by publication key */
+	private final HashMap<String, ZeroConfRecord> published
+	= new HashMap<String, ZeroConfRecord>();
+
+	/** Index of the next service to create */
+	private int nextService = 0;
+
+	/** Number of events delivered so far */
+	private long eventCount = 0;
+
+	private DiscoveryStateMachine.Scheduler churnScheduler;
+	private Runnable churnTask;
+
+	SimulatedBackend(long seed, int typeCount, int serviceCount, int propertyCount) {
+		this.random = new Random(seed);
+		this.typeCount = typeCount;
+		this.serviceCount = serviceCount;
+		this.propertyCount = propertyCount;
+	}
+
+	@Override
+	public synchronized boolean start(Listener listener) {
+		this.listener = listener;
+		for(int t = 0; t < typeCount; t++) {
+			listener.typeAdded(typeName(t));
+			eventCount++;
+		}
+		for(int i = 0; i < serviceCount; i++) {
+			addService();
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void stop() {
+		stopChurn();
+		listener = null;
+		live.clear();
+		liveIndex.clear();
+		published.clear();
+	}
+
+	/**
+	 * Start periodic churn
+	 *
+	 * @param scheduler scheduler running the churn
+	 * @param intervalMillis time between churn rounds
+	 * @param eventsPerRound changes per round
+	 */
+	synchronized void startChurn(final DiscoveryStateMachine.Scheduler scheduler,
+			final long intervalMillis, final int eventsPerRound) {
+		stopChurn();
+		churnScheduler = scheduler;
+		churnTask = new Runnable() {
+			@Override
+			public void run() {
+				churn(eventsPerRound);
+				synchronized(SimulatedBackend.this) {
+					if(churnTask == this) {
+						scheduler.schedule(this, intervalMillis);
+					}
+				}
+			}
+		};
+		scheduler.schedule(churnTask, intervalMillis);
+	}
+
+	synchronized void stopChurn() {
+		if(churnTask != null) {
+			churnScheduler.cancel(churnTask);
+			churnTask = null;
+			churnScheduler = null;
+		}
+	}
+
+	/**
+	 * Perform random changes
+	 *
+	 * Each change is equally likely to be a removal,
+	 * an addition or a change of properties. The number
+	 * of live services stays around its initial value.
+	 *
+	 * @param events number of changes
+	 */
+	synchronized void churn(int events) {
+		if(listener == null) {
+			return;
+		}
+		for(int i = 0; i < events; i++) {
+			int kind = random.nextInt(3);
+			if(kind == 0 && live.size() > serviceCount / 2) {
+				removeService(random.nextInt(live.size()));
+			} else if(kind == 1 || live.isEmpty()) {
+				addService();
+			} else {
+				changeService(random.nextInt(live.size()));
+			}
+		}
+	}
+
+	synchronized int getLiveCount() {
+		return live.size();
+	}
+
+	/** Copies of the services currently on the simulated network */
+	synchronized List<ZeroConfRecord> getLive() {
+		ArrayList<ZeroConfRecord> copies = new ArrayList<ZeroConfRecord>(live.size());
+		for(ZeroConfRecord r : live) {
+			copies.add(copy(r));
+		}
+		return copies;
+	}
+
+	synchronized long getEventCount() {
+		return eventCount;
+	}
+
+	@Override
+	public synchronized void resolve(String type, String name) {
+		Integer index = liveIndex.get(keyOf(type, name));
+		if(listener != null && index != null) {
+			deliverResolved(live.get(index));
+		}
+	}
+
+	@Override
+	public synchronized void publish(String key, ZeroConfRecord r) {
+		ZeroConfRecord p = copy(r);
+		p.key = keyOf(r.type, r.instance);
+		p.name = r.instance;
+		published.put(key, p);
+		appear(p);
+	}
+
+	@Override
+	public synchronized boolean updatePublished(String key, ZeroConfRecord r) {
+		ZeroConfRecord old = published.get(key);
+		if(old == null) {
+			return false;
+		}
+		ZeroConfRecord p = copy(r);
+		p.key = old.key;
+		p.name = old.name;
+		published.put(key, p);
+		Integer index = liveIndex.get(p.key);
+		if(index != null) {
+			live.set(index, p);
+			deliverResolved(p);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void unpublish(String key) {
+		ZeroConfRecord p = published.remove(key);
+		if(p != null) {
+			Integer index = liveIndex.get(p.key);
+			if(index != null) {
+				removeService(index);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void unpublishAll() {
+		for(String key : new ArrayList<String>(published.keySet())) {
+			unpublish(key);
+		}
+	}
+
+	private String typeName(int t) {
+		return "_sim" + t + "._tcp.local.";
+	}
+
+	private static String keyOf(String type, String name) {
+		return (name + "." + type).toLowerCase();
+	}
+
+	private void addService() {
+		int index = nextService++;
+		int t = index % typeCount;
+
+		ZeroConfRecord r = new ZeroConfRecord();
+		r.type = typeName(t);
+		r.name = "Simulated " + index;
+		r.key = keyOf(r.type, r.name);
+		r.domain = "local";
+		r.protocol = "tcp";
+		r.application = "sim" + t;
+		r.instance = r.name;
+		r.server = "sim-" + index + ".local.";
+		r.port = 1024 + (index % 4096);
+		r.setPropertyString("txtvers", "1");
+		r.setPropertyString("generation", "0");
+		for(int i = 2; i < propertyCount; i++) {
+			r.setPropertyString("key" + i, "value-" + index + "-" + i);
+		}
+
+		appear(r);
+	}
+
+	/** Put a service on the network, announcing and resolving it */
+	private void appear(ZeroConfRecord r) {
+		Integer index = liveIndex.get(r.key);
+		if(index != null) {
+			live.set(index, r);
+		} else {
+			liveIndex.put(r.key, live.size());
+			live.add(r);
+			if(listener != null) {
+				listener.serviceAdded(copy(r));
+				eventCount++;
+			}
+		}
+		if(listener != null) {
+			deliverResolved(r);
+		}
+	}
+
+	private void removeService(int index) {
+		ZeroConfRecord r = live.get(index);
+
+		// move the last service into the gap
+		ZeroConfRecord last = live.remove(live.size() - 1);
+		if(last != r) {
+			live.set(index, last);
+			liveIndex.put(last.key, index);
+		}
+		liveIndex.remove(r.key);
+
+		if(listener != null) {
+			listener.serviceRemoved(copy(r));
+			eventCount++;
+		}
+	}
+
+	private void changeService(int index) {
+		ZeroConfRecord r = copy(live.get(index));
+		int generation = r.getPropertyInt("generation", 0) + 1;
+		r.setPropertyString("generation", Integer.toString(generation));
+		live.set(index, r);
+		deliverResolved(r);
+	}
+
+	private void deliverResolved(ZeroConfRecord r) {
+		listener.serviceResolved(copy(r), TTL_SECONDS);
+		eventCount++;
+	}
+
+	/** Records handed out belong to the receiver */
+	private static ZeroConfRecord copy(ZeroConfRecord r) {
+		ZeroConfRecord c = new ZeroConfRecord(r);
+		c.version = 0;
+		c.stale = false;
+		return c;
+	}
+
+}
@@ -0,0 +1,139 @@
+package prom.android.zeroconf.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+import prom.android.zeroconf.model.ZeroConfSnapshot;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Store of the snapshot shared with clients
+ *
+ * Clients with many services get a descriptor of a
+ * snapshot file instead of the records themselves, and
+ * map it. The snapshot is written at most once for each
+ * state of the registry and shared by all clients. It
+ * holds every service, so only clients subscribed to all
+ * of them may get it.
+ *
+ * Each snapshot gets a file of its own that is deleted
+ * once a newer one replaces it. Descriptors handed out
+ * before stay valid, so clients never see a file change.
+ *
+ * @author prom
+ */
+class SnapshotStore {
+
+	/** A snapshot handed to a client */
+	static final class Shared {
+		/** Position in the change log the snapshot is current to */
+		final long sequence;
+		/** Versions of the records in the snapshot, by key */
+		final Map<String, Integer> versions;
+		/** Descriptor of the snapshot, to be closed by the receiver */
+		final ParcelFileDescriptor descriptor;
+
+		Shared(long sequence, Map<String, Integer> versions, ParcelFileDescriptor descriptor) {
+			this.sequence = sequence;
+			this.versions = versions;
+			this.descriptor = descriptor;
+		}
+	}
+
+	private final File directory;
+
+	/** File of the latest snapshot, null if none */
+	private File file;
+
+	/** Position in the change log of the latest snapshot */
+	private long sequence = -1;
+
+	/** Versions of the records in the latest snapshot */
+	private Map<String, Integer> versions;
+
+	SnapshotStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Share the current state of the registry
+	 *
+	 * Writes a new snapshot if anything changed
+	 * since the latest one.
+	 *
+	 * @param registry
+	 * @param changeLog
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	synchronized Shared share(SrvRegistry registry, ChangeLog changeLog) throws IOException {
+		// read first, the records written are at least this recent
+		long current = changeLog.sequence();
+		if(file == null || current != sequence) {
+			write(registry, changeLog.epoch, current);
+		}
+		return new Shared(sequence, versions,
+				ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+	}
+
+	private void write(SrvRegistry registry, long epoch, long current) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can not create " + directory);
+		}
+		ArrayList<ZeroConfRecord> records = new ArrayList<ZeroConfRecord>();
+		HashMap<String, Integer> recordVersions = new HashMap<String, Integer>();
+		for(Srv s : registry.snapshot().services) {
+			ZeroConfRecord r = s.getRecord();
+			records.add(r);
+			recordVersions.put(r.key, r.version);
+		}
+		ZeroConfSnapshot.Writer writer
+		= new ZeroConfSnapshot.Writer(epoch, current, records);
+
+		File next = File.createTempFile("registry", ".snapshot", directory);
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(next, "rw");
+			out.setLength(writer.size());
+			writer.writeTo(out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, writer.size()));
+			out.close();
+			out = null;
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+				next.delete();
+			}
+		}
+
+		if(file != null) {
+			file.delete();
+		}
+		file = next;
+		sequence = current;
+		versions = recordVersions;
+	}
+
+	/** Delete all snapshots, including those left behind by a crash */
+	synchronized void clear() {
+		file = null;
+		sequence = -1;
+		versions = null;
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+	}
+
+}
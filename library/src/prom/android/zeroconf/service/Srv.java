@@ -0,0 +1,104 @@
+package prom.android.zeroconf.service;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * Internal representation of services
+ * 
+ * @author prom
+ */
+class Srv {
+
+	/** RFC 6762 TTL for records containing a host name, like SRV */
+	final static long DEFAULT_TTL_MILLIS = 120 * 1000;
+
+	String type;
+	String name;
+
+	String key;
+
+	boolean resolved;
+
+	/** Set once the service has been removed from the registry */
+	volatile boolean removed = false;
+
+	/** Time to live of the DNS records backing this service, 0 if the backend tracks it */
+	long ttlMillis = DEFAULT_TTL_MILLIS;
+	/** Time the service was last seen on the network */
+	long lastSeen;
+	/** Refresh queries sent since last seen */
+	int refreshesSent;
+	/** True once a client asked for the details, owned by the event thread */
+	boolean requested;
+	/** Uptime of the discovery event behind the current record, 0 if none */
+	volatile long changedAt;
+	/** Number of the latest change in the change log, 0 if none */
+	volatile long changeSequence;
+	/** Expiry timer, owned by the event thread */
+	TimerWheel.Timeout<Srv> expiry;
+
+	/** Current version of the record, replaced on each update */
+	volatile ZeroConfRecord record = new ZeroConfRecord();
+	/** Version preceding the current one, used for deltas */
+	volatile ZeroConfRecord previousRecord = null;
+
+	/**
+	 * Create from a record
+	 * 
+	 * Records loaded from the cache are stale, the
+	 * service stays stale until an event confirms it.
+	 * 
+	 * @param r
+	 */
+	Srv(ZeroConfRecord r) {
+		this.resolved = false;
+		this.type = r.type;
+		this.name = r.name;
+		this.key = r.key;
+		this.record = r;
+	}
+
+	boolean isStale() {
+		return this.record.stale;
+	}
+
+	/**
+	 * Apply resolution results
+	 * 
+	 * @param r
+	 * @return true if the record changed
+	 */
+	boolean resolved(ZeroConfRecord r) {
+		resolved = true;
+		return update(r);
+	}
+
+	/**
+	 * Update from a discovered record
+	 * 
+	 * A new record version is only created if
+	 * the contents of the record actually differ.
+	 * 
+	 * @param next record from the backend, owned by us
+	 * @return true if the record changed
+	 */
+	boolean update(ZeroConfRecord next) {
+		this.type = next.type;
+		this.name = next.name;
+		this.key  = next.key;
+
+		if(next.contentEquals(record)) {
+			return false;
+		}
+		next.version = record.version + 1;
+
+		previousRecord = record;
+		record = next;
+
+		return true;
+	}
+
+	ZeroConfRecord getRecord() {
+		return this.record;
+	}
+}
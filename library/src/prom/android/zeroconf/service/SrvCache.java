@@ -0,0 +1,174 @@
+package prom.android.zeroconf.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+
+/**
+ * On-disk cache of resolved records
+ *
+ * There is one snapshot file per network, so that
+ * reopening the service on a known network can show
+ * the records seen last time before any multicast
+ * reply arrives. Records loaded from here are marked
+ * stale until discovery confirms them.
+ *
+ * Snapshots are written to a temporary file and then
+ * renamed into place, so a crash never leaves a torn file.
+ *
+ * @author prom
+ */
+class SrvCache {
+
+	/** File magic, "ZCSC" */
+	private final static int MAGIC = 0x5a435343;
+
+	/** Format version, bump when the record layout changes */
+	private final static int FORMAT_VERSION = 5;
+
+	/** Upper bound on records per network, protects against garbage */
+	private final static int MAX_RECORDS = 4096;
+
+	private final File directory;
+
+	SrvCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Derive a network key
+	 *
+	 * Wifi identifiers take precedence, without them the
+	 * network gets identified by the prefixes of the links.
+	 *
+	 * @param ssid wifi network or null
+	 * @param bssid wifi access point or null
+	 * @param links links discovery runs on
+	 * @return the key or null if the network is not identifiable
+	 */
+	static String networkKey(String ssid, String bssid, List<DiscoveryLink> links) {
+		if(ssid != null || bssid != null) {
+			return ssid + "/" + bssid;
+		}
+		StringBuilder key = new StringBuilder();
+		for(DiscoveryLink link : links) {
+			String network = link.network();
+			if(network != null) {
+				if(key.length() > 0) {
+					key.append(',');
+				}
+				key.append(network);
+			}
+		}
+		return (key.length() > 0) ? key.toString() : null;
+	}
+
+	private File fileFor(String networkKey) {
+		return new File(directory, Integer.toHexString(networkKey.hashCode()) + ".cache");
+	}
+
+	/**
+	 * Load the snapshot for a network
+	 *
+	 * @param networkKey
+	 * @return the cached records, empty if there is no usable snapshot
+	 */
+	List<ZeroConfRecord> load(String networkKey) {
+		ArrayList<ZeroConfRecord> records = new ArrayList<ZeroConfRecord>();
+		File file = fileFor(networkKey);
+		if(!file.exists()) {
+			return records;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(in.readInt() != MAGIC
+					|| in.readInt() != FORMAT_VERSION
+					|| !networkKey.equals(in.readUTF())) {
+				return records;
+			}
+			int count = in.readInt();
+			if(count < 0 || count > MAX_RECORDS) {
+				return records;
+			}
+			for(int i = 0; i < count; i++) {
+				ZeroConfRecord r = ZeroConfRecord.readFromStream(in);
+				r.stale = true;
+				records.add(r);
+			}
+		} catch (IOException e) {
+			// unusable snapshot, start from scratch
+			records.clear();
+			file.delete();
+		} catch (RuntimeException e) {
+			// garbage the stream checks did not catch, same thing
+			records.clear();
+			file.delete();
+		} finally {
+			close(in);
+		}
+		return records;
+	}
+
+	/**
+	 * Replace the snapshot for a network
+	 *
+	 * @param networkKey
+	 * @param records records to store
+	 * @throws IOException
+	 */
+	void save(String networkKey, Collection<ZeroConfRecord> records) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can not create " + directory);
+		}
+		File file = fileFor(networkKey);
+		File temp = new File(directory, file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(networkKey);
+			int count = Math.min(records.size(), MAX_RECORDS);
+			out.writeInt(count);
+			for(ZeroConfRecord r : records) {
+				if(count-- == 0) {
+					break;
+				}
+				r.writeToStream(out);
+			}
+			out.close();
+			out = null;
+			if(!temp.renameTo(file)) {
+				throw new IOException("Can not rename " + temp);
+			}
+		} finally {
+			if(out != null) {
+				close(out);
+				temp.delete();
+			}
+		}
+	}
+
+	private static void close(Closeable c) {
+		if(c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package prom.android.zeroconf.service;
+
+import java.util.Random;
+
+/**
+ * Lifetime of resolved services
+ *
+ * Each time a service is seen its TTL starts over. Refresh
+ * queries go out at 80, 85, 90 and 95 percent of the TTL,
+ * per RFC 6762, and if none of them gets an answer the
+ * service expires. All of it runs on a timer wheel.
+ *
+ * Services of backends that track their lifetime on their
+ * own, like JmDNS, stay off the wheel. Those backends do
+ * not report refreshes, so the wheel would expire every
+ * live service after one TTL.
+ *
+ * Not thread-safe, owned by the event thread.
+ *
+ * @author prom
+ */
+class SrvExpiry {
+
+	/** Percentages of TTL at which refresh queries go out, per RFC 6762 */
+	private final static int[] REFRESH_PERCENT = { 80, 85, 90, 95 };
+
+	/** Receiver of refreshes and expiries */
+	interface Callback {
+		/** A refresh query for the service is due */
+		void refresh(Srv s);
+		/** The service has not been seen for its TTL */
+		void expired(Srv s);
+	}
+
+	private final TimerWheel<Srv> wheel;
+
+	/** Jitter source for refresh queries */
+	private final Random jitter;
+
+	/**
+	 * Create an empty instance
+	 *
+	 * @param tickMillis resolution of expiries
+	 * @param wheelSize number of ticks covered without wrapping
+	 * @param now current time
+	 * @param jitter source of the variation of refresh times
+	 */
+	SrvExpiry(long tickMillis, int wheelSize, long now, Random jitter) {
+		this.wheel = new TimerWheel<Srv>(tickMillis, wheelSize, now);
+		this.jitter = jitter;
+	}
+
+	/** Number of services on the wheel */
+	int size() {
+		return wheel.size();
+	}
+
+	/**
+	 * Note that a service has been seen on the network
+	 *
+	 * Restarts its TTL, scheduling the first refresh.
+	 *
+	 * @param s
+	 * @param ttlSeconds TTL as reported by the backend, 0 to keep the
+	 *        current one, DiscoveryBackend.TTL_TRACKED if the backend
+	 *        reports the removal itself
+	 * @param now current time
+	 */
+	void touch(Srv s, int ttlSeconds, long now) {
+		if(ttlSeconds == DiscoveryBackend.TTL_TRACKED) {
+			s.ttlMillis = 0;
+		} else if(ttlSeconds > 0) {
+			s.ttlMillis = ttlSeconds * 1000L;
+		}
+		s.lastSeen = now;
+		s.refreshesSent = 0;
+		if(s.ttlMillis > 0) {
+			schedule(s);
+		} else {
+			cancel(s);
+		}
+	}
+
+	/** Schedule the next refresh or the expiry of a service */
+	private void schedule(Srv s) {
+		long deadline;
+		if(s.refreshesSent < REFRESH_PERCENT.length) {
+			// RFC 6762 asks for up to 2% of random variation
+			long variation = (long)(jitter.nextFloat() * s.ttlMillis / 50);
+			deadline = s.lastSeen + s.ttlMillis * REFRESH_PERCENT[s.refreshesSent] / 100 + variation;
+		} else {
+			deadline = s.lastSeen + s.ttlMillis;
+		}
+		if(s.expiry == null) {
+			s.expiry = wheel.schedule(s, deadline);
+		} else {
+			wheel.reschedule(s.expiry, deadline);
+		}
+	}
+
+	/** Take a service off the wheel */
+	void cancel(Srv s) {
+		if(s.expiry != null) {
+			wheel.cancel(s.expiry);
+		}
+	}
+
+	/**
+	 * Process everything due
+	 *
+	 * @param now current time
+	 * @param callback receiver of refreshes and expiries
+	 */
+	void advance(long now, final Callback callback) {
+		wheel.advance(now, new TimerWheel.Callback<Srv>() {
+			@Override
+			public void expired(Srv s, long now) {
+				if(s.removed) {
+					return;
+				}
+				if(s.refreshesSent < REFRESH_PERCENT.length) {
+					s.refreshesSent++;
+					schedule(s);
+					callback.refresh(s);
+				} else {
+					callback.expired(s);
+				}
+			}
+		});
+	}
+
+}
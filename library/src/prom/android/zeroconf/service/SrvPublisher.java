@@ -0,0 +1,278 @@
+package prom.android.zeroconf.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import prom.android.zeroconf.model.ZeroConfRecord;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Services published on behalf of clients
+ *
+ * All clients share the responder of the service. Publications
+ * survive discovery restarts, they get registered whenever a
+ * responder is available.
+ *
+ * Registrations of a batch are issued concurrently, so that
+ * the responder probes and announces them together instead of
+ * running one probe cycle per service. TXT-only changes are applied
+ * to the registered service without re-registering it.
+ *
+ * Probing a name takes seconds, so registrations finish in
+ * the background and report back to the discovery thread.
+ * A service withdrawn meanwhile gets unregistered once its
+ * registration is done, and its name is only registered
+ * again after that.
+ *
+ * Owned by the discovery thread.
+ *
+ * @author prom
+ */
+class SrvPublisher {
+
+	public final static String TAG = SrvPublisher.class.toString();
+
+	/** A service published by a client */
+	private static class Publication {
+		final Object owner;
+		final String key;
+		ZeroConfRecord record;
+		/** True while registered with the backend */
+		boolean registered;
+		/** Responder a registration is under way with, null if none */
+		DiscoveryBackend registering;
+
+		Publication(Object owner, String key, ZeroConfRecord record) {
+			this.owner = owner;
+			this.key = key;
+			this.record = record;
+		}
+	}
+
+	private final HashMap<String, Publication> publications
+	= new HashMap<String, Publication>();
+
+	/** Keys of withdrawn publications whose registration is under way */
+	private final HashSet<String> withdrawing
+	= new HashSet<String>();
+
+	/** Runs the blocking registrations of a batch in parallel */
+	private final ExecutorService registrar = Executors.newCachedThreadPool();
+
+	/** Handler of the discovery thread, receives finished registrations */
+	private final Handler owner;
+
+	private DiscoveryBackend responder;
+
+	/**
+	 * Create without publications
+	 *
+	 * @param owner handler of the owning thread
+	 */
+	SrvPublisher(Handler owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Key identifying a publication
+	 *
+	 * @param r
+	 * @return the lowercase qualified name of the requested service
+	 */
+	static String keyFor(ZeroConfRecord r) {
+		return (r.instance + "." + r.type).toLowerCase();
+	}
+
+	int size() {
+		return publications.size();
+	}
+
+	/**
+	 * Start using a responder, registering all publications
+	 *
+	 * @param backend
+	 */
+	void start(DiscoveryBackend backend) {
+		responder = backend;
+		register(new ArrayList<Publication>(publications.values()));
+	}
+
+	/**
+	 * Stop using the responder, sending goodbyes
+	 */
+	void stop() {
+		DiscoveryBackend cur = responder;
+		responder = null;
+		if(cur != null) {
+			cur.unpublishAll();
+		}
+		for(Publication p : publications.values()) {
+			p.registered = false;
+		}
+	}
+
+	/**
+	 * Release all resources
+	 */
+	void shutdown() {
+		stop();
+		publications.clear();
+		registrar.shutdown();
+	}
+
+	/**
+	 * Publish or update a batch of services
+	 *
+	 * @param owner connection publishing the services
+	 * @param records
+	 */
+	void publish(Object owner, List<ZeroConfRecord> records) {
+		ArrayList<Publication> batch = new ArrayList<Publication>();
+		for(ZeroConfRecord r : records) {
+			String key = keyFor(r);
+			Publication p = publications.get(key);
+			if(p != null && p.owner != owner) {
+				Log.d(TAG, "Not publishing " + key + ", published by another client");
+				continue;
+			}
+			if(p != null && p.registered && sameExceptText(p.record, r)
+					&& responder.updatePublished(key, r)) {
+				Log.d(TAG, "Updated text of " + key);
+				p.record = r;
+				continue;
+			}
+			if(p != null) {
+				unregister(p);
+			}
+			p = new Publication(owner, key, r);
+			publications.put(key, p);
+			batch.add(p);
+		}
+		register(batch);
+	}
+
+	/**
+	 * Withdraw a batch of services
+	 *
+	 * @param owner connection that published the services
+	 * @param records
+	 */
+	void unpublish(Object owner, List<ZeroConfRecord> records) {
+		for(ZeroConfRecord r : records) {
+			String key = keyFor(r);
+			Publication p = publications.get(key);
+			if(p != null && p.owner == owner) {
+				publications.remove(key);
+				unregister(p);
+			}
+		}
+	}
+
+	/**
+	 * Withdraw everything published by a client
+	 *
+	 * @param owner
+	 */
+	void unpublishAll(Object owner) {
+		Iterator<Publication> i = publications.values().iterator();
+		while(i.hasNext()) {
+			Publication p = i.next();
+			if(p.owner == owner) {
+				i.remove();
+				unregister(p);
+			}
+		}
+	}
+
+	private void register(List<Publication> batch) {
+		final DiscoveryBackend cur = responder;
+		if(cur == null || batch.isEmpty()) {
+			return;
+		}
+
+		for(final Publication p : batch) {
+			if(withdrawing.contains(p.key)) {
+				// registered once the withdrawn one is gone
+				continue;
+			}
+			p.registering = cur;
+			registrar.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean ok = false;
+					try {
+						cur.publish(p.key, p.record);
+						ok = true;
+					} catch (IOException e) {
+						Log.d(TAG, "Failed to register " + p.key + ": " + e.toString());
+					}
+					final boolean success = ok;
+					owner.post(new Runnable() {
+						@Override
+						public void run() {
+							registered(p, cur, success);
+						}
+					});
+				}
+			});
+		}
+	}
+
+	/**
+	 * Take note of a finished registration, on the owning thread
+	 *
+	 * @param p
+	 * @param cur responder the registration went to
+	 * @param success true if the responder took it
+	 */
+	private void registered(Publication p, DiscoveryBackend cur, boolean success) {
+		if(p.registering != cur) {
+			// registered again with another responder since
+			return;
+		}
+		p.registering = null;
+		if(publications.get(p.key) == p) {
+			p.registered = success && responder == cur;
+			if(p.registered) {
+				Log.d(TAG, "Registered " + p.key);
+			}
+			return;
+		}
+		// withdrawn meanwhile
+		withdrawing.remove(p.key);
+		if(success && responder == cur) {
+			cur.unpublish(p.key);
+		}
+		Publication next = publications.get(p.key);
+		if(next != null) {
+			register(Collections.singletonList(next));
+		}
+	}
+
+	private void unregister(Publication p) {
+		DiscoveryBackend cur = responder;
+		if(cur != null && p.registering == cur) {
+			withdrawing.add(p.key);
+		} else if(cur != null && p.registered) {
+			cur.unpublish(p.key);
+		}
+		p.registered = false;
+	}
+
+	private static boolean sameExceptText(ZeroConfRecord a, ZeroConfRecord b) {
+		return a.type.equals(b.type)
+				&& a.instance.equals(b.instance)
+				&& a.port == b.port
+				&& a.priority == b.priority
+				&& a.weight == b.weight;
+	}
+
+}
@@ -0,0 +1,206 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of all known service types and services
+ * 
+ * Lookups and iteration are lock-free and may happen from
+ * any thread. Services are added and removed by a single
+ * writer, the thread processing discovery events.
+ * 
+ * Binder threads read immutable snapshots instead of
+ * iterating the live maps, so they see a consistent set of
+ * services. A snapshot gets taken lazily by the first reader
+ * after a change and is shared until the next change.
+ * 
+ * @author prom
+ */
+class SrvRegistry {
+
+	/**
+	 * Immutable view of the services at some point
+	 * 
+	 * Holds the services, not their records: those are
+	 * immutable versions read from the service when sent.
+	 */
+	static final class Snapshot {
+		/** Number of changes to the registry the snapshot includes */
+		final long version;
+		/** All services */
+		final List<Srv> services;
+		/** Services by type name, with an entry for every known type */
+		final Map<String, List<Srv>> servicesByType;
+
+		Snapshot(long version, List<Srv> services, Map<String, List<Srv>> servicesByType) {
+			this.version = version;
+			this.services = services;
+			this.servicesByType = servicesByType;
+		}
+
+		/**
+		 * Get the services of a type
+		 * 
+		 * @param typeName
+		 * @return the services, empty for unknown types
+		 */
+		List<Srv> ofType(String typeName) {
+			List<Srv> l = servicesByType.get(typeName);
+			return (l != null) ? l : Collections.<Srv>emptyList();
+		}
+	}
+
+	private final ConcurrentHashMap<String, SrvType> typesByName
+	= new ConcurrentHashMap<String, SrvType>();
+
+	private final ConcurrentHashMap<String, Srv> servicesByKey
+	= new ConcurrentHashMap<String, Srv>();
+
+	/** Changes so far, counted after they are complete */
+	private final AtomicLong changes = new AtomicLong();
+
+	/** Latest snapshot, possibly outdated */
+	private volatile Snapshot snapshot
+	= new Snapshot(0, Collections.<Srv>emptyList(), Collections.<String, List<Srv>>emptyMap());
+
+	/**
+	 * Get or atomically create a service type
+	 * 
+	 * @param typeName
+	 * @return the one type object for the given name
+	 */
+	SrvType ensureType(String typeName) {
+		SrvType t = typesByName.get(typeName);
+		if(t == null) {
+			SrvType created = new SrvType(typeName);
+			t = typesByName.putIfAbsent(typeName, created);
+			if(t == null) {
+				t = created;
+				changes.incrementAndGet();
+			}
+		}
+		return t;
+	}
+
+	SrvType getType(String typeName) {
+		return typesByName.get(typeName);
+	}
+
+	Collection<SrvType> getTypes() {
+		return typesByName.values();
+	}
+
+	Srv getSrv(String key) {
+		return servicesByKey.get(key);
+	}
+
+	/**
+	 * Get all services
+	 * 
+	 * @return a weakly consistent view of the services
+	 */
+	Collection<Srv> getServices() {
+		return servicesByKey.values();
+	}
+
+	int size() {
+		return servicesByKey.size();
+	}
+
+	/**
+	 * Get a snapshot including all completed changes
+	 * 
+	 * @return an immutable snapshot
+	 */
+	Snapshot snapshot() {
+		Snapshot current = snapshot;
+		long version = changes.get();
+		if(current.version == version) {
+			return current;
+		}
+		HashMap<String, List<Srv>> byType = new HashMap<String, List<Srv>>();
+		for(String typeName : typesByName.keySet()) {
+			byType.put(typeName, new ArrayList<Srv>());
+		}
+		ArrayList<Srv> services = new ArrayList<Srv>(servicesByKey.size());
+		for(Srv s : servicesByKey.values()) {
+			services.add(s);
+			List<Srv> l = byType.get(s.type);
+			if(l == null) {
+				l = new ArrayList<Srv>();
+				byType.put(s.type, l);
+			}
+			l.add(s);
+		}
+		for(Map.Entry<String, List<Srv>> e : byType.entrySet()) {
+			e.setValue(Collections.unmodifiableList(e.getValue()));
+		}
+		Snapshot taken = new Snapshot(version,
+				Collections.unmodifiableList(services), Collections.unmodifiableMap(byType));
+		if(snapshot.version < version) {
+			snapshot = taken;
+		}
+		return taken;
+	}
+
+	/**
+	 * Add a service unless its key is already known
+	 * 
+	 * @param srv
+	 * @return the type of the service or null if the key was known
+	 */
+	SrvType addSrv(Srv srv) {
+		if(servicesByKey.putIfAbsent(srv.key, srv) != null) {
+			return null;
+		}
+		SrvType t = ensureType(srv.type);
+		t.putSrv(srv);
+		changes.incrementAndGet();
+		return t;
+	}
+
+	/**
+	 * Remove a service by key
+	 * 
+	 * @param key
+	 * @return the removed service or null if the key was not known
+	 */
+	Srv removeSrv(String key) {
+		Srv srv = servicesByKey.remove(key);
+		if(srv != null) {
+			srv.removed = true;
+			SrvType t = typesByName.get(srv.type);
+			if(t != null) {
+				t.removeSrv(srv);
+			}
+			changes.incrementAndGet();
+		}
+		return srv;
+	}
+
+	/**
+	 * Remove all services, keeping the types
+	 * 
+	 * @return the removed services
+	 */
+	List<Srv> removeAllSrv() {
+		List<Srv> removed = new ArrayList<Srv>();
+		Iterator<String> i = servicesByKey.keySet().iterator();
+		while(i.hasNext()) {
+			Srv srv = removeSrv(i.next());
+			if(srv != null) {
+				removed.add(srv);
+			}
+		}
+		return removed;
+	}
+
+}
@@ -0,0 +1,49 @@
+package prom.android.zeroconf.service;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Internal representation of service types
+ * 
+ * @author prom
+ */
+class SrvType {
+
+	final String typeName;
+
+	/** Clients subscribed to this type */
+	final CopyOnWriteArraySet<ZeroConfService.Connection> subscribedClients
+	= new CopyOnWriteArraySet<ZeroConfService.Connection>();
+
+	/** Services of this type, by key */
+	private final ConcurrentHashMap<String, Srv> servicesByKey
+	= new ConcurrentHashMap<String, Srv>();
+
+	SrvType(String typeName) {
+		this.typeName = typeName;
+	}
+
+	/**
+	 * Get the services of this type
+	 * 
+	 * @return a weakly consistent view of the services
+	 */
+	Collection<Srv> getServices() {
+		return servicesByKey.values();
+	}
+
+	Srv getSrvByKey(String key) {
+		return servicesByKey.get(key);
+	}
+
+	void putSrv(Srv srv) {
+		servicesByKey.put(srv.key, srv);
+	}
+
+	void removeSrv(Srv srv) {
+		servicesByKey.remove(srv.key, srv);
+	}
+
+}
@@ -0,0 +1,202 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import prom.android.zeroconf.model.ZeroConfStats;
+
+/**
+ * Collector of service metrics
+ *
+ * Counts discovery events, the backlog of events waiting
+ * for the event thread, callbacks to each connection and
+ * changes queued for or dropped by them, and keeps latency
+ * histograms, overall and for each connection. Everything
+ * is cheap enough to stay switched on all the time.
+ *
+ * Thread-safe, events come in from backend threads and
+ * callbacks go out on binder threads.
+ *
+ * @author prom
+ */
+class StatsCollector {
+
+	/** Callback counters of one connection */
+	private static final class Callbacks {
+		long sent;
+		long failed;
+		long dropped;
+		int queued;
+		final long[] latency = new long[ZeroConfStats.HISTOGRAM_BUCKETS];
+	}
+
+	private final long[] events = new long[ZeroConfStats.EVENT_KINDS];
+
+	private int queueDepth = 0;
+
+	private int maxQueueDepth = 0;
+
+	/** Callback counters by connection serial, in order of connection */
+	private final LinkedHashMap<Integer, Callbacks> callbacks
+	= new LinkedHashMap<Integer, Callbacks>();
+
+	private final long[] deliveryLatency = new long[ZeroConfStats.HISTOGRAM_BUCKETS];
+
+	private final long[] resolveLatency = new long[ZeroConfStats.HISTOGRAM_BUCKETS];
+
+	/**
+	 * Count a discovery event about to be queued
+	 *
+	 * @param kind one of the ZeroConfStats.EVENT_* constants
+	 */
+	synchronized void eventQueued(int kind) {
+		events[kind]++;
+		queueDepth++;
+		maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+	}
+
+	/** Count a discovery event taken off the queue */
+	synchronized void eventDequeued() {
+		queueDepth = Math.max(0, queueDepth - 1);
+	}
+
+	/**
+	 * Start counting callbacks of a connection
+	 *
+	 * @param connection serial of the connection
+	 */
+	synchronized void connectionOpened(int connection) {
+		callbacks.put(connection, new Callbacks());
+	}
+
+	/**
+	 * Count a callback to a connection
+	 *
+	 * @param connection serial of the connection
+	 * @param success false if the callback failed
+	 */
+	synchronized void callback(int connection, boolean success) {
+		Callbacks c = callbacks.get(connection);
+		if(c == null) {
+			// closed in the meantime
+			return;
+		}
+		if(success) {
+			c.sent++;
+		} else {
+			c.failed++;
+		}
+	}
+
+	/**
+	 * Count a change dropped from the queue of a connection
+	 *
+	 * @param connection serial of the connection
+	 */
+	synchronized void dropped(int connection) {
+		Callbacks c = callbacks.get(connection);
+		if(c != null) {
+			c.dropped++;
+		}
+	}
+
+	/**
+	 * Take note of the queue depth of a connection
+	 *
+	 * @param connection serial of the connection
+	 * @param depth changes waiting to be sent
+	 */
+	synchronized void queued(int connection, int depth) {
+		Callbacks c = callbacks.get(connection);
+		if(c != null) {
+			c.queued = depth;
+		}
+	}
+
+	/**
+	 * Forget the counters of a connection
+	 *
+	 * @param connection serial of the connection
+	 */
+	synchronized void connectionClosed(int connection) {
+		callbacks.remove(connection);
+	}
+
+	/**
+	 * Record the time a change took to reach a client
+	 *
+	 * @param connection serial of the connection
+	 * @param millis
+	 */
+	synchronized void delivered(int connection, long millis) {
+		int bucket = ZeroConfStats.bucketOf(millis);
+		deliveryLatency[bucket]++;
+		Callbacks c = callbacks.get(connection);
+		if(c != null) {
+			c.latency[bucket]++;
+		}
+	}
+
+	/**
+	 * Record the time details of a service took to arrive
+	 *
+	 * @param millis
+	 */
+	synchronized void resolved(long millis) {
+		resolveLatency[ZeroConfStats.bucketOf(millis)]++;
+	}
+
+	/**
+	 * Take a snapshot
+	 *
+	 * @param services registry snapshot to count services of
+	 * @param now time of the snapshot
+	 * @return a new snapshot
+	 */
+	ZeroConfStats snapshot(SrvRegistry.Snapshot services, long now) {
+		ZeroConfStats s = new ZeroConfStats();
+		s.collectedAt = now;
+
+		ArrayList<String> types = new ArrayList<String>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		for(Map.Entry<String, List<Srv>> e : services.servicesByType.entrySet()) {
+			types.add(e.getKey());
+			counts.add(e.getValue().size());
+		}
+		s.types = types.toArray(new String[types.size()]);
+		s.typeCounts = new int[counts.size()];
+		for(int i = 0; i < s.typeCounts.length; i++) {
+			s.typeCounts[i] = counts.get(i);
+		}
+
+		synchronized(this) {
+			s.events = events.clone();
+			s.queueDepth = queueDepth;
+			s.maxQueueDepth = maxQueueDepth;
+			s.connections = new int[callbacks.size()];
+			s.callbacksSent = new long[callbacks.size()];
+			s.callbacksFailed = new long[callbacks.size()];
+			s.connectionDropped = new long[callbacks.size()];
+			s.connectionQueued = new int[callbacks.size()];
+			s.connectionLatency = new long[callbacks.size() * ZeroConfStats.HISTOGRAM_BUCKETS];
+			int i = 0;
+			for(Map.Entry<Integer, Callbacks> e : callbacks.entrySet()) {
+				Callbacks c = e.getValue();
+				s.connections[i] = e.getKey();
+				s.callbacksSent[i] = c.sent;
+				s.callbacksFailed[i] = c.failed;
+				s.connectionDropped[i] = c.dropped;
+				s.connectionQueued[i] = c.queued;
+				System.arraycopy(c.latency, 0, s.connectionLatency,
+						i * ZeroConfStats.HISTOGRAM_BUCKETS, ZeroConfStats.HISTOGRAM_BUCKETS);
+				i++;
+			}
+			s.deliveryLatency = deliveryLatency.clone();
+			s.resolveLatency = resolveLatency.clone();
+		}
+		return s;
+	}
+
+}
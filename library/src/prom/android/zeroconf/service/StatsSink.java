@@ -0,0 +1,24 @@
+package prom.android.zeroconf.service;
+
+import prom.android.zeroconf.model.ZeroConfStats;
+
+/**
+ * Receiver of periodic metrics snapshots
+ *
+ * Install one with ZeroConfService.setStatsSink() to feed
+ * metrics into a log, a file or whatever the application
+ * uses for monitoring. Called on the event thread of the
+ * service, so it should not block.
+ *
+ * @author prom
+ */
+public interface StatsSink {
+
+	/**
+	 * Take a snapshot
+	 *
+	 * @param stats snapshot owned by the sink
+	 */
+	void statsCollected(ZeroConfStats stats);
+
+}
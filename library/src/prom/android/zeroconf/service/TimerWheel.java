@@ -0,0 +1,203 @@
+package prom.android.zeroconf.service;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel
+ *
+ * Keeps any number of timeouts in a fixed ring of buckets,
+ * one bucket per tick. Scheduling and cancelling are O(1),
+ * advancing costs one bucket per elapsed tick, so tens of
+ * thousands of record expiries need no timer of their own.
+ *
+ * Deadlines are rounded up to the next tick. The wheel is
+ * not thread-safe, it must be owned by a single thread.
+ *
+ * @author prom
+ */
+class TimerWheel<T> {
+
+	/** Receiver of expired timeouts */
+	interface Callback<T> {
+		void expired(T item, long now);
+	}
+
+	/** A scheduled timeout, usable for cancellation */
+	static final class Timeout<T> {
+		final T item;
+		long deadlineTick;
+		int bucket = -1;
+		/** Unlinked and about to expire in the current advance */
+		boolean due = false;
+		Timeout<T> prev;
+		Timeout<T> next;
+
+		Timeout(T item) {
+			this.item = item;
+		}
+
+		boolean isScheduled() {
+			return bucket >= 0;
+		}
+	}
+
+	private final long tickMillis;
+
+	private final int mask;
+
+	private final Timeout<T>[] buckets;
+
+	/** Last tick that has been processed */
+	private long currentTick;
+
+	private int size = 0;
+
+	/** Timeouts expiring in the current advance, reused */
+	private final ArrayList<Timeout<T>> due
+	= new ArrayList<Timeout<T>>();
+
+	/**
+	 * Create a wheel
+	 *
+	 * @param tickMillis resolution of the wheel
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 * @param now current time
+	 */
+	TimerWheel(long tickMillis, int wheelSize, long now) {
+		int n = 1;
+		while(n < wheelSize) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.mask = n - 1;
+		this.buckets = newBuckets(n);
+		this.currentTick = now / tickMillis;
+	}
+
+	/** Arrays of generic types can only be created raw, this one never escapes */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> Timeout<T>[] newBuckets(int n) {
+		return new Timeout[n];
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Schedule an item
+	 *
+	 * @param item
+	 * @param deadline time at which the item expires
+	 * @return a timeout handle for the item
+	 */
+	Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> t = new Timeout<T>(item);
+		reschedule(t, deadline);
+		return t;
+	}
+
+	/**
+	 * Move a timeout to a new deadline
+	 *
+	 * Works for both scheduled and expired timeouts.
+	 *
+	 * @param t
+	 * @param deadline
+	 */
+	void reschedule(Timeout<T> t, long deadline) {
+		cancel(t);
+		long tick = (deadline + tickMillis - 1) / tickMillis;
+		if(tick <= currentTick) {
+			tick = currentTick + 1;
+		}
+		t.deadlineTick = tick;
+		t.bucket = (int)(tick & mask);
+		t.prev = null;
+		t.next = buckets[t.bucket];
+		if(t.next != null) {
+			t.next.prev = t;
+		}
+		buckets[t.bucket] = t;
+		size++;
+	}
+
+	/**
+	 * Cancel a timeout
+	 *
+	 * Does nothing if the timeout is not scheduled.
+	 *
+	 * @param t
+	 */
+	void cancel(Timeout<T> t) {
+		t.due = false;
+		if(t.bucket < 0) {
+			return;
+		}
+		if(t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			buckets[t.bucket] = t.next;
+		}
+		if(t.next != null) {
+			t.next.prev = t.prev;
+		}
+		t.prev = null;
+		t.next = null;
+		t.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Expire everything due up to the given time
+	 *
+	 * The callback may schedule and cancel freely,
+	 * new timeouts will never expire in the same call.
+	 *
+	 * @param now
+	 * @param callback
+	 * @return number of expired timeouts
+	 */
+	int advance(long now, Callback<T> callback) {
+		long target = now / tickMillis;
+		if(target <= currentTick) {
+			return 0;
+		}
+		long from = currentTick;
+		long steps = Math.min(target - from, buckets.length);
+		currentTick = target;
+
+		// unlink everything first so callbacks can not disturb iteration
+		for(long i = 1; i <= steps; i++) {
+			int b = (int)((from + i) & mask);
+			Timeout<T> t = buckets[b];
+			while(t != null) {
+				Timeout<T> next = t.next;
+				if(t.deadlineTick <= target) {
+					cancel(t);
+					t.due = true;
+					due.add(t);
+				}
+				t = next;
+			}
+		}
+
+		int expired = 0;
+		for(int i = 0; i < due.size(); i++) {
+			Timeout<T> t = due.get(i);
+			// skip timeouts cancelled or rescheduled by an earlier callback
+			if(t.due) {
+				t.due = false;
+				callback.expired(t.item, now);
+				expired++;
+			}
+		}
+		due.clear();
+		return expired;
+	}
+
+}
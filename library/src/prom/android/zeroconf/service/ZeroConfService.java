@@ -1,22 +1,29 @@
 package prom.android.zeroconf.service;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Vector;
-
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceEvent;
-import javax.jmdns.ServiceListener;
-import javax.jmdns.ServiceTypeListener;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import prom.android.zeroconf.client.IZeroConfClient;
+import prom.android.zeroconf.model.ZeroConfFilter;
 import prom.android.zeroconf.model.ZeroConfRecord;
+import prom.android.zeroconf.model.ZeroConfRecordDelta;
+import prom.android.zeroconf.model.ZeroConfStats;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -26,22 +33,100 @@ import android.net.ConnectivityManager;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.MulticastLock;
+import android.os.DeadObjectException;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class ZeroConfService extends Service implements Runnable {
+public class ZeroConfService extends Service {
 
 	public final static String TAG = ZeroConfService.class.toString();
 
 	public final static String MULTICAST_LOCK_TAG = ZeroConfService.class.toString();
 
+	/** Discovery backend based on JmDNS, the default */
+	public final static String BACKEND_JMDNS = "jmdns";
+
+	/** Lightweight discovery-only backend speaking multicast DNS directly */
+	public final static String BACKEND_NATIVE = "native";
+
 	private final static int NOTIFY_TYPE_ADDED = 1;
 	private final static int NOTIFY_SERVICE_ADDED = 2;
 	private final static int NOTIFY_SERVICE_REMOVED = 3;
 	private final static int NOTIFY_SERVICE_RESOLVED = 4;
+	private final static int NOTIFY_CACHE_LOADED = 6;
+	private final static int NOTIFY_CACHE_EXPIRE = 7;
+	private final static int NOTIFY_EXPIRY_TICK = 8;
+	private final static int NOTIFY_SERVICE_REFRESHED = 9;
+	private final static int NOTIFY_RESOLVE_TIMEOUT = 10;
+	private final static int NOTIFY_STATS = 11;
+	private final static int NOTIFY_EVENTS = 12;
+	private final static int NOTIFY_DISCOVERY_STOPPED = 13;
+
+	/** Events processed before other messages of the event thread get a turn */
+	private final static int MAX_EVENTS_PER_WAKEUP = 256;
+
+	/** Time window during which batched updates get coalesced */
+	private final static long BATCH_WINDOW_MILLIS = 250;
+
+	/** Maximum number of records per batch transaction */
+	private final static int BATCH_MAX_RECORDS = 64;
+
+	/** Maximum number of changes queued for a client before dropping */
+	private final static int MAX_QUEUED_CHANGES = 1024;
+
+	/** Number of threads delivering to clients */
+	private final static int DISPATCHER_THREADS = 2;
+
+	/** Number of changes clients can catch up on after reconnecting */
+	private final static int CHANGE_LOG_SIZE = 4096;
+
+	/** Changes from which clients taking snapshots get one instead */
+	private final static int SNAPSHOT_MIN_CHANGES = 256;
+
+	/** Time after which cached records not seen live get dropped */
+	private final static long CACHE_CONFIRM_MILLIS = 10000;
+
+	/** Resolution of the expiry wheel */
+	private final static long EXPIRY_TICK_MILLIS = 1000;
+
+	/** Buckets of the expiry wheel, covering one default TTL */
+	private final static int EXPIRY_WHEEL_SIZE = 128;
+
+	/** Default number of resolutions in flight at the same time */
+	private final static int DEFAULT_MAX_RESOLVES = 4;
+
+	/** Time after which a resolution is given up and retried */
+	private final static long RESOLVE_TIMEOUT_MILLIS = 3000;
+
+	/** Queue overflows and failed callbacks in a row after which a client gets quarantined */
+	private final static int QUARANTINE_STRIKES = 3;
+
+	/** Time of the first quarantine of a client */
+	private final static long QUARANTINE_MIN_MILLIS = 5000;
+
+	/** Limit for quarantines growing with each failed try */
+	private final static long QUARANTINE_MAX_MILLIS = 5 * 60 * 1000;
+
+	/** Interval of snapshots for the stats sink */
+	private final static long STATS_INTERVAL_MILLIS = 10000;
+
+	/** Services waiting for or in a reachability probe, more get left alone */
+	private final static int MAX_PROBES = 16;
+
+	/** Closed connections kept for rebinding, the oldest go first */
+	private final static int MAX_CLOSED_CONNECTIONS = 32;
+
+	/** Time after which a closed connection is not expected back */
+	private final static long CLOSED_RETAIN_MILLIS = 5 * 60 * 1000;
+
+	/** Receiver of periodic metrics snapshots, null for none */
+	private static volatile StatsSink statsSink;
 
 	WifiManager wifiManager;
 
@@ -49,18 +134,77 @@ public class ZeroConfService extends Service implements Runnable {
 
 	MulticastLock multicastLock;
 
-	JmDNS mDNS;
+	/** Running discovery backend, null while stopped */
+	DiscoveryBackend backend;
+
+	/** Links discovery runs on, owned by the discovery thread */
+	List<DiscoveryLink> backendLinks;
+
+	/** Name of the backend to use, owned by the discovery thread */
+	String backendName = BACKEND_JMDNS;
+
+	SrvRegistry registry = new SrvRegistry();
+
+	/** Latest changes to the registry, for clients catching up */
+	ChangeLog changeLog = new ChangeLog(CHANGE_LOG_SIZE);
+
+	/** Snapshot of the registry shared with clients */
+	SnapshotStore snapshots;
+
+	/** All open client connections */
+	CopyOnWriteArraySet<Connection> connections
+	= new CopyOnWriteArraySet<Connection>();
+
+	/** Closed connections whose binders Android may hand out again, by uptime closed */
+	LinkedHashMap<Connection, Long> closedConnections
+	= new LinkedHashMap<Connection, Long>();
+
+	CopyOnWriteArraySet<Connection> subscribeAllClients
+	= new CopyOnWriteArraySet<Connection>();
+
+	CopyOnWriteArraySet<Connection> filteredClients
+	= new CopyOnWriteArraySet<Connection>();
 
-	Hashtable<String, SrvType> allTypesByName = new Hashtable<String, SrvType>();
+	HandlerThread discoveryThread;
+	Handler discoveryHandler;
 
-	Vector<Srv> allServices = new Vector<Srv>();
+	/** Thread processing discovery events, the single writer of the registry */
+	HandlerThread eventThread;
 
-	Vector<Connection> subscribeAllClients = new Vector<Connection>();
+	/** Events posted by the backend, waiting for the event thread */
+	EventInbox inbox = new EventInbox();
 
-	int allTypeSubscriptions;
+	DiscoveryStateMachine discoveryState;
 
-	Thread serviceThread;
-	boolean serviceShutdownRequested = false;
+	SrvCache cache;
+
+	/** Network the cache was loaded for, owned by the discovery thread */
+	String cacheNetwork;
+
+	/** Services published by clients, owned by the discovery thread */
+	SrvPublisher publisher;
+
+	/** Expiry timers of all live services, owned by the event thread */
+	SrvExpiry expiry;
+
+	/** Orders the addresses of services */
+	AddressRanker addressRanker;
+
+	/** Runs reachability probes */
+	ExecutorService prober;
+
+	/** Drains the queues of client connections */
+	ScheduledExecutorService dispatcher;
+
+	/** Keys of services being probed, owned by the event thread */
+	HashSet<String> probing = new HashSet<String>();
+
+	/** Metrics of this service */
+	StatsCollector stats = new StatsCollector();
+
+	/** Services waiting for resolution, owned by the event thread */
+	ResolveQueue resolveQueue
+	= new ResolveQueue(DEFAULT_MAX_RESOLVES, RESOLVE_TIMEOUT_MILLIS);
 
 	@Override
 	public void onCreate() {
@@ -70,372 +214,860 @@ public class ZeroConfService extends Service implements Runnable {
 		Log.d(TAG, "Getting wifi manager");
 		wifiManager = (WifiManager)getSystemService(WIFI_SERVICE);
 
+		Log.d(TAG, "Starting event thread");
+		eventThread = new HandlerThread(TAG + " events");
+		eventThread.start();
+		updateNotify = new EventHandler(eventThread.getLooper());
+
+		Log.d(TAG, "Starting discovery thread");
+		discoveryThread = new HandlerThread(TAG);
+		discoveryThread.start();
+		discoveryHandler = new Handler(discoveryThread.getLooper());
+		publisher = new SrvPublisher(discoveryHandler);
+		discoveryState = new DiscoveryStateMachine(
+				linkState, clock, discoveryScheduler, discoveryActions);
+
+		expiry = new SrvExpiry(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, clock.now(), new Random());
+
+		addressRanker = new AddressRanker(clock);
+		prober = Executors.newSingleThreadExecutor();
+		dispatcher = Executors.newScheduledThreadPool(DISPATCHER_THREADS);
+
+		updateNotify.sendEmptyMessageDelayed(NOTIFY_STATS, STATS_INTERVAL_MILLIS);
+
+		Log.d(TAG, "Loading service cache");
+		cache = new SrvCache(new File(getCacheDir(), "zeroconf"));
+		snapshots = new SnapshotStore(new File(getCacheDir(), "snapshots"));
+		snapshots.clear();
+		discoveryHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				loadCache();
+			}
+		});
+
 		Log.d(TAG, "Registering connection state listener");
 		connectionStateListener = new ConnectionStateListener();
-		registerReceiver(connectionStateListener,
-				new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+		registerReceiver(connectionStateListener, filter);
 
-		Log.d(TAG, "Starting service thread");
-		serviceThread = new Thread(this);
-		serviceThread.start();
+		onConnectivityChange();
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.d(TAG, "Destroying service");
 
-		Log.d(TAG, "Shutting down service thread");
-		serviceShutdownRequested = true;
-		boolean joined = false;
-		while(!joined) {
-			try {
-				serviceThread.interrupt();
-				serviceThread.join();
-				joined = true;
-			} catch (InterruptedException e) {
-			}
-		}
-		
 		Log.d(TAG, "Unregistering connection state listener");
 		unregisterReceiver(connectionStateListener);
 
+		updateNotify.removeMessages(NOTIFY_STATS);
+
+		Log.d(TAG, "Closing connections");
+		for(Connection c : connections) {
+			c.close();
+		}
+
+		Log.d(TAG, "Shutting down prober");
+		prober.shutdownNow();
+
+		Log.d(TAG, "Shutting down dispatcher");
+		dispatcher.shutdownNow();
+		snapshots.clear();
+
+		Log.d(TAG, "Shutting down discovery thread");
+		discoveryHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				discoveryState.shutdown();
+				publisher.shutdown();
+				discoveryThread.quit();
+				eventThread.quit();
+			}
+		});
+
 		super.onDestroy();
 	}
 
 	@Override
 	public IBinder onBind(Intent intent) {
 		Log.d(TAG, "Binding connection " + intent);
-		return new Connection(intent);
+		Connection c = new Connection(intent);
+		connections.add(c);
+		return c;
 	}
 
-	private void onWifiChange() {
-		serviceThread.interrupt();
+	/**
+	 * Close connections when their clients unbind
+	 * 
+	 * Android shares one binder between all clients
+	 * binding with equal intents, so this only gets
+	 * called once the last of them is gone.
+	 */
+	@Override
+	public boolean onUnbind(Intent intent) {
+		Log.d(TAG, "Unbinding connection " + intent);
+		for(Connection c : connections) {
+			if(c.connectionIntent.filterEquals(intent)) {
+				c.close();
+			}
+		}
+		// the binder stays cached, have it reopened on rebind
+		return true;
 	}
 
-	public void run() {
-		int lastWifiState = WifiManager.WIFI_STATE_UNKNOWN;
-		// loop until shutdown
-		while(!serviceShutdownRequested) {
-			// depending on wifi connection
-			int currentWifiState = wifiManager.getWifiState();
-			if(currentWifiState != lastWifiState) {
-				if(currentWifiState == WifiManager.WIFI_STATE_ENABLED) {
-					startDiscovery();
-				} else {
-					stopDiscovery();
+	@Override
+	public void onRebind(Intent intent) {
+		Log.d(TAG, "Rebinding connection " + intent);
+		ArrayList<Connection> rebound = new ArrayList<Connection>();
+		synchronized(closedConnections) {
+			for(Connection c : closedConnections.keySet()) {
+				if(c.connectionIntent.filterEquals(intent)) {
+					rebound.add(c);
 				}
 			}
-			lastWifiState = currentWifiState;
-			// idle wait
-			try {
-				Thread.sleep(15000);
-			} catch (InterruptedException e) {
-				// ignored
+		}
+		for(Connection c : rebound) {
+			c.reopen();
+		}
+	}
+
+	/**
+	 * Remember a closed connection for rebinding
+	 * 
+	 * Clients mostly bind with intents of their own that
+	 * never come back, so connections are only kept for
+	 * a while and only so many of them.
+	 */
+	private void retainClosed(Connection c) {
+		long now = SystemClock.uptimeMillis();
+		synchronized(closedConnections) {
+			closedConnections.put(c, now);
+			Iterator<Long> it = closedConnections.values().iterator();
+			while(it.hasNext()) {
+				long closedAt = it.next();
+				if(closedConnections.size() <= MAX_CLOSED_CONNECTIONS
+						&& now - closedAt < CLOSED_RETAIN_MILLIS) {
+					break;
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Install a receiver of periodic metrics snapshots
+	 * 
+	 * Applies to all instances of the service. Snapshots
+	 * can also be pulled by clients through getStats().
+	 * 
+	 * @param sink a sink, or null to stop sending snapshots
+	 */
+	public static void setStatsSink(StatsSink sink) {
+		statsSink = sink;
+	}
+
+	private void onConnectivityChange() {
+		discoveryHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				discoveryState.onConnectivityChanged();
+				checkLinks();
 			}
+		});
+	}
+
+	/**
+	 * Restart discovery if the set of links changed
+	 * 
+	 * Interfaces come and go while discovery is running,
+	 * like when tethering gets switched on.
+	 */
+	private void checkLinks() {
+		if(backend == null) {
+			return;
+		}
+		List<DiscoveryLink> links = DiscoveryLink.findAll();
+		if(!links.isEmpty() && !links.equals(backendLinks)) {
+			Log.d(TAG, "Links changed to " + links);
+			stopDiscovery();
+			startDiscovery();
 		}
 	}
 
-	private void startDiscovery() {
+	/**
+	 * Connectivity as seen by the discovery state machine
+	 * 
+	 * Any link will do, not just wifi.
+	 */
+	private final DiscoveryStateMachine.LinkState linkState
+	= new DiscoveryStateMachine.LinkState() {
+		@Override
+		public boolean hasLinks() {
+			return !DiscoveryLink.findAll().isEmpty();
+		}
+	};
+
+	/** Monotonic clock for the discovery state machine */
+	private final DiscoveryStateMachine.Clock clock
+	= new DiscoveryStateMachine.Clock() {
+		@Override
+		public long now() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	/** Scheduler running state machine timers on the discovery thread */
+	private final DiscoveryStateMachine.Scheduler discoveryScheduler
+	= new DiscoveryStateMachine.Scheduler() {
+		@Override
+		public void schedule(Runnable task, long delayMillis) {
+			discoveryHandler.postDelayed(task, delayMillis);
+		}
+		@Override
+		public void cancel(Runnable task) {
+			discoveryHandler.removeCallbacks(task);
+		}
+	};
+
+	/** Transition actions of the discovery state machine */
+	private final DiscoveryStateMachine.Actions discoveryActions
+	= new DiscoveryStateMachine.Actions() {
+		@Override
+		public boolean startDiscovery() {
+			return ZeroConfService.this.startDiscovery();
+		}
+		@Override
+		public void stopDiscovery() {
+			ZeroConfService.this.stopDiscovery();
+		}
+	};
+
+	private boolean startDiscovery() {
 		Log.d(TAG, "Attempting to start discovery");
 
-		JmDNS cur = mDNS;
+		DiscoveryBackend cur = backend;
 		if(cur != null) {
 			Log.d(TAG, "Discovery already running");
-			return;
+			return true;
 		}
 		
 		Log.d(TAG, "Creating multicast lock");
 		multicastLock = wifiManager.createMulticastLock(MULTICAST_LOCK_TAG);
 		multicastLock.setReferenceCounted(true);
 
-		Log.d(TAG, "Getting wifi state");
-		if(wifiManager.getWifiState() != WifiManager.WIFI_STATE_ENABLED) {
-			Log.d(TAG, "Wifi state is not enabled");
-			return;
+		Log.d(TAG, "Finding links");
+		List<DiscoveryLink> links = DiscoveryLink.findAll();
+		if(links.isEmpty()) {
+			Log.d(TAG, "No link to run discovery on");
+			return false;
 		}
 
-		Log.d(TAG, "Getting connection info");
-		WifiInfo connInfo = wifiManager.getConnectionInfo();
-		if(connInfo == null) {
-			Log.d(TAG, "Failed to get connection info");
-			return;
+		loadCache();
+
+		// the lock only matters on wifi, but does no harm elsewhere
+		Log.d(TAG, "Acquiring multicast lock");
+		multicastLock.acquire();
+
+		Log.d(TAG, "Starting discovery on " + links);
+		cur = createBackend(links);
+		if(!cur.start(backendListener)) {
+			multicastLock.release();
+			return false;
 		}
+		backend = cur;
+		backendLinks = links;
+		publisher.start(cur);
 
-		// XXX ugly
-		int myRawAddress = connInfo.getIpAddress();
-		byte[] myAddressBytes = new byte[] {
-				(byte) (myRawAddress & 0xff),
-				(byte) (myRawAddress >> 8 & 0xff),
-				(byte) (myRawAddress >> 16 & 0xff),
-				(byte) (myRawAddress >> 24 & 0xff)
-		};
+		armCacheExpiry();
 
-		InetAddress myAddress;
-		try {
-			myAddress = InetAddress.getByAddress(myAddressBytes);
-		} catch (UnknownHostException e) {
-			Log.d(TAG, "Failed to get address: " + e.toString());
+		return true;
+	}
+
+	/**
+	 * Create the backend used for discovery
+	 * 
+	 * @param links links to run on, each gets a backend of its own
+	 * @return a backend, not started yet
+	 */
+	DiscoveryBackend createBackend(List<DiscoveryLink> links) {
+		final boolean lean = BACKEND_NATIVE.equals(backendName);
+		return new MultiLinkBackend(links, new MultiLinkBackend.Factory() {
+			@Override
+			public DiscoveryBackend create(DiscoveryLink link) {
+				if(lean) {
+					return new NativeBackend(link, clock);
+				}
+				return new JmDNSBackend(link.address);
+			}
+		});
+	}
+
+	/**
+	 * Switch to another discovery backend
+	 * 
+	 * Restarts discovery if it is running.
+	 * 
+	 * @param name one of the BACKEND_* constants
+	 */
+	private void switchBackend(String name) {
+		if(!BACKEND_JMDNS.equals(name) && !BACKEND_NATIVE.equals(name)) {
+			Log.d(TAG, "Unknown backend " + name);
 			return;
 		}
+		if(name.equals(backendName)) {
+			return;
+		}
+		Log.d(TAG, "Switching to backend " + name);
+		backendName = name;
+		if(backend != null) {
+			stopDiscovery();
+			startDiscovery();
+		}
+	}
 
-		Log.d(TAG, "My address is " + myAddress.toString());
-
-		Log.d(TAG, "Acquiring multicast lock");
-		multicastLock.acquire();
+	/** Listener forwarding backend events to the event thread */
+	private final DiscoveryBackend.Listener backendListener
+	= new DiscoveryBackend.Listener() {
+		@Override
+		public void typeAdded(String type) {
+			stats.eventQueued(ZeroConfStats.EVENT_TYPE_ADDED);
+			postEvent(NOTIFY_TYPE_ADDED, type, 0);
+		}
+		@Override
+		public void serviceAdded(ZeroConfRecord r) {
+			stats.eventQueued(ZeroConfStats.EVENT_SERVICE_ADDED);
+			postEvent(NOTIFY_SERVICE_ADDED, r, 0);
+		}
+		@Override
+		public void serviceRemoved(ZeroConfRecord r) {
+			stats.eventQueued(ZeroConfStats.EVENT_SERVICE_REMOVED);
+			postEvent(NOTIFY_SERVICE_REMOVED, r, 0);
+		}
+		@Override
+		public void serviceResolved(ZeroConfRecord r, int ttlSeconds) {
+			stats.eventQueued(ZeroConfStats.EVENT_SERVICE_RESOLVED);
+			postEvent(NOTIFY_SERVICE_RESOLVED, r, ttlSeconds);
+		}
+		@Override
+		public void serviceRefreshed(String key, int ttlSeconds) {
+			stats.eventQueued(ZeroConfStats.EVENT_SERVICE_REFRESHED);
+			postEvent(NOTIFY_SERVICE_REFRESHED, key, ttlSeconds);
+		}
+	};
 
-		Log.d(TAG, "Starting discovery on address " + myAddress);
-		try {
-			mDNS = JmDNS.create(myAddress);
-			mDNS.addServiceTypeListener(new SrvTypeListener());
-		} catch (IOException e) {
-			Log.d(TAG, "Failed to start discovery: " + e.toString());
-			mDNS = null;
-			multicastLock.release();
+	/**
+	 * Post an event to the event thread
+	 * 
+	 * Never blocks, the thread only gets a message
+	 * when it has run out of events.
+	 * 
+	 * @param what one of the NOTIFY_* constants
+	 * @param obj
+	 * @param arg
+	 */
+	private void postEvent(int what, Object obj, int arg) {
+		if(inbox.post(what, obj, arg, SystemClock.uptimeMillis())) {
+			updateNotify.sendEmptyMessage(NOTIFY_EVENTS);
 		}
 	}
 
 	private void stopDiscovery() {
 		Log.d(TAG, "Attempting to stop discovery");
 
-		JmDNS cur = mDNS;
+		DiscoveryBackend cur = backend;
 		if(cur == null) {
 			Log.d(TAG, "Discovery not running");
 			return;
 		}
-		mDNS = null;
+		backend = null;
+		backendLinks = null;
+
+		saveCache();
+
+		Log.d(TAG, "Withdrawing published services");
+		publisher.stop();
+
+		Log.d(TAG, "Shutting down backend");
+		cur.stop();
+		addressRanker.clear();
+
+		// after the last event of the backend
+		postEvent(NOTIFY_DISCOVERY_STOPPED, null, 0);
+
+		Log.d(TAG, "Releasing multicast lock");
+		multicastLock.release();
+	}
+
+	/**
+	 * Load cached records for the current network
+	 * 
+	 * Does nothing if the cache for this network has
+	 * already been loaded. Runs on the discovery thread.
+	 */
+	private void loadCache() {
+		String network = currentNetwork();
+		if(network == null || network.equals(cacheNetwork)) {
+			return;
+		}
+		cacheNetwork = network;
+
+		List<ZeroConfRecord> records = cache.load(network);
+		Log.d(TAG, "Loaded " + records.size() + " cached records for " + network);
+		if(!records.isEmpty()) {
+			Message m = Message.obtain(updateNotify, NOTIFY_CACHE_LOADED, records);
+			updateNotify.sendMessage(m);
+		}
+	}
+
+	/**
+	 * Identify the network we are on
+	 * 
+	 * Wifi networks are identified by their access point,
+	 * other links by their prefixes.
+	 * 
+	 * @return network key or null if not identifiable
+	 */
+	private String currentNetwork() {
+		String ssid = null;
+		String bssid = null;
+		if(wifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED) {
+			WifiInfo connInfo = wifiManager.getConnectionInfo();
+			if(connInfo != null) {
+				ssid = connInfo.getSSID();
+				bssid = connInfo.getBSSID();
+			}
+		}
+		return SrvCache.networkKey(ssid, bssid, DiscoveryLink.findAll());
+	}
 
-		Log.d(TAG, "Removing all services");
-		Collection<SrvType> types = allTypesByName.values();
-		Iterator<SrvType> i = types.iterator();
-		while(i.hasNext()) {
-			SrvType t = i.next();
-			t.removeAllSrv();
+	/**
+	 * Store confirmed records for the current network
+	 * 
+	 * Runs on the discovery thread.
+	 */
+	private void saveCache() {
+		String network = cacheNetwork;
+		if(network == null) {
+			return;
 		}
+		cacheNetwork = null;
 
-		Log.d(TAG, "Shutting down listener");
+		ArrayList<ZeroConfRecord> records = new ArrayList<ZeroConfRecord>();
+		for(Srv s : registry.getServices()) {
+			ZeroConfRecord r = s.getRecord();
+			if(s.resolved && !r.stale) {
+				records.add(r);
+			}
+		}
 		try {
-			cur.close();
+			cache.save(network, records);
+			Log.d(TAG, "Saved " + records.size() + " records for " + network);
 		} catch (IOException e) {
-			// XXX do we care?
+			Log.d(TAG, "Failed to save cache: " + e.toString());
 		}
+	}
 
-		Log.d(TAG, "Releasing multicast lock");
-		multicastLock.release();
+	/** (Re)start the time cached records have to get confirmed */
+	private void armCacheExpiry() {
+		updateNotify.removeMessages(NOTIFY_CACHE_EXPIRE);
+		updateNotify.sendEmptyMessageDelayed(NOTIFY_CACHE_EXPIRE, CACHE_CONFIRM_MILLIS);
 	}
 
 	/**
-	 * Message handler for updates from JmDNS
+	 * Message handler of the event thread
 	 * 
-	 * This gets fed from the listeners we install
-	 * in JmDNS, collecting discovered things into
-	 * our service-global database.
+	 * Processes events from the backend, collecting
+	 * discovered things into our service-global database,
+	 * as well as timers and work posted by clients.
 	 * 
 	 */
-	private Handler updateNotify = new Handler() {
+	Handler updateNotify;
+
+	private class EventHandler extends Handler {
+
+		EventHandler(Looper looper) {
+			super(looper);
+		}
+
 		@Override
 		public void handleMessage(Message msg) {
+			if(msg.what == NOTIFY_EVENTS) {
+				if(inbox.drain(eventConsumer, MAX_EVENTS_PER_WAKEUP)) {
+					sendEmptyMessage(NOTIFY_EVENTS);
+				}
+			} else if(msg.what == NOTIFY_CACHE_LOADED) {
+				@SuppressWarnings("unchecked")
+				List<ZeroConfRecord> records = (List<ZeroConfRecord>)msg.obj;
+				for(ZeroConfRecord r : records) {
+					if(registry.getSrv(r.key) == null) {
+						addSrv(new Srv(r));
+					}
+				}
+				armCacheExpiry();
+			} else if(msg.what == NOTIFY_CACHE_EXPIRE) {
+				for(Srv s : registry.getServices()) {
+					if(s.isStale() && registry.removeSrv(s.key) != null) {
+						Log.d(TAG, "Expiring cached svc " + s.name);
+						resolveQueue.remove(s.key);
+						notifyRemove(registry.ensureType(s.type), s);
+					}
+				}
+			} else if(msg.what == NOTIFY_EXPIRY_TICK) {
+				expiry.advance(clock.now(), expiryCallback);
+				if(expiry.size() > 0) {
+					sendEmptyMessageDelayed(NOTIFY_EXPIRY_TICK, EXPIRY_TICK_MILLIS);
+				}
+			} else if(msg.what == NOTIFY_STATS) {
+				StatsSink sink = statsSink;
+				if(sink != null) {
+					sink.statsCollected(stats.snapshot(registry.snapshot(), clock.now()));
+				}
+				sendEmptyMessageDelayed(NOTIFY_STATS, STATS_INTERVAL_MILLIS);
+			} else if(msg.what == NOTIFY_RESOLVE_TIMEOUT) {
+				if(resolveQueue.expire(clock.now()) > 0) {
+					Log.d(TAG, "Resolutions timed out, " + resolveQueue.size() + " waiting");
+				}
+				dispatchResolves();
+			}
+		}
+	}
+
+	/** Processor of the events posted by the backend */
+	private final EventInbox.Consumer eventConsumer = new EventInbox.Consumer() {
+		@Override
+		public void event(EventInbox.Event ev) {
 			SrvType t;
-			if(msg.what == NOTIFY_TYPE_ADDED) {
-				String name = (String)msg.obj;
-				t = ensureType(name);
-				allTypesByName.put(t.typeName, t);
+			if(ev.what != NOTIFY_DISCOVERY_STOPPED) {
+				stats.eventDequeued();
+			}
+			if(ev.what == NOTIFY_DISCOVERY_STOPPED) {
+				Log.d(TAG, "Removing all services");
+				for(Srv s : registry.removeAllSrv()) {
+					expiry.cancel(s);
+					notifyRemove(registry.ensureType(s.type), s);
+				}
+				resolveQueue.clear();
+				updateNotify.removeMessages(NOTIFY_RESOLVE_TIMEOUT);
+			} else if(ev.what == NOTIFY_SERVICE_REFRESHED) {
+				Srv s = registry.getSrv((String)ev.obj);
+				if(s != null && s.resolved) {
+					touchSrv(s, ev.arg);
+				}
+			} else if(ev.what == NOTIFY_TYPE_ADDED) {
+				String name = (String)ev.obj;
+				registry.ensureType(name);
 			} else {
-				ServiceEvent e = (ServiceEvent)msg.obj;
+				ZeroConfRecord e = (ZeroConfRecord)ev.obj;
+				String key = e.key;
 				Srv s;
-				switch(msg.what) {
+				switch(ev.what) {
 				case NOTIFY_SERVICE_ADDED:
-					t = ensureType(e.getType());
-					s = new Srv(e);
-					Log.d(TAG, "Adding svc " + e.getName());
-					t.addSrv(s);
-					allServices.insertElementAt(s, 0);
+					s = registry.getSrv(key);
+					if(s == null) {
+						Log.d(TAG, "Adding svc " + e.name);
+						s = new Srv(e);
+						s.changedAt = ev.when;
+						addSrv(s);
+					} else if(s.isStale()) {
+						// the pointer confirms a cached service, resolving may take a while
+						Log.d(TAG, "Confirmed cached svc " + e.name);
+						ZeroConfRecord confirmed = new ZeroConfRecord(s.getRecord());
+						confirmed.stale = false;
+						if(s.update(confirmed)) {
+							s.changedAt = ev.when;
+							notifyUpdate(registry.ensureType(s.type), s);
+						}
+					}
+					if(s.resolved) {
+						touchSrv(s, 0);
+					} else {
+						// the backend tracks the lifetime of unresolved services
+						queueResolve(s, resolvePriority(s));
+					}
 					break;
 				case NOTIFY_SERVICE_REMOVED:
-					t = ensureType(e.getType());
-					s = t.getSrvByKey(e.getInfo().getKey());
-					Log.d(TAG, "Removing svc " + e.getName());
-					t.removeSrv(s);
-					allServices.remove(s);
+					s = registry.removeSrv(key);
+					if(s != null) {
+						Log.d(TAG, "Removing svc " + e.name);
+						expiry.cancel(s);
+						resolveQueue.remove(key);
+						notifyRemove(registry.ensureType(s.type), s);
+					}
 					break;
 				case NOTIFY_SERVICE_RESOLVED:
+					e.addresses = addressRanker.order(e.addresses);
+					s = registry.getSrv(key);
+					if(s == null) {
+						Log.d(TAG, "Adding resolved svc " + e.name);
+						s = new Srv(e);
+						s.resolved = true;
+						s.changedAt = ev.when;
+						addSrv(s);
+					} else if(s.resolved(e)) {
+						Log.d(TAG, "Resolved svc " + e.name);
+						s.changedAt = ev.when;
+						t = registry.ensureType(s.type);
+						notifyUpdate(t, s);
+					}
+					touchSrv(s, ev.arg);
+					long took = resolveQueue.completed(key, clock.now());
+					if(took >= 0) {
+						stats.resolved(took);
+					}
+					dispatchResolves();
+					probeAddresses(s);
 					break;
 				}
 			}
 		}
 	};
 
-	private void sendTypeMessage(int what, String type) {
-		Message m = Message.obtain(updateNotify, what, type);
-		updateNotify.sendMessage(m);
-	}
-
-	private void sendServiceMessage(int what, ServiceEvent event) {
-		Message m = Message.obtain(updateNotify, what, event);
-		updateNotify.sendMessage(m);
+	/**
+	 * Note that a service has been seen on the network
+	 * 
+	 * Restarts its TTL, scheduling the first refresh.
+	 * 
+	 * @param s
+	 * @param ttlSeconds TTL reported by the backend, 0 to keep the current one
+	 */
+	private void touchSrv(Srv s, int ttlSeconds) {
+		expiry.touch(s, ttlSeconds, clock.now());
+		if(expiry.size() > 0 && !updateNotify.hasMessages(NOTIFY_EXPIRY_TICK)) {
+			updateNotify.sendEmptyMessageDelayed(NOTIFY_EXPIRY_TICK, EXPIRY_TICK_MILLIS);
+		}
 	}
 
 	/**
-	 * Internal representation of services
+	 * Expiry callback
 	 * 
-	 * @author prom
+	 * Sends refresh queries until the TTL runs out,
+	 * then removes the service.
 	 */
-	public class Srv {
-		String type;
-		String name;
-
-		String key;
-
-		boolean resolved;
-		ServiceEvent lastEvent;
-
-		ZeroConfRecord record = new ZeroConfRecord();
-
-		Srv(ServiceEvent event) {
-			this.resolved = false;
-			updateFromEvent(event);
+	private final SrvExpiry.Callback expiryCallback
+	= new SrvExpiry.Callback() {
+		@Override
+		public void refresh(final Srv s) {
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					DiscoveryBackend cur = backend;
+					if(cur != null) {
+						cur.resolve(s.type, s.name);
+					}
+				}
+			});
 		}
-
-		void resolved(ServiceEvent event) {
-			updateFromEvent(event);
-			resolved = true;
+		@Override
+		public void expired(Srv s) {
+			if(registry.removeSrv(s.key) != null) {
+				Log.d(TAG, "Expiring svc " + s.name + " after " + s.ttlMillis + " ms");
+				resolveQueue.remove(s.key);
+				notifyRemove(registry.ensureType(s.type), s);
+			}
 		}
+	};
 
-		void updateFromEvent(ServiceEvent event) {
-			this.lastEvent = event;
-
-			this.type = event.getType();
-			this.name = event.getName();
-			this.key  = event.getInfo().getKey();
-
-			record.updateFromServiceEvent(event);
+	/**
+	 * Measure the addresses of a service in the background
+	 * 
+	 * Only TCP services can be measured, and only those
+	 * some client watches or asked for are worth it. Once
+	 * done, the service gets its addresses reordered.
+	 * 
+	 * @param s
+	 */
+	private void probeAddresses(Srv s) {
+		final ZeroConfRecord r = s.getRecord();
+		if(probing.size() >= MAX_PROBES || (!s.requested && !isWatched(s))) {
+			return;
 		}
-
-		ServiceEvent getLastEvent() {
-			return this.lastEvent;
+		if(prober.isShutdown() || r.addresses.length == 0 || r.port == 0 || !"tcp".equals(r.protocol)
+				|| !addressRanker.needsProbe(r.addresses) || !probing.add(r.key)) {
+			return;
 		}
+		prober.execute(new Runnable() {
+			@Override
+			public void run() {
+				addressRanker.probe(r.addresses, r.port);
+				updateNotify.post(new Runnable() {
+					@Override
+					public void run() {
+						reorderAddresses(r.key);
+					}
+				});
+			}
+		});
+	}
 
-		ZeroConfRecord getRecord() {
-			return this.record;
+	/** Apply the current address order to a service */
+	private void reorderAddresses(String key) {
+		probing.remove(key);
+		Srv s = registry.getSrv(key);
+		if(s == null || s.removed) {
+			return;
+		}
+		String[] ordered = addressRanker.order(s.getRecord().addresses);
+		if(Arrays.equals(ordered, s.getRecord().addresses)) {
+			return;
+		}
+		ZeroConfRecord r = new ZeroConfRecord(s.getRecord());
+		r.addresses = ordered;
+		if(s.update(r)) {
+			Log.d(TAG, "Reordered addresses of svc " + s.name);
+			// not a discovery, nothing to measure
+			s.changedAt = 0;
+			notifyUpdate(registry.ensureType(s.type), s);
 		}
 	}
 
 	/**
-	 * Internal representation of service types
+	 * Check whether some client receives a service
 	 * 
-	 * @author prom
+	 * @param s
+	 * @return true if its type is subscribed to, a client
+	 *         watches everything or one of its filters matches
 	 */
-	class SrvType {
-		int subscriptions;
-
-		Vector<Connection> subscribedClients
-		= new Vector<Connection>();
-
-		public String typeName;
-
-		private Vector<Srv> typeServices
-		= new Vector<Srv>();
-
-		private Hashtable<String, Srv> servicesByKey
-		= new Hashtable<String, Srv>();
-
-		SrvType(String typeName) {
-			this.typeName = typeName;
+	private boolean isWatched(Srv s) {
+		SrvType t = registry.getType(s.type);
+		if(t != null && !t.subscribedClients.isEmpty()) {
+			return true;
 		}
-
-		void subscribe(Connection client) {
-			if(!subscribedClients.contains(client)) {
-				subscribedClients.add(client);
-
-				Enumeration<Srv> e = typeServices.elements();
-				while(e.hasMoreElements()) {
-					Srv s = e.nextElement();
-					notifyUpdate(s.record, client);
-				}
-			}
+		if(!subscribeAllClients.isEmpty()) {
+			return true;
 		}
-
-		void unsubscribe(Connection client) {
-			if(subscribedClients.contains(client)) {
-				subscribedClients.remove(client);
+		for(Connection c : filteredClients) {
+			if(c.matchesFilters(s)) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		void addSrv(Srv srv) {
-			typeServices.add(srv);
-			servicesByKey.put(srv.key, srv);
-
-			updateSrv(srv);
-		}
-
-		void updateSrv(Srv srv) {
-			ZeroConfRecord r = srv.getRecord();
-
-			notifyUpdate(r, subscribedClients.elements());
-			notifyUpdate(r, subscribeAllClients.elements());
+	/**
+	 * Decide how urgently a service needs its details
+	 * 
+	 * Services of subscribed types come first, then those
+	 * wanted by clients watching everything. Cached services
+	 * nobody watches only get confirmed.
+	 * 
+	 * @param s
+	 * @return a ResolveQueue priority, or -1 if nobody cares
+	 */
+	private int resolvePriority(Srv s) {
+		SrvType t = registry.getType(s.type);
+		if(t != null && !t.subscribedClients.isEmpty()) {
+			return ResolveQueue.PRIORITY_SUBSCRIBED;
 		}
+		if(!subscribeAllClients.isEmpty() || !filteredClients.isEmpty()) {
+			return ResolveQueue.PRIORITY_WATCHED;
+		}
+		if(s.isStale()) {
+			return ResolveQueue.PRIORITY_CONFIRM;
+		}
+		return -1;
+	}
 
-		void removeSrv(Srv srv) {
-			ZeroConfRecord r = srv.getRecord();
-
-			notifyRemove(r, subscribedClients.elements());
-			notifyRemove(r, subscribeAllClients.elements());
-
-			typeServices.remove(srv);
-			servicesByKey.remove(srv.key);
+	/**
+	 * Queue a service for resolution and start what is possible
+	 * 
+	 * @param s
+	 * @param priority a ResolveQueue priority, -1 to do nothing
+	 */
+	private void queueResolve(Srv s, int priority) {
+		if(priority < 0 || s.removed) {
+			return;
 		}
+		resolveQueue.add(s, priority);
+		dispatchResolves();
+	}
 
-		void removeAllSrv() {
-			Enumeration<Srv> e = allServices.elements();
-			while(e.hasMoreElements()) {
-				Srv s = e.nextElement();
-				removeSrv(s);
+	/** Queue those of the given services that lack details */
+	private void queueUnresolved(Collection<Srv> services, int priority) {
+		for(Srv s : services) {
+			if(!s.resolved && !s.removed) {
+				resolveQueue.add(s, priority);
 			}
 		}
+		dispatchResolves();
+	}
 
-		Srv getSrvByKey(String key) {
-			return servicesByKey.get(key);
+	/** Start queued resolutions, within the concurrency limit */
+	private void dispatchResolves() {
+		resolveQueue.dispatch(clock.now(), resolver);
+		updateNotify.removeMessages(NOTIFY_RESOLVE_TIMEOUT);
+		long deadline = resolveQueue.nextDeadline();
+		if(deadline != Long.MAX_VALUE) {
+			updateNotify.sendEmptyMessageDelayed(NOTIFY_RESOLVE_TIMEOUT,
+					Math.max(0, deadline - clock.now()));
 		}
+	}
 
-		private void notifyUpdate(ZeroConfRecord r, Connection c) {
-			try {
-				if(c.callbacks != null) {
-					c.callbacks.serviceUpdated(r);
+	/** Resolver handing resolutions to the backend */
+	private final ResolveQueue.Resolver resolver
+	= new ResolveQueue.Resolver() {
+		@Override
+		public void resolve(final Srv s) {
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					DiscoveryBackend cur = backend;
+					if(cur != null) {
+						cur.resolve(s.type, s.name);
+					}
 				}
-			} catch (RemoteException ex) {
-				Log.d(TAG, "Update callback exception: " + ex.toString());
-			}
+			});
 		}
+	};
 
-		private void notifyUpdate(ZeroConfRecord r, Enumeration<Connection> e) {
-			while(e.hasMoreElements()) {
-				notifyUpdate(r, e.nextElement());
+	private void addSrv(Srv s) {
+		SrvType t = registry.addSrv(s);
+		if(t != null) {
+			notifyUpdate(t, s);
+			long latency = discoveryState.onRecordDelivered();
+			if(latency >= 0) {
+				Log.d(TAG, "First record delivered " + latency + " ms after links came up");
 			}
 		}
+	}
 
-		private void notifyRemove(ZeroConfRecord r, Connection c) {
-			try {
-				if(c.callbacks != null) {
-					c.callbacks.serviceRemoved(r);
-				}
-			} catch (RemoteException ex) {
-				Log.d(TAG, "Removed callback exception: " + ex.toString());
-			}
+	/**
+	 * Notify all interested clients of a service update
+	 * 
+	 * @param t type of the service
+	 * @param s updated service
+	 */
+	void notifyUpdate(SrvType t, Srv s) {
+		s.changeSequence = changeLog.append(s);
+		for(Connection c : t.subscribedClients) {
+			c.deliverUpdate(s, true);
 		}
-
-		private void notifyRemove(ZeroConfRecord r, Enumeration<Connection> e) {
-			while(e.hasMoreElements()) {
-				notifyRemove(r, e.nextElement());
-			}
+		for(Connection c : subscribeAllClients) {
+			c.deliverUpdate(s, true);
+		}
+		for(Connection c : filteredClients) {
+			c.deliverFiltered(s, false);
 		}
 	}
 
-	SrvType ensureType(String type) {
-		if(!allTypesByName.containsKey(type)) {
-			SrvType t = new SrvType(type);
-			allTypesByName.put(type, t);
-			return t;
+	/**
+	 * Notify all interested clients of a service removal
+	 * 
+	 * @param t type of the service
+	 * @param s removed service
+	 */
+	void notifyRemove(SrvType t, Srv s) {
+		s.changeSequence = changeLog.append(s);
+		for(Connection c : t.subscribedClients) {
+			c.deliverRemove(s);
+		}
+		for(Connection c : subscribeAllClients) {
+			c.deliverRemove(s);
+		}
+		for(Connection c : filteredClients) {
+			c.deliverFilteredRemove(s);
 		}
-		return allTypesByName.get(type);
 	}
 
 	/**
@@ -444,26 +1076,91 @@ public class ZeroConfService extends Service implements Runnable {
 	class ConnectionStateListener extends BroadcastReceiver {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			boolean status = (wifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED);
-			Log.d(TAG, "Connection state is now " + (status ? "enabled" : "disabled"));
-			onWifiChange();
+			Log.d(TAG, "Connectivity changed");
+			onConnectivityChange();
 		}
 	}
 
 	int connectionSerialCounter = 0;
 
+	/** A change waiting to be sent to a client */
+	private static final class Change {
+		Srv srv;
+		boolean remove;
+		/** True if this passes on a discovery, to measure latency */
+		boolean live;
+		/** Number of the change in the change log */
+		long sequence;
+
+		Change(Srv srv, boolean remove, boolean live, long sequence) {
+			this.srv = srv;
+			this.remove = remove;
+			this.live = live;
+			this.sequence = sequence;
+		}
+	}
+
 	/**
 	 * Representation of client connection and RPC stub
+	 * 
+	 * A connection lives until the client closes it,
+	 * unbinds or dies, whatever comes first.
 	 */
-	class Connection extends IZeroConfService.Stub {
+	class Connection extends IZeroConfService.Stub implements IBinder.DeathRecipient {
 		int connectionSerial = connectionSerialCounter++;
 		Intent connectionIntent;
-		boolean connectionAllTypes = false;
-		Vector<SrvType> connectionTypes = new Vector<SrvType>();
+		CopyOnWriteArraySet<SrvType> connectionTypes
+		= new CopyOnWriteArraySet<SrvType>();
 		IZeroConfClient callbacks;
 
+		/** True if the client wants coalesced batches */
+		boolean batchedDelivery = false;
+		/** True if the client takes snapshots for large numbers of changes */
+		boolean snapshotDelivery = false;
+		/** Changes waiting for the dispatcher, coalesced by key, oldest first */
+		LinkedHashMap<String, Change> queue
+		= new LinkedHashMap<String, Change>();
+		/** True while a drain is scheduled or running */
+		boolean drainScheduled = false;
+		/** True if changes got dropped and the client needs a resync */
+		boolean resyncNeeded = false;
+		/** True if the queue overflowed since the last drain */
+		boolean overflowed = false;
+
+		/** True if the client wants to know how far it is in the change log */
+		boolean syncPoints = false;
+		/** Change log position sent last */
+		long syncSent = 0;
+		/** Change log position the next subscription starts from, -1 for none */
+		long syncFrom = -1;
+		/** True if the next subscription needs a resync */
+		boolean syncRejected = false;
+
+		/** True if the client wants deltas instead of full records */
+		boolean deltaDelivery = false;
+		/** Record versions held by the client, by key */
+		Hashtable<String, Integer> clientVersions
+		= new Hashtable<String, Integer>();
+
+		/** Filters the client has subscribed with */
+		CopyOnWriteArrayList<ZeroConfFilter> connectionFilters
+		= new CopyOnWriteArrayList<ZeroConfFilter>();
+		/** Keys sent to the client because they matched a filter */
+		HashSet<String> filterMatchedKeys
+		= new HashSet<String>();
+
+		/** True once the connection has been closed */
+		boolean closed = false;
+		/** Queue overflows and failed callbacks since the last clean drain */
+		int strikes = 0;
+		/** Length of the next quarantine */
+		long quarantineMillis = QUARANTINE_MIN_MILLIS;
+		/** Uptime at which the quarantine ends, 0 if not quarantined */
+		long quarantinedUntil = 0;
+
 		Connection(Intent intent) {
 			this.connectionIntent = intent;
+			stats.connectionOpened(connectionSerial);
 		}
 
 		private void debugConnection(String message) {
@@ -486,173 +1183,1027 @@ public class ZeroConfService extends Service implements Runnable {
 		public void registerCallbacks(IZeroConfClient cb)
 				throws RemoteException {
 			debugConnection("registerCallbacks()");
-			callbacks = cb;
+			IZeroConfClient previous;
+			synchronized(this) {
+				if(closed) {
+					return;
+				}
+				previous = callbacks;
+				callbacks = cb;
+				strikes = 0;
+				quarantineMillis = QUARANTINE_MIN_MILLIS;
+				quarantinedUntil = 0;
+			}
+			if(previous != null) {
+				previous.asBinder().unlinkToDeath(this, 0);
+			}
+			if(cb != null) {
+				try {
+					cb.asBinder().linkToDeath(this, 0);
+				} catch (RemoteException e) {
+					debugConnection("client already dead");
+					close();
+				}
+			}
 		}
 
-		private void prenotifySubscribeAll() {
-			Enumeration<Srv> e = allServices.elements();
-			while(e.hasMoreElements()) {
-				Srv s = e.nextElement();
-				try {
-					callbacks.serviceUpdated(s.getRecord());
-				} catch (RemoteException ex) {
-					Log.d(TAG, "remote exception while prenotifying: " + ex.toString());
+		@Override
+		public void binderDied() {
+			debugConnection("binderDied()");
+			close();
+		}
+
+		private synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Open a closed connection again
+		 * 
+		 * For a client binding again, which gets the
+		 * binder of its previous binding.
+		 */
+		void reopen() {
+			synchronized(this) {
+				if(!closed) {
+					return;
 				}
+				closed = false;
+				strikes = 0;
+				quarantineMillis = QUARANTINE_MIN_MILLIS;
+				quarantinedUntil = 0;
+				// the client binding again starts from scratch
+				batchedDelivery = false;
+				snapshotDelivery = false;
+				deltaDelivery = false;
+				syncPoints = false;
+				syncSent = 0;
+				syncFrom = -1;
+				syncRejected = false;
+				overflowed = false;
+			}
+			debugConnection("reopen()");
+			synchronized(closedConnections) {
+				closedConnections.remove(this);
 			}
+			connections.add(this);
+			stats.connectionOpened(connectionSerial);
 		}
 
+		/**
+		 * Close this connection
+		 * 
+		 * Drops all subscriptions and withdraws the services
+		 * the client published. Closing twice does no harm.
+		 */
 		@Override
-		public void subscribeAll() throws RemoteException {
-			debugConnection("subscribeAll()");
-			if(!connectionAllTypes) {
-				connectionAllTypes = true;
-				allTypeSubscriptions++;
-				subscribeAllClients.add(this);
-				prenotifySubscribeAll();
+		public void close() {
+			IZeroConfClient cb;
+			synchronized(this) {
+				if(closed) {
+					return;
+				}
+				closed = true;
+				cb = callbacks;
+				callbacks = null;
+				queue.clear();
+				resyncNeeded = false;
+				clientVersions.clear();
+				filterMatchedKeys.clear();
 			}
+			debugConnection("close()");
+			connections.remove(this);
+			retainClosed(this);
+
+			if(cb != null) {
+				cb.asBinder().unlinkToDeath(this, 0);
+			}
+
+			for(SrvType t : connectionTypes) {
+				connectionTypes.remove(t);
+				t.subscribedClients.remove(this);
+			}
+			subscribeAllClients.remove(this);
+			connectionFilters.clear();
+			filteredClients.remove(this);
+
+			stats.connectionClosed(connectionSerial);
+
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					publisher.unpublishAll(Connection.this);
+				}
+			});
 		}
 
 		@Override
-		public void unsubscribeAll() throws RemoteException {
-			debugConnection("unsubscribeAll()");
-			if(connectionAllTypes) {
-				allTypeSubscriptions--;
-				connectionAllTypes = false;
-				subscribeAllClients.remove(this);
+		public void setBatchedDelivery(boolean batched) throws RemoteException {
+			debugConnection("setBatchedDelivery(" + batched + ")");
+			synchronized(this) {
+				batchedDelivery = batched;
 			}
 		}
 
 		@Override
-		public void subscribeType(String type) throws RemoteException {
-			debugConnection("subscribeType(" + type + ")");
-			SrvType t = ensureType(type);
-			if(!connectionTypes.contains(t)) {
-				connectionTypes.add(t);
-				t.subscribe(this);
+		public void setSnapshotDelivery(boolean snapshot) throws RemoteException {
+			debugConnection("setSnapshotDelivery(" + snapshot + ")");
+			synchronized(this) {
+				snapshotDelivery = snapshot;
 			}
 		}
 
 		@Override
-		public void unsubscribeType(String type) throws RemoteException {
-			debugConnection("unsubscribeType(" + type + ")");
-			SrvType t = ensureType(type);
-			if(connectionTypes.contains(t)) {
-				connectionTypes.remove(t);
-				t.unsubscribe(this);
+		public void setDeltaDelivery(boolean deltas) throws RemoteException {
+			debugConnection("setDeltaDelivery(" + deltas + ")");
+			synchronized(this) {
+				deltaDelivery = deltas;
+				clientVersions.clear();
+			}
+		}
+
+		/**
+		 * Catch up from a position in the change log
+		 * 
+		 * Applies to the next subscription, which then only
+		 * sends the services that changed since the position.
+		 * From now on the client gets told its position.
+		 * 
+		 * @param epoch epoch of the change log, 0 if unknown
+		 * @param sequence position in the change log
+		 * @return false if the log does not reach back far enough,
+		 *         in which case the client gets resynchronized
+		 */
+		@Override
+		public boolean syncSince(long epoch, long sequence) throws RemoteException {
+			debugConnection("syncSince(" + epoch + ", " + sequence + ")");
+			boolean covered = epoch == changeLog.epoch && changeLog.covers(sequence);
+			synchronized(this) {
+				syncPoints = true;
+				syncFrom = covered ? sequence : -1;
+				syncRejected = !covered;
 			}
+			return covered;
 		}
 
 		@Override
-		protected void finalize() throws Throwable {
-			debugConnection("finalize()");
+		public void resendRecord(String key) throws RemoteException {
+			debugConnection("resendRecord(" + key + ")");
+			synchronized(this) {
+				clientVersions.remove(key);
+			}
+			Srv s = registry.getSrv(key);
+			if(s != null) {
+				deliverUpdate(s, false);
+			}
+		}
 
-			Enumeration<SrvType> e = connectionTypes.elements();
-			while(e.hasMoreElements()) {
-				SrvType t = e.nextElement();
-				if(connectionTypes.contains(t)) {
-					connectionTypes.remove(t);
-					t.unsubscribe(this);
+		/**
+		 * Deliver a service update to this client
+		 * 
+		 * The update gets queued and sent from the
+		 * dispatcher, right away or at the end of the
+		 * batch window for batched clients.
+		 * 
+		 * @param s
+		 * @param live true if this passes on a discovery, to measure latency
+		 */
+		void deliverUpdate(Srv s, boolean live) {
+			synchronized(this) {
+				if(s.removed || closed) {
+					return;
 				}
+				enqueue(s, false, live, s.changeSequence);
 			}
+		}
 
-			unsubscribeAll();
+		/**
+		 * Deliver a service removal to this client
+		 * 
+		 * @param s
+		 */
+		void deliverRemove(Srv s) {
+			synchronized(this) {
+				if(closed) {
+					return;
+				}
+				enqueue(s, true, false, s.changeSequence);
+			}
+		}
 
-			super.finalize();
+		/**
+		 * Queue a change, coalescing it with a pending one (lock held)
+		 * 
+		 * If the queue overflows the oldest change gets
+		 * dropped, and the client gets resynchronized.
+		 * 
+		 * @param s
+		 * @param remove true for a removal
+		 * @param live true if this passes on a discovery
+		 * @param sequence number of the change in the change log
+		 */
+		private void enqueue(Srv s, boolean remove, boolean live, long sequence) {
+			Change c = queue.get(s.key);
+			if(c != null) {
+				c.srv = s;
+				c.remove = remove;
+				c.live |= live;
+				c.sequence = Math.max(c.sequence, sequence);
+			} else {
+				queue.put(s.key, new Change(s, remove, live, sequence));
+				if(queue.size() > MAX_QUEUED_CHANGES) {
+					Iterator<String> oldest = queue.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+					stats.dropped(connectionSerial);
+					if(!resyncNeeded) {
+						debugConnection("queue overflow, resynchronizing");
+						resyncNeeded = true;
+					}
+					if(!overflowed) {
+						overflowed = true;
+						strike("queue overflow");
+					}
+				}
+			}
+			stats.queued(connectionSerial, queue.size());
+			scheduleDrain();
 		}
 
-	}
+		/**
+		 * Compute the delta to send for a record (lock held)
+		 * 
+		 * This also records the version as held by the client.
+		 * 
+		 * @param s service being sent
+		 * @param r current record of the service
+		 * @return a delta or null if a full record must be sent
+		 */
+		private ZeroConfRecordDelta deltaFor(Srv s, ZeroConfRecord r) {
+			if(!deltaDelivery) {
+				clientVersions.put(r.key, r.version);
+				return null;
+			}
+			ZeroConfRecordDelta d = null;
+			ZeroConfRecord previous = s.previousRecord;
+			Integer held = clientVersions.get(r.key);
+			if(previous != null && held != null
+					&& held.intValue() == previous.version
+					&& previous.version < r.version) {
+				d = ZeroConfRecordDelta.between(previous, r);
+			}
+			clientVersions.put(r.key, r.version);
+			return d;
+		}
 
-	/**
-	 * Debug wrapper
-	 * 
-	 * @param message
-	 */
-	private final void debugListener(String message) {
-		//Log.d(TAG, "listener " + message);
-	}
+		/**
+		 * Deliver a service update subject to our filters
+		 * 
+		 * Services that stopped matching get removed
+		 * from the client, services that never matched
+		 * do not cross binder at all.
+		 * 
+		 * @param s
+		 * @param prenotify true to skip services the client already has
+		 */
+		void deliverFiltered(Srv s, boolean prenotify) {
+			boolean matches = matchesFilters(s);
+			boolean known;
+			synchronized(this) {
+				if(matches) {
+					known = !filterMatchedKeys.add(s.key);
+				} else {
+					known = filterMatchedKeys.remove(s.key);
+				}
+			}
+			if(matches) {
+				if(!(prenotify && known)) {
+					deliverUpdate(s, !prenotify);
+				}
+			} else if(known) {
+				deliverRemove(s);
+			}
+		}
 
-	/**
-	 * Internal listener for service type events.
-	 * 
-	 * This gets called by JmDNS when services are removed,
-	 * added or resolved. This class is responsible for forwarding
-	 * these events to the main thread in a synchronized fashion.
-	 */
-	private class SrvListener implements ServiceListener {
+		/** Check whether a service matches any of our filters */
+		private boolean matchesFilters(Srv s) {
+			ZeroConfRecord r = s.getRecord();
+			for(ZeroConfFilter f : connectionFilters) {
+				if(f.matches(r)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Deliver a service removal subject to our filters
+		 * 
+		 * @param s
+		 */
+		void deliverFilteredRemove(Srv s) {
+			boolean known;
+			synchronized(this) {
+				known = filterMatchedKeys.remove(s.key);
+			}
+			if(known) {
+				deliverRemove(s);
+			}
+		}
+
+		/**
+		 * Have the dispatcher drain the queue (lock held)
+		 * 
+		 * Batched clients get drained at the end of the
+		 * batch window, quarantined ones when the quarantine
+		 * ends. Only one drain per connection is scheduled
+		 * or running at any time, which keeps changes in order.
+		 */
+		private void scheduleDrain() {
+			if(drainScheduled || closed) {
+				return;
+			}
+			long delay = batchedDelivery ? BATCH_WINDOW_MILLIS : 0;
+			if(quarantinedUntil != 0) {
+				delay = Math.max(delay, quarantinedUntil - SystemClock.uptimeMillis());
+			}
+			try {
+				dispatcher.schedule(drainTask, delay, TimeUnit.MILLISECONDS);
+				drainScheduled = true;
+			} catch (RejectedExecutionException e) {
+				// shutting down
+			}
+		}
+
+		private final Runnable drainTask = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
 
-		/** Service type for this listener */
-		private final String serviceType;
+		/**
+		 * Send all queued changes to the client
+		 * 
+		 * Runs on the dispatcher. Batched clients get their
+		 * changes in transactions of limited size to stay
+		 * clear of the binder buffer limit, all others get
+		 * a callback per change. Clients taking snapshots get
+		 * one instead of a resync or many changes, followed
+		 * by the changes it does not cover, as long as they
+		 * are subscribed to all services.
+		 */
+		void drain() {
+			IZeroConfClient cb;
+			ArrayList<Change> changes;
+			boolean resync;
+			boolean overflow;
+			int struck;
+			boolean batched;
+			boolean snapshot;
+			synchronized(this) {
+				cb = callbacks;
+				if(closed || cb == null) {
+					drainScheduled = false;
+					return;
+				}
+				if(quarantinedUntil > SystemClock.uptimeMillis()) {
+					drainScheduled = false;
+					scheduleDrain();
+					return;
+				}
+				resync = resyncNeeded;
+				resyncNeeded = false;
+				overflow = overflowed;
+				overflowed = false;
+				struck = strikes;
+				changes = new ArrayList<Change>(queue.values());
+				queue.clear();
+				stats.queued(connectionSerial, 0);
+				if(resync) {
+					// everything gets sent anew
+					clientVersions.clear();
+				}
+				batched = batchedDelivery;
+				// snapshots hold every service, more than filtered or typed subscriptions get
+				snapshot = snapshotDelivery && subscribeAllClients.contains(this);
+			}
 
-		/** Simple constructor */
-		public SrvListener(String serviceType) {
-			this.serviceType = serviceType;
+			SnapshotStore.Shared shared = null;
+			if(snapshot && (resync || changes.size() >= SNAPSHOT_MIN_CHANGES)) {
+				shared = shareSnapshot();
+			}
+
+			boolean sent;
+			long sequence = 0;
+			if(shared != null) {
+				sequence = shared.sequence;
+				ArrayList<Change> uncovered = new ArrayList<Change>();
+				for(Change c : changes) {
+					if(c.sequence > shared.sequence) {
+						uncovered.add(c);
+						sequence = Math.max(sequence, c.sequence);
+					}
+				}
+				sent = sendSnapshot(cb, shared)
+						&& (batched ? sendBatches(cb, uncovered) : sendEach(cb, uncovered));
+			} else if(resync) {
+				// read first, the services sent are at least this recent
+				sequence = changeLog.sequence();
+				sent = sendResync(cb);
+			} else {
+				for(Change c : changes) {
+					sequence = Math.max(sequence, c.sequence);
+				}
+				sent = batched ? sendBatches(cb, changes) : sendEach(cb, changes);
+			}
+			if(sent) {
+				sendSyncPoint(cb, sequence);
+			}
+
+			synchronized(this) {
+				// nothing dropped before, nothing failed or dropped during
+				if(sent && !overflow && strikes == struck) {
+					drainedCleanly();
+				}
+				drainScheduled = false;
+				if(!queue.isEmpty() || resyncNeeded) {
+					scheduleDrain();
+				}
+			}
+		}
+
+		/**
+		 * Tell the client how far it is in the change log
+		 * 
+		 * All changes up to the given one that are of
+		 * interest to the client must have been sent.
+		 */
+		private void sendSyncPoint(IZeroConfClient cb, long sequence) {
+			synchronized(this) {
+				if(!syncPoints || sequence <= syncSent) {
+					return;
+				}
+				syncSent = sequence;
+			}
+			try {
+				cb.syncPoint(changeLog.epoch, sequence);
+			} catch (RemoteException ex) {
+				Log.d(TAG, "Sync point callback exception: " + ex.toString());
+				synchronized(this) {
+					syncSent = 0;
+				}
+				callbackFailed(ex);
+				return;
+			}
+			callbackSucceeded();
+		}
+
+		/** Send changes one callback each */
+		private boolean sendEach(IZeroConfClient cb, List<Change> changes) {
+			for(int i = 0; i < changes.size(); i++) {
+				Change c = changes.get(i);
+				ZeroConfRecord r = c.srv.getRecord();
+				ZeroConfRecordDelta d = null;
+				synchronized(this) {
+					if(c.remove) {
+						clientVersions.remove(r.key);
+					} else if(c.srv.removed) {
+						// its removal follows
+						continue;
+					} else {
+						d = deltaFor(c.srv, r);
+					}
+				}
+				try {
+					if(c.remove) {
+						cb.serviceRemoved(r);
+					} else if(d != null) {
+						cb.serviceDelta(d);
+					} else {
+						cb.serviceUpdated(r);
+					}
+				} catch (RemoteException ex) {
+					Log.d(TAG, "Callback exception: " + ex.toString());
+					sendFailed(ex, changes.subList(i, changes.size()));
+					return false;
+				}
+				callbackSucceeded();
+				if(c.live) {
+					measureDelivery(c.srv);
+				}
+			}
+			return true;
+		}
+
+		/** Send changes in transactions of limited size */
+		private boolean sendBatches(IZeroConfClient cb, List<Change> changes) {
+			for(int start = 0; start < changes.size(); start += BATCH_MAX_RECORDS) {
+				List<Change> chunk = changes.subList(start, Math.min(changes.size(), start + BATCH_MAX_RECORDS));
+				ArrayList<ZeroConfRecord> updated = new ArrayList<ZeroConfRecord>();
+				ArrayList<ZeroConfRecordDelta> deltas = new ArrayList<ZeroConfRecordDelta>();
+				ArrayList<String> removed = new ArrayList<String>();
+				synchronized(this) {
+					for(Change c : chunk) {
+						if(c.remove) {
+							clientVersions.remove(c.srv.key);
+							removed.add(c.srv.key);
+						} else if(!c.srv.removed) {
+							ZeroConfRecord r = c.srv.getRecord();
+							ZeroConfRecordDelta d = deltaFor(c.srv, r);
+							if(d != null) {
+								deltas.add(d);
+							} else {
+								updated.add(r);
+							}
+						}
+					}
+				}
+				try {
+					cb.servicesChanged(updated, deltas, removed);
+				} catch (RemoteException ex) {
+					Log.d(TAG, "Batch callback exception: " + ex.toString());
+					sendFailed(ex, changes.subList(start, changes.size()));
+					return false;
+				}
+				callbackSucceeded();
+				for(Change c : chunk) {
+					if(c.live) {
+						measureDelivery(c.srv);
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Replace the state of the client with ours
+		 * 
+		 * The client drops whatever services are not in
+		 * the list of keys, then gets all of them in full.
+		 */
+		private boolean sendResync(IZeroConfClient cb) {
+			ArrayList<Change> changes = new ArrayList<Change>();
+			ArrayList<String> keys = new ArrayList<String>();
+			for(Srv s : watchedServices()) {
+				changes.add(new Change(s, false, false, s.changeSequence));
+				keys.add(s.key);
+			}
+			debugConnection("resync with " + keys.size() + " services");
+			try {
+				cb.servicesResync(keys);
+			} catch (RemoteException ex) {
+				Log.d(TAG, "Resync callback exception: " + ex.toString());
+				callbackFailed(ex);
+				synchronized(this) {
+					resyncNeeded = !closed;
+				}
+				return false;
+			}
+			callbackSucceeded();
+			return sendBatches(cb, changes);
+		}
+
+		/**
+		 * Get the shared snapshot
+		 * 
+		 * @return the snapshot or null if it could not be written
+		 */
+		private SnapshotStore.Shared shareSnapshot() {
+			try {
+				return snapshots.share(registry, changeLog);
+			} catch (IOException e) {
+				Log.d(TAG, "Could not write snapshot: " + e.toString());
+				return null;
+			}
+		}
+
+		/**
+		 * Replace the state of the client with a snapshot
+		 * 
+		 * The client keeps those services of the snapshot
+		 * it is interested in, and drops all others.
+		 */
+		private boolean sendSnapshot(IZeroConfClient cb, SnapshotStore.Shared shared) {
+			Collection<Srv> watched = watchedServices();
+			synchronized(this) {
+				// the client holds what the snapshot has
+				clientVersions.clear();
+				for(Srv s : watched) {
+					Integer version = shared.versions.get(s.key);
+					if(version != null) {
+						clientVersions.put(s.key, version);
+					}
+				}
+			}
+			debugConnection("snapshot at change " + shared.sequence);
+			try {
+				cb.servicesSnapshot(changeLog.epoch, shared.sequence, shared.descriptor);
+			} catch (RemoteException ex) {
+				Log.d(TAG, "Snapshot callback exception: " + ex.toString());
+				callbackFailed(ex);
+				synchronized(this) {
+					clientVersions.clear();
+					resyncNeeded = !closed;
+				}
+				return false;
+			} finally {
+				try {
+					shared.descriptor.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+			callbackSucceeded();
+			return true;
+		}
+
+		/** Services this client is interested in */
+		private Collection<Srv> watchedServices() {
+			SrvRegistry.Snapshot snapshot = registry.snapshot();
+			if(subscribeAllClients.contains(this)) {
+				return snapshot.services;
+			}
+			LinkedHashMap<String, Srv> watched = new LinkedHashMap<String, Srv>();
+			for(SrvType t : connectionTypes) {
+				for(Srv s : snapshot.ofType(t.typeName)) {
+					watched.put(s.key, s);
+				}
+			}
+			ArrayList<String> filtered;
+			synchronized(this) {
+				filtered = new ArrayList<String>(filterMatchedKeys);
+			}
+			for(String key : filtered) {
+				Srv s = registry.getSrv(key);
+				if(s != null) {
+					watched.put(key, s);
+				}
+			}
+			return watched.values();
+		}
+
+		/**
+		 * Put back changes that did not reach the client
+		 * 
+		 * Changes queued in the meantime are newer and win.
+		 * The client may hold anything now, so deltas are
+		 * off until it got full records again.
+		 * 
+		 * @param ex
+		 * @param unsent changes from the failed one on
+		 */
+		private void sendFailed(RemoteException ex, List<Change> unsent) {
+			callbackFailed(ex);
+			synchronized(this) {
+				clientVersions.clear();
+				if(closed) {
+					return;
+				}
+				for(Change c : unsent) {
+					if(!queue.containsKey(c.srv.key)) {
+						enqueue(c.srv, c.remove, false, c.sequence);
+					}
+				}
+			}
+		}
+
+		/** Take note of a callback that went through */
+		private void callbackSucceeded() {
+			stats.callback(connectionSerial, true);
+		}
+
+		/**
+		 * Take note of a failed callback
+		 * 
+		 * A dead client gets closed right away. Calls to
+		 * clients are oneway, so any other failure means the
+		 * transaction did not fit the binder buffer of the
+		 * client, which is as good a sign of a client falling
+		 * behind as an overflowing queue.
+		 * 
+		 * @param ex
+		 */
+		private void callbackFailed(RemoteException ex) {
+			stats.callback(connectionSerial, false);
+			if(ex instanceof DeadObjectException) {
+				debugConnection("client died");
+				close();
+				return;
+			}
+			synchronized(this) {
+				strike("failed callback");
+			}
+		}
+
+		/**
+		 * Take note of a client falling behind (lock held)
+		 * 
+		 * A client falling behind repeatedly gets quarantined:
+		 * changes are held back and coalesced until the
+		 * quarantine ends, then a single drain tries again.
+		 * Every strike during a quarantine doubles it.
+		 * 
+		 * @param reason
+		 */
+		private void strike(String reason) {
+			strikes++;
+			if(quarantinedUntil != 0) {
+				quarantineMillis = Math.min(quarantineMillis * 2, QUARANTINE_MAX_MILLIS);
+			} else if(strikes < QUARANTINE_STRIKES) {
+				return;
+			}
+			debugConnection("quarantined for " + quarantineMillis + " ms after "
+					+ strikes + " strikes, last one " + reason);
+			quarantinedUntil = SystemClock.uptimeMillis() + quarantineMillis;
+		}
+
+		/** Take note of a drain that kept up with the changes (lock held) */
+		private void drainedCleanly() {
+			strikes = 0;
+			if(quarantinedUntil != 0) {
+				debugConnection("leaving quarantine");
+				quarantinedUntil = 0;
+				quarantineMillis = QUARANTINE_MIN_MILLIS;
+			}
+		}
+
+		/** Record how long a discovery took to reach this client */
+		private void measureDelivery(Srv s) {
+			long at = s.changedAt;
+			if(at > 0) {
+				stats.delivered(connectionSerial, SystemClock.uptimeMillis() - at);
+			}
+		}
+
+		/**
+		 * Send the services of a new subscription
+		 * 
+		 * Normally all of them. If the client gave a cursor
+		 * with syncSince() only those changed since then, and
+		 * those removed meanwhile, or all with a resync if the
+		 * log does not reach back far enough.
+		 * 
+		 * Must be called with the lock held, right after
+		 * adding the client to the relevant subscriber set,
+		 * so that no service added concurrently can be missed
+		 * and no drain sees only part of the services.
+		 * 
+		 * @param t type subscribed to, null for all services
+		 * @param filtered true if subscribed by filter
+		 */
+		private void prenotify(SrvType t, boolean filtered) {
+			long from = syncFrom;
+			boolean rejected = syncRejected;
+			syncFrom = -1;
+			syncRejected = false;
+
+			SrvRegistry.Snapshot snapshot = registry.snapshot();
+			List<Srv> services = (t != null) ? snapshot.ofType(t.typeName) : snapshot.services;
+			List<Srv> changed = (from >= 0) ? changeLog.since(from) : null;
+			HashSet<String> changedKeys = null;
+			if(changed != null) {
+				changedKeys = new HashSet<String>();
+				for(Srv s : changed) {
+					changedKeys.add(s.key);
+					if(s.removed && (t == null || t.typeName.equals(s.type))) {
+						enqueue(s, true, false, s.changeSequence);
+					}
+				}
+				debugConnection("catching up on " + changedKeys.size() + " changes");
+			} else if(from >= 0) {
+				// aged out since syncSince()
+				rejected = true;
+			}
+
+			for(Srv s : services) {
+				boolean unchanged = changedKeys != null && !changedKeys.contains(s.key);
+				if(filtered) {
+					if(unchanged) {
+						if(matchesFilters(s)) {
+							// the client has it already
+							filterMatchedKeys.add(s.key);
+						}
+					} else if(changedKeys != null && !matchesFilters(s)) {
+						// it may have matched before
+						enqueue(s, true, false, s.changeSequence);
+					} else {
+						deliverFiltered(s, true);
+					}
+				} else if(!unchanged) {
+					deliverUpdate(s, false);
+				}
+			}
+
+			if(rejected) {
+				resyncNeeded = true;
+				scheduleDrain();
+			}
 		}
 
-		/** Callback method for adding services */
 		@Override
-		public void serviceAdded(ServiceEvent event) {
-			debugListener("serviceAdded(" + serviceType + " | " + event.getName() + ")");
+		public void subscribeAll() throws RemoteException {
+			debugConnection("subscribeAll()");
+			if(isClosed()) {
+				return;
+			}
+			synchronized(this) {
+				if(!subscribeAllClients.add(this)) {
+					return;
+				}
+				prenotify(null, false);
+			}
+			postQueueUnresolved(null, ResolveQueue.PRIORITY_WATCHED);
+		}
 
-			// notify the main thread
-			sendServiceMessage(NOTIFY_SERVICE_ADDED, event);
+		@Override
+		public void unsubscribeAll() throws RemoteException {
+			debugConnection("unsubscribeAll()");
+			subscribeAllClients.remove(this);
+		}
 
-			// request resolution of service details
-			mDNS.requestServiceInfo(event.getType(), event.getName(), true);
+		@Override
+		public void subscribeType(String type) throws RemoteException {
+			debugConnection("subscribeType(" + type + ")");
+			if(isClosed()) {
+				return;
+			}
+			SrvType t = registry.ensureType(type);
+			synchronized(this) {
+				if(!connectionTypes.add(t)) {
+					return;
+				}
+				t.subscribedClients.add(this);
+				prenotify(t, false);
+			}
+			postQueueUnresolved(t, ResolveQueue.PRIORITY_SUBSCRIBED);
 		}
 
-		/** Callback method for removing services */
 		@Override
-		public void serviceRemoved(ServiceEvent event) {
-			debugListener("serviceRemoved(" + serviceType + " | " + event.getName() + ")");
+		public void unsubscribeType(String type) throws RemoteException {
+			debugConnection("unsubscribeType(" + type + ")");
+			SrvType t = registry.ensureType(type);
+			if(connectionTypes.remove(t)) {
+				t.subscribedClients.remove(this);
+			}
+		}
 
-			// notify the main thread
-			sendServiceMessage(NOTIFY_SERVICE_REMOVED, event);
+		@Override
+		public void subscribeFilter(ZeroConfFilter filter) throws RemoteException {
+			debugConnection("subscribeFilter(" + filter + ")");
+			if(isClosed()) {
+				return;
+			}
+			synchronized(this) {
+				if(!connectionFilters.addIfAbsent(filter)) {
+					return;
+				}
+				filteredClients.add(this);
+				prenotify(null, true);
+			}
+			postQueueUnresolved(null, ResolveQueue.PRIORITY_WATCHED);
 		}
 
-		/** Callback method for resolution results */
 		@Override
-		public void serviceResolved(ServiceEvent event) {
-			debugListener("serviceResolved(" + serviceType + " | "+ event.getName() + ")");
+		public void unsubscribeFilter(ZeroConfFilter filter) throws RemoteException {
+			debugConnection("unsubscribeFilter(" + filter + ")");
+			if(!connectionFilters.remove(filter)) {
+				return;
+			}
+			if(connectionFilters.isEmpty()) {
+				filteredClients.remove(this);
+			}
+			// drop services only the removed filter matched
+			ArrayList<String> matched;
+			synchronized(this) {
+				matched = new ArrayList<String>(filterMatchedKeys);
+			}
+			for(String key : matched) {
+				Srv s = registry.getSrv(key);
+				if(s == null) {
+					synchronized(this) {
+						filterMatchedKeys.remove(key);
+					}
+				} else if(matchesFilters(s)) {
+					continue;
+				} else if(receivesUnfiltered(s)) {
+					// still sent by another subscription
+					synchronized(this) {
+						filterMatchedKeys.remove(key);
+					}
+				} else {
+					deliverFilteredRemove(s);
+				}
+			}
+		}
 
-			// notify the main thread
-			sendServiceMessage(NOTIFY_SERVICE_RESOLVED, event);
+		/** Check whether a subscription without filter covers a service */
+		private boolean receivesUnfiltered(Srv s) {
+			if(subscribeAllClients.contains(this)) {
+				return true;
+			}
+			SrvType t = registry.getType(s.type);
+			return t != null && connectionTypes.contains(t);
 		}
-	}
 
-	/**
-	 * Internal listener for service type events.
-	 * 
-	 * This gets called by JmDNS when new service types
-	 * get discovered. This class is responsible for forwarding
-	 * these events to the main thread in a synchronized fashion.
-	 */
-	private class SrvTypeListener implements ServiceTypeListener {
+		/**
+		 * Resynchronize with the next subscription
+		 * 
+		 * For a client replacing its subscription: the next
+		 * one sends all its services and has the client drop
+		 * any others. Unlike syncSince() this does not turn
+		 * on sync points.
+		 */
+		@Override
+		public void resyncOnSubscribe() throws RemoteException {
+			debugConnection("resyncOnSubscribe()");
+			synchronized(this) {
+				syncFrom = -1;
+				syncRejected = true;
+			}
+		}
 
-		/** Set of all types seen during listener lifetime */
-		private final HashSet<String> seenTypes = new HashSet<String>();
+		/**
+		 * Have the event thread queue unresolved services
+		 * 
+		 * @param t type of the services, null for all
+		 * @param priority
+		 */
+		private void postQueueUnresolved(final SrvType t, final int priority) {
+			updateNotify.post(new Runnable() {
+				@Override
+				public void run() {
+					queueUnresolved((t != null) ? t.getServices() : registry.getServices(), priority);
+				}
+			});
+		}
 
-		/** Callback method for adding service types */
 		@Override
-		public void serviceTypeAdded(ServiceEvent event) {
-			debugListener("serviceTypeAdded(" + event.getType() + ")");
-			if(mDNS != null) {
-				String type = event.getType();
+		public void resolve(final String key) throws RemoteException {
+			debugConnection("resolve(" + key + ")");
+			updateNotify.post(new Runnable() {
+				@Override
+				public void run() {
+					Srv s = registry.getSrv(key);
+					if(s != null) {
+						s.requested = true;
+						queueResolve(s, ResolveQueue.PRIORITY_REQUESTED);
+					}
+				}
+			});
+		}
 
-				// if we have never seen this type
-				if(!seenTypes.contains(type)) {
-					// notify the main thread
-					sendTypeMessage(NOTIFY_TYPE_ADDED, type);
-					// add a service listener for the type
-					mDNS.addServiceListener(type, new SrvListener(type));
-					// remember the type
-					seenTypes.add(type);
+		@Override
+		public void setResolveConcurrency(final int limit) throws RemoteException {
+			debugConnection("setResolveConcurrency(" + limit + ")");
+			updateNotify.post(new Runnable() {
+				@Override
+				public void run() {
+					resolveQueue.setMaxInFlight(limit);
+					dispatchResolves();
 				}
+			});
+		}
+
+		@Override
+		public void registerServices(final List<ZeroConfRecord> records) throws RemoteException {
+			debugConnection("registerServices(" + records.size() + ")");
+			if(isClosed()) {
+				return;
 			}
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					publisher.publish(Connection.this, records);
+				}
+			});
+		}
+
+		@Override
+		public void unregisterServices(final List<ZeroConfRecord> records) throws RemoteException {
+			debugConnection("unregisterServices(" + records.size() + ")");
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					publisher.unpublish(Connection.this, records);
+				}
+			});
+		}
+
+		@Override
+		public void setDiscoveryBackend(final String name) throws RemoteException {
+			debugConnection("setDiscoveryBackend(" + name + ")");
+			discoveryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					switchBackend(name);
+				}
+			});
 		}
 
-		/** Callback method for adding service subtypes */
 		@Override
-		public void subTypeForServiceTypeAdded(ServiceEvent event) {
+		public ZeroConfStats getStats() throws RemoteException {
+			return stats.snapshot(registry.snapshot(), clock.now());
 		}
 
 	}